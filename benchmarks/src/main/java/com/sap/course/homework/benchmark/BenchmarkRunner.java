@@ -0,0 +1,36 @@
+package com.sap.course.homework.benchmark;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of the benchmark jar - JMH with the results written as JSON
+ *
+ * Without a -rf or -rff option the results go to jmh-result.json in the working directory, so the runs of two
+ * releases can be compared. Every other option is passed to JMH as it is, e.g. a regex of the benchmarks to run.
+ *
+ * @author borislav.draganov
+ */
+
+public class BenchmarkRunner {
+    private static final String RESULT_FILE = "jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+
+        if (!options.contains("-rf")) {
+            options.add("-rf");
+            options.add("json");
+        }
+
+        if (!options.contains("-rff")) {
+            options.add("-rff");
+            options.add(RESULT_FILE);
+        }
+
+        Main.main(options.toArray(new String[options.size()]));
+    }
+}
@@ -0,0 +1,80 @@
+package com.sap.course.homework.benchmark;
+
+import com.sap.course.homework.util.ChannelHandler;
+import com.sap.course.homework.util.Frame;
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.Opcode;
+import com.sap.course.homework.util.Protocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A chat line encoded for every member of a room, without the network - run with -prof gc for the bytes allocated
+ * per message (gc.alloc.rate.norm)
+ *
+ * encodeOnce is what the server does: one frame per protocol, every receiver queues a view of it.
+ * encodePerReceiver is the baseline it replaced - the line built, terminated and encoded again for every receiver.
+ *
+ * @author borislav.draganov
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"1000"})
+    public int recipients;
+
+    private String username;
+    private String text;
+
+    // What every receiver queues
+    private ByteBuffer[] queued;
+
+    @Setup
+    public void setup() {
+        username = "alice";
+        text = "Has anybody seen the slides of the last lecture?";
+        queued = new ByteBuffer[recipients];
+    }
+
+    @Benchmark
+    public ByteBuffer[] encodePerReceiver() {
+        for (int i = 0; i < recipients; i++) {
+            queued[i] = ChannelHandler.encodeMsg(username + ": " + text);
+        }
+
+        return queued;
+    }
+
+    @Benchmark
+    public ByteBuffer[] encodeOnce() {
+        Frame frame = Frame.encode(new Message(Opcode.MESSAGE, username, text, System.currentTimeMillis()), Protocol.TEXT);
+
+        for (int i = 0; i < recipients; i++) {
+            queued[i] = frame.retain().view();
+        }
+
+        // Written by every receiver
+        for (int i = 0; i <= recipients; i++) {
+            frame.release();
+        }
+
+        return queued;
+    }
+}
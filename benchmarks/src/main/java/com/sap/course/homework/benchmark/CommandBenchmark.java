@@ -0,0 +1,62 @@
+package com.sap.course.homework.benchmark;
+
+import com.sap.course.homework.util.SystemCommand;
+import com.sap.course.homework.util.UserCommand;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The command checks done for every line a client types and every line a text client receives
+ *
+ * A chat line that is no command is the common case and the most expensive one - every command is searched for.
+ *
+ * @author borislav.draganov
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+    @Param({"chat", "userCommand", "systemCommand"})
+    public String line;
+
+    private String text;
+
+    @Setup
+    public void setup() {
+        switch (line) {
+            case "userCommand":
+                text = "/download holiday-pictures.zip";
+                break;
+            case "systemCommand":
+                text = SystemCommand.FILE_NOT_FOUND.getCommand() + "holiday-pictures.zip";
+                break;
+            default:
+                text = "Has anybody seen the slides of the last lecture? I can't find them anywhere";
+        }
+    }
+
+    @Benchmark
+    public boolean systemCommand() {
+        return SystemCommand.isCommand(text);
+    }
+
+    @Benchmark
+    public boolean userCommand() {
+        return UserCommand.isCommand(text);
+    }
+}
@@ -0,0 +1,164 @@
+package com.sap.course.homework.benchmark;
+
+import com.sap.course.homework.util.ChannelHandler;
+import com.sap.course.homework.util.FrameDecoder;
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.Opcode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server engines side by side - a chat message between two users while many other clients are connected
+ *
+ * The idle clients only open a connection with the handshake, the benchmark is the time until the message reached
+ * the other user, sampled for its percentiles. What the idle connections cost is printed once they are open: the
+ * heap after a full collection and the resident memory of the process, per connection. Client and server share
+ * the JVM, so both ends of a connection are in it. 100k connections need about 200k file descriptors - raise the
+ * limit with ulimit -n. They come from several loopback addresses, one address has too few ephemeral ports.
+ *
+ * @author borislav.draganov
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// The idle clients never log in or answer a PING, the round trips are faster than the rate limits
+@Fork(value = 1, jvmArgsAppend = {"-Dniochat.password.iterations=1000", "-Dniochat.metrics.interval=0",
+        "-Dniochat.heartbeat.interval=0", "-Dniochat.timeout.idle=0", "-Dniochat.timeout.login=0",
+        "-Dniochat.limit.messages=0", "-Dniochat.limit.bytes=0"})
+public class EngineBenchmark {
+    // Connections per local address, below the ephemeral ports of one address
+    private static final int CONNECTIONS_PER_ADDRESS = 20000;
+
+    @Param({"selector", "blocking", "async"})
+    public String engine;
+
+    @Param({"10000", "100000"})
+    public int idle;
+
+    private LoopbackServer server;
+    private List<SocketChannel> idleClients;
+
+    private SocketChannel sender;
+    private FrameDecoder senderDecoder;
+    private SocketChannel receiver;
+    private FrameDecoder receiverDecoder;
+
+    @Setup
+    public void setup() throws Exception {
+        server = LoopbackServer.start(engine);
+
+        sender = server.login("engine-sender");
+        senderDecoder = new FrameDecoder();
+        receiver = server.login("engine-receiver");
+        receiverDecoder = new FrameDecoder();
+        server.awaitSessions(2);
+
+        System.gc();
+        long heapBefore = usedHeap();
+        long residentBefore = residentBytes();
+
+        idleClients = new ArrayList<>(idle);
+        for (int i = 0; i < idle; i++) {
+            byte[] localAddress = {127, 0, 0, (byte) (1 + i / CONNECTIONS_PER_ADDRESS)};
+            idleClients.add(server.connect(InetAddress.getByAddress(localAddress)));
+        }
+        server.awaitConnections(idle + 2);
+
+        System.gc();
+        long heapPerConnection = (usedHeap() - heapBefore) / idle;
+        long residentPerConnection = (residentBytes() - residentBefore) / idle;
+
+        // Standard output is switched off for the server
+        System.err.printf("%d idle connections on the %s engine: %d heap bytes and %d resident bytes per connection%n",
+                idle, engine, heapPerConnection, residentPerConnection);
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Get the resident memory of the process - the thread stacks and the socket buffers are not on the heap
+     *
+     * @return - The resident bytes or 0 if the system doesn't tell
+     * @throws IOException
+     */
+    private static long residentBytes() throws IOException {
+        File status = new File("/proc/self/status");
+        if (!status.isFile()) {
+            return 0;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(status))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        }
+
+        return 0;
+    }
+
+    @Benchmark
+    public Message roundTrip() throws IOException {
+        ChannelHandler.sendMsg(sender, new Message(Opcode.CHAT, "Has anybody seen the slides of the last lecture?"));
+
+        Message received = null;
+        while (received == null) {
+            receiverDecoder.read(receiver);
+
+            for (Message message = receiverDecoder.nextMessage(); message != null; message = receiverDecoder.nextMessage()) {
+                if (message.getOpcode() == Opcode.MESSAGE) {
+                    received = message;
+                }
+            }
+        }
+
+        // The delivery report, so the next message doesn't find it
+        boolean reported = false;
+        while (!reported) {
+            senderDecoder.read(sender);
+
+            for (Message message = senderDecoder.nextMessage(); message != null; message = senderDecoder.nextMessage()) {
+                reported |= message.getOpcode() == Opcode.DELIVERY_REPORT;
+            }
+        }
+
+        return received;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sender.close();
+        receiver.close();
+
+        for (SocketChannel idleClient : idleClients) {
+            idleClient.close();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.sap.course.homework.benchmark;
+
+import com.sap.course.homework.util.ChannelHandler;
+import com.sap.course.homework.util.FrameDecoder;
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.Opcode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lobby message forwarded to every other logged in user or a room message to every other member, measured until
+ * the last receiver has read it
+ *
+ * The receivers are read by a single thread that decodes every frame like a client would. 10k receivers need twice
+ * as many file descriptors on the loopback - raise the limit with ulimit -n before running them.
+ * BroadcastBenchmark measures the encoding of the message alone.
+ *
+ * @author borislav.draganov
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// The receivers never answer a PING, the sender is faster than the rate limits
+@Fork(value = 1, jvmArgsAppend = {"-Dniochat.password.iterations=1000", "-Dniochat.metrics.interval=0",
+        "-Dniochat.heartbeat.interval=0", "-Dniochat.timeout.idle=0", "-Dniochat.timeout.login=0",
+        "-Dniochat.limit.messages=0", "-Dniochat.limit.bytes=0"})
+public class FanOutBenchmark {
+    private static final String ROOM = "lecture";
+
+    @Param({"10", "1000", "10000"})
+    public int recipients;
+
+    @Param({"selector", "blocking", "async"})
+    public String engine;
+
+    // The lobby or a room every receiver joined
+    @Param({"lobby", "room"})
+    public String target;
+
+    private LoopbackServer server;
+    private SocketChannel sender;
+    private FrameDecoder senderDecoder;
+    private List<SocketChannel> receivers;
+    private Message post;
+
+    private Selector selector;
+    private Thread readerThread;
+    private AtomicLong received;
+    private long expected;
+
+    @Setup
+    public void setup() throws Exception {
+        server = LoopbackServer.start(engine);
+
+        receivers = new ArrayList<>(recipients);
+        for (int i = 0; i < recipients; i++) {
+            receivers.add(server.login("receiver-" + i));
+        }
+
+        sender = server.login("sender");
+        senderDecoder = new FrameDecoder();
+        server.awaitSessions(recipients + 1);
+
+        List<FrameDecoder> decoders = new ArrayList<>(recipients);
+        for (int i = 0; i < recipients; i++) {
+            decoders.add(new FrameDecoder());
+        }
+
+        String text = "Has anybody seen the slides of the last lecture?";
+        if (target.equals("room")) {
+            join(sender, senderDecoder);
+            for (int i = 0; i < recipients; i++) {
+                join(receivers.get(i), decoders.get(i));
+            }
+
+            post = new Message(Opcode.ROOM_POST, ROOM, text);
+        } else {
+            post = new Message(Opcode.CHAT, text);
+        }
+
+        // Everything the receivers get is read by one thread
+        selector = Selector.open();
+        for (int i = 0; i < recipients; i++) {
+            receivers.get(i).configureBlocking(false);
+            receivers.get(i).register(selector, SelectionKey.OP_READ, decoders.get(i));
+        }
+
+        received = new AtomicLong(0);
+        expected = 0;
+
+        readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readReceivers();
+            }
+        }, "receivers");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Join the room of the benchmark and wait for the answer
+     *
+     * @param channel - The blocking channel of a logged in user
+     * @param frameDecoder - The decoder of the channel
+     * @throws IOException
+     */
+    private static void join(SocketChannel channel, FrameDecoder frameDecoder) throws IOException {
+        ChannelHandler.sendMsg(channel, new Message(Opcode.ROOM_JOIN, ROOM));
+
+        while (true) {
+            if (frameDecoder.read(channel) < 0) {
+                throw new IOException("Connection closed before joining " + ROOM);
+            }
+
+            for (Message message = frameDecoder.nextMessage(); message != null; message = frameDecoder.nextMessage()) {
+                if (message.getOpcode() == Opcode.ROOM_INFO) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the chat messages that reach the receivers until the selector is closed
+     */
+    private void readReceivers() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    FrameDecoder frameDecoder = (FrameDecoder) key.attachment();
+                    if (frameDecoder.read((SocketChannel) key.channel()) < 0) {
+                        key.cancel();
+                        continue;
+                    }
+
+                    for (Message message = frameDecoder.nextMessage(); message != null; message = frameDecoder.nextMessage()) {
+                        if (message.getOpcode() == Opcode.MESSAGE || message.getOpcode() == Opcode.ROOM_MESSAGE) {
+                            received.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (selector.isOpen()) {
+                e.printStackTrace();
+            }
+        } catch (RuntimeException e) {
+            // The selector was closed meanwhile
+            if (selector.isOpen()) {
+                throw e;
+            }
+        }
+    }
+
+    @Benchmark
+    public int forward() throws IOException {
+        ChannelHandler.sendMsg(sender, post);
+
+        // The delivery report comes when the message is queued for every receiver
+        int delivered = -1;
+        while (delivered < 0) {
+            senderDecoder.read(sender);
+
+            for (Message message = senderDecoder.nextMessage(); message != null; message = senderDecoder.nextMessage()) {
+                if (message.getOpcode() == Opcode.DELIVERY_REPORT) {
+                    delivered = message.getInt(0);
+                }
+            }
+        }
+
+        // Then until every receiver it was queued for has read it
+        expected += delivered;
+        while (received.get() < expected) {
+            Thread.yield();
+        }
+
+        return delivered;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        selector.close();
+
+        sender.close();
+        for (SocketChannel receiver : receivers) {
+            receiver.close();
+        }
+    }
+}
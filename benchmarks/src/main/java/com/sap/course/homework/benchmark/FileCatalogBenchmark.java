@@ -0,0 +1,151 @@
+package com.sap.course.homework.benchmark;
+
+import com.sap.course.homework.server.FileCatalog;
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.MessageCodec;
+import com.sap.course.homework.util.Opcode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing the uploaded files - a page of the catalog encoded as the FILE_LIST_RESULT frame a client gets
+ *
+ * The directory has the given number of empty files. A page costs the same for any size of the directory, the whole
+ * listing follows the cursor over all pages. listDirectory is the baseline the catalog replaced - the directory read
+ * with every request, without the write per name that came after it.
+ *
+ * @author borislav.draganov
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileCatalogBenchmark {
+    // The page of a binary client, see ProtocolHandler
+    private static final int PAGE_SIZE = 1000;
+    private static final int MAX_CHARS = 20 * 1024;
+
+    @Param({"1000", "100000"})
+    public int files;
+
+    private File dir;
+    private FileCatalog catalog;
+    private String middle;
+    private String prefix;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("benchmark-catalog-").toFile();
+
+        for (int i = 0; i < files; i++) {
+            Files.createFile(new File(dir, name(i)).toPath());
+        }
+
+        catalog = new FileCatalog(dir.getPath());
+        middle = name(files / 2);
+
+        // A hundredth of the files and the ten after it, e.g. lecture-10 and lecture-100 to lecture-109
+        prefix = "lecture-" + files / 100;
+    }
+
+    private static String name(int i) {
+        return "lecture-" + i + ".pdf";
+    }
+
+    @Benchmark
+    public ByteBuffer firstPage() {
+        return page("", "");
+    }
+
+    @Benchmark
+    public ByteBuffer middlePage() {
+        return page("", middle);
+    }
+
+    @Benchmark
+    public ByteBuffer prefixPage() {
+        return page(prefix, "");
+    }
+
+    @Benchmark
+    public int wholeListing() {
+        int pages = 0;
+
+        String after = "";
+        do {
+            List<String> names = catalog.list("", after, PAGE_SIZE, MAX_CHARS);
+            after = names.isEmpty() || !catalog.hasMore("", names.get(names.size() - 1)) ? "" : names.get(names.size() - 1);
+            pages++;
+        } while (!after.isEmpty());
+
+        return pages;
+    }
+
+    @Benchmark
+    public List<String> listDirectory() {
+        File[] listed = dir.listFiles();
+        List<String> names = new ArrayList<>(listed.length);
+
+        for (File file : listed) {
+            names.add(file.getName());
+        }
+
+        return names;
+    }
+
+    /**
+     * Take a page and encode it like the server does
+     *
+     * @param prefix - The prefix of the names
+     * @param after - The name the page starts after
+     * @return - The frame
+     */
+    private ByteBuffer page(String prefix, String after) {
+        List<String> names = catalog.list(prefix, after, PAGE_SIZE, MAX_CHARS);
+
+        String next = "";
+        if (!names.isEmpty() && catalog.hasMore(prefix, names.get(names.size() - 1))) {
+            next = names.get(names.size() - 1);
+        }
+
+        return MessageCodec.encode(new Message(Opcode.FILE_LIST_RESULT, names, next));
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] listed = dir.listFiles();
+
+        if (listed != null) {
+            for (File file : listed) {
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+
+        if (!dir.delete()) {
+            dir.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.sap.course.homework.benchmark;
+
+import com.sap.course.homework.util.ChannelHandler;
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.Opcode;
+import com.sap.course.homework.util.Protocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole file uploaded to and downloaded from the server over loopback
+ *
+ * An operation is one file of the given size, so the throughput in bytes per second is the size divided by the
+ * time of an operation. The client side only moves bytes - the download is not stored.
+ *
+ * @author borislav.draganov
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dniochat.metrics.interval=0")
+public class FileTransferBenchmark {
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    @Param({"1048576", "67108864"})
+    public int size;
+
+    @Param({"selector", "blocking", "async"})
+    public String engine;
+
+    private LoopbackServer server;
+    private File file;
+    private ByteBuffer readBuffer;
+
+    @Setup
+    public void setup() throws Exception {
+        server = LoopbackServer.start(engine);
+        readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        // Random bytes - the same content every run, no gain from compression
+        file = File.createTempFile("benchmark-" + size + "-", ".bin");
+        Random random = new Random(size);
+        byte[] bytes = new byte[64 * 1024];
+
+        try (FileChannel fileChannel = new FileOutputStream(file).getChannel()) {
+            for (long written = 0; written < size; written += bytes.length) {
+                random.nextBytes(bytes);
+                ByteBuffer chunk = ByteBuffer.wrap(bytes, 0, (int) Math.min(bytes.length, size - written));
+
+                while (chunk.hasRemaining()) {
+                    fileChannel.write(chunk);
+                }
+            }
+        }
+
+        // The download needs the file on the server
+        upload();
+    }
+
+    @Benchmark
+    public long upload() throws IOException {
+        try (SocketChannel socketChannel = server.connect()) {
+            ChannelHandler.sendFile(file, socketChannel, Protocol.BINARY);
+
+            // The server closes the connection once it has the whole file
+            socketChannel.shutdownOutput();
+            return drain(socketChannel);
+        }
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        try (SocketChannel socketChannel = server.connect()) {
+            ChannelHandler.sendMsg(socketChannel, new Message(Opcode.FILE_DOWNLOAD, file.getName(), 0L, -1L));
+
+            long received = drain(socketChannel);
+            if (received < size) {
+                throw new IOException("Only " + received + " of " + size + " bytes were downloaded");
+            }
+
+            return received;
+        }
+    }
+
+    /**
+     * Read everything until the server closes the connection
+     *
+     * @param socketChannel - The connection
+     * @return - The number of bytes read
+     * @throws IOException
+     */
+    private long drain(SocketChannel socketChannel) throws IOException {
+        long received = 0;
+
+        for (int read = socketChannel.read(readBuffer); read >= 0; read = socketChannel.read(readBuffer)) {
+            received += read;
+            readBuffer.clear();
+        }
+
+        return received;
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.sap.course.homework.benchmark;
+
+import com.sap.course.homework.server.AsyncServer;
+import com.sap.course.homework.server.BlockingServer;
+import com.sap.course.homework.server.Server;
+import com.sap.course.homework.util.ChannelHandler;
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.Opcode;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A chat server in the benchmark's JVM, reached over loopback
+ *
+ * The server keeps its files, history and users in the working directory like a started server does. Its console
+ * output is switched off - printing every message would be measured instead of the server.
+ *
+ * @author borislav.draganov
+ */
+
+public class LoopbackServer {
+    private static final long START_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long LOGIN_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private int port;
+    private ObjectName metricsName;
+    private MBeanServer mBeanServer;
+
+    private LoopbackServer(int port) throws JMException {
+        this.port = port;
+        this.metricsName = new ObjectName("NioChat:type=Server,port=" + port);
+        this.mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    }
+
+    /**
+     * Start a server with the selector engine on a free port and wait until it publishes its metrics
+     *
+     * @return - The started server
+     * @throws Exception
+     */
+    public static LoopbackServer start() throws Exception {
+        return start("selector");
+    }
+
+    /**
+     * Start a server on a free port and wait until it publishes its metrics
+     *
+     * @param engine - The engine of the server, selector, blocking or async
+     * @return - The started server
+     * @throws Exception
+     */
+    public static LoopbackServer start(String engine) throws Exception {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) { }
+
+            @Override
+            public void write(byte[] b, int off, int len) { }
+        }));
+
+        LoopbackServer loopbackServer = new LoopbackServer(freePort());
+
+        Runnable server;
+        if (engine.equals(BlockingServer.ENGINE)) {
+            server = new BlockingServer(loopbackServer.port);
+        } else if (engine.equals(AsyncServer.ENGINE)) {
+            server = new AsyncServer(loopbackServer.port);
+        } else {
+            server = new Server(loopbackServer.port);
+        }
+
+        Thread thread = new Thread(server, "NioChat-server");
+        thread.setDaemon(true);
+        thread.start();
+
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (!loopbackServer.mBeanServer.isRegistered(loopbackServer.metricsName)) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("The server didn't start on port " + loopbackServer.port);
+            }
+
+            Thread.sleep(10);
+        }
+
+        return loopbackServer;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    /**
+     * Open a blocking binary protocol connection
+     *
+     * @return - The connected channel, after the handshake
+     * @throws IOException
+     */
+    public SocketChannel connect() throws IOException {
+        return connect(InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Open a blocking binary protocol connection from a local address - every address has its own ephemeral ports,
+     * more than about 28k connections to the server need several of 127.0.0.0/8
+     *
+     * @param localAddress - The address of the client's end
+     * @return - The connected channel, after the handshake
+     * @throws IOException
+     */
+    public SocketChannel connect(InetAddress localAddress) throws IOException {
+        SocketChannel socketChannel = SocketChannel.open();
+        socketChannel.bind(new InetSocketAddress(localAddress, 0));
+        socketChannel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        socketChannel.socket().setTcpNoDelay(true);
+        ChannelHandler.sendHandshake(socketChannel);
+
+        return socketChannel;
+    }
+
+    /**
+     * Open a connection and log in - an unknown user is registered with the password
+     *
+     * @param username - The name of the user
+     * @return - The connected channel, the login may still be checked
+     * @throws IOException
+     */
+    public SocketChannel login(String username) throws IOException {
+        SocketChannel socketChannel = connect();
+        ChannelHandler.sendMsg(socketChannel, new Message(Opcode.LOGIN, username, "benchmark"));
+
+        return socketChannel;
+    }
+
+    /**
+     * Wait until a number of users are logged in
+     *
+     * @param count - The number of sessions
+     * @throws Exception
+     */
+    public void awaitSessions(int count) throws Exception {
+        long deadline = System.currentTimeMillis() + LOGIN_TIMEOUT_MILLIS;
+
+        while ((Integer) mBeanServer.getAttribute(metricsName, "Sessions") < count) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Only " + mBeanServer.getAttribute(metricsName, "Sessions") + " of " + count + " users logged in");
+            }
+
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Wait until the server has a number of open connections
+     *
+     * @param count - The number of connections
+     * @throws Exception
+     */
+    public void awaitConnections(int count) throws Exception {
+        long deadline = System.currentTimeMillis() + LOGIN_TIMEOUT_MILLIS;
+
+        while ((Integer) mBeanServer.getAttribute(metricsName, "Connections") < count) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Only " + mBeanServer.getAttribute(metricsName, "Connections") + " of " + count + " connections are open");
+            }
+
+            Thread.sleep(10);
+        }
+    }
+}
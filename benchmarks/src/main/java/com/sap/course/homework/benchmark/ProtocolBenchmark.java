@@ -0,0 +1,303 @@
+package com.sap.course.homework.benchmark;
+
+import com.sap.course.homework.util.ChannelHandler;
+import com.sap.course.homework.util.Constants;
+import com.sap.course.homework.util.FrameDecoder;
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.MessageCodec;
+import com.sap.course.homework.util.Opcode;
+import com.sap.course.homework.util.Protocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding, sending and decoding of single chat messages
+ *
+ * sendMsg and the round trips go over loopback connections - the bytes of sendMsg are read and dropped by another
+ * thread, a round trip decodes the message on the other side.
+ * The decode benchmarks read from an endless stream of the same frame, so only the decoder is measured.
+ * Messages are read by a FrameDecoder - the ...ReadMsg benchmarks read the same text lines with the old
+ * ChannelHandler.readMsg it replaced, a read call and a String per byte, as the baseline.
+ *
+ * @author borislav.draganov
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+    @Param({"16", "256", "4096"})
+    public int length;
+
+    private Message message;
+
+    // Both ends of a loopback connection
+    private SocketChannel client;
+    private SocketChannel server;
+    private FrameDecoder serverDecoder;
+
+    // Text connections read by a decoder and by the old readMsg
+    private SocketChannel textClient;
+    private SocketChannel textServer;
+    private FrameDecoder textServerDecoder;
+    private SocketChannel readMsgClient;
+    private SocketChannel readMsgServer;
+    private ByteBuffer line;
+
+    // A connection read by another thread
+    private SocketChannel sendClient;
+    private SocketChannel sendServer;
+
+    // Endless streams of frames
+    private FrameDecoder binaryDecoder;
+    private ReadableByteChannel binaryFrames;
+    private FrameDecoder textDecoder;
+    private ReadableByteChannel textFrames;
+    private ReadableByteChannel readMsgFrames;
+
+    @Setup
+    public void setup() throws IOException {
+        char[] text = new char[length];
+        Arrays.fill(text, 'x');
+        message = new Message(Opcode.CHAT, new String(text));
+
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        client = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        client.socket().setTcpNoDelay(true);
+        server = serverSocketChannel.accept();
+
+        sendClient = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        sendClient.socket().setTcpNoDelay(true);
+        sendServer = serverSocketChannel.accept();
+
+        textClient = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        textClient.socket().setTcpNoDelay(true);
+        textServer = serverSocketChannel.accept();
+        textServerDecoder = new FrameDecoder();
+
+        readMsgClient = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        readMsgClient.socket().setTcpNoDelay(true);
+        readMsgServer = serverSocketChannel.accept();
+        serverSocketChannel.close();
+
+        Thread dropThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer dropped = ByteBuffer.allocateDirect(64 * 1024);
+
+                try {
+                    while (sendServer.read(dropped) >= 0) {
+                        dropped.clear();
+                    }
+                } catch (IOException e) {
+                    // Closed by the tear down
+                }
+            }
+        }, "drop");
+        dropThread.setDaemon(true);
+        dropThread.start();
+
+        ChannelHandler.sendHandshake(client);
+        serverDecoder = new FrameDecoder();
+        while (serverDecoder.getProtocol() == null) {
+            serverDecoder.read(server);
+            serverDecoder.nextMessage();
+        }
+
+        binaryDecoder = new FrameDecoder();
+        binaryFrames = new RepeatingChannel(MessageCodec.handshake(), Protocol.BINARY.encode(message));
+        textDecoder = new FrameDecoder();
+        line = ChannelHandler.encodeMsg(message.getString(0));
+        textFrames = new RepeatingChannel(ByteBuffer.allocate(0), line.duplicate());
+        readMsgFrames = new RepeatingChannel(ByteBuffer.allocate(0), line.duplicate());
+    }
+
+    @Benchmark
+    public void sendMsg() throws IOException {
+        ChannelHandler.sendMsg(sendClient, message);
+    }
+
+    @Benchmark
+    public Message roundTrip() throws IOException {
+        ChannelHandler.sendMsg(client, message);
+
+        return next(serverDecoder, server);
+    }
+
+    @Benchmark
+    public Message roundTripText() throws IOException {
+        write(textClient, line.duplicate());
+
+        return next(textServerDecoder, textServer);
+    }
+
+    @Benchmark
+    public String roundTripReadMsg() throws IOException {
+        write(readMsgClient, line.duplicate());
+
+        return readMsg(readMsgServer);
+    }
+
+    @Benchmark
+    public Message decodeBinary() throws IOException {
+        return next(binaryDecoder, binaryFrames);
+    }
+
+    @Benchmark
+    public Message decodeText() throws IOException {
+        return next(textDecoder, textFrames);
+    }
+
+    @Benchmark
+    public String decodeTextReadMsg() throws IOException {
+        return readMsg(readMsgFrames);
+    }
+
+    /**
+     * Read until a whole message is decoded
+     *
+     * @param frameDecoder - The decoder of the channel
+     * @param channel - The channel with the frames
+     * @return - The message
+     * @throws IOException
+     */
+    private static Message next(FrameDecoder frameDecoder, ReadableByteChannel channel) throws IOException {
+        Message decoded = frameDecoder.nextMessage();
+        while (decoded == null) {
+            if (frameDecoder.read(channel) < 0) {
+                throw new IOException("End of stream");
+            }
+
+            decoded = frameDecoder.nextMessage();
+        }
+
+        return decoded;
+    }
+
+    private static void write(WritableByteChannel channel, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * The old ChannelHandler.readMsg on a blocking channel - without its limit of 64 bytes, so it reads the same
+     * lines as the decoder
+     *
+     * @param channel - The channel with the text lines
+     * @return - The line without the delimiter
+     * @throws IOException
+     */
+    private static String readMsg(ReadableByteChannel channel) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(1);
+
+        StringBuilder stringBuilder = new StringBuilder();
+
+        // Read byte by byte until \n is found
+        while (true) {
+            if (channel.read(byteBuffer) < 0) {
+                throw new IOException("End of stream");
+            }
+            byteBuffer.flip();
+
+            String byteStr = new String(byteBuffer.array(), Charset.forName(Constants.UTF_ENCODING));
+
+            if (byteStr.equals("\n")) {
+                break;
+            } else {
+                stringBuilder.append(byteStr);
+            }
+        }
+
+        return stringBuilder.toString();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+        sendClient.close();
+        sendServer.close();
+        textClient.close();
+        textServer.close();
+        readMsgClient.close();
+        readMsgServer.close();
+        serverDecoder.release();
+        textServerDecoder.release();
+        binaryDecoder.release();
+        textDecoder.release();
+    }
+
+    /**
+     * A channel with a header followed by the same frame over and over
+     */
+    private static class RepeatingChannel implements ReadableByteChannel {
+        private ByteBuffer header;
+        private ByteBuffer frame;
+
+        private RepeatingChannel(ByteBuffer header, ByteBuffer frame) {
+            this.header = header;
+            this.frame = frame;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            int read = 0;
+
+            while (header.hasRemaining() && dst.hasRemaining()) {
+                dst.put(header.get());
+                read++;
+            }
+
+            while (dst.hasRemaining()) {
+                if (!frame.hasRemaining()) {
+                    frame.rewind();
+                }
+
+                int count = Math.min(frame.remaining(), dst.remaining());
+                ByteBuffer slice = frame.slice();
+                slice.limit(count);
+                dst.put(slice);
+                frame.position(frame.position() + count);
+                read += count;
+            }
+
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() { }
+    }
+}
@@ -0,0 +1,505 @@
+package com.sap.course.homework.client;
+
+import com.sap.course.homework.server.RoomRegistry;
+import com.sap.course.homework.util.Capability;
+import com.sap.course.homework.util.DisconnectReason;
+import com.sap.course.homework.util.FrameDecoder;
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.MessageCodec;
+import com.sap.course.homework.util.Opcode;
+
+import javax.security.auth.login.FailedLoginException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+/**
+ * A chat connection to a server without any user interface
+ *
+ * Every request returns a future that is completed with the server's answer. The server answers the requests of
+ * a connection in the order they were sent, so an answer belongs to the oldest pending request that it can answer.
+ * Messages of other users go to the subscribed listeners. All of it runs on a client loop that may be shared by
+ * many clients - the methods can be called from any thread, the futures and listeners are completed and called on
+ * the loop's thread. File transfers use connections of their own on the same loop.
+ *
+ * @author borislav.draganov
+ */
+
+public class ChatClient extends LoopConnection {
+    private InetSocketAddress address;
+    private List<ChatListener> listeners;
+
+    // Owned by the loop's thread
+    private FrameDecoder frameDecoder;
+    private List<PendingRequest> pendingRequests;
+    private CompletableFuture<Void> connectFuture;
+    private CompletableFuture<Void> disconnectFuture;
+
+    public ChatClient(ClientLoop loop, String hostname, int port) {
+        this(loop, new InetSocketAddress(hostname, port));
+    }
+
+    public ChatClient(ClientLoop loop, InetSocketAddress address) {
+        super(loop, address);
+        this.address = address;
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.frameDecoder = new FrameDecoder();
+        this.pendingRequests = new LinkedList<>();
+        this.connectFuture = new CompletableFuture<>();
+        this.disconnectFuture = new CompletableFuture<>();
+    }
+
+    /**
+     * Receive the messages of other users
+     *
+     * @param listener - The listener
+     */
+    public void subscribe(ChatListener listener) {
+        listeners.add(listener);
+    }
+
+    public void unsubscribe(ChatListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Connect to the server - requests made meanwhile are sent once the connection is established
+     *
+     * @return - Completed when the connection is established
+     */
+    public CompletableFuture<Void> connect() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    open();
+                } catch (IOException e) {
+                    failed(e);
+                }
+            }
+        });
+
+        return connectFuture;
+    }
+
+    @Override
+    void connected() throws IOException {
+        // Compressed messages are inflated by the frame decoder
+        send(MessageCodec.handshake());
+        send(new Message(Opcode.CAPABILITIES, Capability.flags(Capability.COMPRESS_MESSAGES)));
+
+        connectFuture.complete(null);
+    }
+
+    /**
+     * Log in - an unknown user is registered with the password
+     *
+     * @param username - The name of the user
+     * @param password - The password
+     * @return - Completed when the user is logged in, failed with a FailedLoginException if the server rejected it
+     */
+    public CompletableFuture<Void> login(String username, String password) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final PendingRequest loginRequest = new PendingRequest(Opcode.LOGIN, RoomRegistry.LOBBY);
+
+        // The server doesn't answer a successful login - an empty history of the lobby is asked for right after it
+        request(new Message(Opcode.LOGIN, username, password), null);
+        request(new Message(Opcode.HISTORY, RoomRegistry.LOBBY, 1, Long.MAX_VALUE), loginRequest);
+
+        loginRequest.count.whenComplete(new BiConsumer<Integer, Throwable>() {
+            @Override
+            public void accept(Integer count, Throwable error) {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(null);
+                }
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Send a message to the lobby
+     *
+     * @param text - The text
+     * @return - Completed with the number of users that got it
+     */
+    public CompletableFuture<Integer> send(String text) {
+        return request(new Message(Opcode.CHAT, text), new PendingRequest(Opcode.CHAT, null)).count;
+    }
+
+    /**
+     * Send a message to a room of the user
+     *
+     * @param room - The name of the room
+     * @param text - The text
+     * @return - Completed with the number of users that got it, 0 if the user is not a member
+     */
+    public CompletableFuture<Integer> post(String room, String text) {
+        return request(new Message(Opcode.ROOM_POST, room, text), new PendingRequest(Opcode.ROOM_POST, room)).count;
+    }
+
+    /**
+     * Send a message only to another user
+     *
+     * @param username - The name of the receiver
+     * @param text - The text
+     * @return - Completed with 1 if the receiver is online, 0 otherwise
+     */
+    public CompletableFuture<Integer> sendDirect(String username, String text) {
+        return request(new Message(Opcode.DIRECT, username, text), new PendingRequest(Opcode.DIRECT, null)).count;
+    }
+
+    /**
+     * Become a member of a room, created if it doesn't exist
+     *
+     * @param room - The name of the room
+     * @return - Completed with the number of members, 0 if the name is not valid
+     */
+    public CompletableFuture<Integer> join(String room) {
+        return request(new Message(Opcode.ROOM_JOIN, room), new PendingRequest(Opcode.ROOM_JOIN, room)).count;
+    }
+
+    /**
+     * Stop being a member of a room
+     *
+     * @param room - The name of the room
+     * @return - Completed with the number of remaining members
+     */
+    public CompletableFuture<Integer> leave(String room) {
+        return request(new Message(Opcode.ROOM_LEAVE, room), new PendingRequest(Opcode.ROOM_LEAVE, room)).count;
+    }
+
+    /**
+     * Ask for the earlier messages of a room - they go to the listeners before the future is completed
+     *
+     * @param room - The name of the room, empty for the lobby
+     * @param count - The most messages, 0 for no limit
+     * @param since - The time of the oldest message in milliseconds, 0 for no limit
+     * @return - Completed with the number of messages, 0 if the user is not a member
+     */
+    public CompletableFuture<Integer> history(String room, int count, long since) {
+        String name = room.isEmpty() ? RoomRegistry.LOBBY : room;
+
+        return request(new Message(Opcode.HISTORY, name, count, since), new PendingRequest(Opcode.HISTORY, name)).count;
+    }
+
+    /**
+     * List the uploaded files - every page of the listing is asked for
+     *
+     * @param prefix - The prefix of the names, empty for all files
+     * @return - Completed with the names
+     */
+    public CompletableFuture<List<String>> listFiles(String prefix) {
+        PendingRequest listRequest = new PendingRequest(Opcode.FILE_LIST, null);
+        listRequest.prefix = prefix;
+        listRequest.names = new ArrayList<>();
+
+        return request(new Message(Opcode.FILE_LIST, prefix, "", 0), listRequest).files;
+    }
+
+    /**
+     * Upload a file on a connection of its own - only the part the server doesn't have is sent
+     *
+     * @param file - The file
+     * @param listener - Follows the progress, may be null
+     * @return - Completed with the number of bytes sent when the server has the whole file
+     */
+    public CompletableFuture<Long> upload(File file, TransferListener listener) {
+        return new UploadTransfer(loop, address, file, listener).start();
+    }
+
+    /**
+     * Download a file on a connection of its own - an interrupted download of the same file is continued
+     *
+     * @param name - The name of the file on the server
+     * @param target - Where to keep the file
+     * @param listener - Follows the progress, may be null
+     * @return - Completed with the target when the whole file is there, failed with FileNotFoundException if the
+     * server doesn't have it
+     */
+    public CompletableFuture<File> download(String name, File target, TransferListener listener) {
+        return new DownloadTransfer(loop, address, name, target, listener).start();
+    }
+
+    /**
+     * Log out and close the connection
+     *
+     * @return - Completed when the connection is closed
+     */
+    public CompletableFuture<Void> disconnect() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    send(new Message(Opcode.DISCONNECT));
+                } catch (IOException e) {
+                    // Closed anyway
+                }
+
+                closeConnection(new IOException("Disconnected"));
+            }
+        });
+
+        return disconnectFuture;
+    }
+
+    /**
+     * Send a request on the loop's thread
+     *
+     * @param message - The request
+     * @param pendingRequest - Waits for the answer, null if there is none
+     * @return - The pending request
+     */
+    private PendingRequest request(final Message message, final PendingRequest pendingRequest) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (isClosed()) {
+                    if (pendingRequest != null) {
+                        pendingRequest.fail(new IOException("Connection closed"));
+                    }
+                    return;
+                }
+
+                if (pendingRequest != null) {
+                    pendingRequests.add(pendingRequest);
+                }
+
+                try {
+                    send(message);
+                } catch (IOException e) {
+                    failed(e);
+                }
+            }
+        });
+
+        return pendingRequest;
+    }
+
+    @Override
+    void readable() throws IOException {
+        if (frameDecoder.read(socketChannel) < 0) {
+            closeConnection(new IOException("Connection closed by the server"));
+            return;
+        }
+
+        for (Message message = frameDecoder.nextMessage(); message != null && !isClosed(); message = frameDecoder.nextMessage()) {
+            handleMessage(message);
+        }
+    }
+
+    /**
+     * Handle a message of the server
+     *
+     * @param message - The message
+     * @throws IOException
+     */
+    private void handleMessage(Message message) throws IOException {
+        switch (message.getOpcode()) {
+            // The server accepted the binary protocol
+            case HANDSHAKE:
+                if (message.getInt(0) != MessageCodec.PROTOCOL_VERSION) {
+                    throw new ProtocolException("Unsupported protocol version " + message.getInt(0));
+                }
+                break;
+
+            // The features the server turned on - nothing to do, the frame decoder inflates messages
+            case CAPABILITIES:
+                break;
+
+            // The server checks that the client is alive
+            case PING:
+                send(new Message(Opcode.PONG));
+                break;
+
+            // The server closes the connection - the pending requests fail with the reason
+            case DISCONNECTED:
+                closeConnection(new IOException("Disconnected by the server - " + DisconnectReason.fromCode(message.getInt(0))));
+                break;
+
+            case MESSAGE:
+                for (ChatListener listener : listeners) {
+                    listener.messageReceived(message.getString(0), message.getString(1), message.getLong(2));
+                }
+                break;
+
+            case ROOM_MESSAGE:
+                for (ChatListener listener : listeners) {
+                    listener.roomMessageReceived(message.getString(0), message.getString(1), message.getString(2), message.getLong(3));
+                }
+                break;
+
+            case DIRECT_MESSAGE:
+                for (ChatListener listener : listeners) {
+                    listener.directMessageReceived(message.getString(0), message.getString(1), message.getLong(2));
+                }
+                break;
+
+            // The answers to requests
+            case INVALID_USER:
+            case DELIVERY_REPORT:
+            case ROOM_INFO:
+            case HISTORY_END:
+            case FILE_LIST_RESULT:
+            case RATE_LIMITED:
+                answer(message);
+                break;
+
+            default:
+                throw new ProtocolException("Unexpected message " + message.getOpcode());
+        }
+    }
+
+    /**
+     * Complete the oldest pending request the message answers
+     *
+     * @param message - The answer
+     * @throws IOException
+     */
+    private void answer(Message message) throws IOException {
+        PendingRequest pendingRequest = null;
+
+        for (Iterator<PendingRequest> iterator = pendingRequests.iterator(); iterator.hasNext(); ) {
+            PendingRequest candidate = iterator.next();
+
+            if (candidate.isAnsweredBy(message)) {
+                pendingRequest = candidate;
+                iterator.remove();
+                break;
+            }
+        }
+
+        if (pendingRequest == null) {
+            return;
+        }
+
+        switch (message.getOpcode()) {
+            case INVALID_USER:
+                pendingRequest.fail(new FailedLoginException("Invalid user credentials"));
+                break;
+            case DELIVERY_REPORT:
+                pendingRequest.count.complete(message.getInt(0));
+                break;
+            case ROOM_INFO:
+            case HISTORY_END:
+                pendingRequest.count.complete(message.getInt(1));
+                break;
+            // The server dropped the request
+            case RATE_LIMITED:
+                pendingRequest.fail(new IOException("Rate limit exceeded - " + pendingRequest.opcode + " was dropped"));
+                break;
+            case FILE_LIST_RESULT:
+                pendingRequest.names.addAll(message.getStringList(0));
+
+                // Ask for the next page - the request stays pending
+                if (!message.getString(1).isEmpty()) {
+                    pendingRequests.add(0, pendingRequest);
+                    send(new Message(Opcode.FILE_LIST, pendingRequest.prefix, message.getString(1), 0));
+                } else {
+                    pendingRequest.files.complete(pendingRequest.names);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void failed(IOException cause) {
+        closeConnection(cause);
+    }
+
+    /**
+     * Close the connection and fail whatever is still pending
+     *
+     * @param cause - The reason
+     */
+    private void closeConnection(IOException cause) {
+        if (isClosed()) {
+            return;
+        }
+
+        close();
+        frameDecoder.release();
+
+        connectFuture.completeExceptionally(cause);
+        for (PendingRequest pendingRequest : pendingRequests) {
+            pendingRequest.fail(cause);
+        }
+        pendingRequests.clear();
+
+        for (ChatListener listener : listeners) {
+            listener.disconnected();
+        }
+
+        disconnectFuture.complete(null);
+    }
+
+    /**
+     * A request waiting for its answer
+     */
+    private static class PendingRequest {
+        private Opcode opcode;
+        private String room;
+
+        // Completed with the number of the answer, or the names of a file listing
+        private CompletableFuture<Integer> count;
+        private CompletableFuture<List<String>> files;
+
+        // The listing received so far
+        private String prefix;
+        private List<String> names;
+
+        private PendingRequest(Opcode opcode, String room) {
+            this.opcode = opcode;
+            this.room = room;
+            this.count = new CompletableFuture<>();
+            this.files = new CompletableFuture<>();
+        }
+
+        /**
+         * Check if a message is the answer to this request
+         *
+         * @param message - The message
+         * @return - true if it answers the request, false otherwise
+         */
+        private boolean isAnsweredBy(Message message) {
+            switch (message.getOpcode()) {
+                case INVALID_USER:
+                    return opcode == Opcode.LOGIN;
+                case DELIVERY_REPORT:
+                    return opcode == Opcode.CHAT || opcode == Opcode.DIRECT || opcode == Opcode.ROOM_POST;
+                case ROOM_INFO:
+                    // Non-members are answered with an empty room instead
+                    if (!message.getString(0).equals(room)) {
+                        return false;
+                    }
+                    return opcode == Opcode.ROOM_JOIN || opcode == Opcode.ROOM_LEAVE || message.getInt(1) == 0;
+                case HISTORY_END:
+                    return (opcode == Opcode.HISTORY || opcode == Opcode.LOGIN) && message.getString(0).equals(room);
+                case FILE_LIST_RESULT:
+                    return opcode == Opcode.FILE_LIST;
+                case RATE_LIMITED:
+                    return opcode.getCode() == message.getInt(0);
+                default:
+                    return false;
+            }
+        }
+
+        private void fail(Throwable cause) {
+            count.completeExceptionally(cause);
+            files.completeExceptionally(cause);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.sap.course.homework.client;
+
+/**
+ * Receives what other users send to a chat client - called on the thread of the client loop
+ *
+ * @author borislav.draganov
+ */
+
+public interface ChatListener {
+    /**
+     * A message posted to the lobby
+     *
+     * @param from - The name of the sender
+     * @param text - The text
+     * @param timestamp - The time the server got it, in milliseconds
+     */
+    void messageReceived(String from, String text, long timestamp);
+
+    /**
+     * A message posted to a room of the user
+     *
+     * @param room - The name of the room
+     * @param from - The name of the sender
+     * @param text - The text
+     * @param timestamp - The time the server got it, in milliseconds
+     */
+    void roomMessageReceived(String room, String from, String text, long timestamp);
+
+    /**
+     * A message sent only to the user
+     *
+     * @param from - The name of the sender
+     * @param text - The text
+     * @param timestamp - The time the server got it, in milliseconds
+     */
+    void directMessageReceived(String from, String text, long timestamp);
+
+    /**
+     * The connection to the server is closed
+     */
+    void disconnected();
+}
@@ -1,41 +1,27 @@
 package com.sap.course.homework.client;
 
-import com.sap.course.homework.domain.User;
+import com.sap.course.homework.server.RoomRegistry;
 import com.sap.course.homework.util.*;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.channels.FileChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Set;
+import java.net.ProtocolException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
 
 /**
- * Client Side
+ * Client Side - a window on top of a chat client of the shared client loop
  *
  * @author borislav.draganov
  */
 
-public class Client extends JFrame implements Runnable, ActionListener, KeyEventDispatcher {
-    private String address;
-
-    // Elements needed when transmitting files
-    private boolean connectedToServer;
-    private boolean downloadRequest;
-    private FileChannelWrapper fileChannelWrapper;
-    private SelectionKey transferSelectionKey;
-    private String fileName;
-
-    // NIO Elements
-    private SocketChannel socketChannel;
-    private Selector selector;
+public class Client extends JFrame implements ChatListener, Runnable, ActionListener, KeyEventDispatcher {
+    private ChatClient chatClient;
 
     // GUI Elements
     private JScrollPane chatScrollPane;
@@ -43,46 +29,25 @@ public class Client extends JFrame implements Runnable, ActionListener, KeyEvent
     private JTextField messageTextField;
     private JButton sendMsgBtn, sendFileBtn;
 
-    // Used for file transfer
-    private SocketChannel fileTransferChannel;
-
-    // Window Listener
-    private WinListener winListener;
-
     public Client(String address) {
-        this.address = address;
-        connectedToServer = false;
-        downloadRequest = false;
         System.out.println("Starting Client");
 
         initGUI();
 
         try {
-            initClient(address, Constants.PORT);
+            chatClient = new ChatClient(ClientLoop.getDefault(), address, Constants.PORT);
+            chatClient.subscribe(this);
         } catch (IOException e) {
             e.printStackTrace();
         }
-    }
-
-    /**
-     * Initialize the client - connect to a server
-     *
-     * @param hostname - The server hostname
-     * @param port - The server port
-     * @throws IOException
-     */
-    private void initClient(String hostname, int port) throws IOException {
-        socketChannel = SocketChannel.open();
-        socketChannel.configureBlocking(false);
-
-        selector = Selector.open();
 
-        socketChannel.connect(new InetSocketAddress(hostname, port));
-        socketChannel.register(selector, SelectionKey.OP_CONNECT);
-
-        // Register Window Listener - to disconnect the client when the window is closed
-        winListener = new WinListener(socketChannel);
-        this.addWindowListener(winListener);
+        // Disconnect the client when the window is closed
+        this.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                chatClient.disconnect();
+            }
+        });
     }
 
     /**
@@ -134,11 +99,11 @@ public class Client extends JFrame implements Runnable, ActionListener, KeyEvent
     }
 
     /**
-     * Send the credentials to the server
+     * Ask for the credentials and log in
      *
-     * @throws IOException
+     * @throws InterruptedException
      */
-    private void sendCredentials() throws IOException {
+    private void login() throws InterruptedException {
         JPanel panel = new JPanel(new BorderLayout(5, 5));
 
         JPanel labels = new JPanel(new GridLayout(0, 1, 2, 2));
@@ -164,17 +129,26 @@ public class Client extends JFrame implements Runnable, ActionListener, KeyEvent
             password = new String(passwordField.getPassword());
         }
 
-        User user = new User(username, password);
+        try {
+            chatClient.login(username, password).get();
+        } catch (ExecutionException e) {
+            // The server rejected the credentials
+            JOptionPane.showMessageDialog(this, e.getCause().getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            chatClient.disconnect();
+            this.dispose();
+            return;
+        }
 
-        ChannelHandler.sendMsg(socketChannel, user.toString());
+        // The last messages of the lobby follow the login
+        history("", Constants.HISTORY_REPLAY_MESSAGES, 0);
     }
 
     /**
      * Send the typed message to the server
      *
-     * @throws IOException
+     * @throws ProtocolException
      */
-    private void sendMsg() throws IOException {
+    private void sendMsg() throws ProtocolException {
         String msg = messageTextField.getText();
         messageTextField.setText("");
 
@@ -183,144 +157,219 @@ public class Client extends JFrame implements Runnable, ActionListener, KeyEvent
             return;
         }
 
-        // Check for download command
-        if (UserCommand.isCommand(msg)) {
-            if (msg.contains(UserCommand.FILE_DOWNLOAD.getCommand())) {
-                fileName = msg.split(" ")[1];
-                openFileTransferChannel();
-                downloadRequest = true;
-            } else {
-                ChannelHandler.sendMsg(socketChannel, msg);
+        // Check for user commands
+        UserCommand command = UserCommand.fromString(msg);
+        if (command == null) {
+            chatClient.send(msg).whenComplete(new Report() {
+                @Override
+                String line(int count) {
+                    return String.format(Constants.MESSAGE_SENT_TO_USERS, count);
+                }
+            });
+            return;
+        }
+
+        switch (command) {
+            case FILE_DOWNLOAD:
+                downloadFile(msg.split(" ")[1]);
+                break;
+            case FILE_LIST:
+                listFiles(command.getArgument(msg));
+                break;
+            case ROOM_JOIN:
+                final String joined = command.getArgument(msg);
+                chatClient.join(joined).whenComplete(new Report() {
+                    @Override
+                    String line(int count) {
+                        return String.format(Constants.ROOM_MEMBERS, joined, count);
+                    }
+                });
+                break;
+            case ROOM_LEAVE:
+                final String left = command.getArgument(msg);
+                chatClient.leave(left).whenComplete(new Report() {
+                    @Override
+                    String line(int count) {
+                        return String.format(Constants.ROOM_MEMBERS, left, count);
+                    }
+                });
+                break;
+            case ROOM_POST:
+                String[] post = command.getArgument(msg).split(" ", 2);
+                if (post.length == 2) {
+                    chatClient.post(post[0], post[1]).whenComplete(new Report() {
+                        @Override
+                        String line(int count) {
+                            return String.format(Constants.MESSAGE_SENT_TO_USERS, count);
+                        }
+                    });
+                }
+                break;
+            case DIRECT:
+                String[] direct = command.getArgument(msg).split(" ", 2);
+                if (direct.length == 2) {
+                    chatClient.sendDirect(direct[0], direct[1]).whenComplete(new Report() {
+                        @Override
+                        String line(int count) {
+                            return String.format(Constants.MESSAGE_SENT_TO_USERS, count);
+                        }
+                    });
+                }
+                break;
+            case HISTORY:
+                Message request = TextProtocol.parse(msg);
+                if (request.getOpcode() == Opcode.HISTORY) {
+                    history(request.getString(0), request.getInt(1), request.getLong(2));
+                }
+                break;
+        }
+    }
+
+    /**
+     * Shows the answer of the server once it comes
+     */
+    private abstract class Report implements BiConsumer<Integer, Throwable> {
+        /**
+         * Format the answer
+         *
+         * @param count - The number the server answered with
+         * @return - The line to show
+         */
+        abstract String line(int count);
+
+        @Override
+        public void accept(Integer count, Throwable error) {
+            if (error == null) {
+                appendText(line(count));
             }
-        } else {
-            ChannelHandler.sendMsg(socketChannel, msg);
         }
     }
 
     /**
-     * Open an additional channel for transmitting files
+     * Replay the earlier messages of a room
      *
-     * @throws IOException
+     * @param room - The name of the room, empty for the lobby
+     * @param count - The most messages
+     * @param since - The time of the oldest message
      */
-    private void openFileTransferChannel() throws IOException {
-        fileTransferChannel = SocketChannel.open();
-        fileTransferChannel.configureBlocking(false);
+    private void history(String room, int count, long since) {
+        final String name = room.isEmpty() ? RoomRegistry.LOBBY : room;
 
-        fileTransferChannel.connect(new InetSocketAddress(address, Constants.PORT));
+        chatClient.history(name, count, since).whenComplete(new Report() {
+            @Override
+            String line(int count) {
+                return String.format(Constants.HISTORY_REPLAYED, count, name);
+            }
+        });
+    }
 
-        fileTransferChannel.register(selector, SelectionKey.OP_CONNECT);
+    /**
+     * List the uploaded files with a prefix
+     *
+     * @param prefix - The prefix of the names
+     */
+    private void listFiles(String prefix) {
+        chatClient.listFiles(prefix).whenComplete(new BiConsumer<List<String>, Throwable>() {
+            @Override
+            public void accept(List<String> names, Throwable error) {
+                if (error != null) {
+                    return;
+                }
+
+                for (String name : names) {
+                    appendText(name);
+                }
+            }
+        });
     }
 
     /**
-     * Select a file and send it on the file transfer channel
+     * Download a file to the working directory
      *
-     * @throws IOException
+     * @param fileName - The name of the file on the server
+     */
+    private void downloadFile(final String fileName) {
+        chatClient.download(fileName, new File(fileName), null).whenComplete(new BiConsumer<File, Throwable>() {
+            @Override
+            public void accept(File file, Throwable error) {
+                if (error == null) {
+                    appendText("Downloaded " + fileName);
+                } else if (error instanceof FileNotFoundException) {
+                    appendText("File not found");
+                } else {
+                    // The partial file is kept - the next download of the same file continues it
+                    appendText("Download of " + fileName + " interrupted");
+                }
+            }
+        });
+    }
+
+    /**
+     * Select a file and upload it
      */
-    private void sendFile() throws IOException {
+    private void sendFile() {
         JFileChooser fileChooser = new JFileChooser();
         int returnVal = fileChooser.showOpenDialog(this);
 
         if(returnVal == JFileChooser.APPROVE_OPTION) {
-            ChannelHandler.sendFile(fileChooser.getSelectedFile(), fileTransferChannel);
+            final File uploadFile = fileChooser.getSelectedFile();
+
+            chatClient.upload(uploadFile, null).whenComplete(new BiConsumer<Long, Throwable>() {
+                @Override
+                public void accept(Long sent, Throwable error) {
+                    if (error == null) {
+                        appendText("Uploaded " + uploadFile.getName());
+                    } else {
+                        appendText("Upload of " + uploadFile.getName() + " failed");
+                    }
+                }
+            });
         }
     }
 
     /**
-     * Send a request to the server for a file
+     * Add a line to the chat - safe to call from the client loop
      *
-     * @throws IOException
+     * @param text - The line to add
      */
-    private void requestFile() throws IOException {
-        ChannelHandler.sendMsg(fileTransferChannel, SystemCommand.FILE_DOWNLOAD.getCommand() + "-" + fileName);
-        fileTransferChannel.register(selector, SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+    private void appendText(final String text) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                chatTextPane.setText(chatTextPane.getText() + text + "\n");
+            }
+        });
     }
 
     @Override
-    public void run() {
-        while (true) {
-            try {
-                // Get ready channels
-                int readyChannels = selector.select();
-                if (readyChannels == 0) { continue; }
-
-                Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-
-                // Handle Events
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-
-                    // Ready to finish connection
-                    if (key.isConnectable()) {
-                        SocketChannel socketChannel = (SocketChannel) key.channel();
-                        socketChannel.finishConnect();
-
-                        // File Transfer Channel
-                        if (connectedToServer == true) {
-                            if (downloadRequest) {
-                                requestFile();
-                                downloadRequest = false;
-                            } else {
-                                sendFile();
-                            }
-                        }
-                        // Main Chat Channel
-                        else {
-                            socketChannel.register(selector, SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+    public void messageReceived(String from, String text, long timestamp) {
+        appendText(from + ": " + text);
+    }
 
-                            // Login to the server
-                            sendCredentials();
-                            connectedToServer = true;
-                        }
-                    }
-                    // Client has sent data
-                    else if (key.isReadable()) {
-                        // Download file
-                        if (key == transferSelectionKey) {
-                            ChannelHandler.saveFile(key, fileChannelWrapper);
-                        } else {
-                            // Read data
-                            String data = ChannelHandler.readMsg((SocketChannel) key.channel());
-//                            System.out.println("Client received: " + data);
-
-                            if (SystemCommand.isCommand(data)) {
-                                // The server rejected the credentials
-                                if (data.contains(SystemCommand.INVALID_USER.getCommand())) {
-                                    JOptionPane.showMessageDialog(this, "Invalid user credentials", "Error", JOptionPane.ERROR_MESSAGE);
-                                    this.dispose();
-                                }
-                                // The server is sending a file
-                                else if (data.contains(SystemCommand.FILE_UPLOAD.getCommand())) {
-                                    String[] fileData = data.split("-");
-
-                                    File file = new File(fileData[1]);
-
-                                    file.createNewFile();
-
-                                    FileOutputStream fileOutputStream = new FileOutputStream(file);
-                                    FileChannel fileChannel = fileOutputStream.getChannel();
-                                    fileChannelWrapper = new FileChannelWrapper(Long.parseLong(fileData[2]), fileChannel);
-
-                                    transferSelectionKey = key;
-                                }
-                                // Server did not find requested file - close the file channel
-                                else if (data.contains(SystemCommand.FILE_NOT_FOUND.getCommand())) {
-                                    chatTextPane.setText(chatTextPane.getText() + "File not found" + "\n");
-                                    fileTransferChannel.close();
-                                    key.cancel();
-                                    transferSelectionKey = null;
-                                }
-                            } else {
-                                chatTextPane.setText(chatTextPane.getText() + data + "\n");
-                            }
-                        }
-                    }
+    @Override
+    public void roomMessageReceived(String room, String from, String text, long timestamp) {
+        appendText("[" + room + "] " + from + ": " + text);
+    }
 
-                    keyIterator.remove();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    @Override
+    public void directMessageReceived(String from, String text, long timestamp) {
+        appendText("(private) " + from + ": " + text);
+    }
+
+    @Override
+    public void disconnected() {
+        appendText("Disconnected");
+    }
+
+    @Override
+    public void run() {
+        try {
+            chatClient.connect().get();
+            login();
+        } catch (ExecutionException e) {
+            appendText("Cannot connect: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -329,15 +378,11 @@ public class Client extends JFrame implements Runnable, ActionListener, KeyEvent
         if (e.getSource() == sendMsgBtn) {
             try {
                 sendMsg();
-            } catch (IOException e1) {
+            } catch (ProtocolException e1) {
                 e1.printStackTrace();
             }
         } else if (e.getSource() == sendFileBtn) {
-            try {
-                openFileTransferChannel();
-            } catch (IOException e1) {
-                e1.printStackTrace();
-            }
+            sendFile();
         }
     }
 
@@ -346,11 +391,11 @@ public class Client extends JFrame implements Runnable, ActionListener, KeyEvent
         if (e.getKeyCode() == KeyEvent.VK_ENTER) {
             try {
                 sendMsg();
-            } catch (IOException e1) {
+            } catch (ProtocolException e1) {
                 e1.printStackTrace();
             }
         }
 
         return false;
     }
-}
\ No newline at end of file
+}
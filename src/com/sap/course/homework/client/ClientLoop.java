@@ -0,0 +1,180 @@
+package com.sap.course.homework.client;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A selector thread shared by any number of chat clients and their file transfers
+ *
+ * Every channel of the clients is owned by the loop's thread - the clients hand their work over as tasks and the
+ * loop runs them before it selects again, the same way the server's reactors do. Callbacks of the clients run on
+ * this thread too, so they must not block.
+ *
+ * @author borislav.draganov
+ */
+
+public class ClientLoop implements Runnable {
+    private static ClientLoop defaultLoop;
+
+    private String name;
+    private Selector selector;
+    private volatile Thread thread;
+    private volatile boolean running;
+
+    // Work handed over by other threads
+    private Queue<Runnable> pendingTasks;
+    private AtomicBoolean wakenUp;
+
+    public ClientLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+        this.pendingTasks = new ConcurrentLinkedQueue<>();
+        this.wakenUp = new AtomicBoolean(false);
+    }
+
+    /**
+     * Get the loop shared by the clients of this JVM, started with the first call
+     *
+     * @return - The running loop
+     * @throws IOException
+     */
+    public static synchronized ClientLoop getDefault() throws IOException {
+        if (defaultLoop == null) {
+            defaultLoop = new ClientLoop("NioChat-client");
+            defaultLoop.start();
+        }
+
+        return defaultLoop;
+    }
+
+    /**
+     * Start the selector loop on a new daemon thread
+     */
+    public void start() {
+        running = true;
+
+        Thread loopThread = new Thread(this, name);
+        loopThread.setDaemon(true);
+        loopThread.start();
+    }
+
+    /**
+     * Stop the loop - every channel still open is failed and closed
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Check if the caller runs on this loop's thread
+     *
+     * @return - true if called from the selector loop, false otherwise
+     */
+    public boolean inLoopThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run a task on the loop's thread - tasks run in the order they were handed over
+     *
+     * @param task - The task
+     */
+    public void execute(Runnable task) {
+        pendingTasks.add(task);
+
+        if (!inLoopThread() && wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Register a channel with the loop's selector - called from the loop's thread only
+     *
+     * @param channel - The non-blocking channel
+     * @param ops - The operations of interest
+     * @param handler - Gets the events of the channel
+     * @return - The key of the channel
+     * @throws IOException
+     */
+    SelectionKey register(SelectableChannel channel, int ops, SelectionHandler handler) throws IOException {
+        return channel.register(selector, ops, handler);
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+
+        try {
+            while (running) {
+                wakenUp.set(false);
+                runPendingTasks();
+
+                int readyChannels = selector.select();
+                if (readyChannels == 0) { continue; }
+
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    SelectionHandler handler = (SelectionHandler) key.attachment();
+                    try {
+                        handler.handle(key);
+                    } catch (IOException e) {
+                        handler.failed(e);
+                    } catch (RuntimeException e) {
+                        // A failing callback must not stop the other clients
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            close();
+        }
+    }
+
+    private void runPendingTasks() {
+        for (Runnable task = pendingTasks.poll(); task != null; task = pendingTasks.poll()) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Fail every channel and release the selector
+     */
+    private void close() {
+        IOException cause = new IOException("Client loop " + name + " was shut down");
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof SelectionHandler) {
+                ((SelectionHandler) key.attachment()).failed(cause);
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
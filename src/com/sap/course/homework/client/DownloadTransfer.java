@@ -0,0 +1,209 @@
+package com.sap.course.homework.client;
+
+import com.sap.course.homework.util.Capability;
+import com.sap.course.homework.util.ChannelHandler;
+import com.sap.course.homework.util.Decompressor;
+import com.sap.course.homework.util.FileChannelWrapper;
+import com.sap.course.homework.util.FrameDecoder;
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.MessageCodec;
+import com.sap.course.homework.util.Opcode;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Download of a file on a connection of its own
+ *
+ * The bytes are received in a partial file next to the target, which is moved in place once it's complete.
+ * An interrupted download keeps the partial file and the next download of the same file continues it.
+ *
+ * @author borislav.draganov
+ */
+
+class DownloadTransfer extends LoopConnection {
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    // A read of a compressed download inflates to at most about a thousand times its size
+    private static final int MAX_INFLATED_READ = 128 * 1024 * 1024;
+
+    private String name;
+    private File target;
+    private File partialFile;
+    private TransferListener listener;
+    private CompletableFuture<File> result;
+
+    private FrameDecoder frameDecoder;
+    private Decompressor decompressor;
+
+    // The partial file once the server sends the range
+    private FileChannelWrapper fileChannelWrapper;
+    private long size;
+
+    DownloadTransfer(ClientLoop loop, InetSocketAddress address, String name, File target, TransferListener listener) {
+        super(loop, address);
+        this.name = name;
+        this.target = target;
+        this.partialFile = new File(target.getPath() + PARTIAL_SUFFIX);
+        this.listener = listener;
+        this.result = new CompletableFuture<>();
+        this.frameDecoder = new FrameDecoder();
+    }
+
+    /**
+     * Connect and ask for the file
+     *
+     * @return - Completed with the target once the whole file is there
+     */
+    CompletableFuture<File> start() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    open();
+                } catch (IOException e) {
+                    failed(e);
+                }
+            }
+        });
+
+        return result;
+    }
+
+    @Override
+    void connected() throws IOException {
+        // Continue an interrupted download
+        send(MessageCodec.handshake());
+        send(new Message(Opcode.CAPABILITIES, Capability.flags(Capability.COMPRESS_FILES)));
+        send(new Message(Opcode.FILE_DOWNLOAD, name, partialFile.length(), -1L));
+    }
+
+    @Override
+    void readable() throws IOException {
+        if (fileChannelWrapper != null) {
+            if (decompressor != null) {
+                ChannelHandler.saveFile(key, fileChannelWrapper, decompressor);
+            } else {
+                ChannelHandler.saveFile(key, fileChannelWrapper);
+            }
+
+            saved();
+            return;
+        }
+
+        if (frameDecoder.read(socketChannel) < 0) {
+            throw new EOFException("Connection closed before the download of " + name);
+        }
+
+        for (Message message = frameDecoder.nextMessage(); message != null; message = frameDecoder.nextMessage()) {
+            switch (message.getOpcode()) {
+                case HANDSHAKE:
+                    if (message.getInt(0) != MessageCodec.PROTOCOL_VERSION) {
+                        throw new ProtocolException("Unsupported protocol version " + message.getInt(0));
+                    }
+                    break;
+
+                // The features the server turned on
+                case CAPABILITIES:
+                    if (Capability.COMPRESS_FILES.isSet(message.getInt(0))) {
+                        decompressor = new Decompressor(MAX_INFLATED_READ);
+                    }
+                    break;
+
+                case FILE_NOT_FOUND:
+                    throw new FileNotFoundException(name);
+
+                // The server is sending a range of the file
+                case FILE_UPLOAD:
+                    receive(message.getLong(1), message.getLong(2), message.getLong(3));
+                    return;
+
+                default:
+                    throw new ProtocolException("Unexpected message " + message.getOpcode());
+            }
+        }
+    }
+
+    /**
+     * Start saving the range the server sends
+     *
+     * @param fileSize - The size of the file
+     * @param offset - The start of the range
+     * @param length - The length of the range
+     * @throws IOException
+     */
+    private void receive(long fileSize, long offset, long length) throws IOException {
+        FileChannel fileChannel = new RandomAccessFile(partialFile, "rw").getChannel();
+
+        // Drop whatever was kept after the start of the range
+        fileChannel.truncate(offset);
+        fileChannelWrapper = new FileChannelWrapper(offset + length, fileChannel, offset);
+        size = fileSize;
+
+        // The rest of the buffered bytes are the beginning of the range
+        if (decompressor != null) {
+            ChannelHandler.saveFile(key, fileChannelWrapper, decompressor, frameDecoder.drain());
+        } else {
+            ChannelHandler.saveFile(key, fileChannelWrapper, frameDecoder.drain());
+        }
+        frameDecoder.release();
+
+        saved();
+    }
+
+    /**
+     * Report the progress and move the file in place once it's complete
+     *
+     * @throws IOException
+     */
+    private void saved() throws IOException {
+        if (listener != null) {
+            listener.progress(fileChannelWrapper.getPosition(), size);
+        }
+
+        // Closed when all bytes were saved
+        if (fileChannelWrapper.getFileChannel().isOpen()) {
+            return;
+        }
+
+        Files.move(partialFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        release();
+
+        result.complete(target);
+    }
+
+    @Override
+    public void failed(IOException cause) {
+        // The partial file is kept - the next download of the same file continues it
+        release();
+
+        result.completeExceptionally(cause);
+    }
+
+    private void release() {
+        close();
+        frameDecoder.release();
+
+        if (fileChannelWrapper != null && fileChannelWrapper.getFileChannel().isOpen()) {
+            try {
+                fileChannelWrapper.getFileChannel().close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (decompressor != null) {
+            decompressor.end();
+            decompressor = null;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.sap.course.homework.client;
+
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.Protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * A non-blocking connection to the server owned by a client loop
+ *
+ * Bytes are queued and written as far as the socket takes them - OP_WRITE is only selected while something is left,
+ * so an idle connection never wakes the loop up. Everything but the constructor runs on the loop's thread.
+ *
+ * @author borislav.draganov
+ */
+
+abstract class LoopConnection implements SelectionHandler {
+    protected ClientLoop loop;
+    private InetSocketAddress address;
+
+    protected SocketChannel socketChannel;
+    protected SelectionKey key;
+    private Queue<ByteBuffer> outbound;
+    private boolean connected;
+    private boolean closed;
+
+    LoopConnection(ClientLoop loop, InetSocketAddress address) {
+        this.loop = loop;
+        this.address = address;
+        this.outbound = new ArrayDeque<>();
+    }
+
+    /**
+     * Start connecting - whatever is sent meanwhile is written once the connection is established
+     *
+     * @throws IOException
+     */
+    void open() throws IOException {
+        socketChannel = SocketChannel.open();
+        socketChannel.configureBlocking(false);
+        socketChannel.socket().setTcpNoDelay(true);
+
+        if (socketChannel.connect(address)) {
+            key = loop.register(socketChannel, SelectionKey.OP_READ, this);
+            established();
+        } else {
+            key = loop.register(socketChannel, SelectionKey.OP_CONNECT, this);
+        }
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            if (!socketChannel.finishConnect()) {
+                return;
+            }
+
+            key.interestOps(SelectionKey.OP_READ);
+            established();
+        }
+
+        if (key.isValid() && key.isReadable()) {
+            readable();
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    private void established() throws IOException {
+        connected = true;
+
+        // What the connection sends first goes before the bytes queued while connecting
+        Queue<ByteBuffer> queued = outbound;
+        outbound = new ArrayDeque<>();
+
+        connected();
+        outbound.addAll(queued);
+        flush();
+    }
+
+    /**
+     * Queue a message and write as much as the socket takes
+     *
+     * @param message - The message
+     * @throws IOException
+     */
+    void send(Message message) throws IOException {
+        send(Protocol.BINARY.encode(message));
+    }
+
+    void send(ByteBuffer bytes) throws IOException {
+        outbound.add(bytes);
+        flush();
+    }
+
+    /**
+     * Write the queued bytes, then whatever the connection streams - select OP_WRITE only if something is left
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        if (!connected || closed) {
+            return;
+        }
+
+        while (!outbound.isEmpty()) {
+            ByteBuffer bytes = outbound.peek();
+            socketChannel.write(bytes);
+
+            if (bytes.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+
+            outbound.poll();
+        }
+
+        if (!closed && writeMore()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } else if (key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Called once the connection is established - what it sends goes before the queued bytes
+     *
+     * @throws IOException
+     */
+    abstract void connected() throws IOException;
+
+    /**
+     * Read what the server sent
+     *
+     * @throws IOException
+     */
+    abstract void readable() throws IOException;
+
+    /**
+     * Write more bytes once the queue is empty, e.g. the next part of a file
+     *
+     * @return - true if more is left to write, false otherwise
+     * @throws IOException
+     */
+    boolean writeMore() throws IOException {
+        return false;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close the socket - the queued bytes are dropped
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        outbound.clear();
+
+        if (key != null) {
+            key.cancel();
+        }
+
+        try {
+            if (socketChannel != null) {
+                socketChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
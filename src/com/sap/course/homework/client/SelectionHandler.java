@@ -0,0 +1,27 @@
+package com.sap.course.homework.client;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * A channel of a client loop - gets the events of its key on the loop's thread
+ *
+ * @author borislav.draganov
+ */
+
+interface SelectionHandler {
+    /**
+     * Handle the ready operations of the channel
+     *
+     * @param key - The key of the channel
+     * @throws IOException - The channel is failed and closed by the handler's failed
+     */
+    void handle(SelectionKey key) throws IOException;
+
+    /**
+     * Give up the channel after an error or when the loop is shut down
+     *
+     * @param cause - The reason
+     */
+    void failed(IOException cause);
+}
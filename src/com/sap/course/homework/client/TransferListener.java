@@ -0,0 +1,17 @@
+package com.sap.course.homework.client;
+
+/**
+ * Follows the progress of an upload or a download - called on the thread of the client loop
+ *
+ * @author borislav.draganov
+ */
+
+public interface TransferListener {
+    /**
+     * More bytes of the file were transferred
+     *
+     * @param transferred - The bytes of the file the other side has so far
+     * @param size - The size of the file
+     */
+    void progress(long transferred, long size);
+}
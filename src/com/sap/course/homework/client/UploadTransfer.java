@@ -0,0 +1,218 @@
+package com.sap.course.homework.client;
+
+import com.sap.course.homework.util.Constants;
+import com.sap.course.homework.util.ContentHash;
+import com.sap.course.homework.util.FrameDecoder;
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.MessageCodec;
+import com.sap.course.homework.util.Opcode;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Upload of a file on a connection of its own
+ *
+ * The file is announced with its content hash and only the part the server doesn't have is sent. The bytes are
+ * streamed a quantum per writable event, so a large file doesn't keep the other clients of the loop waiting.
+ *
+ * @author borislav.draganov
+ */
+
+class UploadTransfer extends LoopConnection {
+    private File file;
+    private TransferListener listener;
+    private CompletableFuture<Long> result;
+
+    private FrameDecoder frameDecoder;
+    private String hash;
+
+    // The open file while its bytes are sent
+    private FileChannel fileChannel;
+    private long size;
+    private long offset;
+    private long position;
+    private boolean sent;
+
+    UploadTransfer(ClientLoop loop, InetSocketAddress address, File file, TransferListener listener) {
+        super(loop, address);
+        this.file = file;
+        this.listener = listener;
+        this.result = new CompletableFuture<>();
+        this.frameDecoder = new FrameDecoder();
+    }
+
+    /**
+     * Hash the file off the loop, then connect
+     *
+     * @return - Completed with the number of bytes sent
+     */
+    CompletableFuture<Long> start() {
+        CompletableFuture.supplyAsync(new Supplier<String>() {
+            @Override
+            public String get() {
+                try {
+                    return ContentHash.of(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }).whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(final String contentHash, final Throwable error) {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                    result.completeExceptionally(cause instanceof UncheckedIOException ? cause.getCause() : cause);
+                    return;
+                }
+
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        hash = contentHash;
+
+                        try {
+                            open();
+                        } catch (IOException e) {
+                            failed(e);
+                        }
+                    }
+                });
+            }
+        });
+
+        return result;
+    }
+
+    @Override
+    void connected() throws IOException {
+        // Ask what the server already has - the file is sent when the answer comes
+        send(MessageCodec.handshake());
+        send(new Message(Opcode.FILE_ANNOUNCE, file.getName(), file.length(), hash));
+    }
+
+    @Override
+    void readable() throws IOException {
+        // Nothing more is expected - the server closes once it has the whole range
+        if (fileChannel != null || sent) {
+            if (socketChannel.read(ByteBuffer.allocate(1)) < 0) {
+                if (!sent) {
+                    throw new EOFException("Connection closed after " + position + " of " + size + " bytes");
+                }
+                finish();
+            }
+            return;
+        }
+
+        if (frameDecoder.read(socketChannel) < 0) {
+            throw new EOFException("Connection closed before the upload of " + file.getName());
+        }
+
+        for (Message message = frameDecoder.nextMessage(); message != null; message = frameDecoder.nextMessage()) {
+            switch (message.getOpcode()) {
+                case HANDSHAKE:
+                    if (message.getInt(0) != MessageCodec.PROTOCOL_VERSION) {
+                        throw new ProtocolException("Unsupported protocol version " + message.getInt(0));
+                    }
+                    break;
+
+                // The server has part of the file
+                case FILE_STATUS_RESULT:
+                    frameDecoder.release();
+                    resume(message.getLong(1), message.getLong(2));
+                    return;
+
+                default:
+                    throw new ProtocolException("Unexpected message " + message.getOpcode());
+            }
+        }
+    }
+
+    /**
+     * Send the part of the file the server doesn't have yet
+     *
+     * @param serverSize - The size of the file on the server
+     * @param received - The bytes of the file the server has
+     * @throws IOException
+     */
+    private void resume(long serverSize, long received) throws IOException {
+        fileChannel = new FileInputStream(file).getChannel();
+        size = fileChannel.size();
+
+        // The server has the same content
+        if (serverSize == size && received >= size) {
+            fileChannel.close();
+            fileChannel = null;
+            sent = true;
+
+            finish();
+            return;
+        }
+
+        // Continue only an interrupted upload of the same file
+        offset = serverSize == size ? received : 0;
+        position = offset;
+
+        send(new Message(Opcode.FILE_UPLOAD, file.getName(), size, offset, size - offset));
+    }
+
+    @Override
+    boolean writeMore() throws IOException {
+        if (fileChannel == null) {
+            return false;
+        }
+
+        if (position < size) {
+            long written = fileChannel.transferTo(position, Math.min(size - position, Constants.FILE_TRANSFER_QUANTUM), socketChannel);
+            position += written;
+
+            if (listener != null && written > 0) {
+                listener.progress(position, size);
+            }
+
+            if (position < size) {
+                return true;
+            }
+        }
+
+        // Let the server close first - closing with its unread reply would reset the connection
+        fileChannel.close();
+        fileChannel = null;
+        sent = true;
+        socketChannel.shutdownOutput();
+
+        return false;
+    }
+
+    private void finish() {
+        close();
+        result.complete(position - offset);
+    }
+
+    @Override
+    public void failed(IOException cause) {
+        close();
+        frameDecoder.release();
+
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        result.completeExceptionally(cause);
+    }
+}
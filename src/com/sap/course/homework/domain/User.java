@@ -31,11 +31,13 @@ public class User {
         this.password = password;
     }
 
+    // The password is never logged
     @Override
     public String toString() {
-        return username + ":" + password;
+        return username;
     }
 
+    // A user is identified by the username - the password is only a credential
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -43,16 +45,11 @@ public class User {
 
         User user = (User) o;
 
-        if (password != null ? !password.equals(user.password) : user.password != null) return false;
-        if (username != null ? !username.equals(user.username) : user.username != null) return false;
-
-        return true;
+        return username != null ? username.equals(user.username) : user.username == null;
     }
 
     @Override
     public int hashCode() {
-        int result = username != null ? username.hashCode() : 0;
-        result = 31 * result + (password != null ? password.hashCode() : 0);
-        return result;
+        return username != null ? username.hashCode() : 0;
     }
 }
\ No newline at end of file
@@ -0,0 +1,145 @@
+package com.sap.course.homework.loadtest;
+
+import com.sap.course.homework.util.ChannelHandler;
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.Opcode;
+import com.sap.course.homework.util.Protocol;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+/**
+ * Uploads a file and downloads it back over and over until it's stopped
+ *
+ * Every transfer has its own connection like the transfers of the client. The file has random content, so neither
+ * the compression nor the content hash of the server can skip any byte of it.
+ *
+ * @author borislav.draganov
+ */
+
+public class FileTransferLoop implements Runnable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private InetSocketAddress address;
+    private LoadStats stats;
+    private long fileSize;
+    private File file;
+    private ByteBuffer readBuffer;
+
+    private volatile boolean running;
+
+    public FileTransferLoop(InetSocketAddress address, LoadStats stats, long fileSize) {
+        this.address = address;
+        this.stats = stats;
+        this.fileSize = fileSize;
+        this.readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.running = true;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        try {
+            file = createFile();
+
+            while (running) {
+                upload();
+                download();
+            }
+        } catch (IOException e) {
+            stats.error();
+            e.printStackTrace();
+        } finally {
+            if (file != null && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private File createFile() throws IOException {
+        File created = File.createTempFile("loadtest-", ".bin");
+        Random random = new Random();
+        byte[] bytes = new byte[BUFFER_SIZE];
+
+        try (FileChannel fileChannel = new FileOutputStream(created).getChannel()) {
+            for (long written = 0; written < fileSize; written += bytes.length) {
+                random.nextBytes(bytes);
+                ByteBuffer chunk = ByteBuffer.wrap(bytes, 0, (int) Math.min(bytes.length, fileSize - written));
+
+                while (chunk.hasRemaining()) {
+                    fileChannel.write(chunk);
+                }
+            }
+        }
+
+        return created;
+    }
+
+    /**
+     * Send the whole file and wait until the server closes the connection
+     *
+     * @throws IOException
+     */
+    private void upload() throws IOException {
+        long start = System.nanoTime();
+
+        try (SocketChannel socketChannel = SocketChannel.open(address)) {
+            ChannelHandler.sendHandshake(socketChannel);
+            ChannelHandler.sendFile(file, socketChannel, Protocol.BINARY);
+
+            // Let the server close first
+            socketChannel.shutdownOutput();
+            drain(socketChannel);
+        }
+
+        stats.uploaded(fileSize, System.nanoTime() - start);
+    }
+
+    /**
+     * Request the uploaded file and read it until the server closes the connection
+     *
+     * @throws IOException
+     */
+    private void download() throws IOException {
+        long start = System.nanoTime();
+        stats.downloadStarted();
+
+        try (SocketChannel socketChannel = SocketChannel.open(address)) {
+            ChannelHandler.sendHandshake(socketChannel);
+
+            ByteBuffer request = Protocol.BINARY.encode(new Message(Opcode.FILE_DOWNLOAD, file.getName(), 0L, -1L));
+            while (request.hasRemaining()) {
+                socketChannel.write(request);
+            }
+
+            if (drain(socketChannel) < fileSize) {
+                stats.error();
+                return;
+            }
+        } finally {
+            stats.downloadEnded();
+        }
+
+        stats.downloaded(fileSize, System.nanoTime() - start);
+    }
+
+    private long drain(SocketChannel socketChannel) throws IOException {
+        long received = 0;
+
+        for (int read = socketChannel.read(readBuffer); read >= 0; read = socketChannel.read(readBuffer)) {
+            received += read;
+            readBuffer.clear();
+        }
+
+        return received;
+    }
+}
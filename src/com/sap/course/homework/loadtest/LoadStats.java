@@ -0,0 +1,247 @@
+package com.sap.course.homework.loadtest;
+
+import com.sap.course.homework.util.LatencyHistogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the simulated users measured - shared by every thread of a load test
+ *
+ * Latencies are kept in histograms over the whole run. A report compares them with the snapshot of the previous
+ * report, so every line has the percentiles of its own interval and the summary has those of the whole run.
+ * The chat latency is also kept for the messages received while a download was running - a download must not
+ * hold back the chat of the other users.
+ *
+ * @author borislav.draganov
+ */
+
+public class LoadStats {
+    private static final long NANOS_PER_MICRO = 1000;
+
+    // Counters
+    private LongAdder connected;
+    private LongAdder loginFailures;
+    private LongAdder rateLimited;
+    private LongAdder errors;
+    private LongAdder messagesSent;
+    private LongAdder messagesReceived;
+    private LongAdder bytesSent;
+    private LongAdder bytesReceived;
+    private LongAdder uploads;
+    private LongAdder downloads;
+    private LongAdder transferBytes;
+    private AtomicInteger activeDownloads;
+
+    // Durations in nanoseconds
+    private LatencyHistogram endToEnd;
+    private LatencyHistogram endToEndDuringDownloads;
+    private LatencyHistogram deliveryReport;
+    private LatencyHistogram upload;
+    private LatencyHistogram download;
+
+    // The state at the previous report
+    private long lastReport;
+    private long lastSent;
+    private long lastReceived;
+    private long lastTransferBytes;
+    private long[] lastEndToEnd;
+    private long[] lastDeliveryReport;
+
+    public LoadStats() {
+        this.connected = new LongAdder();
+        this.loginFailures = new LongAdder();
+        this.rateLimited = new LongAdder();
+        this.errors = new LongAdder();
+        this.messagesSent = new LongAdder();
+        this.messagesReceived = new LongAdder();
+        this.bytesSent = new LongAdder();
+        this.bytesReceived = new LongAdder();
+        this.uploads = new LongAdder();
+        this.downloads = new LongAdder();
+        this.transferBytes = new LongAdder();
+        this.activeDownloads = new AtomicInteger(0);
+
+        this.endToEnd = new LatencyHistogram();
+        this.endToEndDuringDownloads = new LatencyHistogram();
+        this.deliveryReport = new LatencyHistogram();
+        this.upload = new LatencyHistogram();
+        this.download = new LatencyHistogram();
+
+        this.lastReport = System.nanoTime();
+        this.lastEndToEnd = endToEnd.snapshot();
+        this.lastDeliveryReport = deliveryReport.snapshot();
+    }
+
+    // Recording
+
+    public void connected() {
+        connected.increment();
+    }
+
+    public void disconnected() {
+        connected.decrement();
+    }
+
+    public void loginFailed() {
+        loginFailures.increment();
+    }
+
+    public void rateLimited() {
+        rateLimited.increment();
+    }
+
+    public void error() {
+        errors.increment();
+    }
+
+    public void sent(long bytes) {
+        messagesSent.increment();
+        bytesSent.add(bytes);
+    }
+
+    public void received(long bytes, long latencyNanos) {
+        messagesReceived.increment();
+        bytesReceived.add(bytes);
+        endToEnd.record(latencyNanos);
+
+        if (activeDownloads.get() > 0) {
+            endToEndDuringDownloads.record(latencyNanos);
+        }
+    }
+
+    public void delivered(long latencyNanos) {
+        deliveryReport.record(latencyNanos);
+    }
+
+    public void uploaded(long bytes, long nanos) {
+        uploads.increment();
+        transferBytes.add(bytes);
+        upload.record(nanos);
+    }
+
+    public void downloadStarted() {
+        activeDownloads.incrementAndGet();
+    }
+
+    public void downloadEnded() {
+        activeDownloads.decrementAndGet();
+    }
+
+    public void downloaded(long bytes, long nanos) {
+        downloads.increment();
+        transferBytes.add(bytes);
+        download.record(nanos);
+    }
+
+    public long getConnected() {
+        return connected.sum();
+    }
+
+    /**
+     * Check the chat latency against a limit - of the messages received during downloads if there were transfers
+     *
+     * @param maxP99Nanos - The highest allowed 99th percentile of the end to end latency
+     * @param transfers - true if files were transferred meanwhile
+     * @return - The reason of the failure or null if the latency is within the limit
+     */
+    public String checkLatency(long maxP99Nanos, boolean transfers) {
+        LatencyHistogram histogram = transfers ? endToEndDuringDownloads : endToEnd;
+        String name = transfers ? "endToEnd during downloads" : "endToEnd";
+
+        if (histogram.getCount() == 0) {
+            return String.format("no %s latency was measured", name);
+        }
+
+        long p99 = histogram.getPercentile(99);
+        if (p99 > maxP99Nanos) {
+            return String.format("%s p99=%dus exceeds %dus", name, micros(p99), micros(maxP99Nanos));
+        }
+
+        return null;
+    }
+
+    /**
+     * Format the rates and latencies since the previous report
+     *
+     * @return - The line
+     */
+    public synchronized String report() {
+        long now = System.nanoTime();
+        double seconds = (now - lastReport) / (double) TimeUnit.SECONDS.toNanos(1);
+
+        long sent = messagesSent.sum();
+        long received = messagesReceived.sum();
+        long transferred = transferBytes.sum();
+        long[] currentEndToEnd = endToEnd.snapshot();
+        long[] currentDeliveryReport = deliveryReport.snapshot();
+
+        long[] intervalEndToEnd = difference(currentEndToEnd, lastEndToEnd);
+        long[] intervalDeliveryReport = difference(currentDeliveryReport, lastDeliveryReport);
+
+        String line = String.format("Load : users=%d sent/s=%.0f received/s=%.0f transfers=%.0fB/s " +
+                        "endToEnd p50=%dus p99=%dus p99.9=%dus deliveryReport p50=%dus p99=%dus errors=%d",
+                connected.sum(), (sent - lastSent) / seconds, (received - lastReceived) / seconds,
+                (transferred - lastTransferBytes) / seconds,
+                micros(LatencyHistogram.percentile(intervalEndToEnd, 50)),
+                micros(LatencyHistogram.percentile(intervalEndToEnd, 99)),
+                micros(LatencyHistogram.percentile(intervalEndToEnd, 99.9)),
+                micros(LatencyHistogram.percentile(intervalDeliveryReport, 50)),
+                micros(LatencyHistogram.percentile(intervalDeliveryReport, 99)),
+                errors.sum() + loginFailures.sum() + rateLimited.sum());
+
+        lastReport = now;
+        lastSent = sent;
+        lastReceived = received;
+        lastTransferBytes = transferred;
+        lastEndToEnd = currentEndToEnd;
+        lastDeliveryReport = currentDeliveryReport;
+
+        return line;
+    }
+
+    /**
+     * Format the totals of the whole run
+     *
+     * @param seconds - The length of the run
+     * @return - The lines of the summary
+     */
+    public String summary(double seconds) {
+        StringBuilder summary = new StringBuilder();
+
+        summary.append(String.format("Load test summary after %.1fs%n", seconds));
+        summary.append(String.format("  messages : sent=%d (%.0f/s, %dB) received=%d (%.0f/s, %dB)%n",
+                messagesSent.sum(), messagesSent.sum() / seconds, bytesSent.sum(),
+                messagesReceived.sum(), messagesReceived.sum() / seconds, bytesReceived.sum()));
+        summary.append(latencies("endToEnd", endToEnd));
+        summary.append(latencies("endToEnd during downloads", endToEndDuringDownloads));
+        summary.append(latencies("deliveryReport", deliveryReport));
+        summary.append(String.format("  transfers : uploads=%d downloads=%d throughput=%.0fB/s%n",
+                uploads.sum(), downloads.sum(), transferBytes.sum() / seconds));
+        summary.append(latencies("upload", upload));
+        summary.append(latencies("download", download));
+        summary.append(String.format("  errors : loginFailures=%d rateLimited=%d other=%d", loginFailures.sum(), rateLimited.sum(), errors.sum()));
+
+        return summary.toString();
+    }
+
+    private static String latencies(String name, LatencyHistogram histogram) {
+        return String.format("  %s : n=%d p50=%dus p90=%dus p99=%dus p99.9=%dus max=%dus%n", name, histogram.getCount(),
+                micros(histogram.getPercentile(50)), micros(histogram.getPercentile(90)),
+                micros(histogram.getPercentile(99)), micros(histogram.getPercentile(99.9)), micros(histogram.getMax()));
+    }
+
+    private static long micros(long nanos) {
+        return nanos / NANOS_PER_MICRO;
+    }
+
+    private static long[] difference(long[] current, long[] previous) {
+        long[] difference = new long[current.length];
+        for (int i = 0; i < current.length; i++) {
+            difference[i] = current[i] - previous[i];
+        }
+
+        return difference;
+    }
+}
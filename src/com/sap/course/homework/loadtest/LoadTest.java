@@ -0,0 +1,203 @@
+package com.sap.course.homework.loadtest;
+
+import com.sap.course.homework.server.RoomRegistry;
+import com.sap.course.homework.util.Constants;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless load test of a server - many simulated users chatting while files are transferred
+ *
+ * The users are connected and logged in first, then they post messages at the configured rate for the configured
+ * time. A line with the rates and the latencies of the last interval is printed every report interval and a
+ * summary of the whole run at the end. The settings are the niochat.loadtest.* system properties, see Constants.
+ * With niochat.loadtest.maxP99 the run fails if the 99th percentile of the chat latency is higher - of the messages
+ * received during downloads if there are transfers, so a download that stalls the chat fails the run.
+ *
+ * @author borislav.draganov
+ */
+
+public class LoadTest implements Runnable {
+    // The longest wait for a login without any other user logging in meanwhile
+    private static final long LOGIN_STALL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    // Time for the messages in flight to arrive after the sending stopped
+    private static final long DRAIN_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    private InetSocketAddress address;
+    private LoadStats stats;
+    private List<LoadWorker> workers;
+    private List<FileTransferLoop> transfers;
+
+    // Every user logged in and the latency within the limit
+    private volatile boolean passed;
+
+    public LoadTest(String address, int port) {
+        this.address = new InetSocketAddress(address, port);
+        this.stats = new LoadStats();
+        this.workers = new ArrayList<>();
+        this.transfers = new ArrayList<>();
+    }
+
+    @Override
+    public void run() {
+        System.out.println(String.format("Load test of %s : users=%d threads=%d rooms=%d rate=%.1f/s messageSize=%d " +
+                        "transfers=%d fileSize=%d duration=%ds maxP99=%dms", address, Constants.LOADTEST_USERS, Constants.LOADTEST_THREADS,
+                Constants.LOADTEST_ROOMS, Constants.LOADTEST_RATE, Constants.LOADTEST_MESSAGE_SIZE,
+                Constants.LOADTEST_TRANSFERS, Constants.LOADTEST_FILE_SIZE, Constants.LOADTEST_DURATION_SECONDS,
+                Constants.LOADTEST_MAX_P99_MILLIS));
+
+        try {
+            List<Thread> threads = startWorkers();
+            boolean loggedIn = awaitLogins();
+
+            long start = System.nanoTime();
+            for (LoadWorker worker : workers) {
+                worker.startSending(start);
+            }
+            threads.addAll(startTransfers());
+
+            long end = start + TimeUnit.SECONDS.toNanos(Constants.LOADTEST_DURATION_SECONDS);
+            long reportNanos = TimeUnit.SECONDS.toNanos(Math.max(Constants.LOADTEST_REPORT_SECONDS, 1));
+            stats.report();
+
+            for (long now = System.nanoTime(); now < end; now = System.nanoTime()) {
+                TimeUnit.NANOSECONDS.sleep(Math.min(reportNanos, end - now));
+                System.out.println(stats.report());
+            }
+
+            for (LoadWorker worker : workers) {
+                worker.stopSending();
+            }
+            for (FileTransferLoop transfer : transfers) {
+                transfer.stop();
+            }
+            Thread.sleep(DRAIN_MILLIS);
+
+            double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+            System.out.println(stats.summary(seconds));
+            passed = loggedIn && checkLatency();
+
+            for (LoadWorker worker : workers) {
+                worker.stop();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (LoadWorker worker : workers) {
+                worker.stop();
+            }
+            for (FileTransferLoop transfer : transfers) {
+                transfer.stop();
+            }
+        }
+    }
+
+    /**
+     * Check if the test passed - false until it's finished
+     *
+     * @return - true if every user logged in and the latency was within the limit, false otherwise
+     */
+    public boolean isPassed() {
+        return passed;
+    }
+
+    /**
+     * Compare the chat latency with niochat.loadtest.maxP99
+     *
+     * @return - true if it's within the limit or there is no limit, false otherwise
+     */
+    private boolean checkLatency() {
+        if (Constants.LOADTEST_MAX_P99_MILLIS <= 0) {
+            return true;
+        }
+
+        String failure = stats.checkLatency(TimeUnit.MILLISECONDS.toNanos(Constants.LOADTEST_MAX_P99_MILLIS),
+                Constants.LOADTEST_TRANSFERS > 0);
+        System.out.println(failure == null ? "Load test passed" : "Load test failed : " + failure);
+
+        return failure == null;
+    }
+
+    /**
+     * Create the users and start the workers that connect them
+     *
+     * @return - The threads of the workers
+     * @throws IOException
+     */
+    private List<Thread> startWorkers() throws IOException {
+        int threadCount = Math.max(Constants.LOADTEST_THREADS, 1);
+        double ratePerWorker = Constants.LOADTEST_RATE / threadCount;
+
+        for (int i = 0; i < threadCount; i++) {
+            workers.add(new LoadWorker(address, stats, ratePerWorker, Constants.LOADTEST_MESSAGE_SIZE));
+        }
+
+        for (int i = 0; i < Constants.LOADTEST_USERS; i++) {
+            String room = Constants.LOADTEST_ROOMS > 0 ? "loadtest-" + (i % Constants.LOADTEST_ROOMS) : RoomRegistry.LOBBY;
+            workers.get(i % threadCount).add(new SimulatedUser("loadtest-" + i, room, stats));
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(workers.get(i), "NioChat-loadtest-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+
+        return threads;
+    }
+
+    /**
+     * Wait until every user is logged in or the logins stall
+     *
+     * @return - true if every user logged in, false otherwise
+     * @throws InterruptedException
+     */
+    private boolean awaitLogins() throws InterruptedException {
+        long loggedIn = 0;
+        long lastProgress = System.currentTimeMillis();
+
+        while (loggedIn < Constants.LOADTEST_USERS && System.currentTimeMillis() - lastProgress < LOGIN_STALL_MILLIS) {
+            Thread.sleep(100);
+
+            long current = stats.getConnected();
+            if (current > loggedIn) {
+                loggedIn = current;
+                lastProgress = System.currentTimeMillis();
+            }
+        }
+
+        System.out.println(String.format("Load test : %d of %d users logged in", loggedIn, Constants.LOADTEST_USERS));
+        return loggedIn >= Constants.LOADTEST_USERS;
+    }
+
+    /**
+     * Start the upload and download loops
+     *
+     * @return - Their threads
+     */
+    private List<Thread> startTransfers() {
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < Constants.LOADTEST_TRANSFERS; i++) {
+            FileTransferLoop transfer = new FileTransferLoop(address, stats, Constants.LOADTEST_FILE_SIZE);
+            transfers.add(transfer);
+
+            Thread thread = new Thread(transfer, "NioChat-loadtest-transfer-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+
+        return threads;
+    }
+}
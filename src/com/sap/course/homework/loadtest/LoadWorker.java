@@ -0,0 +1,216 @@
+package com.sap.course.homework.loadtest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A selector thread with its share of the simulated users
+ *
+ * Only a few users of a worker log in at a time, so the accept backlog of the server isn't overrun - the connections
+ * over the backlog would be reset. Once sending is started
+ * the worker posts messages at a fixed rate from its ready users in turns - the schedule doesn't wait for the
+ * server, a slow server gets a backlog of messages like it would from real users.
+ *
+ * @author borislav.draganov
+ */
+
+public class LoadWorker implements Runnable {
+    // The longest wait for the selector, also how often messages are sent
+    private static final long TICK_MILLIS = 5;
+
+    // Users that connect or wait for their login at the same time
+    private static final int MAX_PENDING_LOGINS = 8;
+
+    private InetSocketAddress address;
+    private LoadStats stats;
+    private Selector selector;
+    private List<SimulatedUser> users;
+    private int connectedCount;
+    private int oldestPending;
+    private int nextSender;
+
+    // The schedule of the messages
+    private int messageSize;
+    private double messagesPerNano;
+    private volatile long sendStartNanos;
+    private long scheduled;
+
+    private volatile boolean sending;
+    private volatile boolean running;
+
+    public LoadWorker(InetSocketAddress address, LoadStats stats, double messagesPerSecond, int messageSize) throws IOException {
+        this.address = address;
+        this.stats = stats;
+        this.selector = Selector.open();
+        this.users = new ArrayList<>();
+        this.messageSize = messageSize;
+        this.messagesPerNano = messagesPerSecond / 1e9;
+        this.running = true;
+    }
+
+    /**
+     * Add a user - must be called before the worker is started
+     *
+     * @param user - The user
+     */
+    public void add(SimulatedUser user) {
+        users.add(user);
+    }
+
+    /**
+     * Start posting messages
+     *
+     * @param startNanos - The time of the first message
+     */
+    public void startSending(long startNanos) {
+        sendStartNanos = startNanos;
+        sending = true;
+    }
+
+    public void stopSending() {
+        sending = false;
+    }
+
+    /**
+     * Close every connection and end the thread
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                connectNext();
+                selector.select(TICK_MILLIS);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    handleKey(key);
+                }
+
+                if (sending) {
+                    sendDue(System.nanoTime());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SimulatedUser user : users) {
+                user.close();
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Start connecting the next users while few logins are pending
+     */
+    private void connectNext() {
+        while (oldestPending < connectedCount && !users.get(oldestPending).isPending()) {
+            oldestPending++;
+        }
+
+        int pending = 0;
+        for (int i = oldestPending; i < connectedCount; i++) {
+            if (users.get(i).isPending()) {
+                pending++;
+            }
+        }
+
+        for (; pending < MAX_PENDING_LOGINS && connectedCount < users.size(); pending++, connectedCount++) {
+            try {
+                users.get(connectedCount).connect(selector, address);
+            } catch (IOException e) {
+                stats.error();
+                users.get(connectedCount).close();
+            }
+        }
+    }
+
+    /**
+     * Handle the events of a user - a failed user is closed and stays out of the test
+     *
+     * @param key - The key of the user
+     */
+    private void handleKey(SelectionKey key) {
+        SimulatedUser user = (SimulatedUser) key.attachment();
+
+        try {
+            if (key.isConnectable()) {
+                user.finishConnect();
+            }
+
+            if (key.isValid() && key.isReadable() && !user.read()) {
+                stats.error();
+                user.close();
+                return;
+            }
+
+            if (key.isValid() && key.isWritable()) {
+                user.flush();
+            }
+        } catch (IOException e) {
+            stats.error();
+            user.close();
+        }
+    }
+
+    /**
+     * Post every message that is due by now
+     *
+     * @param now - The current time
+     */
+    private void sendDue(long now) {
+        // Message n is due n intervals after the start - the first one right away
+        long due = (long) ((now - sendStartNanos) * messagesPerNano) + 1;
+
+        for (; scheduled < due; scheduled++) {
+            SimulatedUser sender = nextSender();
+            if (sender == null) {
+                scheduled = due;
+                return;
+            }
+
+            try {
+                sender.chat(sendStartNanos + (long) (scheduled / messagesPerNano), messageSize);
+            } catch (IOException e) {
+                stats.error();
+                sender.close();
+            }
+        }
+    }
+
+    /**
+     * Take the next ready user in turns
+     *
+     * @return - The user or null if no user is ready
+     */
+    private SimulatedUser nextSender() {
+        for (int i = 0; i < users.size(); i++) {
+            SimulatedUser user = users.get(nextSender);
+            nextSender = (nextSender + 1) % users.size();
+
+            if (user.isReady()) {
+                return user;
+            }
+        }
+
+        return null;
+    }
+}
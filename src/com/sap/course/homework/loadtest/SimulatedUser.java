@@ -0,0 +1,268 @@
+package com.sap.course.homework.loadtest;
+
+import com.sap.course.homework.server.RoomRegistry;
+import com.sap.course.homework.util.FrameDecoder;
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.MessageCodec;
+import com.sap.course.homework.util.Opcode;
+import com.sap.course.homework.util.Protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+/**
+ * One user of a load test - a non-blocking binary protocol connection owned by a single worker thread
+ *
+ * The user logs in and joins its room right after connecting, the answer to the join tells that the login is done.
+ * Every chat message carries the time it was due to be sent, so its receivers measure the latency from that time -
+ * a message that waited for a busy worker counts the wait as well.
+ *
+ * @author borislav.draganov
+ */
+
+public class SimulatedUser {
+    private static final String PASSWORD = "loadtest";
+    private static final char TIME_SEPARATOR = ':';
+
+    private String username;
+    private String room;
+    private LoadStats stats;
+
+    private SocketChannel socketChannel;
+    private SelectionKey key;
+    private FrameDecoder frameDecoder;
+
+    // Bytes the socket didn't take yet
+    private Queue<ByteBuffer> outbound;
+
+    // Send times of the messages that wait for a delivery report, in the order they were sent
+    private Queue<Long> pendingReports;
+
+    private boolean ready;
+    private boolean rejected;
+    private boolean closed;
+
+    public SimulatedUser(String username, String room, LoadStats stats) {
+        this.username = username;
+        this.room = room;
+        this.stats = stats;
+        this.frameDecoder = new FrameDecoder();
+        this.outbound = new ArrayDeque<>();
+        this.pendingReports = new ArrayDeque<>();
+    }
+
+    /**
+     * Start connecting to the server
+     *
+     * @param selector - The selector of the worker
+     * @param address - The address of the server
+     * @throws IOException
+     */
+    public void connect(Selector selector, InetSocketAddress address) throws IOException {
+        socketChannel = SocketChannel.open();
+        socketChannel.configureBlocking(false);
+        socketChannel.socket().setTcpNoDelay(true);
+
+        if (socketChannel.connect(address)) {
+            key = socketChannel.register(selector, SelectionKey.OP_READ, this);
+            login();
+        } else {
+            key = socketChannel.register(selector, SelectionKey.OP_CONNECT, this);
+        }
+    }
+
+    /**
+     * Complete the connection and log in
+     *
+     * @throws IOException
+     */
+    public void finishConnect() throws IOException {
+        if (socketChannel.finishConnect()) {
+            key.interestOps(SelectionKey.OP_READ);
+            login();
+        }
+    }
+
+    private void login() throws IOException {
+        outbound.add(MessageCodec.handshake());
+        outbound.add(Protocol.BINARY.encode(new Message(Opcode.LOGIN, username, PASSWORD)));
+        outbound.add(Protocol.BINARY.encode(new Message(Opcode.ROOM_JOIN, room)));
+        flush();
+    }
+
+    /**
+     * Post a chat message to the room of the user
+     *
+     * @param dueNanos - The time the message was due to be sent
+     * @param size - The length of the text
+     * @throws IOException
+     */
+    public void chat(long dueNanos, int size) throws IOException {
+        StringBuilder text = new StringBuilder(size).append(dueNanos).append(TIME_SEPARATOR);
+        char[] padding = new char[Math.max(size - text.length(), 0)];
+        Arrays.fill(padding, 'x');
+        text.append(padding);
+
+        Message message;
+        if (room.equals(RoomRegistry.LOBBY)) {
+            message = new Message(Opcode.CHAT, text.toString());
+        } else {
+            message = new Message(Opcode.ROOM_POST, room, text.toString());
+        }
+
+        ByteBuffer encoded = Protocol.BINARY.encode(message);
+        stats.sent(encoded.remaining());
+        pendingReports.add(dueNanos);
+
+        outbound.add(encoded);
+        flush();
+    }
+
+    /**
+     * Write the queued bytes - the rest is written when the socket is writable again
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        while (!outbound.isEmpty()) {
+            ByteBuffer buffer = outbound.peek();
+            socketChannel.write(buffer);
+
+            if (buffer.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+
+            outbound.poll();
+        }
+
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Read and handle whatever the server sent
+     *
+     * @return - true if the connection is still open, false if the server closed it
+     * @throws IOException
+     */
+    public boolean read() throws IOException {
+        if (frameDecoder.read(socketChannel) < 0) {
+            return false;
+        }
+
+        for (Message message = frameDecoder.nextMessage(); message != null; message = frameDecoder.nextMessage()) {
+            handle(message);
+        }
+
+        // The answers to PINGs
+        if (!outbound.isEmpty()) {
+            flush();
+        }
+
+        return true;
+    }
+
+    private void handle(Message message) {
+        long now = System.nanoTime();
+
+        switch (message.getOpcode()) {
+            case MESSAGE:
+                received(message.getString(1), now);
+                break;
+            case ROOM_MESSAGE:
+                received(message.getString(2), now);
+                break;
+            case DELIVERY_REPORT:
+                Long sentNanos = pendingReports.poll();
+                if (sentNanos != null) {
+                    stats.delivered(now - sentNanos);
+                }
+                break;
+            case ROOM_INFO:
+                // The join is answered after the login
+                if (!ready && message.getString(0).equals(room) && message.getInt(1) > 0) {
+                    ready = true;
+                    stats.connected();
+                }
+                break;
+            case INVALID_USER:
+                rejected = true;
+                stats.loginFailed();
+                break;
+            case PING:
+                outbound.add(Protocol.BINARY.encode(new Message(Opcode.PONG)));
+                break;
+            // A dropped chat message gets no delivery report
+            case RATE_LIMITED:
+                byte code = (byte) message.getInt(0);
+                if (code == Opcode.CHAT.getCode() || code == Opcode.ROOM_POST.getCode()) {
+                    pendingReports.poll();
+                }
+                stats.rateLimited();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Measure a received chat message - messages not sent by a load test are ignored
+     *
+     * @param text - The text of the message
+     * @param now - The time it was read
+     */
+    private void received(String text, long now) {
+        int separator = text.indexOf(TIME_SEPARATOR);
+        if (separator <= 0) {
+            return;
+        }
+
+        try {
+            stats.received(text.length(), now - Long.parseLong(text.substring(0, separator)));
+        } catch (NumberFormatException e) {
+            // Not from a load test
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Check if the user is connecting or logging in
+     *
+     * @return - true if the login isn't done yet, false if the user is ready, rejected or closed
+     */
+    public boolean isPending() {
+        return !ready && !rejected && !closed;
+    }
+
+    /**
+     * Close the connection
+     */
+    public void close() {
+        closed = true;
+
+        if (ready) {
+            ready = false;
+            stats.disconnected();
+        }
+
+        frameDecoder.release();
+
+        try {
+            if (socketChannel != null) {
+                socketChannel.close();
+            }
+        } catch (IOException e) {
+            stats.error();
+        }
+    }
+}
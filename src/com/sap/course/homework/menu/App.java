@@ -1,6 +1,9 @@
 package com.sap.course.homework.menu;
 
 import com.sap.course.homework.client.Client;
+import com.sap.course.homework.loadtest.LoadTest;
+import com.sap.course.homework.server.AsyncServer;
+import com.sap.course.homework.server.BlockingServer;
 import com.sap.course.homework.server.Server;
 import com.sap.course.homework.util.Constants;
 
@@ -23,21 +26,23 @@ public class App extends JFrame implements ActionListener {
 
     public static void main(String[] args) {
         boolean commandLineArgs = false;
-        App app = new App();
 
         // Check for command-line arguments
         for (String arg : args) {
             commandLineArgs = true;
 
             if (arg.equals("-server")) {
-                app.startServer();
+                startServer();
             } else if (arg.equals("-client")) {
-                app.startClient();
+                startClient();
+            } else if (arg.equals("-loadtest")) {
+                startLoadTest();
             }
         }
 
+        // The window is only created for the GUI - the server and the load test run headless
         if (!commandLineArgs) {
-            app.initGUI();
+            new App().initGUI();
         }
     }
 
@@ -68,21 +73,46 @@ public class App extends JFrame implements ActionListener {
     }
 
     /**
-     * Start a new server
+     * Start a new server with the engine of the niochat.engine property - selector, blocking or async
      */
-    public void startServer() {
-        new Thread(new Server(Constants.PORT)).start();
+    public static void startServer() {
+        if (Constants.SERVER_ENGINE.equals(BlockingServer.ENGINE)) {
+            new Thread(new BlockingServer(Constants.PORT)).start();
+        } else if (Constants.SERVER_ENGINE.equals(AsyncServer.ENGINE)) {
+            new Thread(new AsyncServer(Constants.PORT)).start();
+        } else {
+            new Thread(new Server(Constants.PORT)).start();
+        }
     }
 
     /**
      * Start a new client
      */
-    public void startClient() {
+    public static void startClient() {
 //        String address = JOptionPane.showInputDialog(this, "Enter the server address (IP address)", "Select server", JOptionPane.PLAIN_MESSAGE);
         String address = "localhost";
         new Thread(new Client(address)).start();
     }
 
+    /**
+     * Start a headless load test of the server on this machine
+     * With a latency limit the JVM exits with the result of the test - 0 if it passed, 1 otherwise
+     */
+    public static void startLoadTest() {
+        final LoadTest loadTest = new LoadTest("localhost", Constants.PORT);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loadTest.run();
+
+                if (Constants.LOADTEST_MAX_P99_MILLIS > 0) {
+                    System.exit(loadTest.isPassed() ? 0 : 1);
+                }
+            }
+        }).start();
+    }
+
     @Override
     public void actionPerformed(ActionEvent e) {
         if (e.getSource() == startServerBtn) {
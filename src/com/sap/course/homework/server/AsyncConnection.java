@@ -0,0 +1,442 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.BufferPool;
+import com.sap.course.homework.util.Constants;
+import com.sap.course.homework.util.PooledBuffer;
+import com.sap.course.homework.util.TimingWheel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A connection of the asynchronous engine - chains the reads and writes of its channel
+ *
+ * The connection sees this object as its channel: a read takes the bytes of the last completed read, a write fills
+ * a buffer that is handed to the channel once the connection stopped writing. When that write completes, the
+ * connection writes the next part of its queue, history or file into the buffer. So the connection works exactly as
+ * on a selector, with a completed read instead of a readable event and a completed write instead of a writable one.
+ * Whoever holds the lock owns the connection - a completion handler, or a thread that queued frames, has the
+ * result of a password check or fired a timer. Such a thread hands its work over and runs it only if the lock is free, otherwise
+ * the current owner runs it before letting go, so no thread ever waits for another connection's lock.
+ *
+ * @author borislav.draganov
+ */
+
+class AsyncConnection implements ConnectionOwner, ByteChannel, GatheringByteChannel {
+    private ProtocolHandler handler;
+    private TimingWheel timers;
+    private AsynchronousSocketChannel socketChannel;
+    private Connection connection;
+    private ReentrantLock lock;
+
+    // Work handed over by other threads, run by whoever holds the lock next
+    private Queue<Runnable> tasks;
+    private Runnable flushTask;
+
+    // The bytes of the last completed read that the connection didn't take yet
+    private PooledBuffer readBuffer;
+    private boolean reading;
+    private boolean endOfStream;
+
+    // The bytes the connection wrote that the channel didn't take yet
+    private PooledBuffer writeBuffer;
+    private boolean writing;
+
+    // Closed by the connection - the channel is closed once the written bytes are sent
+    private boolean closing;
+    private volatile boolean closed;
+
+    private CompletionHandler<Integer, Void> readHandler;
+    private CompletionHandler<Integer, Void> writeHandler;
+
+    AsyncConnection(ProtocolHandler handler, TimingWheel timers, AsynchronousSocketChannel socketChannel) {
+        this.handler = handler;
+        this.timers = timers;
+        this.socketChannel = socketChannel;
+        this.connection = new Connection(this, this, null);
+        this.lock = new ReentrantLock();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.flushTask = new Runnable() {
+            @Override
+            public void run() {
+                connection.flushRequested();
+            }
+        };
+
+        this.readHandler = new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer read, Void attachment) {
+                lock.lock();
+                try {
+                    reading = false;
+                    readBuffer.buffer().flip();
+                    endOfStream = read < 0;
+
+                    proceed();
+                } finally {
+                    unlock();
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                lock.lock();
+                try {
+                    reading = false;
+                    fail(e);
+                } finally {
+                    unlock();
+                }
+            }
+        };
+
+        this.writeHandler = new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer written, Void attachment) {
+                lock.lock();
+                try {
+                    writing = false;
+                    writeBuffer.buffer().compact();
+
+                    proceed();
+                } finally {
+                    unlock();
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                lock.lock();
+                try {
+                    writing = false;
+                    fail(e);
+                } finally {
+                    unlock();
+                }
+            }
+        };
+    }
+
+    /**
+     * Start reading from the client
+     */
+    void start() {
+        lock.lock();
+        try {
+            handler.connectionOpened(connection, socketChannel.getRemoteAddress());
+            proceed();
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public ServerMetrics getMetrics() {
+        return handler.getMetrics();
+    }
+
+    @Override
+    public boolean inOwnerThread() {
+        return lock.isHeldByCurrentThread();
+    }
+
+    @Override
+    public void requestFlush(Connection connection) {
+        execute(flushTask);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        runTasks();
+    }
+
+    /**
+     * Close the connection as its owner - the queue goes into the write buffer and out before the channel is closed,
+     * unless the client didn't take the last write, then the channel is closed without waiting for it
+     *
+     * @param connection - The connection
+     */
+    @Override
+    public void disconnect(Connection connection) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean stalled = writing;
+
+                try {
+                    if (!stalled) {
+                        AsyncConnection.this.connection.flush();
+                    }
+                    handler.closeConnection(AsyncConnection.this.connection);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+
+                if (stalled) {
+                    closeChannel();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void connectionClosed() {
+        handler.getMetrics().connectionClosed();
+    }
+
+    @Override
+    public TimingWheel getTimers() {
+        return timers;
+    }
+
+    /**
+     * Run the handed over work if nobody owns the connection - the owner runs it otherwise when it lets go
+     * Checked again after letting go, work handed over meanwhile is not left behind
+     */
+    private void runTasks() {
+        // A completion handler called by this thread's own read or write - the outer owner runs the tasks
+        if (lock.isHeldByCurrentThread()) {
+            return;
+        }
+
+        while (!tasks.isEmpty() && lock.tryLock()) {
+            try {
+                for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+                    task.run();
+                }
+
+                proceed();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Let go of the connection, then run what other threads handed over meanwhile
+     */
+    private void unlock() {
+        lock.unlock();
+        runTasks();
+    }
+
+    /**
+     * Handle the bytes read so far, write what the connection has queued and start the next read if it's done
+     * The channel calls are the last thing done, their handlers may be called by this thread right away
+     */
+    private void proceed() {
+        try {
+            // The received messages may wait for the result of another thread, e.g. the password check
+            while (!connection.isClosed() && !connection.isReadsSuspended() && (hasInput() || endOfStream)) {
+                handler.handleRead(connection, handler.read(connection));
+            }
+
+            if (!writing && !connection.isClosed()) {
+                // One quantum of the history or the file per call - continue while the buffer takes more
+                while (!connection.flush() && !hasOutput() && !connection.isClosed()) {
+                    // The frames queued meanwhile go first
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+
+        writeMore();
+        readMore();
+
+        // The buffers of the reads and writes that completed after the channel was closed
+        if (closed) {
+            closeChannel();
+        }
+    }
+
+    /**
+     * Hand the written bytes to the channel unless a write is in flight - close the channel when all are sent
+     */
+    private void writeMore() {
+        if (writing || closed) {
+            return;
+        }
+
+        if (!hasOutput()) {
+            // An idle connection holds no write buffer
+            if (writeBuffer != null) {
+                writeBuffer.release();
+                writeBuffer = null;
+            }
+
+            if (closing) {
+                closeChannel();
+            }
+            return;
+        }
+
+        writing = true;
+        writeBuffer.buffer().flip();
+        socketChannel.write(writeBuffer.buffer(), null, writeHandler);
+    }
+
+    /**
+     * Start the next read once the connection took every byte of the last one
+     */
+    private void readMore() {
+        if (reading || closed || endOfStream || hasInput() || connection.isClosed() || connection.isReadsSuspended()) {
+            return;
+        }
+
+        // An idle connection holds the buffer of its pending read
+        if (readBuffer == null) {
+            readBuffer = BufferPool.getDefault().acquire(Constants.READ_BUFFER_SIZE);
+        }
+
+        reading = true;
+        readBuffer.buffer().clear();
+        socketChannel.read(readBuffer.buffer(), null, readHandler);
+    }
+
+    private boolean hasInput() {
+        return readBuffer != null && !reading && readBuffer.buffer().hasRemaining();
+    }
+
+    private boolean hasOutput() {
+        return writeBuffer != null && writeBuffer.buffer().position() > 0;
+    }
+
+    /**
+     * Close the connection after a failed read, write or handled message - an error caused by closing it is expected
+     *
+     * @param cause - The error
+     */
+    private void fail(Throwable cause) {
+        if (!connection.isClosed()) {
+            cause.printStackTrace();
+        }
+
+        try {
+            handler.closeConnection(connection);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+
+        // Nothing is sent to a failed client
+        closeChannel();
+    }
+
+    @Override
+    public int read(ByteBuffer target) {
+        if (!hasInput()) {
+            return endOfStream ? -1 : 0;
+        }
+
+        return transfer(readBuffer.buffer(), target);
+    }
+
+    @Override
+    public int write(ByteBuffer source) {
+        if (writing || closed) {
+            return 0;
+        }
+
+        return transfer(source, writeBuffer());
+    }
+
+    @Override
+    public long write(ByteBuffer[] sources, int offset, int length) {
+        if (writing || closed) {
+            return 0;
+        }
+
+        ByteBuffer buffer = writeBuffer();
+        long written = 0;
+        for (int i = offset; i < offset + length && buffer.hasRemaining(); i++) {
+            written += transfer(sources[i], buffer);
+        }
+
+        return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] sources) {
+        return write(sources, 0, sources.length);
+    }
+
+    /**
+     * Get the buffer of the written bytes - taken from the pool with the first write, a whole frame fits in it
+     *
+     * @return - The buffer ready to be filled
+     */
+    private ByteBuffer writeBuffer() {
+        if (writeBuffer == null) {
+            writeBuffer = BufferPool.getDefault().acquire(Constants.MAX_FRAME_SIZE);
+        }
+
+        return writeBuffer.buffer();
+    }
+
+    /**
+     * Copy as many bytes as the target takes
+     *
+     * @param source - The bytes to copy
+     * @param target - The buffer to fill
+     * @return - The number of copied bytes
+     */
+    private static int transfer(ByteBuffer source, ByteBuffer target) {
+        int count = Math.min(source.remaining(), target.remaining());
+
+        ByteBuffer part = source.duplicate();
+        part.limit(part.position() + count);
+        target.put(part);
+        source.position(source.position() + count);
+
+        return count;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Called by the connection when it's closed - the bytes it wrote before are still sent
+     */
+    @Override
+    public void close() {
+        closing = true;
+        writeMore();
+    }
+
+    /**
+     * Close the channel and give the buffers back - a buffer of a read or write in flight is released by its handler
+     */
+    private void closeChannel() {
+        if (!closed) {
+            closed = true;
+
+            try {
+                socketChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (readBuffer != null && !reading) {
+            readBuffer.release();
+            readBuffer = null;
+        }
+
+        if (writeBuffer != null && !writing) {
+            writeBuffer.release();
+            writeBuffer = null;
+        }
+    }
+}
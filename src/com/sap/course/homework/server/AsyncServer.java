@@ -0,0 +1,122 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.Constants;
+import com.sap.course.homework.util.TimingWheel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server Side - the asynchronous engine
+ *
+ * The channels belong to an asynchronous channel group with a fixed pool of threads (niochat.async.threads), the
+ * operating system reports completed reads and writes instead of ready channels. Every connection keeps one read
+ * and at most one write in flight, each completion handler starts the next one.
+ * The messages are handled by the same protocol handler as the selector engine's.
+ *
+ * @author borislav.draganov
+ */
+
+public class AsyncServer implements Runnable {
+    public static final String ENGINE = "async";
+
+    private AsynchronousServerSocketChannel serverSocketChannel;
+    private int port;
+
+    // Runs the completion handlers of every channel
+    private AsynchronousChannelGroup group;
+
+    // The timers of every connection, advanced by a thread of their own
+    private TimingWheel timers;
+
+    // Logins, rooms, history and files
+    private ProtocolHandler handler;
+
+    public AsyncServer(int port) {
+        this(port, Constants.ASYNC_THREADS);
+    }
+
+    public AsyncServer(int port, int threadCount) {
+        this.port = port;
+
+        try {
+            handler = new ProtocolHandler();
+            timers = new TimingWheel(Constants.TIMER_TICK_MILLIS, Constants.TIMER_WHEEL_SIZE);
+            initGroup(threadCount);
+            initServer(port, threadCount);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Start Server
+     *
+     * @param port - The port the server will listen on
+     * @param threadCount - The number of threads of the group
+     * @throws IOException
+     */
+    private void initServer(int port, int threadCount) throws IOException {
+        System.out.println("Starting Server on " + threadCount + " completion threads");
+        serverSocketChannel = AsynchronousServerSocketChannel.open(group);
+        serverSocketChannel.bind(new InetSocketAddress(port));
+    }
+
+    /**
+     * Create the channel group and its threads
+     *
+     * @param threadCount - The number of threads that run the completion handlers
+     * @throws IOException
+     */
+    private void initGroup(int threadCount) throws IOException {
+        group = AsynchronousChannelGroup.withFixedThreadPool(threadCount, new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable task) {
+                return new Thread(task, "NioChat-async-" + count.getAndIncrement());
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        handler.start(port);
+        timers.start("NioChat-timer");
+
+        serverSocketChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+            @Override
+            public void completed(AsynchronousSocketChannel socketChannel, Void attachment) {
+                // The next client may be accepted by another thread meanwhile
+                serverSocketChannel.accept(null, this);
+
+                System.out.println("New Client Accepted");
+                handler.getMetrics().accepted();
+                new AsyncConnection(handler, timers, socketChannel).start();
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                e.printStackTrace();
+
+                if (serverSocketChannel.isOpen()) {
+                    serverSocketChannel.accept(null, this);
+                }
+            }
+        });
+
+        // The group's threads run the server from now on
+        try {
+            group.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.Constants;
+import com.sap.course.homework.util.TimingWheel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server Side - the blocking engine
+ *
+ * Every client gets a thread of its own that reads its blocking channel, so there are no selectors and no interest
+ * operations - a file is sent by transferTo calls that block until the client took the bytes.
+ * The threads are virtual threads on a JVM that has them, the connections are cheap to keep then. Older JVMs run
+ * the same code on platform threads, which limits the engine to a few thousand clients.
+ * The messages are handled by the same protocol handler as the selector engine's.
+ *
+ * @author borislav.draganov
+ */
+
+public class BlockingServer implements Runnable {
+    public static final String ENGINE = "blocking";
+
+    private ServerSocketChannel serverSocketChannel;
+    private int port;
+
+    // Runs the connections and the writes of their queues
+    private Executor threads;
+    private boolean virtualThreads;
+
+    // The timers of every connection, advanced by a thread of their own
+    private TimingWheel timers;
+
+    // Logins, rooms, history and files
+    private ProtocolHandler handler;
+
+    public BlockingServer(int port) {
+        this.port = port;
+
+        try {
+            handler = new ProtocolHandler();
+            timers = new TimingWheel(Constants.TIMER_TICK_MILLIS, Constants.TIMER_WHEEL_SIZE);
+            initThreads();
+            initServer(port);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Start Server
+     *
+     * @param port - The port the server will listen on
+     * @throws IOException
+     */
+    private void initServer(int port) throws IOException {
+        System.out.println("Starting Server on " + (virtualThreads ? "virtual" : "platform") + " threads");
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress(port));
+    }
+
+    /**
+     * Create the threads of the connections - a virtual thread per task if the JVM has them, a pool otherwise
+     */
+    private void initThreads() {
+        final ThreadFactory virtualThreadFactory = virtualThreadFactory();
+
+        if (virtualThreadFactory != null) {
+            virtualThreads = true;
+            threads = new Executor() {
+                @Override
+                public void execute(Runnable task) {
+                    virtualThreadFactory.newThread(task).start();
+                }
+            };
+        } else {
+            virtualThreads = false;
+            threads = Executors.newCachedThreadPool(new ThreadFactory() {
+                private AtomicInteger count = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "NioChat-connection-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Get a factory of virtual threads - Thread.ofVirtual() is looked up at runtime, the code is built for Java 8
+     *
+     * @return - The factory or null if the JVM has no virtual threads
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "NioChat-connection-", 0L);
+
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            // Older JVM, or a preview feature that isn't enabled
+            return null;
+        }
+    }
+
+    @Override
+    public void run() {
+        handler.start(port);
+        timers.start("NioChat-timer");
+
+        while (true) {
+            try {
+                SocketChannel socketChannel = serverSocketChannel.accept();
+
+                System.out.println("New Client Accepted");
+                handler.getMetrics().accepted();
+                threads.execute(new ConnectionThread(handler, threads, timers, socketChannel));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,933 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.BufferPool;
+import com.sap.course.homework.util.Capability;
+import com.sap.course.homework.util.Compressor;
+import com.sap.course.homework.util.Constants;
+import com.sap.course.homework.util.DisconnectReason;
+import com.sap.course.homework.util.FileChannelWrapper;
+import com.sap.course.homework.util.Frame;
+import com.sap.course.homework.util.FrameDecoder;
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.Opcode;
+import com.sap.course.homework.util.MessageCodec;
+import com.sap.course.homework.util.PooledBuffer;
+import com.sap.course.homework.util.Protocol;
+import com.sap.course.homework.util.TimingWheel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server side state of a single client channel - read buffer and queue of outbound messages
+ *
+ * Messages are never written directly - they are queued and the selector loop drains the queue when the channel
+ * is writable, so a client that doesn't read cannot block the server or get a partially written message.
+ * A file download is written the same way after the queue - a bounded part of it on every writable event.
+ * Requested history goes out between the queued frames and the download, in chunks of whole frames, so live
+ * messages wait at most for one chunk.
+ * With compression negotiated the frames are deflated when they are written, by the owner in queue order,
+ * so the shared frames stay uncompressed and every connection keeps its own deflate stream.
+ * Any thread may queue messages, everything else is done only by the owner's thread - a reactor, or the thread of
+ * a blocking connection, which has no selection key and writes its queue whenever flush is called.
+ * The channel is a socket channel, or the view of an asynchronous channel that buffers what the owner transfers.
+ * The queue is bounded, see OutboundBudget - a chat frame that doesn't fit drops older chat frames, is dropped itself
+ * or disconnects the client. Any thread may drop a frame the owner didn't start writing, the owner claims a frame
+ * before its first byte, so a frame is never cut.
+ *
+ * @author borislav.draganov
+ */
+
+public class Connection {
+    private ConnectionOwner owner;
+
+    // The same channel, read by the engine and written by the queue
+    private ReadableByteChannel input;
+    private GatheringByteChannel output;
+
+    // Null when the connection isn't registered with a selector
+    private SelectionKey key;
+    private FrameDecoder frameDecoder;
+
+    // Text until the client opens with the binary handshake
+    private volatile Protocol protocol;
+
+    // The logged in user, null before the login
+    private volatile Session session;
+
+    // When the last read on the channel completed, the start of a fan-out
+    private long readNanos;
+
+    // When the download last made progress
+    private long downloadNanos;
+
+    // The pending check for a quiet client, cancelled when the connection is closed
+    private TimingWheel.Timeout idleTimeout;
+
+    // The rate limits of the client and of its address
+    private RateLimiter.Limits limits;
+
+    // Frames waiting to be written, the head may be partially written
+    private Queue<PendingWrite> outbound;
+    private ByteBuffer[] gatherBuffers;
+
+    // The frames and bytes in the queue, against the bounds of the budget
+    private OutboundBudget budget;
+    private AtomicInteger queuedFrames;
+    private AtomicLong queuedBytes;
+
+    // Set once the connection is closed for a reason the client is told about
+    private AtomicBoolean disconnecting;
+
+    // Set while the owner is asked to write the queue
+    private AtomicBoolean flushRequested;
+
+    // History being sent after the queued frames
+    private Queue<HistoryReplay> replays;
+
+    // File being sent after the queued frames and the history
+    private FileChannelWrapper download;
+
+    // Deflate streams of the frames and the downloads, null while not negotiated
+    private Compressor messageCompressor;
+    private Compressor fileCompressor;
+    private ByteBuffer fileOutput;
+
+    // Set while the received messages wait for a result of another thread
+    private boolean readsSuspended;
+
+    // Close the channel as soon as the queue is empty
+    private boolean closeWhenFlushed;
+    private volatile boolean closed;
+
+    public <C extends ByteChannel & GatheringByteChannel> Connection(ConnectionOwner owner, C channel, SelectionKey key) {
+        this.owner = owner;
+        this.input = channel;
+        this.output = channel;
+        this.key = key;
+        this.frameDecoder = new FrameDecoder();
+        this.protocol = Protocol.TEXT;
+        this.readNanos = System.nanoTime();
+        this.outbound = new ConcurrentLinkedQueue<>();
+        this.gatherBuffers = new ByteBuffer[Constants.WRITE_GATHER_SIZE];
+        this.budget = OutboundBudget.getDefault();
+        this.queuedFrames = new AtomicInteger(0);
+        this.queuedBytes = new AtomicLong(0);
+        this.disconnecting = new AtomicBoolean(false);
+        this.flushRequested = new AtomicBoolean(false);
+        this.replays = new ArrayDeque<>();
+        this.closeWhenFlushed = false;
+        this.closed = false;
+    }
+
+    public ConnectionOwner getOwner() {
+        return owner;
+    }
+
+    public ReadableByteChannel getInput() {
+        return input;
+    }
+
+    public SelectionKey getKey() {
+        return key;
+    }
+
+    public FrameDecoder getFrameDecoder() {
+        return frameDecoder;
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    void setSession(Session session) {
+        this.session = session;
+    }
+
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+    public void setReadNanos(long readNanos) {
+        this.readNanos = readNanos;
+    }
+
+    public long getDownloadNanos() {
+        return downloadNanos;
+    }
+
+    void setIdleTimeout(TimingWheel.Timeout idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    RateLimiter.Limits getLimits() {
+        return limits;
+    }
+
+    void setLimits(RateLimiter.Limits limits) {
+        this.limits = limits;
+    }
+
+    public Compressor getMessageCompressor() {
+        return messageCompressor;
+    }
+
+    public Compressor getFileCompressor() {
+        return fileCompressor;
+    }
+
+    /**
+     * Switch the connection to the binary protocol and confirm it to the client
+     */
+    public void acceptHandshake() {
+        protocol = Protocol.BINARY;
+
+        Frame frame = new Frame(MessageCodec.handshake());
+        enqueue(frame);
+        frame.release();
+    }
+
+    /**
+     * Turn on the capabilities the client asked for and confirm them to the client
+     *
+     * @param requested - The set of requested capabilities
+     */
+    public void acceptCapabilities(int requested) {
+        int enabled = requested & Capability.all();
+
+        // The answer goes out uncompressed, it's below the threshold
+        send(new Message(Opcode.CAPABILITIES, enabled));
+
+        if (Capability.COMPRESS_MESSAGES.isSet(enabled) && messageCompressor == null) {
+            messageCompressor = new Compressor();
+        }
+
+        if (Capability.COMPRESS_FILES.isSet(enabled) && fileCompressor == null) {
+            fileCompressor = new Compressor();
+        }
+    }
+
+    /**
+     * Queue a message for the client, encoded in the client's protocol
+     * The messages of other users are chat frames, everything else is always queued
+     *
+     * @param message - The message to send
+     */
+    public void send(Message message) {
+        Frame frame = Frame.encode(message, protocol);
+        switch (message.getOpcode()) {
+            case MESSAGE:
+            case ROOM_MESSAGE:
+            case DIRECT_MESSAGE:
+                enqueueChat(frame);
+                break;
+            default:
+                enqueue(frame);
+                break;
+        }
+        frame.release();
+    }
+
+    /**
+     * Queue a frame for the client even if the queue is full - answers, reports and other control frames
+     * Past the hard bound of the budget the frame is still queued, but the client is disconnected as a slow consumer
+     *
+     * @param frame - The encoded frame to send
+     * @return - true if the frame was queued, false if the connection is closed or disconnected
+     */
+    public boolean enqueue(Frame frame) {
+        return enqueue(frame, false);
+    }
+
+    /**
+     * Queue a chat frame for the client - the policy of the budget decides if it fits
+     *
+     * @param frame - The encoded frame to send
+     * @return - true if the frame was queued, false if the connection is closed or the frame was dropped
+     */
+    public boolean enqueueChat(Frame frame) {
+        return enqueue(frame, true);
+    }
+
+    /**
+     * Queue a frame for the client and make sure the selector reports when the channel is writable
+     * When called from another thread the owner is asked to do that
+     * The queue takes its own reference to the frame
+     *
+     * @param frame - The encoded frame to send
+     * @param chat - true if the frame may be dropped, false if it's always queued
+     * @return - true if the frame was queued, false otherwise
+     */
+    private boolean enqueue(Frame frame, boolean chat) {
+        // Nothing is queued after the reason of a disconnect
+        if (closed || disconnecting.get()) {
+            return false;
+        }
+
+        if (chat && !reserveChat(frame.size())) {
+            owner.getMetrics().frameDropped();
+            return false;
+        }
+
+        queue(frame, chat);
+
+        // A client that doesn't read even its answers stops getting them at some point
+        if (!chat && budget.isOverfilled(queuedFrames.get(), queuedBytes.get())
+                && disconnect(DisconnectReason.SLOW_CONSUMER)) {
+            owner.getMetrics().slowConsumerDisconnected();
+        }
+
+        return true;
+    }
+
+    /**
+     * Add a counted frame to the queue and make sure it's written
+     *
+     * @param frame - The encoded frame to send
+     * @param chat - true if the frame was counted by reserveChat, false if it's counted now
+     */
+    private void queue(Frame frame, boolean chat) {
+        if (frame.getFanOut() != null) {
+            frame.getFanOut().add();
+        }
+        add(new PendingWrite(frame.retain(), chat), !chat);
+
+        // Closed meanwhile by the owner - don't leave the frame in the queue
+        if (closed) {
+            releaseQueue();
+            return;
+        }
+
+        if (owner.inOwnerThread()) {
+            enableWrites();
+        } else if (flushRequested.compareAndSet(false, true)) {
+            owner.requestFlush(this);
+        }
+    }
+
+    /**
+     * Add a frame to the queue and count it
+     *
+     * @param pendingWrite - The frame
+     * @param reserve - true if the bytes are not reserved yet, false if reserveChat did it
+     */
+    private void add(PendingWrite pendingWrite, boolean reserve) {
+        if (reserve) {
+            queuedFrames.incrementAndGet();
+            queuedBytes.addAndGet(pendingWrite.size);
+            budget.reserve(pendingWrite.size);
+        }
+
+        outbound.add(pendingWrite);
+    }
+
+    /**
+     * Make room for a chat frame in the queue and the budget, following the policy if there is none
+     *
+     * @param size - The size of the frame
+     * @return - true if the frame fits, false if it's dropped
+     */
+    private boolean reserveChat(int size) {
+        if (tryReserve(size)) {
+            return true;
+        }
+
+        switch (budget.getPolicy()) {
+            case DROP_OLDEST:
+                while (dropChat(false)) {
+                    if (tryReserve(size)) {
+                        return true;
+                    }
+                }
+                return false;
+
+            case SKIP_TO_LATEST:
+                dropChat(true);
+                return tryReserve(size);
+
+            default:
+                if (disconnect(DisconnectReason.SLOW_CONSUMER)) {
+                    owner.getMetrics().slowConsumerDisconnected();
+                }
+                return false;
+        }
+    }
+
+    /**
+     * Count a frame in the queue and the budget if both have room for it
+     *
+     * @param size - The size of the frame
+     * @return - true if the frame is counted, false if it doesn't fit
+     */
+    private boolean tryReserve(int size) {
+        int frames = queuedFrames.incrementAndGet();
+        long bytes = queuedBytes.addAndGet(size);
+
+        if (budget.fits(frames, bytes) && budget.tryReserve(size)) {
+            return true;
+        }
+
+        queuedFrames.decrementAndGet();
+        queuedBytes.addAndGet(-size);
+        return false;
+    }
+
+    /**
+     * Drop queued chat frames that the owner didn't start writing - called by any thread
+     *
+     * @param all - true to drop every such frame, false for the oldest only
+     * @return - true if a frame was dropped, false if there was none
+     */
+    private boolean dropChat(boolean all) {
+        boolean dropped = false;
+
+        for (PendingWrite pendingWrite : outbound) {
+            if (pendingWrite.chat && pendingWrite.drop()) {
+                removed(pendingWrite);
+                owner.getMetrics().frameDropped();
+                dropped = true;
+
+                if (!all) {
+                    break;
+                }
+            }
+        }
+
+        return dropped;
+    }
+
+    /**
+     * Forget a frame that left the queue - written, dropped or released with the connection
+     *
+     * @param pendingWrite - The frame
+     */
+    private void removed(PendingWrite pendingWrite) {
+        queuedFrames.decrementAndGet();
+        queuedBytes.addAndGet(-pendingWrite.size);
+        budget.release(pendingWrite.size);
+        release(pendingWrite.frame);
+    }
+
+    /**
+     * Close the connection for a reason the client is told about - called by any thread
+     * The chat frames that are not being written are dropped and the reason is queued after the rest, the owner sends
+     * what the channel takes right away and closes the connection like a failed one
+     *
+     * @param reason - Why the connection is closed
+     * @return - true if this call disconnects the client, false if it's closed or disconnected already
+     */
+    public boolean disconnect(DisconnectReason reason) {
+        if (closed || !disconnecting.compareAndSet(false, true)) {
+            return false;
+        }
+
+        System.out.println("Disconnecting client : " + reason);
+        dropChat(true);
+
+        Frame frame = Frame.encode(new Message(Opcode.DISCONNECTED, reason.getCode()), protocol);
+        queue(frame, false);
+        frame.release();
+
+        owner.disconnect(this);
+
+        return true;
+    }
+
+    /**
+     * Called by the owner after another thread queued data
+     */
+    public void flushRequested() {
+        flushRequested.set(false);
+
+        if (!closed && !outbound.isEmpty()) {
+            enableWrites();
+        }
+    }
+
+    /**
+     * Make the selector report when the channel is writable
+     */
+    private void enableWrites() {
+        if (key != null && (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Stop reading from the channel - the messages after the current one are handled after resumeReads
+     */
+    public void suspendReads() {
+        readsSuspended = true;
+
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Continue reading from the channel
+     */
+    public void resumeReads() {
+        readsSuspended = false;
+
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    public boolean isReadsSuspended() {
+        return readsSuspended;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Start sending a range of history once the queued frames are written, after the replays before it
+     *
+     * @param replay - The range to send
+     */
+    public void startReplay(HistoryReplay replay) {
+        replays.add(replay);
+        enableWrites();
+    }
+
+    /**
+     * Start sending a file once the queued frames are written
+     *
+     * @param download - The open file with its size
+     */
+    public void startDownload(FileChannelWrapper download) {
+        this.download = download;
+        this.downloadNanos = System.nanoTime();
+        owner.getMetrics().transferStarted();
+        enableWrites();
+    }
+
+    /**
+     * Check if a file is being sent
+     *
+     * @return - true if a download is in progress, false otherwise
+     */
+    public boolean isDownloading() {
+        return download != null;
+    }
+
+    /**
+     * Write as much of the queue as the channel accepts with gathering writes, then continue the download if any
+     * Stops listening for writability once there is nothing left to write
+     * A blocking channel takes all of the queue and one quantum of the history or the file with every call
+     *
+     * @return - true if everything is written, false if there is more to write
+     * @throws IOException
+     */
+    public boolean flush() throws IOException {
+        // A started chunk of history is finished before any other frame
+        HistoryReplay replay = replays.peek();
+        if (replay != null && replay.isChunkPending() && !transferReplay(replay)) {
+            return false;
+        }
+
+        writeQueue();
+
+        // The frames go out before the history and the file
+        if (!outbound.isEmpty()) {
+            return false;
+        }
+
+        if (!replays.isEmpty() && !transferHistory()) {
+            return false;
+        }
+
+        if (download != null && !transferFile()) {
+            return false;
+        }
+
+        if (closeWhenFlushed) {
+            close();
+        } else if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        return true;
+    }
+
+    /**
+     * Send the next chunk of the first replay - from the segment file for binary clients, re-encoded for the others
+     * At most one quantum is sent per call and the live frames queued meanwhile go out before the next chunk
+     * The end of a replay is reported with a HISTORY_END message
+     *
+     * @return - true if every replay is sent, false if there is more to send
+     * @throws IOException
+     */
+    private boolean transferHistory() throws IOException {
+        HistoryReplay replay = replays.peek();
+
+        if (protocol == Protocol.BINARY) {
+            if (!transferReplay(replay)) {
+                return false;
+            }
+        } else {
+            ByteBuffer frames = replay.nextFrames(Constants.FILE_TRANSFER_QUANTUM);
+
+            while (frames != null && frames.hasRemaining()) {
+                ByteBuffer body = frames.slice();
+                body.limit(body.getInt(0) + MessageCodec.LENGTH_SIZE);
+                body.position(MessageCodec.LENGTH_SIZE);
+                frames.position(frames.position() + body.limit());
+
+                Frame frame = Frame.encode(MessageCodec.decode(body), protocol);
+                add(new PendingWrite(frame, false), true);
+            }
+
+            writeQueue();
+        }
+
+        if (replay.isComplete()) {
+            replays.poll().close();
+            send(new Message(Opcode.HISTORY_END, replay.getRoom(), replay.getSent()));
+        }
+
+        // Continue with the next writable event
+        return false;
+    }
+
+    /**
+     * Send the rest of the chunk of a replay or its next chunk with a zero-copy transfer
+     *
+     * @param replay - The replay
+     * @return - true if the chunk is sent whole, false otherwise
+     * @throws IOException
+     */
+    private boolean transferReplay(HistoryReplay replay) throws IOException {
+        long sentBefore = replay.getBytesSent();
+        boolean chunkSent = replay.transfer(output, Constants.FILE_TRANSFER_QUANTUM);
+        owner.getMetrics().sent(replay.getBytesSent() - sentBefore);
+
+        return chunkSent;
+    }
+
+    /**
+     * Send the next part of the download with a zero-copy transfer
+     * At most one quantum is sent per call, so a large file cannot hold the reactor from its other channels
+     *
+     * @return - true if the whole file is sent, false if there is more to send
+     * @throws IOException
+     */
+    private boolean transferFile() throws IOException {
+        if (fileCompressor != null) {
+            return transferCompressedFile();
+        }
+
+        FileChannel fileChannel = download.getFileChannel();
+
+        long count = Math.min(download.getSize() - download.getPosition(), Constants.FILE_TRANSFER_QUANTUM);
+        long written = fileChannel.transferTo(download.getPosition(), count, output);
+        download.incrementPosition(written);
+        owner.getMetrics().fileSent(written);
+        if (written > 0) {
+            downloadNanos = System.nanoTime();
+        }
+
+        if (download.getPosition() < download.getSize()) {
+            return false;
+        }
+
+        endDownload();
+
+        return true;
+    }
+
+    /**
+     * Send the next part of the download deflated - the file passes through a pooled buffer
+     * At most one quantum of the file is read per call
+     *
+     * @return - true if the whole file is sent, false if there is more to send
+     * @throws IOException
+     */
+    private boolean transferCompressedFile() throws IOException {
+        FileChannel fileChannel = download.getFileChannel();
+        long quantumEnd = Math.min(download.getSize(), download.getPosition() + Constants.FILE_TRANSFER_QUANTUM);
+
+        while (true) {
+            // The compressed part that didn't fit in the socket buffer goes first
+            if (fileOutput != null) {
+                int written = output.write(fileOutput);
+                owner.getMetrics().fileSent(written);
+                if (written > 0) {
+                    downloadNanos = System.nanoTime();
+                }
+                if (fileOutput.hasRemaining()) {
+                    return false;
+                }
+                fileOutput = null;
+            }
+
+            if (download.getPosition() >= download.getSize()) {
+                break;
+            }
+
+            if (download.getPosition() >= quantumEnd) {
+                return false;
+            }
+
+            PooledBuffer pooledBuffer = BufferPool.getDefault().acquire(Constants.HASH_BUFFER_SIZE);
+            try {
+                ByteBuffer buffer = pooledBuffer.buffer();
+                if (download.getSize() - download.getPosition() < buffer.capacity()) {
+                    buffer.limit((int) (download.getSize() - download.getPosition()));
+                }
+
+                int read = fileChannel.read(buffer, download.getPosition());
+                if (read < 0) {
+                    throw new IOException("File is shorter than " + download.getSize() + " bytes");
+                }
+                download.incrementPosition(read);
+
+                buffer.flip();
+                fileOutput = fileCompressor.deflate(buffer);
+            } finally {
+                pooledBuffer.release();
+            }
+        }
+
+        endDownload();
+
+        return true;
+    }
+
+    /**
+     * Close the file of the download
+     *
+     * @throws IOException
+     */
+    private void endDownload() throws IOException {
+        download.getFileChannel().close();
+        download = null;
+        owner.getMetrics().transferEnded();
+    }
+
+    /**
+     * Write as much of the queue as the channel accepts with gathering writes
+     *
+     * @throws IOException
+     */
+    private void writeQueue() throws IOException {
+        while (!outbound.isEmpty()) {
+            int count = 0;
+            for (PendingWrite pendingWrite : outbound) {
+                if (count == gatherBuffers.length) {
+                    break;
+                }
+
+                // Claimed and deflated right before the first byte of the frame is written, a dropped frame is skipped
+                if (!pendingWrite.isWriting()) {
+                    if (!pendingWrite.claim()) {
+                        continue;
+                    }
+                    compress(pendingWrite);
+                }
+                gatherBuffers[count++] = pendingWrite.buffer;
+            }
+
+            long written = count > 0 ? output.write(gatherBuffers, 0, count) : 0;
+            owner.getMetrics().sent(written);
+
+            // Release the fully written frames and skip the dropped ones
+            for (PendingWrite head = outbound.peek(); head != null; head = outbound.peek()) {
+                if (head.isWriting()) {
+                    if (head.buffer.hasRemaining()) {
+                        break;
+                    }
+
+                    removed(head);
+                    owner.getMetrics().sentFrame();
+                } else if (!head.isDropped()) {
+                    break;
+                }
+
+                outbound.poll();
+            }
+
+            // The socket buffer is full - wait for the next writable event
+            if (written == 0 || !outbound.isEmpty() && count < gatherBuffers.length) {
+                break;
+            }
+        }
+
+        for (int i = 0; i < gatherBuffers.length; i++) {
+            gatherBuffers[i] = null;
+        }
+    }
+
+    /**
+     * Replace a queued frame with its compressed form if compression is on and the frame is large enough
+     *
+     * @param pendingWrite - A queued frame claimed by the owner that wasn't written yet
+     */
+    private void compress(PendingWrite pendingWrite) {
+        if (messageCompressor == null || pendingWrite.frame.size() < Constants.COMPRESSION_THRESHOLD) {
+            return;
+        }
+
+        Frame compressed = new Frame(messageCompressor.compressFrame(pendingWrite.buffer, BufferPool.getDefault()));
+        compressed.setFanOut(pendingWrite.frame.getFanOut());
+        pendingWrite.frame.release();
+        pendingWrite.frame = compressed;
+        pendingWrite.buffer = compressed.view();
+    }
+
+    /**
+     * Check if there are queued bytes that are not written yet
+     *
+     * @return - true if the queue is not empty, false otherwise
+     */
+    public boolean hasPendingWrites() {
+        return !outbound.isEmpty();
+    }
+
+    /**
+     * Close the channel once every queued message and the download are written
+     *
+     * @throws IOException
+     */
+    public void closeWhenFlushed() throws IOException {
+        closeWhenFlushed = true;
+
+        if (outbound.isEmpty() && download == null) {
+            close();
+        }
+    }
+
+    /**
+     * Close the channel and drop everything that is still queued
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        // Closed first - frames queued by other threads after this are released by them
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        output.close();
+
+        if (idleTimeout != null) {
+            idleTimeout.cancel();
+        }
+
+        releaseQueue();
+        frameDecoder.release();
+
+        for (HistoryReplay replay = replays.poll(); replay != null; replay = replays.poll()) {
+            replay.close();
+        }
+
+        if (download != null) {
+            endDownload();
+        }
+
+        if (messageCompressor != null) {
+            System.out.println("Message compression : " + messageCompressor);
+            messageCompressor.end();
+        }
+
+        if (fileCompressor != null) {
+            System.out.println("File compression : " + fileCompressor);
+            fileCompressor.end();
+        }
+
+        owner.connectionClosed();
+    }
+
+    /**
+     * Drop every queued frame - a frame dropped by another thread meanwhile was released by it
+     */
+    private void releaseQueue() {
+        for (PendingWrite pendingWrite = outbound.poll(); pendingWrite != null; pendingWrite = outbound.poll()) {
+            if (pendingWrite.isWriting() || pendingWrite.drop()) {
+                removed(pendingWrite);
+            }
+        }
+    }
+
+    /**
+     * Drop the queue's reference to a frame that was written or dropped - the receiver is done with a fan-out
+     *
+     * @param frame - The frame
+     */
+    private void release(Frame frame) {
+        if (frame.getFanOut() != null) {
+            frame.getFanOut().done();
+        }
+
+        frame.release();
+    }
+
+    /**
+     * A queued frame with this connection's own position in it
+     */
+    private static class PendingWrite {
+        private static final int QUEUED = 0;
+        private static final int WRITING = 1;
+        private static final int DROPPED = 2;
+
+        private static final AtomicIntegerFieldUpdater<PendingWrite> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(PendingWrite.class, "state");
+
+        private Frame frame;
+        private ByteBuffer buffer;
+
+        // Chat frames may be dropped, the size is counted before a compression
+        private boolean chat;
+        private int size;
+
+        // Queued until the owner claims the frame for writing or another thread drops it
+        private volatile int state;
+
+        private PendingWrite(Frame frame, boolean chat) {
+            this.frame = frame;
+            this.buffer = frame.view();
+            this.chat = chat;
+            this.size = frame.size();
+            this.state = QUEUED;
+        }
+
+        private boolean isWriting() {
+            return state == WRITING;
+        }
+
+        private boolean isDropped() {
+            return state == DROPPED;
+        }
+
+        private boolean claim() {
+            return STATE.compareAndSet(this, QUEUED, WRITING);
+        }
+
+        private boolean drop() {
+            return STATE.compareAndSet(this, QUEUED, DROPPED);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.TimingWheel;
+
+/**
+ * The thread a connection belongs to - a selector reactor shared by many connections or a thread of its own
+ *
+ * Everything but queueing frames is done on the owner's thread, so the state of a connection needs no locks.
+ *
+ * @author borislav.draganov
+ */
+
+public interface ConnectionOwner {
+    ServerMetrics getMetrics();
+
+    /**
+     * Check if the caller runs on the owner's thread
+     *
+     * @return - true if called by the owner, false otherwise
+     */
+    boolean inOwnerThread();
+
+    /**
+     * Ask the owner to write the queue of a connection after another thread queued data
+     *
+     * @param connection - The connection with new outbound data
+     */
+    void requestFlush(Connection connection);
+
+    /**
+     * Run a task on the owner's thread, e.g. to continue with a result computed by another thread
+     *
+     * @param task - The task
+     */
+    void execute(Runnable task);
+
+    /**
+     * Close a connection like a failed one after the reason was queued for the client - called by any thread
+     * The owner sends what the channel takes without waiting for the client, the user is logged out
+     *
+     * @param connection - The connection
+     */
+    void disconnect(Connection connection);
+
+    /**
+     * Called when a connection of this owner is closed
+     */
+    void connectionClosed();
+
+    /**
+     * Get the timers of the owner's connections - a timer that fires on another thread is handed over with execute
+     *
+     * @return - The wheel
+     */
+    TimingWheel getTimers();
+}
@@ -0,0 +1,180 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.TimingWheel;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The thread of a connection of the blocking engine - reads the client and handles its messages
+ *
+ * Frames queued by other threads are written by a short task on another thread, the reader may wait for its client
+ * meanwhile - so are the results of other threads and the timers. Whoever holds the lock owns the connection, so the
+ * reader and the tasks take turns and the connection's state is never touched by two threads at once. The lock is
+ * never held while waiting for the client to send something.
+ *
+ * @author borislav.draganov
+ */
+
+class ConnectionThread implements Runnable, ConnectionOwner {
+    private ProtocolHandler handler;
+    private Executor threads;
+    private TimingWheel timers;
+    private SocketChannel socketChannel;
+    private Connection connection;
+    private ReentrantLock lock;
+
+    // Signalled when the received messages don't wait for another thread anymore
+    private Condition readsResumed;
+
+    // Writes the queue after another thread queued data
+    private Runnable flushTask;
+
+    ConnectionThread(ProtocolHandler handler, Executor threads, TimingWheel timers, SocketChannel socketChannel) {
+        this.handler = handler;
+        this.threads = threads;
+        this.timers = timers;
+        this.socketChannel = socketChannel;
+        this.connection = new Connection(this, socketChannel, null);
+        this.lock = new ReentrantLock();
+        this.readsResumed = lock.newCondition();
+        this.flushTask = new Runnable() {
+            @Override
+            public void run() {
+                connection.flushRequested();
+            }
+        };
+    }
+
+    @Override
+    public ServerMetrics getMetrics() {
+        return handler.getMetrics();
+    }
+
+    @Override
+    public boolean inOwnerThread() {
+        return lock.isHeldByCurrentThread();
+    }
+
+    @Override
+    public void requestFlush(Connection connection) {
+        execute(flushTask);
+    }
+
+    /**
+     * Run a task under the lock on another thread, then write what it queued
+     *
+     * @param task - The task
+     */
+    @Override
+    public void execute(final Runnable task) {
+        threads.execute(new Runnable() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    task.run();
+                    flush();
+                } catch (IOException | RuntimeException e) {
+                    close(e);
+                } finally {
+                    readsResumed.signal();
+                    lock.unlock();
+                }
+            }
+        });
+    }
+
+    /**
+     * Close the channel right away - a write to a client that doesn't read blocks with the lock held, closing the
+     * channel ends it and the read with an error that closes the connection
+     *
+     * @param connection - The connection
+     */
+    @Override
+    public void disconnect(Connection connection) {
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void connectionClosed() {
+        handler.getMetrics().connectionClosed();
+    }
+
+    @Override
+    public TimingWheel getTimers() {
+        return timers;
+    }
+
+    @Override
+    public void run() {
+        try {
+            lock.lock();
+            try {
+                handler.connectionOpened(connection, socketChannel.getRemoteAddress());
+            } finally {
+                lock.unlock();
+            }
+
+            while (!connection.isClosed()) {
+                // Wait for the client without the lock - the queue can be written meanwhile
+                int read = handler.read(connection);
+
+                lock.lock();
+                try {
+                    handler.handleRead(connection, read);
+                    flush();
+
+                    // The next messages wait for the result of another thread, e.g. the password check
+                    while (connection.isReadsSuspended() && !connection.isClosed()) {
+                        readsResumed.await();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close(e);
+        } catch (InterruptedException e) {
+            close(null);
+        }
+    }
+
+    /**
+     * Write everything queued, the history and the download - the blocking channel waits for the client
+     *
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        while (!connection.isClosed() && !connection.flush()) {
+            // One quantum of the history or the file per call, the frames queued meanwhile go first
+        }
+    }
+
+    /**
+     * Close the connection after an error - an error caused by closing it or its channel is expected
+     *
+     * @param cause - The error, null if there is none
+     */
+    private void close(Exception cause) {
+        lock.lock();
+        try {
+            if (cause != null && !connection.isClosed() && socketChannel.isOpen()) {
+                cause.printStackTrace();
+            }
+
+            handler.closeConnection(connection);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.Constants;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The registered users with salted PBKDF2 hashes of their passwords
+ *
+ * Every user is a line "username:$pbkdf2-sha256$iterations$salt$hash" in an append-only log - a new or rehashed
+ * credential is appended and the last line of a user wins. Appends of concurrent registrations are group committed:
+ * one thread writes everything that is pending with a single write and fsync, and the others wait for it.
+ * On startup the log is scanned through memory mapped regions into the in-memory index and rewritten once if it has
+ * superseded lines, a torn last line or plain text passwords of the old "username:password" format.
+ *
+ * Hashing is deliberately slow, so authenticate blocks - it must not be called by a reactor.
+ *
+ * @author borislav.draganov
+ */
+
+public class CredentialStore {
+    private static final Charset CHARSET = Charset.forName(Constants.UTF_ENCODING);
+    private static final String SCHEME = "$pbkdf2-sha256$";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_SIZE = 16;
+    private static final int HASH_SIZE = 32;
+
+    // Bytes of the log mapped at once
+    private static final int MAP_REGION_SIZE = 256 * 1024 * 1024;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private Path path;
+    private int iterations;
+    private Map<String, Credential> index;
+
+    // Append log and its group commit state, guarded by logLock
+    private final Object logLock = new Object();
+    private FileChannel log;
+    private List<String> pendingRecords;
+    private long appendedCount;
+    private long durableCount;
+    private long failedCount;
+    private boolean syncing;
+
+    public CredentialStore(String fileName) throws IOException {
+        this(fileName, Constants.PASSWORD_HASH_ITERATIONS);
+    }
+
+    public CredentialStore(String fileName, int iterations) throws IOException {
+        this.path = Paths.get(fileName);
+        this.iterations = iterations;
+        this.index = new ConcurrentHashMap<>();
+        this.pendingRecords = new ArrayList<>();
+
+        load();
+        log = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Check the password of a user - an unknown user is registered with the password
+     * A new user is reported only after the credential is on disk
+     *
+     * @param username - The name of the user
+     * @param password - The password in plain text
+     * @return - true if the password is valid or the user was registered, false otherwise
+     * @throws IOException - If the credential of a new user could not be saved
+     */
+    public boolean authenticate(String username, String password) throws IOException {
+        if (!isValidName(username) || password == null || password.isEmpty()) {
+            return false;
+        }
+
+        Credential stored = index.get(username);
+
+        // Register user - another thread may register the same name at the same time
+        if (stored == null) {
+            Credential created = Credential.create(password, iterations);
+
+            stored = index.putIfAbsent(username, created);
+            if (stored == null) {
+                try {
+                    append(created.toRecord(username));
+                } catch (IOException e) {
+                    index.remove(username, created);
+                    throw e;
+                }
+
+                return true;
+            }
+        }
+
+        if (!stored.matches(password)) {
+            return false;
+        }
+
+        // Hashed with fewer iterations than configured now - store a stronger hash
+        if (stored.iterations < iterations) {
+            Credential rehashed = Credential.create(password, iterations);
+
+            if (index.replace(username, stored, rehashed)) {
+                append(rehashed.toRecord(username));
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Check if a user is registered
+     *
+     * @param username - The name of the user
+     * @return - true if the user has a credential, false otherwise
+     */
+    public boolean isRegistered(String username) {
+        return index.containsKey(username);
+    }
+
+    /**
+     * Get the number of registered users
+     *
+     * @return - The number of users
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Check if a name can be stored in the log
+     *
+     * @param username - The name
+     * @return - true if the name is not empty and has no separator, false otherwise
+     */
+    public static boolean isValidName(String username) {
+        return username != null && !username.isEmpty() && username.indexOf(':') < 0 && username.indexOf('\n') < 0 && username.indexOf('\r') < 0;
+    }
+
+    /**
+     * Append a record and wait until it is on disk
+     * The first waiting thread writes and syncs the records of every thread that is waiting
+     *
+     * @param record - The line without the line end
+     * @throws IOException - If the batch with the record could not be written
+     */
+    private void append(String record) throws IOException {
+        List<String> batch;
+        long batchEnd;
+
+        synchronized (logLock) {
+            pendingRecords.add(record);
+            long sequence = ++appendedCount;
+
+            while (syncing && durableCount < sequence && failedCount < sequence) {
+                waitForSync();
+            }
+
+            if (durableCount >= sequence) {
+                return;
+            }
+            if (failedCount >= sequence) {
+                throw new IOException("Could not save the credential");
+            }
+
+            // Nobody is syncing - write the batch with this record
+            batch = pendingRecords;
+            batchEnd = appendedCount;
+            pendingRecords = new ArrayList<>();
+            syncing = true;
+        }
+
+        boolean written = false;
+        try {
+            StringBuilder lines = new StringBuilder();
+            for (String line : batch) {
+                lines.append(line).append('\n');
+            }
+
+            ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(CHARSET));
+            while (bytes.hasRemaining()) {
+                log.write(bytes);
+            }
+
+            log.force(false);
+            written = true;
+        } finally {
+            synchronized (logLock) {
+                if (written) {
+                    durableCount = batchEnd;
+                } else {
+                    failedCount = batchEnd;
+                }
+
+                syncing = false;
+                logLock.notifyAll();
+            }
+        }
+    }
+
+    private void waitForSync() throws InterruptedIOException {
+        try {
+            logLock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while saving the credential");
+        }
+    }
+
+    /**
+     * Read the log into the index and compact it if needed
+     *
+     * @throws IOException
+     */
+    private void load() throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        Map<String, String> plainPasswords = new HashMap<>();
+        long lines = scan(plainPasswords);
+        boolean torn = Files.size(path) > 0 && !endsWithLineEnd();
+
+        // Old plain text passwords are hashed once
+        for (Map.Entry<String, String> entry : plainPasswords.entrySet()) {
+            index.put(entry.getKey(), Credential.create(entry.getValue(), iterations));
+        }
+
+        if (lines > index.size() || torn || !plainPasswords.isEmpty()) {
+            compact();
+        }
+
+        System.out.println("Loaded " + index.size() + " users");
+    }
+
+    /**
+     * Parse every line of the log through memory mapped regions
+     *
+     * @param plainPasswords - Filled with the users of the old format
+     * @return - The number of lines, valid or not
+     * @throws IOException
+     */
+    private long scan(Map<String, String> plainPasswords) throws IOException {
+        long lines = 0;
+        byte[] line = new byte[256];
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long regionStart = 0;
+
+            while (regionStart < size) {
+                long regionSize = Math.min(MAP_REGION_SIZE, size - regionStart);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionSize);
+                boolean lastRegion = regionStart + regionSize == size;
+
+                int lineStart = 0;
+                int limit = region.limit();
+
+                for (int i = 0; i < limit; i++) {
+                    if (region.get(i) != '\n') {
+                        continue;
+                    }
+
+                    int length = i - lineStart;
+                    if (length > line.length) {
+                        line = new byte[Math.max(length, line.length * 2)];
+                    }
+
+                    region.position(lineStart);
+                    region.get(line, 0, length);
+                    parse(new String(line, 0, length, CHARSET), plainPasswords);
+
+                    lines++;
+                    lineStart = i + 1;
+                }
+
+                // A line continues in the next region - map again from its start
+                if (!lastRegion && lineStart == 0) {
+                    throw new IOException("Line longer than " + MAP_REGION_SIZE + " bytes in " + path);
+                }
+
+                regionStart += lastRegion ? regionSize : lineStart;
+            }
+        }
+
+        return lines;
+    }
+
+    /**
+     * Add a line of the log to the index - the last line of a user wins
+     *
+     * @param line - The line without the line end
+     * @param plainPasswords - Receives the user if the line has a plain text password
+     */
+    private void parse(String line, Map<String, String> plainPasswords) {
+        // Written by an old server on Windows
+        if (line.endsWith("\r")) {
+            line = line.substring(0, line.length() - 1);
+        }
+
+        int separator = line.indexOf(':');
+        if (separator <= 0) {
+            return;
+        }
+
+        String username = line.substring(0, separator);
+        String secret = line.substring(separator + 1);
+
+        if (!secret.startsWith(SCHEME)) {
+            if (!secret.isEmpty()) {
+                index.remove(username);
+                plainPasswords.put(username, secret);
+            }
+            return;
+        }
+
+        // A damaged line is dropped by the compaction
+        Credential credential = Credential.parse(secret);
+        if (credential != null) {
+            index.put(username, credential);
+            plainPasswords.remove(username);
+        }
+    }
+
+    private boolean endsWithLineEnd() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+
+            return last.get(0) == '\n';
+        }
+    }
+
+    /**
+     * Rewrite the log with a single line per user - written aside and moved over the log
+     *
+     * @throws IOException
+     */
+    private void compact() throws IOException {
+        Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            StringBuilder lines = new StringBuilder();
+
+            for (Map.Entry<String, Credential> entry : index.entrySet()) {
+                lines.append(entry.getValue().toRecord(entry.getKey())).append('\n');
+
+                if (lines.length() >= Constants.HASH_BUFFER_SIZE) {
+                    writeFully(channel, lines);
+                }
+            }
+
+            writeFully(channel, lines);
+            channel.force(true);
+        }
+
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Compacted " + path + " to " + index.size() + " users");
+    }
+
+    private static void writeFully(FileChannel channel, StringBuilder lines) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(CHARSET));
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+
+        lines.setLength(0);
+    }
+
+    /**
+     * A salted password hash
+     */
+    private static class Credential {
+        private int iterations;
+        private byte[] salt;
+        private byte[] hash;
+
+        private Credential(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        /**
+         * Hash a password with a new random salt
+         *
+         * @param password - The password in plain text
+         * @param iterations - The PBKDF2 iteration count
+         * @return - The credential
+         */
+        private static Credential create(String password, int iterations) {
+            byte[] salt = new byte[SALT_SIZE];
+            RANDOM.nextBytes(salt);
+
+            return new Credential(iterations, salt, hash(password, salt, iterations, HASH_SIZE));
+        }
+
+        /**
+         * Read a credential in the format of the log
+         *
+         * @param secret - The part of the line after the username
+         * @return - The credential or null if the secret is damaged
+         */
+        private static Credential parse(String secret) {
+            String[] parts = secret.substring(SCHEME.length()).split("\\$");
+            if (parts.length != 3) {
+                return null;
+            }
+
+            try {
+                Base64.Decoder decoder = Base64.getDecoder();
+                return new Credential(Integer.parseInt(parts[0]), decoder.decode(parts[1]), decoder.decode(parts[2]));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Check a password in constant time
+         *
+         * @param password - The password in plain text
+         * @return - true if the password has the stored hash, false otherwise
+         */
+        private boolean matches(String password) {
+            return MessageDigest.isEqual(hash, hash(password, salt, iterations, hash.length));
+        }
+
+        private String toRecord(String username) {
+            Base64.Encoder encoder = Base64.getEncoder();
+            return username + ":" + SCHEME + iterations + "$" + encoder.encodeToString(salt) + "$" + encoder.encodeToString(hash);
+        }
+
+        private static byte[] hash(String password, byte[] salt, int iterations, int length) {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, length * 8);
+
+            try {
+                return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(ALGORITHM + " is not available", e);
+            } finally {
+                spec.clearPassword();
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.sap.course.homework.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In-memory listing of the uploaded files, sorted by name
+ *
+ * The directory is read once at startup. Afterwards the catalog is updated by the server when an upload completes
+ * and by a watcher thread for any other change of the directory, so a listing never touches the disk. Listings are
+ * pages of the sorted names - a page starts after the last name of the previous one.
+ *
+ * @author borislav.draganov
+ */
+
+public class FileCatalog implements Runnable {
+    private File dir;
+    private ConcurrentNavigableMap<String, Entry> entries;
+    private WatchService watchService;
+
+    public FileCatalog(String path) throws IOException {
+        this.dir = new File(path);
+        this.entries = new ConcurrentSkipListMap<>();
+
+        // Register before reading the directory so no change is missed in between
+        this.watchService = FileSystems.getDefault().newWatchService();
+        dir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+        rebuild();
+    }
+
+    /**
+     * Start watching the directory on a daemon thread
+     */
+    public void start() {
+        Thread thread = new Thread(this, "NioChat-file-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                // Too many changes at once - the events were lost
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    rebuild();
+                } else {
+                    refresh(event.context().toString());
+                }
+            }
+
+            // The directory itself is gone
+            if (!key.reset()) {
+                entries.clear();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read the current state of a single file
+     *
+     * @param name - The name of the file
+     */
+    public void refresh(String name) {
+        if (!FileStore.isValidName(name)) {
+            return;
+        }
+
+        File file = new File(dir, name);
+        if (file.isFile()) {
+            entries.put(name, new Entry(name, file.length(), file.lastModified()));
+        } else {
+            entries.remove(name);
+        }
+    }
+
+    /**
+     * Read the whole directory again
+     */
+    private void rebuild() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            entries.clear();
+            return;
+        }
+
+        Set<String> names = new HashSet<>(files.length * 2);
+        for (File file : files) {
+            names.add(file.getName());
+            refresh(file.getName());
+        }
+
+        // Forget the files that were deleted
+        entries.keySet().retainAll(names);
+    }
+
+    /**
+     * Get a page of the file names in order
+     *
+     * @param prefix - Only names starting with the prefix, empty for all names
+     * @param after - The page starts after this name, empty for the first page
+     * @param limit - The maximal number of names
+     * @param maxChars - The maximal total length of the names
+     * @return - The names of the page
+     */
+    public List<String> list(String prefix, String after, int limit, int maxChars) {
+        List<String> names = new ArrayList<>();
+        int chars = 0;
+
+        for (String name : range(prefix, after).keySet()) {
+            chars += name.length();
+            if (names.size() >= limit || chars > maxChars) {
+                break;
+            }
+
+            names.add(name);
+        }
+
+        return names;
+    }
+
+    /**
+     * Check if there are more names after a page
+     *
+     * @param prefix - The prefix of the listing
+     * @param after - The last name of the page
+     * @return - true if another page follows, false otherwise
+     */
+    public boolean hasMore(String prefix, String after) {
+        return !range(prefix, after).isEmpty();
+    }
+
+    private ConcurrentNavigableMap<String, Entry> range(String prefix, String after) {
+        ConcurrentNavigableMap<String, Entry> range = entries;
+
+        if (!prefix.isEmpty()) {
+            range = range.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        }
+
+        if (!after.isEmpty()) {
+            range = range.tailMap(after, false);
+        }
+
+        return range;
+    }
+
+    /**
+     * Get a file of the catalog
+     *
+     * @param name - The name of the file
+     * @return - The entry or null if there is no such file
+     */
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * A file as it was when it was last seen
+     */
+    public static class Entry {
+        private String name;
+        private long size;
+        private long modified;
+
+        public Entry(String name, long size, long modified) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+    }
+}
@@ -0,0 +1,495 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.Constants;
+import com.sap.course.homework.util.ContentHash;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The directory of uploaded files together with the uploads that are not complete yet
+ *
+ * An upload is received in a partial file under the incoming directory. Next to it a small state file keeps the
+ * total size and the number of received bytes - it is saved every few megabytes and when the connection is lost,
+ * so a client can ask how much the server has and send only the rest.
+ *
+ * The content of every file is stored once, as a blob named by its SHA-256 hash. A complete upload becomes a blob
+ * (or is dropped if the blob already exists) and the file name is a hard link to it, so downloads still read a
+ * plain file. The name to hash index is an append-only log, the last line of a name wins. A client that announces
+ * the hash of a file the server already has gets the name linked without sending any data.
+ *
+ * Opening, announcing, finishing and aborting an upload hash, copy, sync and move files, so they are called by the
+ * file threads of the server, not by its reactors - so is reading the state of an upload. A name has one upload at a
+ * time - the partial file is shared by every upload of it.
+ *
+ * @author borislav.draganov
+ */
+
+public class FileStore {
+    private static final String INCOMING_DIR = ".incoming";
+    private static final String BLOB_DIR = ".blobs";
+    private static final String INDEX_FILE = ".index";
+    private static final String STATE_SUFFIX = ".state";
+    private static final String LINK_SUFFIX = ".link";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String FIELD_SEPARATOR = ":";
+    private static final String INDEX_SEPARATOR = " ";
+    private static final Charset CHARSET = Charset.forName(Constants.UTF_ENCODING);
+
+    private File dir;
+    private File incomingDir;
+    private File blobDir;
+    private File indexFile;
+
+    // Hash of the content of every file name and the number of names of every blob
+    private Map<String, String> hashes;
+    private Map<String, Integer> references;
+    private Writer indexWriter;
+
+    // The names with an open upload, guarded by the lock of the store
+    private Set<String> uploading;
+
+    public FileStore(String path) throws IOException {
+        this.dir = new File(path);
+        this.incomingDir = new File(dir, INCOMING_DIR);
+        this.blobDir = new File(dir, BLOB_DIR);
+        this.indexFile = new File(dir, INDEX_FILE);
+        this.hashes = new HashMap<>();
+        this.references = new HashMap<>();
+        this.uploading = new HashSet<>();
+
+        incomingDir.mkdirs();
+        blobDir.mkdirs();
+
+        loadIndex();
+        adoptFiles();
+        removeUnusedBlobs();
+    }
+
+    /**
+     * Check if a name can be used for a file in the store - no paths and no hidden files
+     *
+     * @param name - The file name sent by a client
+     * @return - true if the name is valid, false otherwise
+     */
+    public static boolean isValidName(String name) {
+        return !name.isEmpty() && !name.startsWith(".") && !name.contains("/") && !name.contains("\\") && !name.contains("\n");
+    }
+
+    /**
+     * Find a complete file
+     *
+     * @param name - The name of the file
+     * @return - The file or null if there is no such complete file
+     */
+    public File resolve(String name) {
+        if (!isValidName(name)) {
+            return null;
+        }
+
+        File file = new File(dir, name);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Get the size of a file and how much of it the store has
+     *
+     * @param name - The name of the file
+     * @return - The total size and the received bytes, both 0 if the store knows nothing about the file
+     * @throws IOException
+     */
+    public long[] status(String name) throws IOException {
+        long[] state = readState(name);
+        if (state != null) {
+            return state;
+        }
+
+        File file = resolve(name);
+        if (file != null) {
+            return new long[] { file.length(), file.length() };
+        }
+
+        return new long[] { 0, 0 };
+    }
+
+    /**
+     * Handle an upload announced with the hash of its content - the data is not needed if the server has the blob
+     *
+     * The hash only selects existing content, so the client can't change what is stored under the hash.
+     *
+     * @param name - The name of the file
+     * @param size - The size of the file
+     * @param hash - The hex SHA-256 hash of the content
+     * @return - The total size and the received bytes, equal if the file is already stored under the name
+     * @throws IOException
+     */
+    public synchronized long[] announce(String name, long size, String hash) throws IOException {
+        if (!isValidName(name)) {
+            throw new ProtocolException("Invalid file name " + name);
+        }
+
+        File blob = new File(blobDir, hash);
+        if (ContentHash.isValid(hash) && blob.isFile() && blob.length() == size) {
+            link(name, hash);
+            System.out.println("Linked " + name + " to stored content " + hash);
+
+            return new long[] { size, size };
+        }
+
+        // Not stored yet - a partial upload of the same size can be continued
+        long[] state = readState(name);
+        if (state != null && state[0] == size) {
+            return state;
+        }
+
+        return new long[] { size, 0 };
+    }
+
+    /**
+     * Start receiving a range of a file - a range may start anywhere in the part that was already received
+     *
+     * @param name - The name of the file
+     * @param totalSize - The size of the whole file
+     * @param offset - The position of the first byte of the range
+     * @param length - The number of bytes in the range
+     * @return - The upload positioned at the offset
+     * @throws IOException - If the name is invalid, it has an open upload or the range leaves a gap
+     */
+    public Upload openUpload(String name, long totalSize, long offset, long length) throws IOException {
+        if (!isValidName(name)) {
+            throw new ProtocolException("Invalid file name " + name);
+        }
+
+        if (offset < 0 || length < 0 || offset + length > totalSize) {
+            throw new ProtocolException("Invalid range " + offset + "+" + length + " of " + totalSize + " bytes");
+        }
+
+        synchronized (this) {
+            if (!uploading.add(name)) {
+                throw new ProtocolException("Upload of " + name + " is in progress");
+            }
+        }
+
+        try {
+            return open(name, totalSize, offset, length);
+        } catch (IOException | RuntimeException e) {
+            closed(name);
+            throw e;
+        }
+    }
+
+    private Upload open(String name, long totalSize, long offset, long length) throws IOException {
+        long[] state = readState(name);
+
+        // Another file with the same name - start over
+        long received = 0;
+        if (state != null && state[0] == totalSize) {
+            received = state[1];
+        }
+
+        if (offset > received) {
+            throw new ProtocolException("Range of " + name + " starts at " + offset + ", only " + received + " bytes are received");
+        }
+
+        File partialFile = new File(incomingDir, name);
+        FileChannel fileChannel = new RandomAccessFile(partialFile, "rw").getChannel();
+
+        try {
+            if (received == 0) {
+                fileChannel.truncate(0);
+                writeState(name, totalSize, 0);
+            }
+
+            // The digest can't be saved with the state - a continued upload hashes the part it continues once
+            MessageDigest digest = ContentHash.newDigest();
+            ContentHash.update(digest, fileChannel, offset);
+
+            return new Upload(name, totalSize, fileChannel, offset, offset + length, received, digest);
+        } catch (IOException | RuntimeException e) {
+            fileChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Save the progress of an upload if enough bytes were received since the last save
+     *
+     * @param upload - The upload in progress
+     * @throws IOException
+     */
+    public void checkpoint(Upload upload) throws IOException {
+        if (upload.getPosition() - upload.getReceived() >= Constants.UPLOAD_CHECKPOINT_SIZE) {
+            upload.getFileChannel().force(false);
+            saveProgress(upload);
+        }
+    }
+
+    /**
+     * Finish the range of an upload - the file is stored once it's complete
+     *
+     * @param upload - The upload whose range was received
+     * @throws IOException
+     */
+    public void finishUpload(Upload upload) throws IOException {
+        try {
+            FileChannel fileChannel = upload.getFileChannel();
+            fileChannel.force(false);
+            fileChannel.close();
+
+            if (!upload.isComplete()) {
+                saveProgress(upload);
+                return;
+            }
+
+            String hash = ContentHash.toHex(upload.digest());
+
+            synchronized (this) {
+                store(new File(incomingDir, upload.getName()), hash);
+                link(upload.getName(), hash);
+            }
+
+            stateFile(upload.getName()).delete();
+            System.out.println("Received file " + upload.getName() + " with content " + hash);
+        } finally {
+            closed(upload.getName());
+        }
+    }
+
+    /**
+     * Keep what was received of an interrupted upload
+     *
+     * @param upload - The upload that was interrupted
+     * @throws IOException
+     */
+    public void abortUpload(Upload upload) throws IOException {
+        FileChannel fileChannel = upload.getFileChannel();
+        if (!fileChannel.isOpen()) {
+            return;
+        }
+
+        try {
+            fileChannel.force(false);
+            fileChannel.close();
+
+            saveProgress(upload);
+            System.out.println("Upload of " + upload.getName() + " interrupted at " + upload.getReceived() + " bytes");
+        } finally {
+            closed(upload.getName());
+        }
+    }
+
+    /**
+     * Let the next upload of a name open it
+     *
+     * @param name - The name of the file
+     */
+    private synchronized void closed(String name) {
+        uploading.remove(name);
+    }
+
+    /**
+     * Make a received file the blob of its hash - a duplicate of a stored blob is deleted
+     * Must be called while holding the lock of the store
+     *
+     * @param file - The complete file
+     * @param hash - The hash of its content
+     * @throws IOException
+     */
+    private void store(File file, String hash) throws IOException {
+        File blob = new File(blobDir, hash);
+
+        if (blob.isFile()) {
+            Files.delete(file.toPath());
+        } else {
+            Files.move(file.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Point a file name at a blob - the file is replaced atomically and the old blob is deleted if nothing uses it
+     * Must be called while holding the lock of the store
+     *
+     * @param name - The name of the file
+     * @param hash - The hash of the blob
+     * @throws IOException
+     */
+    private void link(String name, String hash) throws IOException {
+        File blob = new File(blobDir, hash);
+        File link = new File(incomingDir, name + LINK_SUFFIX);
+
+        Files.deleteIfExists(link.toPath());
+        try {
+            Files.createLink(link.toPath(), blob.toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            // No hard links on this file system - a copy of the blob
+            Files.copy(blob.toPath(), link.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        Files.move(link.toPath(), new File(dir, name).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        addName(name, hash);
+        writeIndex(name, hash);
+    }
+
+    private void addName(String name, String hash) throws IOException {
+        Integer count = references.get(hash);
+        references.put(hash, count == null ? 1 : count + 1);
+
+        String previous = hashes.put(name, hash);
+        if (previous != null) {
+            removeReference(previous);
+        }
+    }
+
+    private void removeReference(String hash) throws IOException {
+        Integer count = references.get(hash);
+
+        if (count == null || count <= 1) {
+            references.remove(hash);
+            Files.deleteIfExists(new File(blobDir, hash).toPath());
+        } else {
+            references.put(hash, count - 1);
+        }
+    }
+
+    /**
+     * Read the index of file names - names whose files were removed are forgotten and the log is compacted
+     *
+     * @throws IOException
+     */
+    private void loadIndex() throws IOException {
+        Map<String, String> entries = new HashMap<>();
+
+        if (indexFile.isFile()) {
+            for (String line : Files.readAllLines(indexFile.toPath(), CHARSET)) {
+                int separator = line.indexOf(INDEX_SEPARATOR);
+
+                if (separator > 0) {
+                    entries.put(line.substring(separator + 1), line.substring(0, separator));
+                }
+            }
+        }
+
+        File compacted = new File(dir, INDEX_FILE + TEMP_SUFFIX);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(compacted), CHARSET)) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                String name = entry.getKey();
+                String hash = entry.getValue();
+
+                if (new File(dir, name).isFile() && new File(blobDir, hash).isFile()) {
+                    writer.write(hash + INDEX_SEPARATOR + name + "\n");
+                    addName(name, hash);
+                }
+            }
+        }
+
+        Files.move(compacted.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        indexWriter = Files.newBufferedWriter(indexFile.toPath(), CHARSET, StandardOpenOption.APPEND);
+    }
+
+    private void writeIndex(String name, String hash) throws IOException {
+        indexWriter.write(hash + INDEX_SEPARATOR + name + "\n");
+        indexWriter.flush();
+    }
+
+    /**
+     * Move the files that are not in the index into blobs, e.g. the files uploaded before there was an index
+     *
+     * @throws IOException
+     */
+    private synchronized void adoptFiles() throws IOException {
+        for (File file : dir.listFiles()) {
+            String name = file.getName();
+
+            if (file.isFile() && isValidName(name) && !hashes.containsKey(name)) {
+                String hash = ContentHash.of(file);
+                File blob = new File(blobDir, hash);
+
+                if (!blob.isFile()) {
+                    try {
+                        Files.createLink(blob.toPath(), file.toPath());
+                    } catch (UnsupportedOperationException | IOException e) {
+                        Files.copy(file.toPath(), blob.toPath());
+                    }
+                }
+
+                link(name, hash);
+            }
+        }
+    }
+
+    /**
+     * Delete the blobs without a name, e.g. left by a crash while a name was replaced
+     */
+    private void removeUnusedBlobs() {
+        for (File blob : blobDir.listFiles()) {
+            if (!references.containsKey(blob.getName())) {
+                blob.delete();
+            }
+        }
+    }
+
+    private void saveProgress(Upload upload) throws IOException {
+        upload.setReceived(Math.max(upload.getReceived(), upload.getPosition()));
+        writeState(upload.getName(), upload.getTotalSize(), upload.getReceived());
+    }
+
+    private File stateFile(String name) {
+        return new File(incomingDir, name + STATE_SUFFIX);
+    }
+
+    /**
+     * Read the state of a partial upload
+     *
+     * @param name - The name of the file
+     * @return - The total size and the received bytes or null if there is no partial upload
+     * @throws IOException
+     */
+    private long[] readState(String name) throws IOException {
+        if (!isValidName(name)) {
+            return null;
+        }
+
+        File stateFile = stateFile(name);
+        if (!stateFile.isFile() || !new File(incomingDir, name).isFile()) {
+            return null;
+        }
+
+        String[] fields = new String(Files.readAllBytes(stateFile.toPath()), CHARSET).trim().split(FIELD_SEPARATOR);
+        try {
+            long totalSize = Long.parseLong(fields[0]);
+            long received = Math.min(Long.parseLong(fields[1]), new File(incomingDir, name).length());
+
+            return new long[] { totalSize, received };
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println("Ignoring corrupt state of " + name);
+            return null;
+        }
+    }
+
+    /**
+     * Replace the state of a partial upload - written aside and moved over the old state
+     *
+     * @param name - The name of the file
+     * @param totalSize - The size of the whole file
+     * @param received - The bytes on disk
+     * @throws IOException
+     */
+    private void writeState(String name, long totalSize, long received) throws IOException {
+        File stateFile = stateFile(name);
+        File tempFile = new File(incomingDir, name + STATE_SUFFIX + TEMP_SUFFIX);
+
+        Files.write(tempFile.toPath(), (totalSize + FIELD_SEPARATOR + received).getBytes(CHARSET));
+        Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,217 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.MessageCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A range of a room's history being sent to a client
+ *
+ * The range is sent in chunks of whole frames straight from the segment files - with a zero-copy transfer for
+ * binary clients or as a buffer of frames to re-encode for the others. A chunk that is started must be sent whole
+ * before any other frame is written to the client. The end of the range is fixed when the replay is created, later
+ * messages reach the client live. The segment being read is acquired, so the retention can't delete its files
+ * before the replay moved past it or was closed.
+ *
+ * @author borislav.draganov
+ */
+
+public class HistoryReplay {
+    private MessageLog log;
+    private String room;
+    private long nextOffset;
+    private long endOffset;
+    private int sent;
+    private long bytesSent;
+
+    // The segment of the current chunk
+    private LogSegment segment;
+    private FileChannel segmentChannel;
+
+    // The chunk in progress is [position, chunkEnd) of the segment
+    private long position;
+    private long chunkEnd;
+
+    public HistoryReplay(MessageLog log, String room, long startOffset, long endOffset) {
+        this.log = log;
+        this.room = room;
+        this.nextOffset = startOffset;
+        this.endOffset = endOffset;
+        this.sent = 0;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Get the number of messages in the chunks taken so far - all of the range once it is complete
+     *
+     * @return - The number of messages
+     */
+    public int getSent() {
+        return sent;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Check if a chunk was started and not sent whole yet
+     *
+     * @return - true if the rest of the chunk must be sent first, false otherwise
+     */
+    public boolean isChunkPending() {
+        return position < chunkEnd;
+    }
+
+    /**
+     * Check if the whole range was sent
+     *
+     * @return - true if there is nothing more to send, false otherwise
+     */
+    public boolean isComplete() {
+        return !isChunkPending() && nextOffset >= endOffset;
+    }
+
+    /**
+     * Send the rest of the current chunk or a new chunk with a zero-copy transfer
+     *
+     * @param target - The channel of the client
+     * @param quantum - The most bytes of a new chunk
+     * @return - true if the chunk is sent whole, false if the channel didn't accept all of it
+     * @throws IOException
+     */
+    public boolean transfer(WritableByteChannel target, int quantum) throws IOException {
+        if (!isChunkPending() && !nextChunk(quantum)) {
+            return true;
+        }
+
+        long written = segmentChannel.transferTo(position, chunkEnd - position, target);
+        position += written;
+        bytesSent += written;
+
+        return !isChunkPending();
+    }
+
+    /**
+     * Take a new chunk as a buffer of whole frames
+     *
+     * @param quantum - The most bytes of the chunk
+     * @return - A read-only buffer with frames, null if the range was sent
+     * @throws IOException
+     */
+    public ByteBuffer nextFrames(int quantum) throws IOException {
+        if (!nextChunk(quantum)) {
+            return null;
+        }
+
+        ByteBuffer frames = ByteBuffer.allocate((int) (chunkEnd - position));
+        while (frames.hasRemaining()) {
+            if (segmentChannel.read(frames, position + frames.position()) < 0) {
+                throw new IOException("Segment " + segment.getFile() + " is shorter than its data");
+            }
+        }
+        frames.flip();
+
+        position = chunkEnd;
+        return frames.asReadOnlyBuffer();
+    }
+
+    /**
+     * Find the frames of the next chunk - at least one frame, more while they fit in the quantum
+     *
+     * @param quantum - The most bytes of the chunk
+     * @return - true if a chunk was found, false if the range was sent
+     * @throws IOException
+     */
+    private boolean nextChunk(int quantum) throws IOException {
+        long expectedOffset = nextOffset;
+        if (nextOffset >= endOffset) {
+            return false;
+        }
+
+        boolean opened = false;
+        if (segment == null || nextOffset >= segment.getEndOffset()) {
+            if (!openSegment()) {
+                return false;
+            }
+            opened = true;
+        }
+
+        // A chunk in the same segment starts where the previous one ended
+        long start = opened || nextOffset != expectedOffset ? segment.position(nextOffset) : chunkEnd;
+        long lastOffset = Math.min(endOffset, segment.getEndOffset());
+        long end = start;
+
+        while (nextOffset < lastOffset) {
+            long frameSize = MessageCodec.LENGTH_SIZE + segment.lengthAt(end);
+            if (end > start && end - start + frameSize > quantum) {
+                break;
+            }
+
+            end += frameSize;
+            nextOffset++;
+            sent++;
+        }
+
+        position = start;
+        chunkEnd = end;
+
+        return true;
+    }
+
+    /**
+     * Acquire the segment with the next message - messages dropped by the retention meanwhile are skipped
+     *
+     * @return - true if the segment is open, false if the rest of the range was dropped
+     * @throws IOException
+     */
+    private boolean openSegment() throws IOException {
+        close();
+
+        LogSegment next;
+        do {
+            nextOffset = Math.max(nextOffset, log.getStartOffset());
+            if (nextOffset >= endOffset) {
+                return false;
+            }
+
+            next = log.segmentFor(nextOffset);
+        } while (next == null || !next.acquire());
+
+        try {
+            segmentChannel = FileChannel.open(next.getFile().toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            next.release();
+            throw e;
+        }
+
+        segment = next;
+        return true;
+    }
+
+    /**
+     * Release the file and the segment being read
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (segment == null) {
+            return;
+        }
+
+        try {
+            segmentChannel.close();
+        } finally {
+            segmentChannel = null;
+            segment.release();
+            segment = null;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.Constants;
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.Opcode;
+import com.sap.course.homework.util.Protocol;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The timer of a connection - closes it when the client went quiet
+ *
+ * A client that doesn't log in is closed after the login timeout, a transfer that makes no progress after the
+ * transfer timeout. A logged in client of the binary protocol gets a PING after a heartbeat interval without a
+ * byte from it and is closed when nothing arrived for the idle timeout - a crashed client or a dropped network
+ * never answers. Text clients have no PING, once logged in they are only closed by TCP. A connection whose request
+ * waits for the file threads is not checked - a continued upload may hash gigabytes before its bytes are read.
+ * The timer doesn't follow the reads - when it fires it looks at the time of the last read and sleeps until the
+ * next deadline, so a busy connection costs one timer per interval. It always runs on the connection's owner.
+ * A timeout of 0 turns the check off. A check that fails closes the connection.
+ *
+ * @author borislav.draganov
+ */
+
+class IdleTimer implements Runnable {
+    private static final long HEARTBEAT_INTERVAL = TimeUnit.SECONDS.toNanos(Constants.HEARTBEAT_INTERVAL_SECONDS);
+    private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(Constants.IDLE_TIMEOUT_SECONDS);
+    private static final long LOGIN_TIMEOUT = TimeUnit.SECONDS.toNanos(Constants.LOGIN_TIMEOUT_SECONDS);
+    private static final long TRANSFER_TIMEOUT = TimeUnit.SECONDS.toNanos(Constants.TRANSFER_TIMEOUT_SECONDS);
+
+    // How often a connection without a deadline looks again, e.g. a text client that may start an upload
+    private static final long RECHECK = shortest(HEARTBEAT_INTERVAL, IDLE_TIMEOUT, LOGIN_TIMEOUT, TRANSFER_TIMEOUT);
+
+    private ProtocolHandler handler;
+    private Connection connection;
+
+    // When the last PING was sent, the client answers with a read after it
+    private long pingNanos;
+
+    IdleTimer(ProtocolHandler handler, Connection connection) {
+        this.handler = handler;
+        this.connection = connection;
+        this.pingNanos = connection.getReadNanos();
+    }
+
+    /**
+     * Start the timer - nothing happens if every timeout is off
+     */
+    void start() {
+        if (RECHECK > 0) {
+            schedule(RECHECK);
+        }
+    }
+
+    private void schedule(long delayNanos) {
+        connection.setIdleTimeout(connection.getOwner().getTimers().schedule(this, delayNanos));
+    }
+
+    @Override
+    public void run() {
+        ConnectionOwner owner = connection.getOwner();
+
+        // Fired by the thread of a shared wheel
+        if (!owner.inOwnerThread()) {
+            owner.execute(this);
+            return;
+        }
+
+        if (connection.isClosed()) {
+            return;
+        }
+
+        long delay;
+        try {
+            delay = check(System.nanoTime());
+        } catch (IOException | RuntimeException e) {
+            // A connection that can't be checked would never be checked again, e.g. a failed PING
+            e.printStackTrace();
+            close();
+            return;
+        }
+
+        if (delay > 0) {
+            schedule(delay);
+        }
+    }
+
+    /**
+     * Close the connection after a failed check
+     */
+    private void close() {
+        try {
+            handler.closeConnection(connection);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Close the connection if it was quiet for too long and send a PING when it's due
+     *
+     * @param now - The current time in nanoseconds
+     * @return - The time until the next check, 0 if the connection was closed
+     * @throws IOException
+     */
+    long check(long now) throws IOException {
+        // Waiting for the file threads, e.g. to hash the received part of a large upload - not quiet
+        if (handler.isWaitingForFiles(connection)) {
+            return RECHECK;
+        }
+
+        long quiet = now - connection.getReadNanos();
+
+        // Stalled transfers - no bytes from the uploading client or none taken by the downloading one
+        if (handler.isUploading(connection) || connection.isDownloading()) {
+            long stalled = connection.isDownloading() ? now - connection.getDownloadNanos() : quiet;
+
+            if (TRANSFER_TIMEOUT > 0 && stalled >= TRANSFER_TIMEOUT) {
+                handler.getMetrics().transferReaped();
+                return reap("transfer stalled");
+            }
+
+            return TRANSFER_TIMEOUT > 0 ? TRANSFER_TIMEOUT - stalled : RECHECK;
+        }
+
+        // Connected but never logged in, e.g. a half-open connection
+        if (connection.getSession() == null) {
+            if (LOGIN_TIMEOUT > 0 && quiet >= LOGIN_TIMEOUT) {
+                handler.getMetrics().loginReaped();
+                return reap("no login");
+            }
+
+            return LOGIN_TIMEOUT > 0 ? LOGIN_TIMEOUT - quiet : RECHECK;
+        }
+
+        if (connection.getProtocol() != Protocol.BINARY) {
+            return RECHECK;
+        }
+
+        if (IDLE_TIMEOUT > 0 && quiet >= IDLE_TIMEOUT) {
+            handler.getMetrics().idleReaped();
+            return reap("no heartbeat");
+        }
+
+        // One PING per quiet period - the answer starts a new one
+        boolean pinged = pingNanos - connection.getReadNanos() > 0;
+        if (HEARTBEAT_INTERVAL > 0 && quiet >= HEARTBEAT_INTERVAL && !pinged) {
+            connection.send(new Message(Opcode.PING));
+            handler.getMetrics().pingSent();
+            pingNanos = now;
+            pinged = true;
+        }
+
+        long next = shortest(IDLE_TIMEOUT > 0 ? IDLE_TIMEOUT - quiet : 0, !pinged ? HEARTBEAT_INTERVAL - quiet : 0);
+        return next > 0 ? next : RECHECK;
+    }
+
+    /**
+     * Close the connection like a failed one - the user is logged out and the upload kept for a resume
+     *
+     * @param reason - Why the connection is closed
+     * @return - 0, no more checks
+     * @throws IOException
+     */
+    private long reap(String reason) throws IOException {
+        System.out.println("Closing quiet connection : " + reason);
+        handler.closeConnection(connection);
+
+        return 0;
+    }
+
+    /**
+     * Get the shortest of a few durations - a duration of 0 or less is ignored
+     *
+     * @param durations - The durations in nanoseconds
+     * @return - The shortest or 0 if none is positive
+     */
+    private static long shortest(long... durations) {
+        long shortest = 0;
+        for (long duration : durations) {
+            if (duration > 0 && (shortest == 0 || duration < shortest)) {
+                shortest = duration;
+            }
+        }
+
+        return shortest;
+    }
+}
@@ -0,0 +1,410 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.Constants;
+import com.sap.course.homework.util.MessageCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed-size file of a message log with the binary wire frames of consecutive messages
+ *
+ * The frames are written through a memory mapping of the whole file - the unused rest stays zero, so the end of the
+ * data is the first zero length. A range of the file is exactly what a binary client receives, so it can be sent
+ * as it is. A sparse index file maps every record that starts at least INDEX_INTERVAL bytes after the previously
+ * indexed one to its position and append time - a lookup is a binary search in the index and a short scan.
+ * Appends are done by a single thread, the size and count are published for readers after the bytes are written.
+ * The files are removed when the log and every reader of the segment released it.
+ *
+ * @author borislav.draganov
+ */
+
+public class LogSegment {
+    public static final String LOG_SUFFIX = ".log";
+    public static final String INDEX_SUFFIX = ".idx";
+
+    // Bytes of frames between two index entries
+    private static final int INDEX_INTERVAL = 4 * 1024;
+
+    // Relative offset (int), position (int), timestamp (long)
+    private static final int INDEX_ENTRY_SIZE = 16;
+
+    private long baseOffset;
+    private File file;
+    private File indexFile;
+    private int capacity;
+
+    // Mapping of the whole file while appending, read-only mapping of the data once needed for a lookup
+    private volatile MappedByteBuffer data;
+    private volatile MappedByteBuffer index;
+    private int indexEntries;
+    private int lastIndexedPosition;
+
+    private volatile int size;
+    private volatile int count;
+    private volatile long lastTimestamp;
+
+    // The log holds one reference until the retention drops the segment, every reader holds another
+    private AtomicInteger references;
+
+    private LogSegment(File dir, long baseOffset, int capacity) {
+        this.baseOffset = baseOffset;
+        this.file = new File(dir, fileName(baseOffset, LOG_SUFFIX));
+        this.indexFile = new File(dir, fileName(baseOffset, INDEX_SUFFIX));
+        this.capacity = capacity;
+        this.references = new AtomicInteger(1);
+    }
+
+    /**
+     * Create an empty segment mapped for appending
+     *
+     * @param dir - The directory of the log
+     * @param baseOffset - The offset of the first message of the segment
+     * @param capacity - The size of the file
+     * @return - The segment
+     * @throws IOException
+     */
+    public static LogSegment create(File dir, long baseOffset, int capacity) throws IOException {
+        LogSegment segment = new LogSegment(dir, baseOffset, capacity);
+        segment.lastTimestamp = System.currentTimeMillis();
+        segment.map(capacity);
+
+        return segment;
+    }
+
+    /**
+     * Open an existing segment - the size and count are recovered from the last index entry
+     *
+     * @param dir - The directory of the log
+     * @param baseOffset - The offset of the first message of the segment
+     * @param active - true to map the segment for further appends
+     * @return - The segment
+     * @throws IOException
+     */
+    public static LogSegment open(File dir, long baseOffset, boolean active) throws IOException {
+        File file = new File(dir, fileName(baseOffset, LOG_SUFFIX));
+
+        LogSegment segment = new LogSegment(dir, baseOffset, (int) file.length());
+        segment.lastTimestamp = file.lastModified();
+        segment.map(segment.capacity);
+        segment.recover();
+
+        // Nothing more is written - the mappings are dropped with the segment
+        if (!active) {
+            segment.data = null;
+            segment.index = null;
+        }
+
+        return segment;
+    }
+
+    /**
+     * Get the file name of a segment - the base offset padded so the names sort as the offsets
+     *
+     * @param baseOffset - The offset of the first message of the segment
+     * @param suffix - The suffix of the file
+     * @return - The name
+     */
+    public static String fileName(long baseOffset, String suffix) {
+        return String.format("%020d%s", baseOffset, suffix);
+    }
+
+    private void map(int capacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            data = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            index = channel.map(FileChannel.MapMode.READ_WRITE, 0, (capacity / INDEX_INTERVAL + 1) * INDEX_ENTRY_SIZE);
+        }
+    }
+
+    /**
+     * Find the end of the data - the used index entries, then the frames after the last one
+     */
+    private void recover() {
+        int maxEntries = index.capacity() / INDEX_ENTRY_SIZE;
+        int relativeOffset = 0;
+        int position = 0;
+
+        // The first entry is always the first record, the following ones are never at position 0
+        indexEntries = 0;
+        while (indexEntries < maxEntries) {
+            int entryPosition = index.getInt(indexEntries * INDEX_ENTRY_SIZE + 4);
+            if (indexEntries > 0 && entryPosition == 0) {
+                break;
+            }
+
+            relativeOffset = index.getInt(indexEntries * INDEX_ENTRY_SIZE);
+            position = entryPosition;
+            indexEntries++;
+        }
+
+        lastIndexedPosition = position;
+
+        int records = indexEntries == 0 ? 0 : relativeOffset;
+        for (int length = frameLength(position); length > 0; length = frameLength(position)) {
+            position += MessageCodec.LENGTH_SIZE + length;
+            records++;
+        }
+
+        // Nothing was appended - the first append writes the first entry
+        if (records == 0) {
+            indexEntries = 0;
+            lastIndexedPosition = 0;
+        }
+
+        size = position;
+        count = records;
+    }
+
+    /**
+     * Read the length of the frame at a position
+     *
+     * @param position - The position in the file
+     * @return - The length after the prefix or 0 if no complete frame starts there
+     */
+    private int frameLength(int position) {
+        if (position + MessageCodec.LENGTH_SIZE > data.limit()) {
+            return 0;
+        }
+
+        int length = data.getInt(position);
+        if (length <= 0 || length > Constants.MAX_FRAME_SIZE || position + MessageCodec.LENGTH_SIZE + length > data.limit()) {
+            return 0;
+        }
+
+        return length;
+    }
+
+    /**
+     * Append a frame if it fits in the segment
+     * The length prefix is written last, so a reader never sees the length of a frame that is not written yet
+     *
+     * @param frame - The frame with its length prefix, the position is not changed
+     * @param timestamp - The time of the append
+     * @return - true if the frame was written, false if the segment is full
+     */
+    public boolean append(ByteBuffer frame, long timestamp) {
+        int length = frame.remaining();
+        int position = size;
+
+        if (position + length > capacity) {
+            return false;
+        }
+
+        if (count == 0 || position - lastIndexedPosition >= INDEX_INTERVAL) {
+            int entry = indexEntries * INDEX_ENTRY_SIZE;
+            index.putInt(entry, count).putInt(entry + 4, position).putLong(entry + 8, timestamp);
+
+            indexEntries++;
+            lastIndexedPosition = position;
+        }
+
+        ByteBuffer target = data.duplicate();
+        target.position(position + MessageCodec.LENGTH_SIZE);
+
+        ByteBuffer body = frame.duplicate();
+        body.position(body.position() + MessageCodec.LENGTH_SIZE);
+        target.put(body);
+        data.putInt(position, frame.getInt(frame.position()));
+
+        lastTimestamp = timestamp;
+        size = position + length;
+        count = count + 1;
+
+        return true;
+    }
+
+    /**
+     * Write the appended bytes to the disk
+     */
+    public void flush() {
+        if (data != null) {
+            data.force();
+            index.force();
+        }
+    }
+
+    /**
+     * Stop appending - the mappings are released by the garbage collector
+     */
+    public void seal() {
+        flush();
+
+        data = null;
+        index = null;
+    }
+
+    /**
+     * Find the position of a message in the file
+     *
+     * @param offset - The offset of the message, between the base offset and the end offset of the segment
+     * @return - The position of its frame, the size of the data if the offset is the end of the segment
+     * @throws IOException
+     */
+    public int position(long offset) throws IOException {
+        // Read the count first - the index entries of the counted records are visible after it
+        int relativeOffset = (int) (offset - baseOffset);
+        if (relativeOffset >= count) {
+            return size;
+        }
+
+        MappedByteBuffer indexView = indexView();
+
+        // The last entry at or before the offset
+        int low = 0;
+        int high = indexEntries - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+
+            if (indexView.getInt(middle * INDEX_ENTRY_SIZE) <= relativeOffset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        int current = indexView.getInt(low * INDEX_ENTRY_SIZE);
+        int position = indexView.getInt(low * INDEX_ENTRY_SIZE + 4);
+
+        MappedByteBuffer dataView = dataView();
+        while (current < relativeOffset) {
+            position += MessageCodec.LENGTH_SIZE + dataView.getInt(position);
+            current++;
+        }
+
+        return position;
+    }
+
+    /**
+     * Find the first indexed message appended at or after a time - an index entry before it may be older
+     *
+     * @param timestamp - The time in milliseconds
+     * @return - The offset of an indexed message at or before the first message after the time
+     * @throws IOException
+     */
+    public long offsetForTime(long timestamp) throws IOException {
+        if (count == 0) {
+            return baseOffset;
+        }
+
+        MappedByteBuffer indexView = indexView();
+
+        // The last entry before the time
+        int found = 0;
+        for (int i = 0; i < indexEntries; i++) {
+            if (indexView.getLong(i * INDEX_ENTRY_SIZE + 8) >= timestamp) {
+                break;
+            }
+            found = i;
+        }
+
+        return baseOffset + indexView.getInt(found * INDEX_ENTRY_SIZE);
+    }
+
+    /**
+     * Read the length prefix of a frame
+     *
+     * @param position - The position of a frame in the file, before the size of the data
+     * @return - The length of the frame after the prefix
+     * @throws IOException
+     */
+    public int lengthAt(long position) throws IOException {
+        return dataView().getInt((int) position);
+    }
+
+    private MappedByteBuffer indexView() throws IOException {
+        MappedByteBuffer view = index;
+
+        if (view == null) {
+            try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                view = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            index = view;
+        }
+
+        return view;
+    }
+
+    private MappedByteBuffer dataView() throws IOException {
+        MappedByteBuffer view = data;
+
+        if (view == null) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                view = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            data = view;
+        }
+
+        return view;
+    }
+
+    /**
+     * Take a reference, so the files are kept until it is released
+     *
+     * @return - true if the reference was taken, false if the segment is already deleted
+     */
+    public boolean acquire() {
+        while (true) {
+            int current = references.get();
+            if (current == 0) {
+                return false;
+            }
+
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back a reference - the files are removed with the last one
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            delete();
+        }
+    }
+
+    /**
+     * Remove the files of the segment
+     */
+    private void delete() {
+        data = null;
+        index = null;
+
+        if (!file.delete() || !indexFile.delete()) {
+            System.err.println("Could not delete segment " + file);
+        }
+    }
+
+    public long getBaseOffset() {
+        return baseOffset;
+    }
+
+    public long getEndOffset() {
+        return baseOffset + count;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+}
@@ -0,0 +1,215 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.Constants;
+import com.sap.course.homework.util.Frame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk history of the chat - a message log per room in its own directory
+ *
+ * The reactors only queue the binary frames of the forwarded messages, so appending never waits for the disk.
+ * A single history thread appends everything that is queued, then flushes the logs it appended to at once -
+ * a group commit of all messages of the batch. If the thread cannot keep up and the queue is full, messages are
+ * left out of the history rather than stalling the chat. The same thread deletes the segments that are out of the
+ * retention.
+ *
+ * @author borislav.draganov
+ */
+
+public class MessageHistory implements Runnable {
+    // Frames written before the logs are flushed
+    private static final int BATCH_SIZE = 1024;
+
+    // The longest time the thread waits for messages
+    private static final long POLL_MILLIS = 1000;
+
+    private File dir;
+    private Map<String, MessageLog> logs;
+    private BlockingQueue<PendingAppend> queue;
+
+    private long retentionMillis;
+    private long maxLogBytes;
+    private long nextRetention;
+
+    // Counters
+    private AtomicLong appended;
+    private AtomicLong dropped;
+
+    public MessageHistory(String path) throws IOException {
+        this.dir = new File(path);
+        this.logs = new ConcurrentHashMap<>();
+        this.queue = new ArrayBlockingQueue<>(Constants.HISTORY_QUEUE_SIZE);
+        this.retentionMillis = TimeUnit.HOURS.toMillis(Constants.HISTORY_RETENTION_HOURS);
+        this.maxLogBytes = Constants.HISTORY_MAX_ROOM_BYTES;
+        this.appended = new AtomicLong(0);
+        this.dropped = new AtomicLong(0);
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+
+        load();
+    }
+
+    /**
+     * Open the logs of every room that has a history
+     *
+     * @throws IOException
+     */
+    private void load() throws IOException {
+        File[] roomDirs = dir.listFiles();
+        if (roomDirs == null) {
+            return;
+        }
+
+        for (File roomDir : roomDirs) {
+            if (roomDir.isDirectory()) {
+                logs.put(URLDecoder.decode(roomDir.getName(), Constants.UTF_ENCODING), new MessageLog(roomDir, Constants.HISTORY_SEGMENT_SIZE));
+            }
+        }
+    }
+
+    /**
+     * Start writing on a daemon thread
+     */
+    public void start() {
+        Thread thread = new Thread(this, "NioChat-history");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a message for the history of a room - never blocks
+     *
+     * @param room - The name of the room
+     * @param frame - The message encoded for the binary protocol, retained by the history until it's written
+     */
+    public void append(String room, Frame frame) {
+        PendingAppend pendingAppend = new PendingAppend(room, frame.retain(), System.currentTimeMillis());
+
+        if (!queue.offer(pendingAppend)) {
+            frame.release();
+
+            if (dropped.incrementAndGet() == 1) {
+                System.err.println("History queue is full - messages are left out of the history");
+            }
+        }
+    }
+
+    /**
+     * Get the log of a room
+     *
+     * @param room - The name of the room
+     * @return - The log or null if nothing was posted in the room
+     */
+    public MessageLog get(String room) {
+        return logs.get(room);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                PendingAppend pendingAppend = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+                for (int i = 0; pendingAppend != null && i < BATCH_SIZE; i++) {
+                    write(pendingAppend);
+                    pendingAppend = i + 1 < BATCH_SIZE ? queue.poll() : null;
+                }
+
+                for (MessageLog log : logs.values()) {
+                    log.flush();
+                }
+
+                applyRetention();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Append a queued message to the log of its room
+     *
+     * @param pendingAppend - The queued message
+     * @throws IOException
+     */
+    private void write(PendingAppend pendingAppend) throws IOException {
+        try {
+            MessageLog log = logs.get(pendingAppend.room);
+
+            if (log == null) {
+                log = new MessageLog(new File(dir, directoryName(pendingAppend.room)), Constants.HISTORY_SEGMENT_SIZE);
+                logs.put(pendingAppend.room, log);
+            }
+
+            log.append(pendingAppend.frame.view(), pendingAppend.timestamp);
+            appended.incrementAndGet();
+        } finally {
+            pendingAppend.frame.release();
+        }
+    }
+
+    /**
+     * Delete the segments out of the retention - checked at most once per poll interval
+     */
+    private void applyRetention() {
+        long now = System.currentTimeMillis();
+        if (now < nextRetention) {
+            return;
+        }
+
+        nextRetention = now + POLL_MILLIS;
+
+        for (MessageLog log : logs.values()) {
+            log.retain(now - retentionMillis, maxLogBytes);
+        }
+    }
+
+    /**
+     * Get the directory name of a room - room names may have characters that are not allowed in file names
+     *
+     * @param room - The name of the room
+     * @return - The encoded name
+     * @throws UnsupportedEncodingException
+     */
+    private static String directoryName(String room) throws UnsupportedEncodingException {
+        return URLEncoder.encode(room, Constants.UTF_ENCODING).replace(".", "%2E").replace("*", "%2A");
+    }
+
+    public long getAppended() {
+        return appended.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * A message waiting to be written
+     */
+    private static class PendingAppend {
+        private String room;
+        private Frame frame;
+        private long timestamp;
+
+        private PendingAppend(String room, Frame frame, long timestamp) {
+            this.room = room;
+            this.frame = frame;
+            this.timestamp = timestamp;
+        }
+    }
+}
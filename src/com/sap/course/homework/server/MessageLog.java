@@ -0,0 +1,224 @@
+package com.sap.course.homework.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The messages of a single room as a sequence of segments - every message has an offset, the number of messages
+ * before it in the room
+ *
+ * Only the last segment is appended to. A full segment is sealed and a new one started at the next offset. The
+ * oldest segments are dropped by the retention, so the log starts at the base offset of its first segment - the
+ * files of a dropped segment stay until the replays reading it are done with it.
+ * Appends, flushes and the retention are done by the history thread, the lookups by any thread.
+ *
+ * @author borislav.draganov
+ */
+
+public class MessageLog {
+    private File dir;
+    private int segmentSize;
+    private ConcurrentNavigableMap<Long, LogSegment> segments;
+    private LogSegment active;
+
+    // Appended since the last flush
+    private boolean dirty;
+
+    public MessageLog(File dir, int segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.segments = new ConcurrentSkipListMap<>();
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+
+        load();
+    }
+
+    /**
+     * Open the existing segments - only the last one is mapped for appending
+     *
+     * @throws IOException
+     */
+    private void load() throws IOException {
+        List<Long> baseOffsets = new ArrayList<>();
+        File[] files = dir.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+
+                if (name.endsWith(LogSegment.LOG_SUFFIX)) {
+                    baseOffsets.add(Long.parseLong(name.substring(0, name.length() - LogSegment.LOG_SUFFIX.length())));
+                }
+            }
+        }
+
+        Collections.sort(baseOffsets);
+        for (int i = 0; i < baseOffsets.size(); i++) {
+            boolean last = i == baseOffsets.size() - 1;
+            LogSegment segment = LogSegment.open(dir, baseOffsets.get(i), last);
+            segments.put(segment.getBaseOffset(), segment);
+
+            if (last) {
+                active = segment;
+            }
+        }
+
+        if (active == null) {
+            active = LogSegment.create(dir, 0, segmentSize);
+            segments.put(active.getBaseOffset(), active);
+        }
+    }
+
+    /**
+     * Append a frame - a full segment is sealed and the frame is written to a new one
+     *
+     * @param frame - The binary frame with its length prefix
+     * @param timestamp - The time of the append
+     * @return - The offset of the message
+     * @throws IOException
+     */
+    public long append(ByteBuffer frame, long timestamp) throws IOException {
+        long offset = active.getEndOffset();
+
+        if (!active.append(frame, timestamp)) {
+            active.seal();
+            active = LogSegment.create(dir, offset, segmentSize);
+            segments.put(offset, active);
+
+            if (!active.append(frame, timestamp)) {
+                throw new IOException("Frame of " + frame.remaining() + " bytes is larger than a segment");
+            }
+        }
+
+        dirty = true;
+        return offset;
+    }
+
+    /**
+     * Write the appended messages to the disk
+     */
+    public void flush() {
+        if (dirty) {
+            active.flush();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Drop the oldest segments that are older than the retention time or over the size limit
+     * The segment being appended to is never dropped, the files of the others are deleted once no replay reads them
+     *
+     * @param minTimestamp - Segments with no message after this time are deleted
+     * @param maxBytes - Segments are deleted until the log is at most this large
+     * @return - The number of dropped segments
+     */
+    public int retain(long minTimestamp, long maxBytes) {
+        long totalBytes = 0;
+        for (LogSegment segment : segments.values()) {
+            totalBytes += segment.getSize();
+        }
+
+        int deleted = 0;
+        for (Map.Entry<Long, LogSegment> entry : segments.entrySet()) {
+            LogSegment segment = entry.getValue();
+
+            if (segment == active || (segment.getLastTimestamp() >= minTimestamp && totalBytes <= maxBytes)) {
+                break;
+            }
+
+            segments.remove(entry.getKey());
+            segment.release();
+
+            totalBytes -= segment.getSize();
+            deleted++;
+        }
+
+        return deleted;
+    }
+
+    /**
+     * Find the segment with a message - it has to be acquired before its files are read
+     *
+     * @param offset - The offset of the message
+     * @return - The segment or null if the message was dropped
+     */
+    public LogSegment segmentFor(long offset) {
+        Map.Entry<Long, LogSegment> entry = segments.floorEntry(offset);
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * Get the segment after the one with the given base offset
+     *
+     * @param segment - A segment of the log
+     * @return - The next segment or null if it is the last one
+     */
+    public LogSegment nextSegment(LogSegment segment) {
+        Map.Entry<Long, LogSegment> entry = segments.higherEntry(segment.getBaseOffset());
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * Find the first message appended at or after a time, or an earlier one at most an index interval before it
+     *
+     * @param timestamp - The time in milliseconds
+     * @return - The offset of the message, the end offset if there is no later message
+     * @throws IOException
+     */
+    public long offsetForTime(long timestamp) throws IOException {
+        for (LogSegment segment : segments.values()) {
+            // A segment dropped meanwhile is skipped for the later ones
+            if (segment.getLastTimestamp() >= timestamp && segment.getCount() > 0 && segment.acquire()) {
+                try {
+                    return segment.offsetForTime(timestamp);
+                } finally {
+                    segment.release();
+                }
+            }
+        }
+
+        return getEndOffset();
+    }
+
+    /**
+     * Get the offset of the oldest message that is still kept
+     *
+     * @return - The offset
+     */
+    public long getStartOffset() {
+        return segments.firstKey();
+    }
+
+    /**
+     * Get the offset the next message will have
+     *
+     * @return - The offset
+     */
+    public long getEndOffset() {
+        return segments.lastEntry().getValue().getEndOffset();
+    }
+
+    /**
+     * Get the number of bytes of all segments
+     *
+     * @return - The size of the kept messages
+     */
+    public long getSize() {
+        long totalBytes = 0;
+        for (LogSegment segment : segments.values()) {
+            totalBytes += segment.getSize();
+        }
+
+        return totalBytes;
+    }
+}
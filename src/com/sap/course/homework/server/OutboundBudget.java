@@ -0,0 +1,130 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.Constants;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bounds of the outbound queues - frames and bytes per connection and the bytes of all connections together
+ *
+ * A client that stopped reading must not grow the server's memory without limit. A chat frame that doesn't fit in
+ * its queue or in the budget of the JVM is handled by the policy (niochat.outbound.policy): the oldest queued chat
+ * frames are dropped for it, every queued chat frame is dropped so the client skips to the latest, or the client is
+ * disconnected with the SLOW_CONSUMER reason. The other frames - answers, reports and pings - are queued past those
+ * bounds, the client asked for them, but not past niochat.outbound.controlFactor times them: a client that keeps
+ * sending without reading its answers is disconnected with SLOW_CONSUMER whatever the policy. The budget is shared by
+ * every server of the JVM, like the buffer pool.
+ *
+ * @author borislav.draganov
+ */
+
+class OutboundBudget {
+    private static final OutboundBudget DEFAULT = new OutboundBudget(Constants.OUTBOUND_MAX_FRAMES,
+            Constants.OUTBOUND_MAX_BYTES, Constants.OUTBOUND_CONTROL_FACTOR, Constants.OUTBOUND_MAX_TOTAL_BYTES);
+
+    /**
+     * What happens to a chat frame that doesn't fit
+     */
+    enum Policy {
+        DROP_OLDEST,
+        SKIP_TO_LATEST,
+        DISCONNECT
+    }
+
+    private Policy policy;
+    private int maxFrames;
+    private long maxBytes;
+    private int controlFactor;
+    private long maxTotalBytes;
+
+    // The bytes queued on every connection
+    private AtomicLong totalBytes;
+
+    OutboundBudget(int maxFrames, long maxBytes, int controlFactor, long maxTotalBytes) {
+        this.policy = Policy.valueOf(Constants.OUTBOUND_POLICY.replace('-', '_').toUpperCase(Locale.ROOT));
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+        this.controlFactor = controlFactor;
+        this.maxTotalBytes = maxTotalBytes;
+        this.totalBytes = new AtomicLong(0);
+    }
+
+    /**
+     * Get the budget of the JVM
+     *
+     * @return - The shared budget
+     */
+    static OutboundBudget getDefault() {
+        return DEFAULT;
+    }
+
+    Policy getPolicy() {
+        return policy;
+    }
+
+    long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Check if a chat frame fits in a queue
+     * The frame always fits in an empty queue, even if it's larger than niochat.outbound.maxBytes - otherwise a
+     * bound below the size of the longest frame would drop every long message, even to a client that reads them all
+     *
+     * @param frames - The frames in the queue with the new one
+     * @param bytes - The bytes in the queue with the new frame
+     * @return - true if the queue is within the bounds, false otherwise
+     */
+    boolean fits(int frames, long bytes) {
+        return frames == 1 || frames <= maxFrames && bytes <= maxBytes;
+    }
+
+    /**
+     * Check if a queue is past the hard bounds of the frames that are always queued
+     *
+     * @param frames - The frames in the queue
+     * @param bytes - The bytes in the queue
+     * @return - true if the client has to be disconnected, false otherwise
+     */
+    boolean isOverfilled(int frames, long bytes) {
+        return frames > (long) maxFrames * controlFactor || bytes > maxBytes * controlFactor;
+    }
+
+    /**
+     * Take bytes of the budget if there are enough left
+     *
+     * @param bytes - The size of a frame
+     * @return - true if the bytes were taken, false otherwise
+     */
+    boolean tryReserve(long bytes) {
+        while (true) {
+            long current = totalBytes.get();
+            if (current + bytes > maxTotalBytes) {
+                return false;
+            }
+
+            if (totalBytes.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Take bytes of the budget even if it's spent - for the frames that are always queued
+     *
+     * @param bytes - The size of a frame
+     */
+    void reserve(long bytes) {
+        totalBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Give back the bytes of a frame that was written or dropped
+     *
+     * @param bytes - The size of the frame
+     */
+    void release(long bytes) {
+        totalBytes.addAndGet(-bytes);
+    }
+}
@@ -0,0 +1,1043 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.domain.User;
+import com.sap.course.homework.util.*;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The chat protocol of the server, shared by its engines
+ *
+ * An engine reads from the clients and writes their queues on its threads, the handler decides what every message
+ * means - logins, rooms, history, files. A connection is only ever handled by its owner's thread, the registries
+ * are shared by all of them.
+ * Passwords are checked by a separate pool of threads, so slow hashing never holds an owner. Every request of the
+ * file store runs on another one - continuing an upload hashes what was received, announcing it may copy the stored
+ * content, finishing it syncs and moves the file and even opening a download waits for the disk.
+ * Every message passes the rate limits of its connection and address before it's handled.
+ *
+ * @author borislav.draganov
+ */
+
+public class ProtocolHandler {
+    // A page of names must fit in a frame with up to 3 bytes per character
+    private static final int MAX_LIST_CHARS = (Constants.MAX_FRAME_SIZE - 4 * 1024) / 3;
+
+    // Logged in users
+    private SessionRegistry sessions;
+
+    // Counters and latencies, published over JMX
+    private ServerMetrics metrics;
+
+    // Messages, bytes and logins per connection and address
+    private RateLimiter limiter;
+
+    // Valid users and the threads that check their passwords
+    private CredentialStore credentials;
+    private ExecutorService authExecutor;
+
+    // Chat rooms and their members
+    private RoomRegistry rooms;
+
+    // Every message forwarded to a room
+    private MessageHistory history;
+
+    // Uploaded files, the uploads in progress and the threads that open and finish them
+    private FileStore fileStore;
+    private FileCatalog fileCatalog;
+    private Map<Connection, Upload> uploads;
+    private ExecutorService fileExecutor;
+
+    // The connections whose request waits for the file threads
+    private Set<Connection> fileRequests;
+
+    public ProtocolHandler() throws IOException {
+        this(Constants.SERVER_FILE_DIR, Constants.HISTORY_DIR, Constants.USERS_FILE);
+    }
+
+    /**
+     * Create a handler of other directories than the default ones
+     *
+     * @param fileDir - The directory of the uploaded files
+     * @param historyDir - The directory of the room histories
+     * @param usersFile - The file of the valid users
+     * @throws IOException
+     */
+    ProtocolHandler(String fileDir, String historyDir, String usersFile) throws IOException {
+        sessions = new SessionRegistry();
+        metrics = new ServerMetrics(sessions);
+        limiter = new RateLimiter(metrics);
+        authExecutor = Executors.newFixedThreadPool(Constants.AUTH_THREADS, new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "NioChat-auth-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        rooms = new RoomRegistry();
+        uploads = new ConcurrentHashMap<>();
+        fileRequests = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+        fileExecutor = Executors.newFixedThreadPool(Constants.FILE_THREADS, new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "NioChat-files-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        fileStore = new FileStore(fileDir);
+        fileCatalog = new FileCatalog(fileDir);
+        history = new MessageHistory(historyDir);
+        credentials = new CredentialStore(usersFile);
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Start the background work - the file catalog, the history, the metrics and the rate limits
+     *
+     * @param port - The port of the server, part of the metrics' name
+     */
+    public void start(int port) {
+        fileCatalog.start();
+        history.start();
+        metrics.start(port, Constants.METRICS_INTERVAL_SECONDS);
+        limiter.start();
+    }
+
+    /**
+     * Start watching a new connection for a client that went quiet and limit its rates - called by its owner
+     *
+     * @param connection - The connection of the client
+     * @param remoteAddress - The address of the client, shares the limits of the address
+     */
+    public void connectionOpened(Connection connection, SocketAddress remoteAddress) {
+        connection.setLimits(limiter.open(remoteAddress));
+        new IdleTimer(this, connection).start();
+    }
+
+    /**
+     * Check if the bytes of a connection are an uploaded file
+     *
+     * @param connection - The connection of the client
+     * @return - true if an upload is in progress, false otherwise
+     */
+    boolean isUploading(Connection connection) {
+        return uploads.containsKey(connection);
+    }
+
+    /**
+     * Check if a connection waits for its request to the file store, e.g. an upload that hashes what was received
+     *
+     * @param connection - The connection of the client
+     * @return - true if the file threads have the request, false otherwise
+     */
+    boolean isWaitingForFiles(Connection connection) {
+        return fileRequests.contains(connection);
+    }
+
+    /**
+     * Hand a request of a connection to the file threads - the connection is not quiet meanwhile
+     *
+     * @param connection - The connection of the client
+     * @param task - The request
+     */
+    private void requestFiles(Connection connection, Runnable task) {
+        fileRequests.add(connection);
+        fileExecutor.execute(task);
+    }
+
+    /**
+     * Forget the request of a connection to the file threads - called by its owner with the result
+     * The time of the wait doesn't count as quiet
+     *
+     * @param connection - The connection of the client
+     */
+    private void filesAnswered(Connection connection) {
+        fileRequests.remove(connection);
+        connection.setReadNanos(System.nanoTime());
+    }
+
+    /**
+     * Read what a client sent with a single read call - file bytes of an upload go straight to the file
+     * A blocking channel waits until there is something to read
+     *
+     * @param connection - The connection of the client
+     * @return - The number of bytes read or -1 if the client has closed the connection
+     * @throws IOException
+     */
+    public int read(Connection connection) throws IOException {
+        ReadableByteChannel channel = connection.getInput();
+
+        // Download file
+        Upload upload = uploads.get(connection);
+        if (upload != null) {
+            return upload.receive(channel);
+        }
+
+        return connection.getFrameDecoder().read(channel);
+    }
+
+    /**
+     * Handle what a read call returned - save the state of an upload or handle the complete messages
+     *
+     * @param connection - The connection of the client
+     * @param read - The result of the read call
+     * @throws IOException
+     */
+    public void handleRead(Connection connection, int read) throws IOException {
+        // The client has closed the connection
+        if (read < 0) {
+            closeConnection(connection);
+            return;
+        }
+
+        // Any byte tells that the client is alive, the time is also the start of a fan-out
+        long now = System.nanoTime();
+        connection.setReadNanos(now);
+
+        Upload upload = uploads.get(connection);
+        if (upload != null) {
+            metrics.fileReceived(read);
+            uploadProgress(connection, upload);
+            return;
+        }
+
+        metrics.received(read);
+        limiter.received(connection.getLimits(), read, now);
+
+        handleMessages(connection);
+    }
+
+    /**
+     * Handle every complete message that was read on a channel
+     * Stops early when the connection waits for a login, the rate limit or an upload to be opened
+     *
+     * @param connection - The connection of the client
+     * @throws IOException
+     */
+    private void handleMessages(Connection connection) throws IOException {
+        FrameDecoder frameDecoder = connection.getFrameDecoder();
+        RateLimiter.Limits limits = connection.getLimits();
+
+        // The rest of the bytes are the beginning of an uploaded file
+        Upload upload = uploads.get(connection);
+        if (upload != null) {
+            metrics.fileReceived(upload.write(frameDecoder.drain()));
+            uploadProgress(connection, upload);
+            return;
+        }
+
+        // A message held back by the rate limit goes first
+        Message first = limits.getDelayed();
+        limits.setDelayed(null);
+
+        for (Message message = first != null ? first : frameDecoder.nextMessage(); message != null; message = frameDecoder.nextMessage()) {
+            if (admit(connection, message)) {
+                handleMessage(connection, message);
+            }
+
+            // The channel was closed while handling the message
+            if (connection.isClosed()) {
+                closeConnection(connection);
+                break;
+            }
+
+            // The next messages may depend on the login, the bytes after an upload's header are the file
+            if (connection.isReadsSuspended()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Check a message against the rate limits - a message over them is delayed, dropped or closes the connection
+     *
+     * @param connection - The connection of the client
+     * @param message - The received message
+     * @return - true if the message can be handled now, false otherwise
+     * @throws IOException
+     */
+    private boolean admit(final Connection connection, Message message) throws IOException {
+        long wait = limiter.admit(connection.getLimits(), message.getOpcode(), System.nanoTime());
+        if (wait == 0) {
+            return true;
+        }
+
+        switch (limiter.getPolicy()) {
+            // The message and the ones after it wait for the tokens, the client's socket buffer fills meanwhile
+            case DELAY:
+                connection.getLimits().setDelayed(message);
+                connection.suspendReads();
+                connection.getOwner().getTimers().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        ConnectionOwner owner = connection.getOwner();
+
+                        // Fired by the thread of a shared wheel
+                        if (!owner.inOwnerThread()) {
+                            owner.execute(this);
+                            return;
+                        }
+
+                        if (!connection.isClosed()) {
+                            continueReading(connection);
+                        }
+                    }
+                }, wait);
+                break;
+
+            case REJECT:
+                connection.send(new Message(Opcode.RATE_LIMITED, (int) message.getOpcode().getCode()));
+                break;
+
+            // The messages after it are not handled while the owner closes the connection
+            case DISCONNECT:
+                System.out.println("Closing connection over the rate limit : " + message.getOpcode());
+                connection.suspendReads();
+                connection.disconnect(DisconnectReason.RATE_LIMIT);
+                break;
+        }
+
+        return false;
+    }
+
+    /**
+     * Save the state of an upload after received bytes - finish it when its range is complete
+     *
+     * @param connection - The connection of the transfer
+     * @param upload - The upload in progress
+     * @throws IOException
+     */
+    private void uploadProgress(Connection connection, Upload upload) throws IOException {
+        if (!upload.isRangeComplete()) {
+            fileStore.checkpoint(upload);
+        } else {
+            uploads.remove(connection);
+            metrics.transferEnded();
+
+            // Nothing is read until the file is stored and the connection is closed
+            connection.suspendReads();
+            finishUpload(connection, upload);
+        }
+    }
+
+    /**
+     * Handle a single message received on a channel
+     *
+     * @param connection - The connection of the client
+     * @param message - The received message
+     * @throws IOException
+     */
+    private void handleMessage(Connection connection, Message message) throws IOException {
+        metrics.receivedFrame();
+
+        switch (message.getOpcode()) {
+            // The client speaks the binary protocol
+            case HANDSHAKE:
+                if (message.getInt(0) != MessageCodec.PROTOCOL_VERSION) {
+                    throw new ProtocolException("Unsupported protocol version " + message.getInt(0));
+                }
+
+                connection.acceptHandshake();
+                break;
+
+            // Optional protocol features
+            case CAPABILITIES:
+                connection.acceptCapabilities(message.getInt(0));
+                break;
+
+            // User credentials
+            case LOGIN:
+                User user = new User(message.getString(0), message.getString(1));
+                System.out.println("Handling new user : " + user.getUsername());
+
+                // Already logged in or the username is in use - no need to check the password
+                if (connection.getSession() != null || sessions.isLoggedIn(user.getUsername())) {
+                    metrics.loginFailed();
+                    connection.send(new Message(Opcode.INVALID_USER));
+                    break;
+                }
+
+                // The following messages wait for the result of the password check
+                connection.suspendReads();
+                authenticate(connection, user);
+                break;
+
+            // The answer to a PING - the read already told that the client is alive
+            case PONG:
+                break;
+
+            // Disconnect the user
+            case DISCONNECT:
+                logout(connection);
+                break;
+
+            // Receive a range of a file
+            case FILE_UPLOAD:
+                System.out.println("Receiving file");
+
+                // The bytes after the header wait until the upload is open
+                connection.suspendReads();
+                openUpload(connection, message);
+                break;
+
+            // Upload of a file with known content - nothing is sent if the server has the content
+            case FILE_ANNOUNCE:
+            // How much of an upload the server has
+            case FILE_STATUS:
+                // The next messages may depend on the answer
+                connection.suspendReads();
+                checkFile(connection, message);
+                break;
+
+            // Send a range of a file
+            case FILE_DOWNLOAD:
+                // The next messages wait until the file is open
+                connection.suspendReads();
+                openDownload(connection, message);
+                break;
+
+            // List a page of the uploaded files
+            case FILE_LIST:
+                String prefix = message.getString(0);
+                int limit = message.getInt(2);
+                int maxChars = MAX_LIST_CHARS;
+
+                // Text clients can't ask for the next page - they get the whole listing
+                if (connection.getProtocol() == Protocol.TEXT) {
+                    limit = Integer.MAX_VALUE;
+                    maxChars = Integer.MAX_VALUE;
+                } else if (limit <= 0 || limit > Constants.FILE_LIST_PAGE_SIZE) {
+                    limit = Constants.FILE_LIST_PAGE_SIZE;
+                }
+
+                List<String> names = fileCatalog.list(prefix, message.getString(1), limit, maxChars);
+
+                // The last name of the page is where the next page starts
+                String next = "";
+                if (!names.isEmpty() && fileCatalog.hasMore(prefix, names.get(names.size() - 1))) {
+                    next = names.get(names.size() - 1);
+                }
+
+                connection.send(new Message(Opcode.FILE_LIST_RESULT, names, next));
+                break;
+
+            // Forward the message to the lobby
+            case CHAT:
+                // Get the user to exclude
+                Session currentSession = connection.getSession();
+
+                // Not logged in - nobody to send it as
+                if (currentSession != null) {
+                    forwardMsg(RoomRegistry.LOBBY, message.getString(0), currentSession);
+                }
+                break;
+
+            // Forward the message to a room of the user
+            case ROOM_POST:
+                Session poster = connection.getSession();
+
+                if (poster != null) {
+                    forwardMsg(message.getString(0), message.getString(1), poster);
+                }
+                break;
+
+            // Earlier messages of a room - the end is reported with HISTORY_END
+            case HISTORY:
+                Session reader = connection.getSession();
+                String historyRoom = message.getString(0).isEmpty() ? RoomRegistry.LOBBY : message.getString(0);
+
+                if (reader != null) {
+                    replayHistory(connection, reader, historyRoom, message.getInt(1), message.getLong(2));
+                }
+                break;
+
+            // Send the message to a single user
+            case DIRECT:
+                Session sender = connection.getSession();
+
+                if (sender != null) {
+                    sendDirect(message.getString(0), message.getString(1), sender);
+                }
+                break;
+
+            // Become a member of a room
+            case ROOM_JOIN:
+                Session joiningSession = connection.getSession();
+                String joinedRoom = message.getString(0);
+
+                if (joiningSession != null && RoomRegistry.isValidName(joinedRoom)) {
+                    Room room = rooms.join(joiningSession.getUsername(), connection, joinedRoom);
+                    connection.send(new Message(Opcode.ROOM_INFO, joinedRoom, room.getMemberCount()));
+                } else {
+                    connection.send(new Message(Opcode.ROOM_INFO, joinedRoom, 0));
+                }
+                break;
+
+            // Stop being a member of a room
+            case ROOM_LEAVE:
+                Session leavingSession = connection.getSession();
+                String leftRoom = message.getString(0);
+                int remaining = 0;
+
+                if (leavingSession != null) {
+                    remaining = rooms.leave(leavingSession.getUsername(), connection, leftRoom);
+                }
+
+                connection.send(new Message(Opcode.ROOM_INFO, leftRoom, remaining));
+                break;
+
+            default:
+                throw new ProtocolException("Unexpected message " + message.getOpcode());
+        }
+    }
+
+    /**
+     * Close a client channel and forget everything known about it
+     *
+     * @param connection - The connection of the client
+     * @throws IOException
+     */
+    public void closeConnection(Connection connection) throws IOException {
+        logout(connection);
+        limiter.close(connection.getLimits());
+        fileRequests.remove(connection);
+
+        // Keep the received part of an interrupted upload
+        Upload upload = uploads.remove(connection);
+        try {
+            if (upload != null) {
+                metrics.transferEnded();
+                abortUpload(upload);
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Forget the user logged in on a connection - the user stays a member of the rooms
+     *
+     * @param connection - The connection of the user
+     */
+    private void logout(Connection connection) {
+        Session session = connection.getSession();
+
+        if (session != null) {
+            rooms.offline(session.getUsername(), connection);
+            sessions.logout(session);
+        }
+    }
+
+    /**
+     * Open an upload on the file threads and continue with its bytes on the connection's owner
+     *
+     * @param connection - The connection of the transfer
+     * @param message - The FILE_UPLOAD header
+     */
+    private void openUpload(final Connection connection, final Message message) {
+        requestFiles(connection, new Runnable() {
+            @Override
+            public void run() {
+                Upload upload = null;
+                Exception failure = null;
+
+                try {
+                    upload = fileStore.openUpload(message.getString(0), message.getLong(1), message.getLong(2), message.getLong(3));
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                }
+
+                final Upload opened = upload;
+                final Exception error = failure;
+                connection.getOwner().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        uploadOpened(connection, opened, error);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Start receiving the bytes of an opened upload - called by the connection's owner
+     *
+     * @param connection - The connection of the transfer
+     * @param upload - The upload, null if it couldn't be opened
+     * @param failure - Why it couldn't be opened, null if it's open
+     */
+    private void uploadOpened(Connection connection, Upload upload, Exception failure) {
+        filesAnswered(connection);
+
+        // Closed meanwhile - keep what the upload has
+        if (connection.isClosed()) {
+            if (upload != null) {
+                abortUpload(upload);
+            }
+            return;
+        }
+
+        if (upload == null) {
+            failure.printStackTrace();
+
+            try {
+                closeConnection(connection);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        uploads.put(connection, upload);
+        metrics.transferStarted();
+        continueReading(connection);
+    }
+
+    /**
+     * Store a complete range of an upload on the file threads and close its connection on the connection's owner
+     *
+     * @param connection - The connection of the transfer
+     * @param upload - The upload whose range was received
+     */
+    private void finishUpload(final Connection connection, final Upload upload) {
+        fileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fileStore.finishUpload(upload);
+                    fileCatalog.refresh(upload.getName());
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+
+                connection.getOwner().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            closeConnection(connection);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Open a downloaded file on the file threads and start sending it on the connection's owner
+     *
+     * @param connection - The connection of the transfer
+     * @param message - The FILE_DOWNLOAD request
+     */
+    private void openDownload(final Connection connection, final Message message) {
+        requestFiles(connection, new Runnable() {
+            @Override
+            public void run() {
+                Message header = null;
+                FileChannelWrapper download = null;
+                Exception failure = null;
+
+                try {
+                    File requestedFile = fileStore.resolve(message.getString(0));
+
+                    if (requestedFile != null) {
+                        FileChannel downloadChannel = new FileInputStream(requestedFile).getChannel();
+                        long size = downloadChannel.size();
+
+                        // A negative length or one past the end of the file means the rest of the file
+                        long offset = Math.min(Math.max(message.getLong(1), 0), size);
+                        long length = message.getLong(2);
+                        if (length < 0 || length > size - offset) {
+                            length = size - offset;
+                        }
+
+                        header = new Message(Opcode.FILE_UPLOAD, requestedFile.getName(), size, offset, length);
+                        download = new FileChannelWrapper(offset + length, downloadChannel, offset);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                }
+
+                final Message opened = header;
+                final FileChannelWrapper channel = download;
+                final Exception error = failure;
+                connection.getOwner().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        downloadOpened(connection, message.getString(0), opened, channel, error);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Send the header and then the range of an opened file, or tell that there is no such file
+     * Called by the connection's owner
+     *
+     * @param connection - The connection of the transfer
+     * @param name - The requested name
+     * @param header - The FILE_UPLOAD header of the range, null if the file wasn't found
+     * @param download - The range of the open file, null if the file wasn't found
+     * @param failure - Why the file couldn't be opened, null if it was or there is no such file
+     */
+    private void downloadOpened(Connection connection, String name, Message header, FileChannelWrapper download,
+                                Exception failure) {
+        filesAnswered(connection);
+
+        try {
+            // Closed meanwhile - nobody reads the file
+            if (connection.isClosed()) {
+                if (download != null) {
+                    download.getFileChannel().close();
+                }
+                return;
+            }
+
+            if (failure == null) {
+                if (download != null) {
+                    System.out.println("Server sending file");
+
+                    // Header first, then the range is sent by the owner as the client reads it
+                    connection.send(header);
+                    connection.startDownload(download);
+                } else {
+                    connection.send(new Message(Opcode.FILE_NOT_FOUND, name));
+                }
+
+                connection.closeWhenFlushed();
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        if (failure != null) {
+            failure.printStackTrace();
+
+            try {
+                closeConnection(connection);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        continueReading(connection);
+    }
+
+    /**
+     * Announce an upload or read its state on the file threads and answer on the connection's owner
+     * Linking the content of an announced upload may copy a whole file
+     *
+     * @param connection - The connection of the client
+     * @param message - The FILE_ANNOUNCE or FILE_STATUS request
+     */
+    private void checkFile(final Connection connection, final Message message) {
+        requestFiles(connection, new Runnable() {
+            @Override
+            public void run() {
+                String name = message.getString(0);
+                long[] state = null;
+                Exception failure = null;
+
+                try {
+                    if (message.getOpcode() == Opcode.FILE_ANNOUNCE) {
+                        state = fileStore.announce(name, message.getLong(1), message.getString(2));
+                        fileCatalog.refresh(name);
+                    } else {
+                        state = fileStore.status(name);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                }
+
+                final long[] result = state;
+                final Exception error = failure;
+                connection.getOwner().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        fileChecked(connection, message.getString(0), result, error);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Send the state of an upload and continue with the next messages - called by the connection's owner
+     *
+     * @param connection - The connection of the client
+     * @param name - The name of the file
+     * @param state - The total size and the received bytes, null if they couldn't be read
+     * @param failure - Why they couldn't be read, null if they were
+     */
+    private void fileChecked(Connection connection, String name, long[] state, Exception failure) {
+        filesAnswered(connection);
+
+        if (connection.isClosed()) {
+            return;
+        }
+
+        if (state == null) {
+            failure.printStackTrace();
+
+            try {
+                closeConnection(connection);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        connection.send(new Message(Opcode.FILE_STATUS_RESULT, name, state[0], state[1]));
+        continueReading(connection);
+    }
+
+    /**
+     * Keep what was received of an interrupted upload - saved by the file threads
+     *
+     * @param upload - The upload
+     */
+    private void abortUpload(final Upload upload) {
+        fileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fileStore.abortUpload(upload);
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Check the password of a user on the authentication threads and finish the login on the connection's owner
+     *
+     * @param connection - The connection of the user
+     * @param user - The user requesting login
+     */
+    private void authenticate(final Connection connection, final User user) {
+        authExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean valid = false;
+
+                try {
+                    valid = credentials.authenticate(user.getUsername(), user.getPassword());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+
+                final boolean result = valid;
+                connection.getOwner().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        completeLogin(connection, user, result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Log the user in if the password was valid and continue with the messages received after the login
+     * Called by the connection's owner
+     *
+     * @param connection - The connection of the user
+     * @param user - The user requesting login
+     * @param valid - The result of the password check
+     */
+    private void completeLogin(Connection connection, User user, boolean valid) {
+        if (connection.isClosed()) {
+            return;
+        }
+
+        // The same user may log in on another thread at the same time
+        Session session = valid ? sessions.login(user, connection) : null;
+
+        if (session != null) {
+            metrics.loggedIn();
+            rooms.online(user.getUsername(), connection);
+        }
+        // If not - reject the socket
+        else {
+            metrics.loginFailed();
+            connection.send(new Message(Opcode.INVALID_USER));
+        }
+
+        continueReading(connection);
+    }
+
+    /**
+     * Read from the connection again and handle the messages that were received meanwhile - called by its owner
+     *
+     * @param connection - The connection of the client
+     */
+    private void continueReading(Connection connection) {
+        connection.resumeReads();
+
+        try {
+            handleMessages(connection);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+
+            try {
+                closeConnection(connection);
+            } catch (IOException e1) {
+                e1.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Forward the message to the online members of a room except the sender
+     * Messages of the lobby are sent as plain messages, every forwarded message is kept in the history of the room
+     *
+     * @param roomName - The name of the room
+     * @param msg - Message to send
+     * @param sender - The session of the sender, excluded from the receivers
+     * @throws IOException
+     */
+    private void forwardMsg(String roomName, String msg, Session sender) throws IOException {
+        //System.out.println("forwardMsg");
+        int count = 0;
+        Connection senderConnection = sender.getConnection();
+
+        // Only members can post
+        Room room = rooms.get(roomName);
+        if (room == null || !room.isMember(sender.getUsername())) {
+            senderConnection.send(new Message(Opcode.ROOM_INFO, roomName, 0));
+            return;
+        }
+
+        // Encode the message once per protocol - every receiver queues the same bytes
+        Message message;
+        if (roomName.equals(RoomRegistry.LOBBY)) {
+            message = new Message(Opcode.MESSAGE, sender.getUsername(), msg, System.currentTimeMillis());
+        } else {
+            message = new Message(Opcode.ROOM_MESSAGE, roomName, sender.getUsername(), msg, System.currentTimeMillis());
+        }
+
+        // The name of the sender comes on top of the received text - a frame that doesn't fit is never forwarded
+        MessageCodec.checkSize(message);
+
+        Frame[] frames = new Frame[Protocol.values().length];
+
+        // Measured from the read of the message until the last receiver has it written
+        FanOut fanOut = new FanOut(senderConnection.getReadNanos(), metrics.getFanOut());
+
+        // The history keeps the binary frame
+        int binary = Protocol.BINARY.ordinal();
+        frames[binary] = Frame.encode(message, Protocol.BINARY);
+        frames[binary].setFanOut(fanOut);
+        history.append(roomName, frames[binary]);
+
+        // Forward the message to the other members
+        for (Connection connection : room.getOnline()) {
+            if (connection == senderConnection) {
+                continue;
+            }
+
+            int protocol = connection.getProtocol().ordinal();
+            if (frames[protocol] == null) {
+                frames[protocol] = Frame.encode(message, connection.getProtocol());
+                frames[protocol].setFanOut(fanOut);
+            }
+
+            // A receiver that doesn't keep up may drop it
+            if (connection.enqueueChat(frames[protocol])) {
+                count++;
+            }
+        }
+        fanOut.done();
+
+        for (Frame frame : frames) {
+            if (frame != null) {
+                frame.release();
+            }
+        }
+
+        // Send a status to the user
+        senderConnection.send(new Message(Opcode.DELIVERY_REPORT, count));
+    }
+
+    /**
+     * Stream the history of a room to a member - the last messages, the messages since a time or both
+     * The messages since a time may start with a few older ones, the time index is sparse
+     *
+     * @param connection - The connection of the member
+     * @param reader - The session of the member
+     * @param roomName - The name of the room
+     * @param count - The most messages to send, 0 for no limit
+     * @param since - The time of the oldest message in milliseconds, 0 for no limit
+     * @throws IOException
+     */
+    private void replayHistory(Connection connection, Session reader, String roomName, int count, long since) throws IOException {
+        // Only members can read
+        Room room = rooms.get(roomName);
+        if (room == null || !room.isMember(reader.getUsername())) {
+            connection.send(new Message(Opcode.ROOM_INFO, roomName, 0));
+            return;
+        }
+
+        MessageLog log = history.get(roomName);
+        long start = log == null ? 0 : log.getStartOffset();
+        long end = log == null ? 0 : log.getEndOffset();
+
+        if (count > 0) {
+            start = Math.max(start, end - count);
+        }
+        if (since > 0 && log != null) {
+            start = Math.max(start, log.offsetForTime(since));
+        }
+
+        if (start >= end) {
+            connection.send(new Message(Opcode.HISTORY_END, roomName, 0));
+        } else {
+            connection.startReplay(new HistoryReplay(log, roomName, start, end));
+        }
+    }
+
+    /**
+     * Send a message only to its receiver - the sender gets a delivery report with 0 if the receiver is offline
+     *
+     * @param username - The name of the receiver
+     * @param msg - Message to send
+     * @param sender - The session of the sender
+     * @throws ProtocolException - If the message doesn't fit a frame
+     */
+    private void sendDirect(String username, String msg, Session sender) throws ProtocolException {
+        Session receiver = sessions.get(username);
+
+        if (receiver != null) {
+            Message message = new Message(Opcode.DIRECT_MESSAGE, sender.getUsername(), msg, System.currentTimeMillis());
+
+            // The name of the sender replaces the name of the receiver, it may be longer
+            MessageCodec.checkSize(message);
+            receiver.getConnection().send(message);
+        }
+
+        sender.getConnection().send(new Message(Opcode.DELIVERY_REPORT, receiver != null ? 1 : 0));
+    }
+}
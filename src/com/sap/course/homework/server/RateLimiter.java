@@ -0,0 +1,297 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.Constants;
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.Opcode;
+import com.sap.course.homework.util.TokenBucket;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * The rate limits of the clients - messages and bytes per second and login attempts per minute
+ *
+ * Every connection has token buckets of its own, the connections of an address share another set. The buckets are
+ * lock-free, so the owners of the connections check them without waiting for each other. What happens to a message
+ * over the limit is the policy (niochat.limit.policy) - it's delayed until the buckets have tokens, dropped with a
+ * RATE_LIMITED answer or its connection is closed. Received bytes are taken when they are read, an overdrawn bytes
+ * bucket holds back the next message. A limit of 0 turns it off, the limits of an address are off by default - the
+ * clients behind a NAT or a load test share one address.
+ *
+ * @author borislav.draganov
+ */
+
+class RateLimiter {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * What happens to a message over the limit
+     */
+    enum Policy {
+        DELAY,
+        REJECT,
+        DISCONNECT
+    }
+
+    private Policy policy;
+    private ServerMetrics metrics;
+
+    // The limits of the addresses with connections or without a full bucket
+    private ConcurrentMap<InetAddress, AddressLimits> addresses;
+    private boolean addressLimited;
+
+    RateLimiter(ServerMetrics metrics) {
+        this.policy = Policy.valueOf(Constants.LIMIT_POLICY.toUpperCase(Locale.ROOT));
+        this.metrics = metrics;
+        this.addresses = new ConcurrentHashMap<>();
+        this.addressLimited = Constants.LIMIT_IP_MESSAGES_PER_SECOND > 0 || Constants.LIMIT_IP_BYTES_PER_SECOND > 0
+                || Constants.LIMIT_IP_LOGINS_PER_MINUTE > 0;
+    }
+
+    Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Start forgetting the addresses without connections once their buckets are full again
+     */
+    void start() {
+        if (!addressLimited) {
+            return;
+        }
+
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "NioChat-limits");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+
+                for (Map.Entry<InetAddress, AddressLimits> entry : addresses.entrySet()) {
+                    release(entry.getKey(), now);
+                }
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Create the limits of a new connection
+     *
+     * @param remote - The address of the client, null if it's not known
+     * @return - The limits
+     */
+    Limits open(SocketAddress remote) {
+        AddressLimits address = null;
+
+        if (addressLimited && remote instanceof InetSocketAddress) {
+            InetAddress inetAddress = ((InetSocketAddress) remote).getAddress();
+
+            // Counted while the sweeper can't remove it
+            address = addresses.compute(inetAddress, new BiFunction<InetAddress, AddressLimits, AddressLimits>() {
+                @Override
+                public AddressLimits apply(InetAddress key, AddressLimits current) {
+                    AddressLimits limits = current != null ? current : new AddressLimits(key);
+                    limits.connections.incrementAndGet();
+                    return limits;
+                }
+            });
+        }
+
+        return new Limits(address);
+    }
+
+    /**
+     * Forget the limits of a closed connection - the limits of its address stay until their buckets are full
+     *
+     * @param limits - The limits of the connection, may be closed already
+     */
+    void close(Limits limits) {
+        if (limits == null || limits.closed) {
+            return;
+        }
+
+        limits.closed = true;
+        limits.delayed = null;
+
+        if (limits.address != null) {
+            limits.address.connections.decrementAndGet();
+            release(limits.address.inetAddress, System.nanoTime());
+        }
+    }
+
+    /**
+     * Remove the limits of an address if nobody uses them and they are the same as new ones
+     *
+     * @param inetAddress - The address
+     * @param now - The current time from System.nanoTime
+     */
+    private void release(InetAddress inetAddress, final long now) {
+        addresses.computeIfPresent(inetAddress, new BiFunction<InetAddress, AddressLimits, AddressLimits>() {
+            @Override
+            public AddressLimits apply(InetAddress key, AddressLimits current) {
+                return current.connections.get() == 0 && current.isFull(now) ? null : current;
+            }
+        });
+    }
+
+    /**
+     * Take the bytes read from a connection - they are already read, so the buckets may be overdrawn
+     *
+     * @param limits - The limits of the connection
+     * @param bytes - The number of bytes
+     * @param now - The current time from System.nanoTime
+     */
+    void received(Limits limits, long bytes, long now) {
+        acquire(limits.bytes, bytes, now);
+
+        if (limits.address != null) {
+            acquire(limits.address.bytes, bytes, now);
+        }
+    }
+
+    /**
+     * Check a received message against the limits and take its tokens if it's allowed
+     * The answers to the server and the end of the connection are never limited
+     *
+     * @param limits - The limits of the connection
+     * @param opcode - The opcode of the message
+     * @param now - The current time from System.nanoTime
+     * @return - 0 if the message is allowed, otherwise the nanoseconds until it would be
+     */
+    long admit(Limits limits, Opcode opcode, long now) {
+        switch (opcode) {
+            case HANDSHAKE:
+            case CAPABILITIES:
+            case PONG:
+            case DISCONNECT:
+                return 0;
+        }
+
+        AddressLimits address = limits.address;
+
+        long wait = Math.max(debt(limits.bytes, now), address != null ? debt(address.bytes, now) : 0);
+        if (wait > 0) {
+            metrics.bytesLimited();
+            return wait;
+        }
+
+        if (opcode == Opcode.LOGIN) {
+            wait = tryAcquire(limits.logins, address != null ? address.logins : null, now);
+            if (wait > 0) {
+                metrics.loginLimited();
+            }
+        } else {
+            wait = tryAcquire(limits.messages, address != null ? address.messages : null, now);
+            if (wait > 0) {
+                metrics.messageLimited();
+            }
+        }
+
+        return wait;
+    }
+
+    /**
+     * Take a token of a connection's bucket and of its address' - neither is taken unless both have one
+     *
+     * @return - 0 if the tokens were taken, otherwise the nanoseconds until they can be
+     */
+    private static long tryAcquire(TokenBucket own, TokenBucket shared, long now) {
+        long wait = own != null ? own.tryAcquire(1, now) : 0;
+        if (wait > 0 || shared == null) {
+            return wait;
+        }
+
+        wait = shared.tryAcquire(1, now);
+        if (wait > 0 && own != null) {
+            own.release(1);
+        }
+
+        return wait;
+    }
+
+    private static void acquire(TokenBucket bucket, long tokens, long now) {
+        if (bucket != null) {
+            bucket.acquire(tokens, now);
+        }
+    }
+
+    private static long debt(TokenBucket bucket, long now) {
+        return bucket != null ? bucket.getDebt(now) : 0;
+    }
+
+    private static TokenBucket bucket(int tokens, long period) {
+        return tokens > 0 ? new TokenBucket(tokens, period) : null;
+    }
+
+    /**
+     * The limits of a connection, only used by its owner - a null bucket is no limit
+     */
+    static class Limits {
+        private TokenBucket messages;
+        private TokenBucket bytes;
+        private TokenBucket logins;
+        private AddressLimits address;
+
+        // The message that waits for the buckets under the delay policy
+        private Message delayed;
+        private boolean closed;
+
+        private Limits(AddressLimits address) {
+            this.messages = bucket(Constants.LIMIT_MESSAGES_PER_SECOND, SECOND);
+            this.bytes = bucket(Constants.LIMIT_BYTES_PER_SECOND, SECOND);
+            this.logins = bucket(Constants.LIMIT_LOGINS_PER_MINUTE, MINUTE);
+            this.address = address;
+        }
+
+        Message getDelayed() {
+            return delayed;
+        }
+
+        void setDelayed(Message delayed) {
+            this.delayed = delayed;
+        }
+    }
+
+    /**
+     * The limits shared by the connections of an address
+     */
+    private static class AddressLimits {
+        private TokenBucket messages;
+        private TokenBucket bytes;
+        private TokenBucket logins;
+        private InetAddress inetAddress;
+        private AtomicInteger connections;
+
+        private AddressLimits(InetAddress inetAddress) {
+            this.inetAddress = inetAddress;
+            this.messages = bucket(Constants.LIMIT_IP_MESSAGES_PER_SECOND, SECOND);
+            this.bytes = bucket(Constants.LIMIT_IP_BYTES_PER_SECOND, SECOND);
+            this.logins = bucket(Constants.LIMIT_IP_LOGINS_PER_MINUTE, MINUTE);
+            this.connections = new AtomicInteger(0);
+        }
+
+        private boolean isFull(long now) {
+            return (messages == null || messages.isFull(now)) && (bytes == null || bytes.isFull(now))
+                    && (logins == null || logins.isFull(now));
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.Constants;
+import com.sap.course.homework.util.TimingWheel;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector loop running on its own thread - owns the channels registered with its selector
+ *
+ * Other threads never touch the selector directly - they hand over new channels, connections with pending
+ * writes and tasks on the reactor's channels through lock-free queues and wake the selector up.
+ * The timers of the connections are advanced between two selects, the select waits at most a tick while there
+ * are any.
+ *
+ * @author borislav.draganov
+ */
+
+public class Reactor implements Runnable, ConnectionOwner {
+    private Server server;
+    private ServerMetrics metrics;
+    private String name;
+    private Selector selector;
+    private volatile Thread thread;
+
+    // Work handed over by other threads
+    private Queue<SocketChannel> pendingChannels;
+    private Queue<Connection> pendingFlushes;
+    private Queue<Runnable> pendingTasks;
+    private AtomicBoolean wakenUp;
+
+    private AtomicInteger connectionCount;
+
+    // Fire on the reactor's thread
+    private TimingWheel timers;
+
+    public Reactor(Server server, ServerMetrics metrics, String name) throws IOException {
+        this.server = server;
+        this.metrics = metrics;
+        this.name = name;
+        this.selector = Selector.open();
+        this.pendingChannels = new ConcurrentLinkedQueue<>();
+        this.pendingFlushes = new ConcurrentLinkedQueue<>();
+        this.pendingTasks = new ConcurrentLinkedQueue<>();
+        this.wakenUp = new AtomicBoolean(false);
+        this.connectionCount = new AtomicInteger(0);
+        this.timers = new TimingWheel(Constants.TIMER_TICK_MILLIS, Constants.TIMER_WHEEL_SIZE);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Start the selector loop on a new thread
+     */
+    public void start() {
+        Thread reactorThread = new Thread(this, name);
+        reactorThread.start();
+    }
+
+    /**
+     * Check if the caller runs on this reactor's thread
+     *
+     * @return - true if called from the selector loop, false otherwise
+     */
+    @Override
+    public boolean inOwnerThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Hand over an accepted channel - it will be registered by the reactor's own thread
+     *
+     * @param socketChannel - The accepted channel
+     * @throws IOException
+     */
+    public void register(SocketChannel socketChannel) throws IOException {
+        connectionCount.incrementAndGet();
+
+        if (inOwnerThread()) {
+            registerChannel(socketChannel);
+        } else {
+            pendingChannels.add(socketChannel);
+            wakeup();
+        }
+    }
+
+    /**
+     * Ask the reactor to start writing the queue of a connection it owns
+     *
+     * @param connection - The connection with new outbound data
+     */
+    @Override
+    public void requestFlush(Connection connection) {
+        pendingFlushes.add(connection);
+        wakeup();
+    }
+
+    /**
+     * Run a task on the reactor's thread, e.g. to continue with a result computed by another thread
+     *
+     * @param task - The task
+     */
+    @Override
+    public void execute(Runnable task) {
+        pendingTasks.add(task);
+        wakeup();
+    }
+
+    /**
+     * Close a connection on the reactor's thread - the queue is written once more, as far as the socket takes it
+     *
+     * @param connection - The connection
+     */
+    @Override
+    public void disconnect(final Connection connection) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connection.flush();
+                } catch (IOException e) {
+                    // The client is gone, there is nothing to tell it
+                }
+
+                server.closeConnection(connection);
+            }
+        });
+    }
+
+    /**
+     * Called when a connection owned by this reactor is closed
+     */
+    @Override
+    public void connectionClosed() {
+        connectionCount.decrementAndGet();
+        metrics.connectionClosed();
+    }
+
+    @Override
+    public TimingWheel getTimers() {
+        return timers;
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+
+        while (true) {
+            try {
+                wakenUp.set(false);
+
+                processPendingWork();
+
+                // Get ready channels - wake up for the timers only while there are any
+                int readyChannels = timers.isEmpty() ? selector.select() : selector.select(timers.getTickMillis());
+                timers.advance(System.nanoTime());
+                if (readyChannels == 0) { continue; }
+
+                long iterationStart = System.nanoTime();
+
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+
+                // Handle Events
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        server.accept(key);
+                    } else {
+                        server.handleKey(key);
+                    }
+                }
+
+                metrics.getSelectLoop().record(System.nanoTime() - iterationStart);
+            } catch (IOException | RuntimeException e) {
+                // The loop must not end - the server keeps assigning new clients to this reactor
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Register the channels, enable writes and run the tasks handed over by other threads
+     * A failure of one of them doesn't keep the others from running
+     */
+    private void processPendingWork() {
+        for (SocketChannel socketChannel = pendingChannels.poll(); socketChannel != null; socketChannel = pendingChannels.poll()) {
+            registerChannel(socketChannel);
+        }
+
+        for (Connection connection = pendingFlushes.poll(); connection != null; connection = pendingFlushes.poll()) {
+            try {
+                connection.flushRequested();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                server.closeConnection(connection);
+            }
+        }
+
+        for (Runnable task = pendingTasks.poll(); task != null; task = pendingTasks.poll()) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Register a client channel with the selector - the channel is closed if that fails
+     *
+     * @param socketChannel - The channel to register
+     */
+    private void registerChannel(SocketChannel socketChannel) {
+        Connection connection = null;
+
+        try {
+            SocketAddress remoteAddress = socketChannel.getRemoteAddress();
+            socketChannel.configureBlocking(false);
+            SelectionKey clientKey = socketChannel.register(selector, SelectionKey.OP_READ);
+
+            connection = new Connection(this, socketChannel, clientKey);
+            clientKey.attach(connection);
+            server.connectionOpened(connection, remoteAddress);
+        } catch (ClosedChannelException e) {
+            connectionClosed();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+
+            if (connection != null) {
+                server.closeConnection(connection);
+                return;
+            }
+
+            try {
+                socketChannel.close();
+            } catch (IOException e1) {
+                e1.printStackTrace();
+            }
+            connectionClosed();
+        }
+    }
+
+    /**
+     * Wake the selector up unless a wakeup is already pending
+     */
+    private void wakeup() {
+        if (!inOwnerThread() && wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+}
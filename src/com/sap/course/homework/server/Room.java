@@ -0,0 +1,70 @@
+package com.sap.course.homework.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * A named chat room - its members and the connections of the members that are online
+ *
+ * Membership belongs to the user name, so it's kept while the user is offline. The online connections are in a
+ * copy-on-write set: joins and logins are rare compared to posts, and a post iterates a snapshot without locking.
+ *
+ * @author borislav.draganov
+ */
+
+public class Room {
+    private String name;
+    private Set<String> members;
+    private Set<Connection> online;
+
+    public Room(String name) {
+        this.name = name;
+        this.members = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.online = new CopyOnWriteArraySet<>();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Check if a user is a member, online or not
+     *
+     * @param username - The name of the user
+     * @return - true if the user is a member, false otherwise
+     */
+    public boolean isMember(String username) {
+        return members.contains(username);
+    }
+
+    public int getMemberCount() {
+        return members.size();
+    }
+
+    /**
+     * Get the connections a post is delivered to
+     *
+     * @return - The connections of the online members
+     */
+    public Set<Connection> getOnline() {
+        return online;
+    }
+
+    boolean addMember(String username) {
+        return members.add(username);
+    }
+
+    boolean removeMember(String username) {
+        return members.remove(username);
+    }
+
+    void addOnline(Connection connection) {
+        online.add(connection);
+    }
+
+    void removeOnline(Connection connection) {
+        online.remove(connection);
+    }
+}
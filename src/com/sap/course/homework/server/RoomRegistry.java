@@ -0,0 +1,167 @@
+package com.sap.course.homework.server;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the chat rooms by name and of the rooms of every user
+ *
+ * A user joins the lobby with the first login. Every room the user is a member of gets the user's connection on
+ * login and loses it on logout, so a reconnected user is back in the same rooms. Changes of membership are
+ * serialized on the registry, posts only read the room they go to.
+ *
+ * @author borislav.draganov
+ */
+
+public class RoomRegistry {
+    public static final String LOBBY = "lobby";
+    private static final int MAX_NAME_LENGTH = 64;
+
+    private Map<String, Room> rooms;
+    private Map<String, Set<String>> memberships;
+
+    public RoomRegistry() {
+        this.rooms = new ConcurrentHashMap<>();
+        this.memberships = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Check if a name can be used for a room
+     *
+     * @param name - The name of the room
+     * @return - true if the name is valid, false otherwise
+     */
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isWhitespace(name.charAt(i)) || Character.isISOControl(name.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Find a room
+     *
+     * @param name - The name of the room
+     * @return - The room or null if it has no members
+     */
+    public Room get(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * Add a user to a room, the room is created with its first member
+     *
+     * @param username - The name of the user
+     * @param connection - The connection of the user or null if the user is offline
+     * @param name - The name of the room
+     * @return - The room
+     */
+    public synchronized Room join(String username, Connection connection, String name) {
+        Room room = rooms.get(name);
+        if (room == null) {
+            room = new Room(name);
+            rooms.put(name, room);
+        }
+
+        if (room.addMember(username)) {
+            roomsOf(username).add(name);
+        }
+
+        if (connection != null) {
+            room.addOnline(connection);
+        }
+
+        return room;
+    }
+
+    /**
+     * Remove a user from a room, the room is removed with its last member
+     *
+     * @param username - The name of the user
+     * @param connection - The connection of the user
+     * @param name - The name of the room
+     * @return - The number of members left in the room
+     */
+    public synchronized int leave(String username, Connection connection, String name) {
+        Room room = rooms.get(name);
+        if (room == null) {
+            return 0;
+        }
+
+        room.removeOnline(connection);
+        if (room.removeMember(username)) {
+            roomsOf(username).remove(name);
+        }
+
+        if (room.getMemberCount() == 0) {
+            rooms.remove(name);
+        }
+
+        return room.getMemberCount();
+    }
+
+    /**
+     * Put a logged in user's connection in every room of the user
+     *
+     * @param username - The name of the user
+     * @param connection - The connection of the user
+     */
+    public synchronized void online(String username, Connection connection) {
+        // The first login - everybody starts in the lobby
+        if (!memberships.containsKey(username)) {
+            join(username, connection, LOBBY);
+            return;
+        }
+
+        for (String name : roomsOf(username)) {
+            rooms.get(name).addOnline(connection);
+        }
+    }
+
+    /**
+     * Take a user's connection out of every room - the user stays a member
+     *
+     * @param username - The name of the user
+     * @param connection - The connection of the user
+     */
+    public synchronized void offline(String username, Connection connection) {
+        for (String name : roomsOf(username)) {
+            rooms.get(name).removeOnline(connection);
+        }
+    }
+
+    /**
+     * Get the names of the rooms of a user
+     *
+     * @param username - The name of the user
+     * @return - A copy of the names
+     */
+    public synchronized Set<String> getRooms(String username) {
+        Set<String> names = memberships.get(username);
+        if (names == null) {
+            return Collections.emptySet();
+        }
+
+        return Collections.unmodifiableSet(new HashSet<>(names));
+    }
+
+    private Set<String> roomsOf(String username) {
+        Set<String> names = memberships.get(username);
+        if (names == null) {
+            names = new HashSet<>();
+            memberships.put(username, names);
+        }
+
+        return names;
+    }
+}
@@ -1,42 +1,47 @@
 package com.sap.course.homework.server;
 
-import com.sap.course.homework.domain.User;
-import com.sap.course.homework.util.*;
+import com.sap.course.homework.util.Constants;
 
-import java.io.*;
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.channels.*;
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 /**
- * Server Side
+ * Server Side - the selector engine
+ *
+ * One acceptor reactor hands the accepted channels to a pool of worker reactors, each with its own selector and
+ * thread. Without workers the acceptor handles the clients as well.
+ * The messages are handled by the protocol handler on the reactor that owns the connection.
  *
  * @author borislav.draganov
  */
 
 public class Server implements Runnable {
     private ServerSocketChannel serverSocketChannel;
-    private Selector selector;
-
-    // Container for connected users
-    private Map<User, SocketChannel> connectedUsers;
-    private Map<SocketChannel, User> connectedChannels;
+    private int port;
 
-    // Valid users
-    private Map<String, String> registeredUsers;
+    // Selector loops
+    private Reactor acceptor;
+    private Reactor[] workers;
+    private int nextWorker;
 
-    private Map<SelectionKey, FileChannelWrapper> fileTransferChannels;
+    // Logins, rooms, history and files
+    private ProtocolHandler handler;
 
     public Server(int port) {
-        connectedUsers = new ConcurrentHashMap<>();
-        connectedChannels = new ConcurrentHashMap<>();
-        registeredUsers = new ConcurrentHashMap<>();
-        fileTransferChannels = new ConcurrentHashMap<>();
+        this(port, Constants.WORKER_REACTORS);
+    }
+
+    public Server(int port, int workerCount) {
+        this.port = port;
 
         try {
+            handler = new ProtocolHandler();
+            initReactors(workerCount);
             initServer(port);
-            loadUsers();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -56,265 +61,123 @@ public class Server implements Runnable {
         serverSocketChannel.configureBlocking(false);
 
         // Register Selector
-        selector = Selector.open();
-        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-    }
-
-    @Override
-    public void run() {
-        while (true) {
-            try {
-                // Get ready channels
-                int readyChannels = selector.select();
-                if (readyChannels == 0) { continue; }
-
-                Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-
-                // Handle Events
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-
-                    // New Client
-                    if (key.isAcceptable()) {
-                        System.out.println("New Client Accepted");
-                        ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
-                        serverSocketChannel.configureBlocking(false);
-
-                        SocketChannel socketChannel = serverSocketChannel.accept();
-                        socketChannel.configureBlocking(false);
-                        socketChannel.register(selector, SelectionKey.OP_READ);
-                    }
-                    // Client has sent data
-                    else if (key.isReadable()) {
-                        handleMsg(key);
-                    }
-
-                    keyIterator.remove();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        serverSocketChannel.register(acceptor.getSelector(), SelectionKey.OP_ACCEPT);
     }
 
     /**
-     * Check a message if its a system message with user credentials
+     * Create the acceptor and the worker reactors
      *
-     * @param data - The message to be checked
-     * @return - User object if credentials were given or null if not credentials
+     * @param workerCount - The number of worker reactors, 0 to handle everything on the acceptor
      * @throws IOException
      */
-    private User checkMsgForCredentials(String data) throws IOException {
-        if (data.matches(".*:.*")) {
-            String[] credentials = data.split(":");
-            return new User(credentials[0], credentials[1]);
+    private void initReactors(int workerCount) throws IOException {
+        acceptor = new Reactor(this, handler.getMetrics(), "NioChat-acceptor");
+
+        workers = new Reactor[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Reactor(this, handler.getMetrics(), "NioChat-worker-" + i);
         }
 
-        return null;
+        nextWorker = 0;
+    }
+
+    @Override
+    public void run() {
+        handler.start(port);
+
+        for (Reactor worker : workers) {
+            worker.start();
+        }
+
+        acceptor.run();
     }
 
     /**
-     * Handle a received message on a channel
+     * Accept a new client and hand it over to the least loaded reactor
      *
-     * @param key - The SelectionKey
+     * @param key - The SelectionKey of the server socket channel
      * @throws IOException
      */
-    private void handleMsg(SelectionKey key) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-
-        // Download file
-        if (fileTransferChannels.containsKey(key)) {
-            FileChannelWrapper fileChannelWrapper = fileTransferChannels.get(key);
-
-            ChannelHandler.saveFile(key, fileChannelWrapper);
-
-            if (!fileChannelWrapper.getFileChannel().isOpen()) {
-                fileTransferChannels.remove(key);
-            }
-        } else {
-            // Read data
-            String msg = ChannelHandler.readMsg(socketChannel);
-            System.out.println("Received data : " + msg);
-
-            // Check if the data was user credentials
-            User user = checkMsgForCredentials(msg);
-            if (user != null) {
-                System.out.println("Handling new user : " + user);
-
-                // Check if valid login
-                if (isValidLogin(user)) {
-                    connectedUsers.put(user, socketChannel);
-                    connectedChannels.put(socketChannel, user);
-                }
-                // If not - reject the socket
-                else {
-                    ChannelHandler.sendCommand(socketChannel, SystemCommand.INVALID_USER);
-                }
-            }
-            // Check if the message is a system command
-            else if (SystemCommand.isCommand(msg)) {
-                // Disconnect the user
-                if (msg.contains(SystemCommand.DISCONNECT.getCommand())) {
-                    User userToDisconnect = connectedChannels.get(socketChannel);
-
-                    connectedChannels.remove(socketChannel);
-                    connectedUsers.remove(userToDisconnect);
-                }
-                // Receive file
-                else if (msg.contains(SystemCommand.FILE_UPLOAD.getCommand())) {
-                    String[] data = msg.split("-");
-
-                    File file = new File(Constants.SERVER_FILE_DIR + data[1]);
-
-                    file.createNewFile();
+    public void accept(SelectionKey key) throws IOException {
+        ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
 
-                    FileOutputStream fileOutputStream = new FileOutputStream(file);
-                    FileChannel fileChannel = fileOutputStream.getChannel();
+        SocketChannel socketChannel = serverSocketChannel.accept();
+        if (socketChannel == null) { return; }
 
-                    System.out.println("Receiving file");
-                    fileTransferChannels.put(key, new FileChannelWrapper(Integer.parseInt(data[2]), fileChannel));
-                }
-                // Send file
-                else if (msg.contains(SystemCommand.FILE_DOWNLOAD.getCommand())) {
-                    String[] data = msg.split("-");
-
-                    File file = new File(Constants.SERVER_FILE_DIR + data[1]);
-
-                    if (file.exists()) {
-                        System.out.println("Server sending file");
-                        ChannelHandler.sendFile(file, socketChannel);
-                    } else {
-                        ChannelHandler.sendCommand(socketChannel, SystemCommand.FILE_NOT_FOUND);
-                        socketChannel.close();
-                        key.cancel();
-                    }
-                }
-            }
-            // Check for user commands
-            else if (UserCommand.isCommand(msg)) {
-                File dir = new File(Constants.SERVER_FILE_DIR);
-                File[] files = dir.listFiles();
-
-                for (File file : files) {
-                    ChannelHandler.sendMsg(socketChannel, file.getName());
-                }
-            }
-            // If not - forward the message
-            else {
-                // Get the user to exclude
-                User currentUser = connectedChannels.get(socketChannel);
-
-                forwardMsg(msg, currentUser);
-            }
-        }
+        System.out.println("New Client Accepted");
+        handler.getMetrics().accepted();
+        nextReactor().register(socketChannel);
     }
 
     /**
-     * Check if the user is allowed to be logged in
+     * Pick the reactor for a new client - the one with the fewest connections, ties are taken in turns
      *
-     * @param user - The user requesting login
-     * @return - true if the user is permitted, false otherwise
+     * @return - The reactor that will own the new client
      */
-    private boolean isValidLogin(User user) throws IOException {
-        // Register user
-        if (!registeredUsers.containsKey(user.getUsername())) {
-            String password = user.getPassword();
-            if (password == null || password == "") { return false; } // Can't register without a password
-
-            registeredUsers.put(user.getUsername(), password);
-            registerUser(user);
-
-            return true;
-        }
-
-        // First check if the credentials are valid
-        String pass = registeredUsers.get(user.getUsername());
-        if (!pass.equals(user.getPassword())) {
-            return false;
+    private Reactor nextReactor() {
+        if (workers.length == 0) {
+            return acceptor;
         }
 
-        // Then check if the user is not already logged in
-        Set<User> users = connectedUsers.keySet();
-        String username = user.getUsername();
+        Reactor selected = null;
+        for (int i = 0; i < workers.length; i++) {
+            Reactor worker = workers[(nextWorker + i) % workers.length];
 
-        // Deny access if the username is in use
-        for (User connectedUser : users) {
-            if (connectedUser.getUsername().equals(username)) {
-                return false;
+            if (selected == null || worker.getConnectionCount() < selected.getConnectionCount()) {
+                selected = worker;
             }
         }
 
-        // All clear
-        return true;
+        nextWorker = (nextWorker + 1) % workers.length;
+
+        return selected;
     }
 
     /**
-     * Forward the message to everybody except the selected user
+     * Start the timer and the rate limits of a connection registered by a reactor
      *
-     * @param msg - Message to send
-     * @param excludedUser - The user to exclude
-     * @throws IOException
+     * @param connection - The new connection
+     * @param remoteAddress - The address of the client
      */
-    private void forwardMsg(String msg, User excludedUser) throws IOException {
-        //System.out.println("forwardMsg");
-        Set<User> keySet = connectedUsers.keySet();
-        int count = 0;
-
-        // Forward the message to everyone else
-        for (User user : keySet) {
-            if (user.equals(excludedUser)) {
-                continue;
-            }
-
-            SocketChannel socketChannel = connectedUsers.get(user);
-
-            ChannelHandler.sendMsg(socketChannel, excludedUser.getUsername() + ": " + msg);
-            count++;
-        }
-
-        // Send a status to the user
-        SocketChannel socketChannel = connectedUsers.get(excludedUser);
-        ChannelHandler.sendMsg(socketChannel, String.format(Constants.MESSAGE_SENT_TO_USERS, count));
+    public void connectionOpened(Connection connection, SocketAddress remoteAddress) {
+        handler.connectionOpened(connection, remoteAddress);
     }
 
     /**
-     * Load the list of valid users in the memory
-     * The list is in format user:pass
+     * Handle the events on a client channel
+     *
+     * @param key - The SelectionKey of the client
      */
-    private void loadUsers() throws IOException {
-        File usersFile = new File("users.txt");
-        if (!usersFile.exists()) {
-            usersFile.createNewFile();
-        }
+    public void handleKey(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
 
-        FileInputStream is = new FileInputStream(usersFile);
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(is));
-
-        for (String line = bufferedReader.readLine(); line != null; line = bufferedReader.readLine()) {
-            String[] pair = line.split(":");
+        try {
+            // Client has sent data
+            if (key.isReadable()) {
+                handler.handleRead(connection, handler.read(connection));
+            }
 
-            registeredUsers.put(pair[0], pair[1]);
+            // Client is ready to receive queued messages
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Only this connection fails, the reactor goes on with the other keys
+            e.printStackTrace();
+            closeConnection(connection);
         }
     }
 
     /**
-     * Register a new user
+     * Close a connection like a failed one - the user is logged out
      *
-     * @param user - The to be registered
-     * @throws IOException
+     * @param connection - The connection
      */
-    private void registerUser(User user) throws IOException {
-        File usersFile = new File("users.txt");
-        if (!usersFile.exists()) {
-            usersFile.createNewFile();
+    public void closeConnection(Connection connection) {
+        try {
+            handler.closeConnection(connection);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
         }
-
-        FileOutputStream is = new FileOutputStream(usersFile, true);
-        BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(is));
-
-        bufferedWriter.write(user.getUsername() + ":" + user.getPassword());
-        bufferedWriter.newLine();
-        bufferedWriter.flush();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,443 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.LatencyHistogram;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a server
+ *
+ * The reactors record with LongAdder increments and lock-free histograms, so recording never contends between
+ * reactors. A daemon thread turns the counters into rates once per interval and prints a line with all of them.
+ * The same values are published as the MBean NioChat:type=Server,port=<port>.
+ *
+ * @author borislav.draganov
+ */
+
+public class ServerMetrics implements ServerMetricsMBean {
+    private static final long NANOS_PER_MICRO = 1000;
+
+    private SessionRegistry sessions;
+
+    // Counters
+    private LongAdder accepts;
+    private LongAdder closes;
+    private LongAdder logins;
+    private LongAdder loginFailures;
+    private LongAdder bytesIn;
+    private LongAdder bytesOut;
+    private LongAdder framesIn;
+    private LongAdder framesOut;
+    private LongAdder activeTransfers;
+    private LongAdder fileBytesIn;
+    private LongAdder fileBytesOut;
+    private LongAdder pings;
+    private LongAdder reapedLogins;
+    private LongAdder reapedTransfers;
+    private LongAdder reapedIdle;
+    private LongAdder limitedMessages;
+    private LongAdder limitedBytes;
+    private LongAdder limitedLogins;
+    private LongAdder droppedFrames;
+    private LongAdder slowConsumers;
+
+    // Durations in nanoseconds
+    private LatencyHistogram selectLoop;
+    private LatencyHistogram fanOut;
+
+    // Rates of the last interval and the totals they were computed from
+    private volatile double acceptRate;
+    private volatile double loginRate;
+    private volatile double loginFailureRate;
+    private volatile double fileThroughput;
+    private long lastReport;
+    private long lastAccepts;
+    private long lastLogins;
+    private long lastLoginFailures;
+    private long lastFileBytes;
+
+    public ServerMetrics(SessionRegistry sessions) {
+        this.sessions = sessions;
+
+        this.accepts = new LongAdder();
+        this.closes = new LongAdder();
+        this.logins = new LongAdder();
+        this.loginFailures = new LongAdder();
+        this.bytesIn = new LongAdder();
+        this.bytesOut = new LongAdder();
+        this.framesIn = new LongAdder();
+        this.framesOut = new LongAdder();
+        this.activeTransfers = new LongAdder();
+        this.fileBytesIn = new LongAdder();
+        this.fileBytesOut = new LongAdder();
+        this.pings = new LongAdder();
+        this.reapedLogins = new LongAdder();
+        this.reapedTransfers = new LongAdder();
+        this.reapedIdle = new LongAdder();
+        this.limitedMessages = new LongAdder();
+        this.limitedBytes = new LongAdder();
+        this.limitedLogins = new LongAdder();
+        this.droppedFrames = new LongAdder();
+        this.slowConsumers = new LongAdder();
+
+        this.selectLoop = new LatencyHistogram();
+        this.fanOut = new LatencyHistogram();
+
+        this.lastReport = System.nanoTime();
+    }
+
+    /**
+     * Publish the MBean and start reporting on a daemon thread
+     *
+     * @param port - The port of the server, part of the MBean name
+     * @param intervalSeconds - Seconds between two reports, 0 for no reports
+     */
+    public void start(int port, int intervalSeconds) {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            mBeanServer.registerMBean(this, new ObjectName("NioChat:type=Server,port=" + port));
+        } catch (JMException e) {
+            System.err.println("Metrics are not published over JMX : " + e);
+        }
+
+        if (intervalSeconds <= 0) {
+            return;
+        }
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "NioChat-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report();
+                System.out.println(dump());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Compute the rates since the previous report
+     */
+    synchronized void report() {
+        long now = System.nanoTime();
+        double seconds = (now - lastReport) / (double) TimeUnit.SECONDS.toNanos(1);
+
+        long currentAccepts = accepts.sum();
+        long currentLogins = logins.sum();
+        long currentLoginFailures = loginFailures.sum();
+        long currentFileBytes = fileBytesIn.sum() + fileBytesOut.sum();
+
+        acceptRate = (currentAccepts - lastAccepts) / seconds;
+        loginRate = (currentLogins - lastLogins) / seconds;
+        loginFailureRate = (currentLoginFailures - lastLoginFailures) / seconds;
+        fileThroughput = (currentFileBytes - lastFileBytes) / seconds;
+
+        lastReport = now;
+        lastAccepts = currentAccepts;
+        lastLogins = currentLogins;
+        lastLoginFailures = currentLoginFailures;
+        lastFileBytes = currentFileBytes;
+    }
+
+    // Recording
+
+    public void accepted() {
+        accepts.increment();
+    }
+
+    public void connectionClosed() {
+        closes.increment();
+    }
+
+    public void loggedIn() {
+        logins.increment();
+    }
+
+    public void loginFailed() {
+        loginFailures.increment();
+    }
+
+    public void received(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void receivedFrame() {
+        framesIn.increment();
+    }
+
+    public void sent(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public void sentFrame() {
+        framesOut.increment();
+    }
+
+    public void transferStarted() {
+        activeTransfers.increment();
+    }
+
+    public void transferEnded() {
+        activeTransfers.decrement();
+    }
+
+    public void fileReceived(long bytes) {
+        fileBytesIn.add(bytes);
+    }
+
+    public void fileSent(long bytes) {
+        fileBytesOut.add(bytes);
+    }
+
+    public void pingSent() {
+        pings.increment();
+    }
+
+    public void loginReaped() {
+        reapedLogins.increment();
+    }
+
+    public void transferReaped() {
+        reapedTransfers.increment();
+    }
+
+    public void idleReaped() {
+        reapedIdle.increment();
+    }
+
+    public void messageLimited() {
+        limitedMessages.increment();
+    }
+
+    public void bytesLimited() {
+        limitedBytes.increment();
+    }
+
+    public void loginLimited() {
+        limitedLogins.increment();
+    }
+
+    public void frameDropped() {
+        droppedFrames.increment();
+    }
+
+    public void slowConsumerDisconnected() {
+        slowConsumers.increment();
+    }
+
+    public LatencyHistogram getSelectLoop() {
+        return selectLoop;
+    }
+
+    public LatencyHistogram getFanOut() {
+        return fanOut;
+    }
+
+    // MBean
+
+    @Override
+    public int getSessions() {
+        return sessions.size();
+    }
+
+    @Override
+    public int getConnections() {
+        return (int) (accepts.sum() - closes.sum());
+    }
+
+    @Override
+    public long getAccepts() {
+        return accepts.sum();
+    }
+
+    @Override
+    public long getLogins() {
+        return logins.sum();
+    }
+
+    @Override
+    public long getLoginFailures() {
+        return loginFailures.sum();
+    }
+
+    @Override
+    public double getAcceptRate() {
+        return acceptRate;
+    }
+
+    @Override
+    public double getLoginRate() {
+        return loginRate;
+    }
+
+    @Override
+    public double getLoginFailureRate() {
+        return loginFailureRate;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getFramesIn() {
+        return framesIn.sum();
+    }
+
+    @Override
+    public long getFramesOut() {
+        return framesOut.sum();
+    }
+
+    @Override
+    public long getActiveTransfers() {
+        return activeTransfers.sum();
+    }
+
+    @Override
+    public long getFileBytesIn() {
+        return fileBytesIn.sum();
+    }
+
+    @Override
+    public long getFileBytesOut() {
+        return fileBytesOut.sum();
+    }
+
+    @Override
+    public double getFileThroughput() {
+        return fileThroughput;
+    }
+
+    @Override
+    public long getPings() {
+        return pings.sum();
+    }
+
+    @Override
+    public long getReapedLogins() {
+        return reapedLogins.sum();
+    }
+
+    @Override
+    public long getReapedTransfers() {
+        return reapedTransfers.sum();
+    }
+
+    @Override
+    public long getReapedIdle() {
+        return reapedIdle.sum();
+    }
+
+    @Override
+    public long getLimitedMessages() {
+        return limitedMessages.sum();
+    }
+
+    @Override
+    public long getLimitedBytes() {
+        return limitedBytes.sum();
+    }
+
+    @Override
+    public long getLimitedLogins() {
+        return limitedLogins.sum();
+    }
+
+    @Override
+    public long getOutboundBytes() {
+        return OutboundBudget.getDefault().getTotalBytes();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    @Override
+    public long getSlowConsumers() {
+        return slowConsumers.sum();
+    }
+
+    @Override
+    public long getSelectLoopP50Micros() {
+        return selectLoop.getPercentile(50) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public long getSelectLoopP99Micros() {
+        return selectLoop.getPercentile(99) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public long getSelectLoopMaxMicros() {
+        return selectLoop.getMax() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public long getFanOutCount() {
+        return fanOut.getCount();
+    }
+
+    @Override
+    public long getFanOutP50Micros() {
+        return fanOut.getPercentile(50) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public long getFanOutP99Micros() {
+        return fanOut.getPercentile(99) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public long getFanOutP999Micros() {
+        return fanOut.getPercentile(99.9) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public long getFanOutMaxMicros() {
+        return fanOut.getMax() / NANOS_PER_MICRO;
+    }
+
+    /**
+     * Format every metric on a single line
+     *
+     * @return - The line
+     */
+    @Override
+    public String dump() {
+        return String.format("Metrics : sessions=%d connections=%d accepts/s=%.1f logins/s=%.1f loginFailures/s=%.1f " +
+                        "in=%dB/%d frames out=%dB/%d frames transfers=%d fileThroughput=%.0fB/s " +
+                        "pings=%d reaped logins=%d transfers=%d idle=%d limited messages=%d bytes=%d logins=%d " +
+                        "outbound=%dB dropped=%d slowConsumers=%d " +
+                        "selectLoop p50=%dus p99=%dus max=%dus fanOut n=%d p50=%dus p99=%dus p99.9=%dus max=%dus",
+                getSessions(), getConnections(), acceptRate, loginRate, loginFailureRate,
+                getBytesIn(), getFramesIn(), getBytesOut(), getFramesOut(), getActiveTransfers(), fileThroughput,
+                getPings(), getReapedLogins(), getReapedTransfers(), getReapedIdle(),
+                getLimitedMessages(), getLimitedBytes(), getLimitedLogins(),
+                getOutboundBytes(), getDroppedFrames(), getSlowConsumers(),
+                getSelectLoopP50Micros(), getSelectLoopP99Micros(), getSelectLoopMaxMicros(),
+                getFanOutCount(), getFanOutP50Micros(), getFanOutP99Micros(), getFanOutP999Micros(), getFanOutMaxMicros());
+    }
+}
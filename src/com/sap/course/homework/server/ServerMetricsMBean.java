@@ -0,0 +1,80 @@
+package com.sap.course.homework.server;
+
+/**
+ * JMX view of the server metrics - counters are totals since the start, rates are per second over the last
+ * reporting interval, durations are in microseconds
+ *
+ * @author borislav.draganov
+ */
+
+public interface ServerMetricsMBean {
+    int getSessions();
+
+    int getConnections();
+
+    long getAccepts();
+
+    long getLogins();
+
+    long getLoginFailures();
+
+    double getAcceptRate();
+
+    double getLoginRate();
+
+    double getLoginFailureRate();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getFramesIn();
+
+    long getFramesOut();
+
+    long getActiveTransfers();
+
+    long getFileBytesIn();
+
+    long getFileBytesOut();
+
+    double getFileThroughput();
+
+    long getPings();
+
+    long getReapedLogins();
+
+    long getReapedTransfers();
+
+    long getReapedIdle();
+
+    long getLimitedMessages();
+
+    long getLimitedBytes();
+
+    long getLimitedLogins();
+
+    long getOutboundBytes();
+
+    long getDroppedFrames();
+
+    long getSlowConsumers();
+
+    long getSelectLoopP50Micros();
+
+    long getSelectLoopP99Micros();
+
+    long getSelectLoopMaxMicros();
+
+    long getFanOutCount();
+
+    long getFanOutP50Micros();
+
+    long getFanOutP99Micros();
+
+    long getFanOutP999Micros();
+
+    long getFanOutMaxMicros();
+
+    String dump();
+}
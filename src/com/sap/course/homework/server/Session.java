@@ -0,0 +1,42 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.domain.User;
+
+/**
+ * A logged in user on a connection, identified by a small int that is reused after logout
+ *
+ * @author borislav.draganov
+ */
+
+public class Session {
+    private int id;
+    private User user;
+    private Connection connection;
+
+    public Session(int id, User user, Connection connection) {
+        this.id = id;
+        this.user = user;
+        this.connection = connection;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public String getUsername() {
+        return user.getUsername();
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public String toString() {
+        return "Session{" + id + ", " + user.getUsername() + "}";
+    }
+}
@@ -0,0 +1,131 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.domain.User;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The logged in users - every session gets a compact id and is found by id, by user name or by its connection
+ *
+ * Ids index a table of sessions and freed ids are reused first, so the table stays as large as the peak number of
+ * users. A username can have a single session - checked with one hash lookup. The connection keeps its own
+ * session, so the lookup from a channel is a field read. Lookups don't lock, logins and logouts are
+ * serialized on the registry.
+ *
+ * @author borislav.draganov
+ */
+
+public class SessionRegistry {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private volatile AtomicReferenceArray<Session> sessions;
+    private Map<String, Session> byUsername;
+
+    // Ids that were freed by a logout
+    private int[] freeIds;
+    private int freeCount;
+    private int nextId;
+
+    public SessionRegistry() {
+        this.sessions = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+        this.byUsername = new ConcurrentHashMap<>();
+        this.freeIds = new int[INITIAL_CAPACITY];
+        this.freeCount = 0;
+        this.nextId = 0;
+    }
+
+    /**
+     * Start a session unless the user is already logged in
+     *
+     * @param user - The user with checked credentials
+     * @param connection - The connection of the user
+     * @return - The new session or null if the username has a session
+     */
+    public synchronized Session login(User user, Connection connection) {
+        if (byUsername.containsKey(user.getUsername())) {
+            return null;
+        }
+
+        int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+        if (id == sessions.length()) {
+            grow();
+        }
+
+        Session session = new Session(id, user, connection);
+        sessions.set(id, session);
+        byUsername.put(user.getUsername(), session);
+        connection.setSession(session);
+
+        return session;
+    }
+
+    /**
+     * End a session and free its id
+     *
+     * @param session - The session to end
+     */
+    public synchronized void logout(Session session) {
+        if (sessions.get(session.getId()) != session) {
+            return;
+        }
+
+        sessions.set(session.getId(), null);
+        byUsername.remove(session.getUsername());
+        session.getConnection().setSession(null);
+
+        if (freeCount == freeIds.length) {
+            int[] grown = new int[freeIds.length * 2];
+            System.arraycopy(freeIds, 0, grown, 0, freeCount);
+            freeIds = grown;
+        }
+        freeIds[freeCount++] = session.getId();
+    }
+
+    /**
+     * Find a session by id
+     *
+     * @param id - The id of the session
+     * @return - The session or null if there is no session with the id
+     */
+    public Session get(int id) {
+        AtomicReferenceArray<Session> table = sessions;
+        return id >= 0 && id < table.length() ? table.get(id) : null;
+    }
+
+    /**
+     * Find the session of a user
+     *
+     * @param username - The name of the user
+     * @return - The session or null if the user is not logged in
+     */
+    public Session get(String username) {
+        return byUsername.get(username);
+    }
+
+    /**
+     * Check if a user is logged in
+     *
+     * @param username - The name of the user
+     * @return - true if the user has a session, false otherwise
+     */
+    public boolean isLoggedIn(String username) {
+        return byUsername.containsKey(username);
+    }
+
+    public int size() {
+        return byUsername.size();
+    }
+
+    private void grow() {
+        AtomicReferenceArray<Session> table = sessions;
+        AtomicReferenceArray<Session> grown = new AtomicReferenceArray<>(table.length() * 2);
+
+        for (int i = 0; i < table.length(); i++) {
+            grown.set(i, table.get(i));
+        }
+
+        sessions = grown;
+    }
+}
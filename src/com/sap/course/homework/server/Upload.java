@@ -0,0 +1,138 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.BufferPool;
+import com.sap.course.homework.util.Constants;
+import com.sap.course.homework.util.FileChannelWrapper;
+import com.sap.course.homework.util.PooledBuffer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * A range of an uploaded file that is being received - the size of the wrapper is the end of the range
+ *
+ * The received bytes pass through a pooled buffer on their way to the file, so the content hash is computed while
+ * the data streams in and the file is never read again.
+ *
+ * @author borislav.draganov
+ */
+
+public class Upload extends FileChannelWrapper {
+    private String name;
+    private long totalSize;
+
+    // Bytes known to be on disk when the state was last saved
+    private long received;
+
+    // Hash of every byte before the position
+    private MessageDigest digest;
+
+    public Upload(String name, long totalSize, FileChannel fileChannel, long offset, long end, long received, MessageDigest digest) {
+        super(end, fileChannel, offset);
+
+        this.name = name;
+        this.totalSize = totalSize;
+        this.received = received;
+        this.digest = digest;
+    }
+
+    /**
+     * Read the available bytes of the range from a channel
+     *
+     * @param channel - The channel of the transfer
+     * @return - The number of bytes saved
+     * @throws IOException - If the channel was closed before the end of the range
+     */
+    public int receive(ReadableByteChannel channel) throws IOException {
+        PooledBuffer pooledBuffer = BufferPool.getDefault().acquire(Constants.HASH_BUFFER_SIZE);
+        ByteBuffer buffer = pooledBuffer.buffer();
+
+        try {
+            if (getSize() - getPosition() < buffer.capacity()) {
+                buffer.limit((int) (getSize() - getPosition()));
+            }
+
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Channel closed after " + getPosition() + " of " + getSize() + " bytes");
+            }
+
+            buffer.flip();
+            return write(buffer);
+        } finally {
+            pooledBuffer.release();
+        }
+    }
+
+    /**
+     * Save bytes of the range that were already read - anything after the end of the range is ignored
+     *
+     * @param buffer - The bytes to save
+     * @return - The number of bytes saved
+     * @throws IOException
+     */
+    public int write(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() > getSize() - getPosition()) {
+            buffer.limit(buffer.position() + (int) (getSize() - getPosition()));
+        }
+
+        ByteBuffer hashed = buffer.duplicate();
+        int count = 0;
+
+        while (buffer.hasRemaining()) {
+            int written = getFileChannel().write(buffer, getPosition());
+            incrementPosition(written);
+            count += written;
+        }
+
+        digest.update(hashed);
+
+        return count;
+    }
+
+    /**
+     * Check if the whole range was received
+     *
+     * @return - true if the range is complete, false otherwise
+     */
+    public boolean isRangeComplete() {
+        return getPosition() >= getSize();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public void setReceived(long received) {
+        this.received = received;
+    }
+
+    /**
+     * Check if the file was received up to its end - the hash then covers the whole content
+     *
+     * @return - true if the file is complete, false otherwise
+     */
+    public boolean isComplete() {
+        return getPosition() >= totalSize;
+    }
+
+    /**
+     * Finish the hash - valid only for a complete file
+     *
+     * @return - The digest of the content
+     */
+    public byte[] digest() {
+        return digest.digest();
+    }
+}
@@ -0,0 +1,254 @@
+package com.sap.course.homework.util;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers in size classes, shared by the read and write paths of the server and the client
+ *
+ * Direct memory is allocated in slabs that are cut into equal chunks of one size class. Released chunks go back to
+ * a lock-free free list of their class, so a busy chat reuses the same memory instead of allocating and copying
+ * heap arrays for every socket write. Requests larger than the biggest class or above the memory budget get a plain
+ * heap buffer that is simply dropped on release.
+ *
+ * With -Dniochat.pool.debug=true every acquired buffer is tracked and a buffer that becomes unreachable without being
+ * released is reported with the stack trace of its acquisition and returned to the pool.
+ *
+ * @author borislav.draganov
+ */
+
+public class BufferPool {
+    private static final int[] SIZE_CLASSES = { 512, 4 * 1024, 16 * 1024, 64 * 1024, 128 * 1024 };
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    private static final BufferPool DEFAULT = new BufferPool(Constants.BUFFER_POOL_MAX_BYTES, Boolean.getBoolean("niochat.pool.debug"));
+
+    private List<Queue<ByteBuffer>> freeLists;
+    private long maxPooledBytes;
+
+    // Counters
+    private AtomicLong pooledBytes;
+    private AtomicLong bytesInUse;
+    private AtomicLong hits;
+    private AtomicLong misses;
+    private AtomicLong leaks;
+
+    // Leak detection
+    private boolean debug;
+    private ReferenceQueue<PooledBuffer> leakQueue;
+    private Map<LeakTracker, Boolean> trackers;
+
+    public BufferPool(long maxPooledBytes, boolean debug) {
+        this.freeLists = new ArrayList<>(SIZE_CLASSES.length);
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            freeLists.add(new ConcurrentLinkedQueue<ByteBuffer>());
+        }
+
+        this.maxPooledBytes = maxPooledBytes;
+        this.pooledBytes = new AtomicLong(0);
+        this.bytesInUse = new AtomicLong(0);
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+        this.leaks = new AtomicLong(0);
+
+        this.debug = debug;
+        this.leakQueue = new ReferenceQueue<>();
+        this.trackers = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Get the pool shared by the whole application
+     *
+     * @return - The default pool
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Take a cleared buffer with at least the requested capacity
+     *
+     * @param size - The minimal capacity
+     * @return - The buffer, to be released by the caller when it's not needed anymore
+     */
+    public PooledBuffer acquire(int size) {
+        if (debug) {
+            reclaimLeaks();
+        }
+
+        int sizeClass = sizeClassOf(size);
+        ByteBuffer buffer = null;
+
+        if (sizeClass >= 0) {
+            buffer = freeLists.get(sizeClass).poll();
+
+            if (buffer != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                buffer = allocateSlab(sizeClass);
+            }
+        } else {
+            misses.incrementAndGet();
+        }
+
+        // Too big or over the budget - not pooled
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(size);
+            sizeClass = -1;
+        }
+
+        buffer.clear();
+        bytesInUse.addAndGet(buffer.capacity());
+
+        PooledBuffer pooledBuffer = new PooledBuffer(this, buffer, sizeClass);
+        if (debug) {
+            LeakTracker tracker = new LeakTracker(pooledBuffer, leakQueue);
+            trackers.put(tracker, Boolean.TRUE);
+            pooledBuffer.setTracker(tracker);
+        }
+
+        return pooledBuffer;
+    }
+
+    /**
+     * Return a buffer to its free list - called by PooledBuffer.release
+     *
+     * @param pooledBuffer - The released buffer
+     */
+    void release(PooledBuffer pooledBuffer) {
+        LeakTracker tracker = pooledBuffer.getTracker();
+        if (tracker != null) {
+            trackers.remove(tracker);
+            tracker.clear();
+        }
+
+        recycle(pooledBuffer.buffer(), pooledBuffer.getSizeClass());
+    }
+
+    private void recycle(ByteBuffer buffer, int sizeClass) {
+        bytesInUse.addAndGet(-buffer.capacity());
+
+        if (sizeClass >= 0) {
+            buffer.clear();
+            freeLists.get(sizeClass).add(buffer);
+        }
+    }
+
+    /**
+     * Find the smallest size class that fits the requested size
+     *
+     * @param size - The requested capacity
+     * @return - The index of the size class or -1 if the size is bigger than every class
+     */
+    private int sizeClassOf(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Allocate a new slab for a size class, keep one chunk for the caller and put the rest in the free list
+     *
+     * @param sizeClass - The index of the size class
+     * @return - A chunk or null if the memory budget is exhausted
+     */
+    private ByteBuffer allocateSlab(int sizeClass) {
+        int chunkSize = SIZE_CLASSES[sizeClass];
+        int slabSize = Math.max(SLAB_SIZE, chunkSize);
+
+        if (pooledBytes.addAndGet(slabSize) > maxPooledBytes) {
+            pooledBytes.addAndGet(-slabSize);
+            return null;
+        }
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+        ByteBuffer first = null;
+
+        for (int offset = 0; offset + chunkSize <= slabSize; offset += chunkSize) {
+            slab.limit(offset + chunkSize);
+            slab.position(offset);
+            ByteBuffer chunk = slab.slice();
+
+            if (first == null) {
+                first = chunk;
+            } else {
+                freeLists.get(sizeClass).add(chunk);
+            }
+        }
+
+        return first;
+    }
+
+    /**
+     * Report the buffers that were garbage collected without being released and take their memory back
+     */
+    private void reclaimLeaks() {
+        for (Object reference = leakQueue.poll(); reference != null; reference = leakQueue.poll()) {
+            LeakTracker tracker = (LeakTracker) reference;
+
+            if (trackers.remove(tracker) != null) {
+                leaks.incrementAndGet();
+                System.err.println("Buffer of " + tracker.buffer.capacity() + " bytes was not released");
+                tracker.allocation.printStackTrace();
+
+                recycle(tracker.buffer, tracker.sizeClass);
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getBytesInUse() {
+        return bytesInUse.get();
+    }
+
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    public long getLeaks() {
+        return leaks.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{hits=" + getHits() + ", misses=" + getMisses() + ", bytesInUse=" + getBytesInUse() +
+                ", pooledBytes=" + getPooledBytes() + ", leaks=" + getLeaks() + "}";
+    }
+
+    /**
+     * Remembers where a buffer was acquired - enqueued by the GC when the PooledBuffer becomes unreachable
+     */
+    static class LeakTracker extends PhantomReference<PooledBuffer> {
+        private ByteBuffer buffer;
+        private int sizeClass;
+        private Throwable allocation;
+
+        private LeakTracker(PooledBuffer pooledBuffer, ReferenceQueue<PooledBuffer> queue) {
+            super(pooledBuffer, queue);
+
+            this.buffer = pooledBuffer.buffer();
+            this.sizeClass = pooledBuffer.getSizeClass();
+            this.allocation = new Throwable("Buffer acquired here");
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.sap.course.homework.util;
+
+/**
+ * Optional features of the binary protocol - the client asks for a set of them and the server answers with the
+ * ones it turned on
+ *
+ * @author borislav.draganov
+ */
+
+public enum Capability {
+    // Frames from the server above the threshold are deflated
+    COMPRESS_MESSAGES(0x01),
+
+    // Downloads on the connection are deflated
+    COMPRESS_FILES(0x02);
+
+    private int bit;
+
+    Capability(int bit) {
+        this.bit = bit;
+    }
+
+    public int getBit() {
+        return bit;
+    }
+
+    /**
+     * Check if the capability is in a set
+     *
+     * @param flags - The set of capabilities as sent on the wire
+     * @return - true if the capability is set, false otherwise
+     */
+    public boolean isSet(int flags) {
+        return (flags & bit) != 0;
+    }
+
+    /**
+     * Build a set of capabilities
+     *
+     * @param capabilities - The capabilities
+     * @return - The set as sent on the wire
+     */
+    public static int flags(Capability... capabilities) {
+        int flags = 0;
+        for (Capability capability : capabilities) {
+            flags |= capability.bit;
+        }
+
+        return flags;
+    }
+
+    /**
+     * Get the flags of every known capability
+     *
+     * @return - The set of all capabilities
+     */
+    public static int all() {
+        return flags(values());
+    }
+}
@@ -18,47 +18,53 @@ import java.nio.charset.Charset;
 
 public class ChannelHandler {
     /**
-     * Send a message on a socket channel
+     * Send a binary protocol message on a socket channel
      *
      * @param socketChannel - The target socket channel on which to send the message
-     * @param msg - The message to send
+     * @param message - The message to send
      * @throws IOException
      */
-    public static void sendMsg(SocketChannel socketChannel, String msg) throws IOException {
-        msg += "\n";
-        System.out.println("Sending msg : " + msg);
-        ByteBuffer byteBuffer = ByteBuffer.wrap(msg.getBytes(Charset.forName(Constants.UTF_ENCODING)));
-
-        socketChannel.write(byteBuffer);
+    public static void sendMsg(SocketChannel socketChannel, Message message) throws IOException {
+        PooledBuffer pooledBuffer = Protocol.BINARY.encode(message, BufferPool.getDefault());
+        try {
+            writeFully(socketChannel, pooledBuffer.buffer());
+        } finally {
+            pooledBuffer.release();
+        }
     }
 
     /**
-     * Read a message from a selection key
+     * Open a binary protocol connection - must be sent before any message
      *
-     * @param socketChannel - The Socket Channel receiving the message
-     * @return - The message that's on the channel
+     * @param socketChannel - The newly connected socket channel
      * @throws IOException
      */
-    public static String readMsg(SocketChannel socketChannel) throws IOException {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(Constants.SINGLE_BYTE);
-
-        StringBuilder stringBuilder = new StringBuilder();
-
-        // Read byte by byte until \n is found
-        for (int i = 0; i < Constants.BUFFER_SIZE; i++) {
-            socketChannel.read(byteBuffer);
-            byteBuffer.flip();
-
-            String byteStr = new String(byteBuffer.array(), Charset.forName(Constants.UTF_ENCODING));
+    public static void sendHandshake(SocketChannel socketChannel) throws IOException {
+        writeFully(socketChannel, MessageCodec.handshake());
+    }
 
-            if (byteStr.equals("\n")) {
-                break;
-            } else {
-                stringBuilder.append(byteStr);
-            }
+    /**
+     * Write the whole buffer - a non-blocking channel may accept only a part of it at a time
+     *
+     * @param socketChannel - The target socket channel
+     * @param byteBuffer - The bytes to write
+     * @throws IOException
+     */
+    private static void writeFully(SocketChannel socketChannel, ByteBuffer byteBuffer) throws IOException {
+        while (byteBuffer.hasRemaining()) {
+            socketChannel.write(byteBuffer);
         }
+    }
 
-        return stringBuilder.toString();
+    /**
+     * Encode a text protocol message as it's sent on the wire
+     *
+     * @param msg - The message to encode
+     * @return - A buffer ready to be written
+     */
+    public static ByteBuffer encodeMsg(String msg) {
+        msg += "\n";
+        return ByteBuffer.wrap(msg.getBytes(Charset.forName(Constants.UTF_ENCODING)));
     }
 
     /**
@@ -68,43 +74,47 @@ public class ChannelHandler {
      * @return - true if the message is invalid, false otherwise
      */
     public static boolean isInvalidMsg(String msg) {
-        return msg.equals("") || SystemCommand.isCommand(msg) || msg.contains(":") || msg.contains("-");
+        return msg.equals("");
     }
 
     /**
-     * Send a system command on the socket channel
+     * Send a file on a given channel - the channel is left open
      *
-     * @param socketChannel - The socket channel on which to send the command
-     * @param command - The command to be send
+     * @param selectedFile - The file to be transmitted
+     * @param fileTransferChannel - The channel on which to send the file
+     * @param protocol - The protocol of the other side
      * @throws IOException
      */
-    public static void sendCommand(SocketChannel socketChannel, SystemCommand command) throws IOException {
-        sendMsg(socketChannel, command.getCommand());
+    public static void sendFile(File selectedFile, SocketChannel fileTransferChannel, Protocol protocol) throws IOException {
+        sendFile(selectedFile, fileTransferChannel, protocol, 0);
     }
 
     /**
-     * Send a file on a given channel
+     * Send the rest of a file from an offset on a given channel - the channel is left open
      *
      * @param selectedFile - The file to be transmitted
      * @param fileTransferChannel - The channel on which to send the file
+     * @param protocol - The protocol of the other side
+     * @param offset - The position in the file to start from
      * @throws IOException
      */
-    public static void sendFile(File selectedFile, SocketChannel fileTransferChannel) throws IOException {
+    public static void sendFile(File selectedFile, SocketChannel fileTransferChannel, Protocol protocol, long offset) throws IOException {
         FileInputStream fileInputStream = new FileInputStream(selectedFile);
         FileChannel fileChannel = fileInputStream.getChannel();
 
-        // Send the upload command + file name + size
-        sendMsg(fileTransferChannel, SystemCommand.FILE_UPLOAD.getCommand() + "-" + selectedFile.getName() + "-" + fileChannel.size());
+        // Send the upload command + file name + size + the range that follows
+        long size = fileChannel.size();
+        Message header = new Message(Opcode.FILE_UPLOAD, selectedFile.getName(), size, offset, size - offset);
+        writeFully(fileTransferChannel, protocol.encode(header));
 
         // Transfer the data
-        long size = fileChannel.size();
-        long position = 0;
+        long position = offset;
         while (position < size) {
             position += fileChannel.transferTo(position, Constants.FILE_FRAGMENT_SIZE, fileTransferChannel);
         }
 
-        // Close the channel
-        fileTransferChannel.close();
+        // Close the file - the caller decides when the socket channel is closed
+        fileChannel.close();
     }
 
     /**
@@ -118,16 +128,102 @@ public class ChannelHandler {
         FileChannel fileChannel = fileChannelWrapper.getFileChannel();
         SocketChannel socketChannel = (SocketChannel) key.channel();
 
-        long readBytes = fileChannel.transferFrom(socketChannel, fileChannelWrapper.getPosition(), Constants.FILE_FRAGMENT_SIZE);
+        long count = Math.min(fileChannelWrapper.getSize() - fileChannelWrapper.getPosition(), Constants.FILE_FRAGMENT_SIZE);
+        long readBytes = fileChannel.transferFrom(socketChannel, fileChannelWrapper.getPosition(), count);
+
+        // transferFrom doesn't report the end of the stream - a readable channel with no data was closed
+        if (readBytes == 0) {
+            ByteBuffer probe = ByteBuffer.allocate(1);
+            if (socketChannel.read(probe) < 0) {
+                throw new EOFException("Channel closed after " + fileChannelWrapper.getPosition() + " of " + fileChannelWrapper.getSize() + " bytes");
+            }
+
+            probe.flip();
+            readBytes = fileChannel.write(probe, fileChannelWrapper.getPosition());
+        }
+
         fileChannelWrapper.incrementPosition(readBytes);
 
-        // Close the file channel if all bytes are given
+        closeIfComplete(key, fileChannelWrapper);
+    }
+
+    /**
+     * Save a file with the received bytes of a compressed transfer
+     *
+     * @param key - The selection key with the data
+     * @param fileChannelWrapper - The FileChannel with the file's size
+     * @param decompressor - The stream of the transfer
+     * @throws IOException
+     */
+    public static void saveFile(SelectionKey key, FileChannelWrapper fileChannelWrapper, Decompressor decompressor) throws IOException {
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+        PooledBuffer pooledBuffer = BufferPool.getDefault().acquire(Constants.HASH_BUFFER_SIZE);
+
+        try {
+            ByteBuffer buffer = pooledBuffer.buffer();
+            if (socketChannel.read(buffer) < 0) {
+                throw new EOFException("Channel closed after " + fileChannelWrapper.getPosition() + " of " + fileChannelWrapper.getSize() + " bytes");
+            }
+
+            buffer.flip();
+            saveFile(key, fileChannelWrapper, decompressor, buffer);
+        } finally {
+            pooledBuffer.release();
+        }
+    }
+
+    /**
+     * Save compressed file bytes that were already read from the socket channel
+     *
+     * @param key - The selection key of the transfer
+     * @param fileChannelWrapper - The FileChannel with the file's size
+     * @param decompressor - The stream of the transfer
+     * @param compressed - The compressed bytes
+     * @throws IOException
+     */
+    public static void saveFile(SelectionKey key, FileChannelWrapper fileChannelWrapper, Decompressor decompressor, ByteBuffer compressed) throws IOException {
+        saveFile(key, fileChannelWrapper, decompressor.inflate(compressed));
+    }
+
+    /**
+     * Save file bytes that were already read from the socket channel together with the transfer header
+     *
+     * @param key - The selection key of the transfer
+     * @param fileChannelWrapper - The FileChannel with the file's size
+     * @param buffered - The bytes that were read ahead
+     * @throws IOException
+     */
+    public static void saveFile(SelectionKey key, FileChannelWrapper fileChannelWrapper, ByteBuffer buffered) throws IOException {
+        FileChannel fileChannel = fileChannelWrapper.getFileChannel();
+
+        // Anything after the end of the file is not part of it
+        long missing = fileChannelWrapper.getSize() - fileChannelWrapper.getPosition();
+        if (buffered.remaining() > missing) {
+            buffered.limit(buffered.position() + (int) missing);
+        }
+
+        while (buffered.hasRemaining()) {
+            int written = fileChannel.write(buffered, fileChannelWrapper.getPosition());
+            fileChannelWrapper.incrementPosition(written);
+        }
+
+        closeIfComplete(key, fileChannelWrapper);
+    }
+
+    /**
+     * Close the file channel if all bytes are given - the caller closes the socket channel once the file is in place
+     *
+     * @param key - The selection key of the transfer
+     * @param fileChannelWrapper - The FileChannel with the file's size
+     * @throws IOException
+     */
+    private static void closeIfComplete(SelectionKey key, FileChannelWrapper fileChannelWrapper) throws IOException {
         if (fileChannelWrapper.getPosition() >= fileChannelWrapper.getSize()) {
+            FileChannel fileChannel = fileChannelWrapper.getFileChannel();
             fileChannel.force(false);
-            key.cancel();
+            key.interestOps(0);
 
             fileChannel.close();
-            socketChannel.close();
         }
     }
 }
\ No newline at end of file
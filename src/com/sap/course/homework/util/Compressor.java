@@ -0,0 +1,124 @@
+package com.sap.course.homework.util;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * One direction of a deflate stream that lives as long as its connection
+ *
+ * Every call ends with a sync flush, so the receiver can inflate all bytes sent so far, but the history window is
+ * kept between calls - repeated names and phrases of earlier messages compress later ones. The input, the output
+ * and the time spent in deflate are counted.
+ *
+ * @author borislav.draganov
+ */
+
+public class Compressor {
+    private static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+    private Deflater deflater;
+    private byte[] input;
+    private byte[] output;
+
+    // Counters
+    private long bytesIn;
+    private long bytesOut;
+    private long nanos;
+
+    public Compressor() {
+        this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        this.input = new byte[MIN_BUFFER_SIZE];
+        this.output = new byte[MIN_BUFFER_SIZE];
+    }
+
+    /**
+     * Deflate the bytes and flush the stream
+     *
+     * @param data - The bytes to compress, consumed by the call
+     * @return - The compressed bytes, valid until the next call
+     */
+    public ByteBuffer deflate(ByteBuffer data) {
+        long start = System.nanoTime();
+
+        int length = data.remaining();
+        if (input.length < length) {
+            input = new byte[length];
+        }
+        data.get(input, 0, length);
+
+        deflater.setInput(input, 0, length);
+
+        // The output is complete when deflate leaves space in the buffer
+        int size = 0;
+        while (true) {
+            size += deflater.deflate(output, size, output.length - size, Deflater.SYNC_FLUSH);
+            if (size < output.length) {
+                break;
+            }
+
+            byte[] grown = new byte[output.length * 2];
+            System.arraycopy(output, 0, grown, 0, size);
+            output = grown;
+        }
+
+        bytesIn += length;
+        bytesOut += size;
+        nanos += System.nanoTime() - start;
+
+        return ByteBuffer.wrap(output, 0, size);
+    }
+
+    /**
+     * Compress an encoded binary frame into a COMPRESSED frame
+     *
+     * @param frame - The encoded frame, consumed by the call
+     * @param pool - The pool to take the buffer from
+     * @return - The flipped compressed frame, owned by the caller
+     */
+    public PooledBuffer compressFrame(ByteBuffer frame, BufferPool pool) {
+        ByteBuffer compressed = deflate(frame);
+
+        PooledBuffer pooledBuffer = pool.acquire(MessageCodec.LENGTH_SIZE + 1 + compressed.remaining());
+        ByteBuffer target = pooledBuffer.buffer();
+        target.putInt(1 + compressed.remaining());
+        target.put(Opcode.COMPRESSED.getCode());
+        target.put(compressed);
+        target.flip();
+
+        return pooledBuffer;
+    }
+
+    /**
+     * Free the native memory of the stream
+     */
+    public void end() {
+        deflater.end();
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * Get the size of the output relative to the input
+     *
+     * @return - The ratio, 1 if nothing was compressed
+     */
+    public double getRatio() {
+        return bytesIn == 0 ? 1 : (double) bytesOut / bytesIn;
+    }
+
+    @Override
+    public String toString() {
+        return "Compressor{in=" + bytesIn + ", out=" + bytesOut + ", ratio=" + String.format("%.3f", getRatio()) +
+                ", cpuMillis=" + nanos / 1000000 + "}";
+    }
+}
@@ -8,10 +8,63 @@ package com.sap.course.homework.util;
 
 public abstract class Constants {
     public static final int PORT = 4040;
-    public static final int BUFFER_SIZE = 64;
-    public static final int SINGLE_BYTE = 1;
+    public static final int WORKER_REACTORS = Integer.getInteger("niochat.reactors", Runtime.getRuntime().availableProcessors());
+    public static final String SERVER_ENGINE = System.getProperty("niochat.engine", "selector");
+    public static final int ASYNC_THREADS = Integer.getInteger("niochat.async.threads", Runtime.getRuntime().availableProcessors());
+    public static final int READ_BUFFER_SIZE = 8 * 1024;
+    public static final int MAX_FRAME_SIZE = 64 * 1024;
+    public static final int WRITE_GATHER_SIZE = 16;
+    public static final long BUFFER_POOL_MAX_BYTES = Long.getLong("niochat.pool.maxBytes", 256L * 1024 * 1024);
+    public static final String OUTBOUND_POLICY = System.getProperty("niochat.outbound.policy", "drop-oldest");
+    public static final int OUTBOUND_MAX_FRAMES = Integer.getInteger("niochat.outbound.maxFrames", 4096);
+    public static final long OUTBOUND_MAX_BYTES = Long.getLong("niochat.outbound.maxBytes", 1024L * 1024);
+    public static final int OUTBOUND_CONTROL_FACTOR = Integer.getInteger("niochat.outbound.controlFactor", 4);
+    public static final long OUTBOUND_MAX_TOTAL_BYTES = Long.getLong("niochat.outbound.maxTotalBytes", Runtime.getRuntime().maxMemory() / 4);
     public static final String UTF_ENCODING = "UTF-8";
     public static final String MESSAGE_SENT_TO_USERS = "System: Message send to %d user/s";
+    public static final String ROOM_MEMBERS = "System: Room %s has %d member/s";
+    public static final String HISTORY_REPLAYED = "System: %d earlier message/s in %s";
+    public static final String RATE_LIMITED = "System: Rate limit exceeded - %s was dropped";
+    public static final String DISCONNECTED = "System: Disconnected by the server - %s";
     public static final int FILE_FRAGMENT_SIZE = 1024 * 1024;
+    public static final int FILE_TRANSFER_QUANTUM = Integer.getInteger("niochat.transferQuantum", 256 * 1024);
+    public static final int UPLOAD_CHECKPOINT_SIZE = 8 * 1024 * 1024;
+    public static final int HASH_BUFFER_SIZE = 64 * 1024;
+    public static final int FILE_LIST_PAGE_SIZE = 1000;
+    public static final int COMPRESSION_THRESHOLD = Integer.getInteger("niochat.compression.threshold", 128);
     public static final String SERVER_FILE_DIR = "files/";
+    public static final String USERS_FILE = "users.txt";
+    public static final String HISTORY_DIR = "history/";
+    public static final int HISTORY_SEGMENT_SIZE = Integer.getInteger("niochat.history.segmentSize", 16 * 1024 * 1024);
+    public static final int HISTORY_QUEUE_SIZE = 64 * 1024;
+    public static final long HISTORY_RETENTION_HOURS = Long.getLong("niochat.history.retentionHours", 7 * 24);
+    public static final int HISTORY_REPLAY_MESSAGES = 50;
+    public static final long HISTORY_MAX_ROOM_BYTES = Long.getLong("niochat.history.maxRoomBytes", 1024L * 1024 * 1024);
+    public static final int PASSWORD_HASH_ITERATIONS = Integer.getInteger("niochat.password.iterations", 100000);
+    public static final int METRICS_INTERVAL_SECONDS = Integer.getInteger("niochat.metrics.interval", 60);
+    public static final int AUTH_THREADS = Integer.getInteger("niochat.authThreads", Runtime.getRuntime().availableProcessors());
+    public static final int FILE_THREADS = Integer.getInteger("niochat.fileThreads", 2);
+    public static final int TIMER_TICK_MILLIS = Integer.getInteger("niochat.timer.tick", 1000);
+    public static final int TIMER_WHEEL_SIZE = 512;
+    public static final int HEARTBEAT_INTERVAL_SECONDS = Integer.getInteger("niochat.heartbeat.interval", 30);
+    public static final int IDLE_TIMEOUT_SECONDS = Integer.getInteger("niochat.timeout.idle", 90);
+    public static final int LOGIN_TIMEOUT_SECONDS = Integer.getInteger("niochat.timeout.login", 30);
+    public static final int TRANSFER_TIMEOUT_SECONDS = Integer.getInteger("niochat.timeout.transfer", 60);
+    public static final String LIMIT_POLICY = System.getProperty("niochat.limit.policy", "delay");
+    public static final int LIMIT_MESSAGES_PER_SECOND = Integer.getInteger("niochat.limit.messages", 50);
+    public static final int LIMIT_BYTES_PER_SECOND = Integer.getInteger("niochat.limit.bytes", 1024 * 1024);
+    public static final int LIMIT_LOGINS_PER_MINUTE = Integer.getInteger("niochat.limit.logins", 10);
+    public static final int LIMIT_IP_MESSAGES_PER_SECOND = Integer.getInteger("niochat.limit.ip.messages", 0);
+    public static final int LIMIT_IP_BYTES_PER_SECOND = Integer.getInteger("niochat.limit.ip.bytes", 0);
+    public static final int LIMIT_IP_LOGINS_PER_MINUTE = Integer.getInteger("niochat.limit.ip.logins", 0);
+    public static final int LOADTEST_USERS = Integer.getInteger("niochat.loadtest.users", 1000);
+    public static final int LOADTEST_THREADS = Integer.getInteger("niochat.loadtest.threads", 4);
+    public static final int LOADTEST_ROOMS = Integer.getInteger("niochat.loadtest.rooms", 10);
+    public static final double LOADTEST_RATE = Double.parseDouble(System.getProperty("niochat.loadtest.rate", "100"));
+    public static final int LOADTEST_MESSAGE_SIZE = Integer.getInteger("niochat.loadtest.messageSize", 100);
+    public static final int LOADTEST_TRANSFERS = Integer.getInteger("niochat.loadtest.transfers", 2);
+    public static final long LOADTEST_FILE_SIZE = Long.getLong("niochat.loadtest.fileSize", 4 * 1024 * 1024);
+    public static final int LOADTEST_DURATION_SECONDS = Integer.getInteger("niochat.loadtest.duration", 60);
+    public static final int LOADTEST_REPORT_SECONDS = Integer.getInteger("niochat.loadtest.report", 5);
+    public static final int LOADTEST_MAX_P99_MILLIS = Integer.getInteger("niochat.loadtest.maxP99", 0);
 }
\ No newline at end of file
@@ -0,0 +1,123 @@
+package com.sap.course.homework.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 hashes of file contents - the names of the blobs in the server's file store
+ *
+ * @author borislav.draganov
+ */
+
+public class ContentHash {
+    private static final String ALGORITHM = "SHA-256";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Create a digest to hash data as it streams through
+     *
+     * @return - A new digest
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Check if a string is a hash as produced by toHex
+     *
+     * @param hash - The string to check
+     * @return - true if the string is a valid hash, false otherwise
+     */
+    public static boolean isValid(String hash) {
+        if (hash.length() != 64) {
+            return false;
+        }
+
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Format a digest as lowercase hex
+     *
+     * @param digest - The bytes of the digest
+     * @return - The hex string
+     */
+    public static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xF];
+        }
+
+        return new String(hex);
+    }
+
+    /**
+     * Feed the beginning of a file to a digest
+     *
+     * @param digest - The digest to update
+     * @param fileChannel - The file
+     * @param length - The number of bytes from the start of the file
+     * @throws IOException
+     */
+    public static void update(MessageDigest digest, FileChannel fileChannel, long length) throws IOException {
+        PooledBuffer pooledBuffer = BufferPool.getDefault().acquire(Constants.HASH_BUFFER_SIZE);
+        ByteBuffer buffer = pooledBuffer.buffer();
+
+        try {
+            long position = 0;
+            while (position < length) {
+                buffer.clear();
+                if (length - position < buffer.capacity()) {
+                    buffer.limit((int) (length - position));
+                }
+
+                int read = fileChannel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("File is shorter than " + length + " bytes");
+                }
+
+                buffer.flip();
+                digest.update(buffer);
+                position += read;
+            }
+        } finally {
+            pooledBuffer.release();
+        }
+    }
+
+    /**
+     * Hash a whole file
+     *
+     * @param file - The file
+     * @return - The hex hash of its content
+     * @throws IOException
+     */
+    public static String of(File file) throws IOException {
+        MessageDigest digest = newDigest();
+
+        try (FileChannel fileChannel = new FileInputStream(file).getChannel()) {
+            update(digest, fileChannel, fileChannel.size());
+        }
+
+        return toHex(digest.digest());
+    }
+}
@@ -0,0 +1,81 @@
+package com.sap.course.homework.util;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The receiving side of a Compressor stream
+ *
+ * @author borislav.draganov
+ */
+
+public class Decompressor {
+    private static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+    private Inflater inflater;
+    private byte[] input;
+    private byte[] output;
+
+    // Limit of the output of a single call - a few compressed bytes may inflate to a lot of memory
+    private int maxOutput;
+
+    public Decompressor(int maxOutput) {
+        this.inflater = new Inflater(true);
+        this.maxOutput = maxOutput;
+        this.input = new byte[MIN_BUFFER_SIZE];
+        this.output = new byte[MIN_BUFFER_SIZE];
+    }
+
+    /**
+     * Inflate the received part of the stream
+     *
+     * @param data - The compressed bytes, consumed by the call
+     * @return - The inflated bytes, valid until the next call
+     * @throws ProtocolException - If the bytes are not a valid deflate stream or inflate to too many bytes
+     */
+    public ByteBuffer inflate(ByteBuffer data) throws ProtocolException {
+        int length = data.remaining();
+        if (input.length < length) {
+            input = new byte[length];
+        }
+        data.get(input, 0, length);
+
+        inflater.setInput(input, 0, length);
+
+        // Everything is inflated when inflate leaves space in the buffer
+        int size = 0;
+        try {
+            while (true) {
+                size += inflater.inflate(output, size, output.length - size);
+                if (size < output.length) {
+                    break;
+                }
+
+                if (size >= maxOutput) {
+                    throw new ProtocolException("Compressed data inflates to more than " + maxOutput + " bytes");
+                }
+
+                byte[] grown = new byte[output.length * 2];
+                System.arraycopy(output, 0, grown, 0, size);
+                output = grown;
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Invalid compressed data: " + e.getMessage());
+        }
+
+        if (!inflater.needsInput()) {
+            throw new ProtocolException("Unexpected end of the compressed stream");
+        }
+
+        return ByteBuffer.wrap(output, 0, size);
+    }
+
+    /**
+     * Free the native memory of the stream
+     */
+    public void end() {
+        inflater.end();
+    }
+}
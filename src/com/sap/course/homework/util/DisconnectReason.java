@@ -0,0 +1,41 @@
+package com.sap.course.homework.util;
+
+/**
+ * Why the server closes a connection - sent to the client with DISCONNECTED before the connection is closed
+ *
+ * @author borislav.draganov
+ */
+
+public enum DisconnectReason {
+    // The client doesn't read its messages as fast as they come, its queue is full
+    SLOW_CONSUMER(0x01),
+
+    // The client sent more than the rate limits allow
+    RATE_LIMIT(0x02);
+
+    private int code;
+
+    DisconnectReason(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Find the reason for a code read from the wire
+     *
+     * @param code - The code
+     * @return - The reason or null if the code is not a known reason
+     */
+    public static DisconnectReason fromCode(int code) {
+        for (DisconnectReason reason : values()) {
+            if (reason.code == code) {
+                return reason;
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,40 @@
+package com.sap.course.homework.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks a message sent to many receivers until the last of them has it written to its socket
+ *
+ * The sender holds one share while it queues the message and takes another share for every receiver. Every share
+ * is given back with done - the time from the read of the message to the last done is recorded in the histogram.
+ *
+ * @author borislav.draganov
+ */
+
+public class FanOut {
+    private long startNanos;
+    private LatencyHistogram histogram;
+    private AtomicInteger pending;
+
+    public FanOut(long startNanos, LatencyHistogram histogram) {
+        this.startNanos = startNanos;
+        this.histogram = histogram;
+        this.pending = new AtomicInteger(1);
+    }
+
+    /**
+     * Take a share for another receiver
+     */
+    public void add() {
+        pending.incrementAndGet();
+    }
+
+    /**
+     * Give a share back - the message was written to a receiver, dropped or the sender finished queuing it
+     */
+    public void done() {
+        if (pending.decrementAndGet() == 0) {
+            histogram.record(System.nanoTime() - startNanos);
+        }
+    }
+}
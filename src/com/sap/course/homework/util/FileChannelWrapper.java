@@ -12,9 +12,13 @@ public class FileChannelWrapper {
     private long position;
 
     public FileChannelWrapper(long size, FileChannel fileChannel) {
+        this(size, fileChannel, 0);
+    }
+
+    public FileChannelWrapper(long size, FileChannel fileChannel, long position) {
         this.size = size;
         this.fileChannel = fileChannel;
-        this.position = 0;
+        this.position = position;
     }
 
     public long getSize() {
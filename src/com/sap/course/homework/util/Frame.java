@@ -0,0 +1,98 @@
+package com.sap.course.homework.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded message that can be queued on many connections at once
+ *
+ * The bytes are encoded once and shared read-only - every connection writes from its own duplicate of the buffer.
+ * The frame is reference counted: the creator holds the first reference, every queue that takes the frame retains
+ * it and releases it when the frame is written or dropped. Pooled bytes go back to their pool with the last release.
+ *
+ * @author borislav.draganov
+ */
+
+public class Frame {
+    private ByteBuffer content;
+    private PooledBuffer pooledBuffer;
+    private AtomicInteger refCount;
+
+    // Set for a message sent to many receivers, see FanOut
+    private FanOut fanOut;
+
+    public Frame(ByteBuffer content) {
+        this.content = content.asReadOnlyBuffer();
+        this.refCount = new AtomicInteger(1);
+    }
+
+    public Frame(PooledBuffer pooledBuffer) {
+        this(pooledBuffer.buffer());
+        this.pooledBuffer = pooledBuffer;
+    }
+
+    /**
+     * Encode a message once for any number of receivers
+     *
+     * @param message - The message to encode
+     * @param protocol - The protocol of the receivers
+     * @return - The frame, owned by the caller
+     */
+    public static Frame encode(Message message, Protocol protocol) {
+        return new Frame(protocol.encode(message, BufferPool.getDefault()));
+    }
+
+    /**
+     * Get an independent view on the bytes of the frame - the position of the view is not shared
+     *
+     * @return - A read-only buffer with the whole frame
+     */
+    public ByteBuffer view() {
+        return content.duplicate();
+    }
+
+    /**
+     * Get the size of the encoded frame
+     *
+     * @return - The number of bytes
+     */
+    public int size() {
+        return content.remaining();
+    }
+
+    public FanOut getFanOut() {
+        return fanOut;
+    }
+
+    public void setFanOut(FanOut fanOut) {
+        this.fanOut = fanOut;
+    }
+
+    /**
+     * Take another reference to the frame
+     *
+     * @return - The same frame
+     */
+    public Frame retain() {
+        refCount.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Drop a reference to the frame - the bytes are released when the last reference is dropped
+     */
+    public void release() {
+        int remaining = refCount.decrementAndGet();
+
+        if (remaining == 0) {
+            content = null;
+
+            if (pooledBuffer != null) {
+                pooledBuffer.release();
+                pooledBuffer = null;
+            }
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Frame released too many times");
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package com.sap.course.homework.util;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-connection decoder for newline delimited and length prefixed frames
+ *
+ * Bytes are accumulated in a single buffer - one bulk read per readiness event, frame boundaries are found in place
+ * and a partial frame is kept until the rest of it arrives with a following read.
+ * The protocol is decided by the first byte - the binary protocol handshake or the start of a text line.
+ * The buffer is taken from the pool for a read and given back as soon as no partial frame is pending, so idle
+ * connections don't hold any buffer.
+ *
+ * @author borislav.draganov
+ */
+
+public class FrameDecoder {
+    private static final byte DELIMITER = '\n';
+    private static final Charset CHARSET = Charset.forName(Constants.UTF_ENCODING);
+
+    // Accumulated bytes are in [start, buffer.position()), no buffer while nothing is pending
+    private BufferPool pool;
+    private PooledBuffer pooledBuffer;
+    private ByteBuffer buffer;
+    private int start;
+
+    // Everything before this index was already checked for a delimiter
+    private int scanPosition;
+
+    // Unknown until the first byte is received
+    private Protocol protocol;
+
+    // Frames inflated from a COMPRESSED frame, created with the first one
+    private Decompressor decompressor;
+    private ByteBuffer inflated;
+
+    public FrameDecoder() {
+        this(BufferPool.getDefault());
+    }
+
+    public FrameDecoder(BufferPool pool) {
+        this.pool = pool;
+        this.start = 0;
+        this.scanPosition = 0;
+    }
+
+    /**
+     * Read whatever is currently available on the channel with a single read call
+     *
+     * @param channel - The channel to read from
+     * @return - The number of bytes read or -1 if the end of the stream was reached
+     * @throws IOException
+     */
+    public int read(ReadableByteChannel channel) throws IOException {
+        makeRoom();
+
+        int read = channel.read(buffer);
+        if (remaining() == 0) {
+            releaseBuffer();
+        }
+
+        return read;
+    }
+
+    /**
+     * Read from the channel and return all frames that were completed by the read
+     *
+     * @param channel - The channel to read from
+     * @return - The complete frames, possibly none
+     * @throws IOException - If the end of the stream was reached or a frame is too long
+     */
+    public List<String> readFrames(ReadableByteChannel channel) throws IOException {
+        if (read(channel) < 0) {
+            throw new IOException("End of stream");
+        }
+
+        List<String> frames = new ArrayList<>();
+        for (String frame = nextFrame(); frame != null; frame = nextFrame()) {
+            frames.add(frame);
+        }
+
+        return frames;
+    }
+
+    /**
+     * Get the protocol the other side speaks
+     *
+     * @return - The protocol or null if nothing was received yet
+     */
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Take the next complete message from the buffered bytes
+     * The first message of a binary protocol connection is the handshake with the protocol version
+     *
+     * @return - The message or null if there is no complete message yet
+     * @throws IOException - If the bytes are not a valid message or the message doesn't fit a frame
+     */
+    public Message nextMessage() throws IOException {
+        Message message = decodeMessage();
+
+        // Malformed bytes are decoded to longer replacement characters - the message may not fit a frame any more
+        if (message != null) {
+            MessageCodec.checkSize(message);
+        }
+
+        // Nothing pending - give the buffer back until the next read
+        if (message == null && remaining() == 0) {
+            releaseBuffer();
+        }
+
+        return message;
+    }
+
+    private Message decodeMessage() throws IOException {
+        if (protocol == null) {
+            if (remaining() == 0) {
+                return null;
+            }
+
+            // Not the binary handshake - the start of a text line
+            if (buffer.get(start) != MessageCodec.PROTOCOL_MAGIC) {
+                protocol = Protocol.TEXT;
+            } else if (remaining() < MessageCodec.HANDSHAKE_SIZE) {
+                return null;
+            } else {
+                int version = buffer.get(start + 1);
+
+                protocol = Protocol.BINARY;
+                start += MessageCodec.HANDSHAKE_SIZE;
+                scanPosition = start;
+
+                return new Message(Opcode.HANDSHAKE, version);
+            }
+        }
+
+        if (protocol == Protocol.TEXT) {
+            String line = nextFrame();
+            return line == null ? null : TextProtocol.parse(line);
+        }
+
+        // Frames of a compressed frame come before the following frames
+        if (inflated != null && inflated.hasRemaining()) {
+            return decodeInflated();
+        }
+
+        if (remaining() < MessageCodec.LENGTH_SIZE) {
+            return null;
+        }
+
+        int length = buffer.getInt(start);
+        if (length <= 0 || length > Constants.MAX_FRAME_SIZE) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+
+        if (remaining() < MessageCodec.LENGTH_SIZE + length) {
+            return null;
+        }
+
+        ByteBuffer body = buffer.duplicate();
+        body.limit(start + MessageCodec.LENGTH_SIZE + length);
+        body.position(start + MessageCodec.LENGTH_SIZE);
+
+        start += MessageCodec.LENGTH_SIZE + length;
+        scanPosition = start;
+
+        if (body.get(body.position()) == Opcode.COMPRESSED.getCode()) {
+            if (decompressor == null) {
+                decompressor = new Decompressor(Constants.MAX_FRAME_SIZE + MessageCodec.LENGTH_SIZE);
+            }
+
+            body.position(body.position() + 1);
+            inflated = decompressor.inflate(body);
+
+            return decodeMessage();
+        }
+
+        return MessageCodec.decode(body);
+    }
+
+    /**
+     * Decode the next frame of the inflated bytes - a compressed frame always holds whole frames
+     *
+     * @return - The message
+     * @throws IOException - If the inflated bytes are not a valid frame
+     */
+    private Message decodeInflated() throws IOException {
+        if (inflated.remaining() < MessageCodec.LENGTH_SIZE) {
+            throw new ProtocolException("Partial frame in compressed data");
+        }
+
+        int length = inflated.getInt();
+        if (length <= 0 || length > inflated.remaining()) {
+            throw new ProtocolException("Invalid compressed frame length " + length);
+        }
+
+        ByteBuffer body = inflated.slice();
+        body.limit(length);
+        inflated.position(inflated.position() + length);
+
+        return MessageCodec.decode(body);
+    }
+
+    /**
+     * Take the next complete frame from the buffered bytes
+     *
+     * @return - The frame without the delimiter or null if there is no complete frame yet
+     * @throws IOException - If the pending frame exceeds the maximum frame size
+     */
+    public String nextFrame() throws IOException {
+        if (buffer == null) {
+            return null;
+        }
+
+        int end = buffer.position();
+
+        for (int i = Math.max(start, scanPosition); i < end; i++) {
+            if (buffer.get(i) == DELIMITER) {
+                byte[] bytes = new byte[i - start];
+                ByteBuffer line = buffer.duplicate();
+                line.limit(i);
+                line.position(start);
+                line.get(bytes);
+
+                String frame = new String(bytes, CHARSET);
+
+                start = i + 1;
+                scanPosition = start;
+
+                return frame;
+            }
+        }
+
+        scanPosition = end;
+
+        if (end - start >= Constants.MAX_FRAME_SIZE) {
+            throw new IOException("Frame exceeds " + Constants.MAX_FRAME_SIZE + " bytes");
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the number of buffered bytes that were not returned as frames
+     *
+     * @return - The number of pending bytes
+     */
+    public int remaining() {
+        return buffer == null ? 0 : buffer.position() - start;
+    }
+
+    /**
+     * Take all pending bytes out of the decoder, e.g. when the connection switches to raw file data
+     *
+     * @return - A buffer ready to be read with the pending bytes
+     */
+    public ByteBuffer drain() {
+        ByteBuffer pending = ByteBuffer.allocate(remaining());
+
+        if (buffer != null) {
+            buffer.flip();
+            buffer.position(start);
+            pending.put(buffer);
+            pending.flip();
+        }
+
+        releaseBuffer();
+
+        return pending;
+    }
+
+    /**
+     * Give the buffer back to the pool and drop any pending bytes
+     * Must be called when the connection is closed
+     */
+    public void release() {
+        releaseBuffer();
+
+        if (decompressor != null) {
+            decompressor.end();
+            decompressor = null;
+            inflated = null;
+        }
+    }
+
+    private void releaseBuffer() {
+        if (pooledBuffer != null) {
+            pooledBuffer.release();
+        }
+
+        pooledBuffer = null;
+        buffer = null;
+        start = 0;
+        scanPosition = 0;
+    }
+
+    /**
+     * Make sure there is free space at the end of the buffer - move the pending bytes to the front or grow
+     */
+    private void makeRoom() {
+        if (buffer == null) {
+            pooledBuffer = pool.acquire(Constants.READ_BUFFER_SIZE);
+            buffer = pooledBuffer.buffer();
+        }
+
+        if (start > 0) {
+            buffer.flip();
+            buffer.position(start);
+            buffer.compact();
+
+            scanPosition -= start;
+            start = 0;
+        }
+
+        if (!buffer.hasRemaining()) {
+            PooledBuffer grown = pool.acquire(buffer.capacity() * 2);
+            buffer.flip();
+            grown.buffer().put(buffer);
+
+            pooledBuffer.release();
+            pooledBuffer = grown;
+            buffer = grown.buffer();
+        }
+    }
+}
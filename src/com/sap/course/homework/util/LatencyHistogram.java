@@ -0,0 +1,149 @@
+package com.sap.course.homework.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds with a bounded relative error
+ *
+ * Every power of two range is split into SUB_BUCKETS linear buckets, so a recorded value is off by at most
+ * 1/SUB_BUCKETS of itself - the layout of an HDR histogram with one significant digit in base 16. Recording is one
+ * atomic increment, percentiles are computed from a snapshot of the counts.
+ *
+ * @author borislav.draganov
+ */
+
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private AtomicLongArray counts;
+    private AtomicLong max;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.max = new AtomicLong(0);
+    }
+
+    /**
+     * Record a duration
+     *
+     * @param nanos - The duration, negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(indexOf(value));
+
+        for (long current = max.get(); value > current && !max.compareAndSet(current, value); current = max.get()) {
+            // Retry with the new maximum
+        }
+    }
+
+    /**
+     * Find the bucket of a value
+     *
+     * @param value - A non-negative value
+     * @return - The index of the bucket
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Get the largest value of a bucket
+     *
+     * @param index - The index of the bucket
+     * @return - The value
+     */
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS;
+
+        return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Copy the current counts - recording continues meanwhile, so the copy is not an atomic view
+     *
+     * @return - The counts of every bucket
+     */
+    public long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+
+        return snapshot;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getCount() {
+        return count(snapshot());
+    }
+
+    /**
+     * Get a percentile of everything recorded so far
+     *
+     * @param percentile - The percentile, between 0 and 100
+     * @return - The value in nanoseconds, at most the largest recorded value
+     */
+    public long getPercentile(double percentile) {
+        return Math.min(percentile(snapshot(), percentile), getMax());
+    }
+
+    /**
+     * Get the number of values in a snapshot
+     *
+     * @param snapshot - The counts
+     * @return - The total count
+     */
+    public static long count(long[] snapshot) {
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+
+        return total;
+    }
+
+    /**
+     * Get a percentile of a snapshot
+     *
+     * @param snapshot - The counts
+     * @param percentile - The percentile, between 0 and 100
+     * @return - The highest value of the bucket with the percentile, 0 if nothing was recorded
+     */
+    public static long percentile(long[] snapshot, double percentile) {
+        long total = count(snapshot);
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return highestValueOf(i);
+            }
+        }
+
+        return highestValueOf(BUCKETS - 1);
+    }
+}
@@ -0,0 +1,56 @@
+package com.sap.course.homework.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A decoded protocol message - an opcode and the values of its fields
+ *
+ * @author borislav.draganov
+ */
+
+public class Message {
+    private Opcode opcode;
+    private Object[] values;
+
+    public Message(Opcode opcode, Object... values) {
+        Opcode.Field[] fields = opcode.getFields();
+        if (values.length != fields.length) {
+            throw new IllegalArgumentException(opcode + " takes " + fields.length + " field/s");
+        }
+
+        this.opcode = opcode;
+        this.values = values;
+    }
+
+    public Opcode getOpcode() {
+        return opcode;
+    }
+
+    public String getString(int index) {
+        return (String) values[index];
+    }
+
+    public int getInt(int index) {
+        return ((Number) values[index]).intValue();
+    }
+
+    public long getLong(int index) {
+        return ((Number) values[index]).longValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<String> getStringList(int index) {
+        return (List<String>) values[index];
+    }
+
+    // The password of a login is never logged
+    @Override
+    public String toString() {
+        if (opcode == Opcode.LOGIN) {
+            return opcode + "[" + values[0] + ", ****]";
+        }
+
+        return opcode + Arrays.toString(values);
+    }
+}
@@ -0,0 +1,339 @@
+package com.sap.course.homework.util;
+
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encoder and decoder of the binary protocol
+ *
+ * A connection starts with the handshake bytes - magic byte and protocol version. After that every message is
+ * framed as: length (int, bytes after the length), opcode (byte), fields. Strings are an unsigned short length
+ * followed by UTF-8 bytes, lists are an int count followed by the elements.
+ *
+ * @author borislav.draganov
+ */
+
+public abstract class MessageCodec {
+    public static final byte PROTOCOL_MAGIC = (byte) 0xB1;
+    public static final byte PROTOCOL_VERSION = 3;
+    public static final int HANDSHAKE_SIZE = 2;
+    public static final int LENGTH_SIZE = 4;
+
+    private static final Charset CHARSET = Charset.forName(Constants.UTF_ENCODING);
+    private static final int MAX_STRING_SIZE = 0xFFFF;
+    private static final int MAX_BYTES_PER_CHAR = 3;
+
+    // Encoders keep state - one per thread
+    private static final ThreadLocal<CharsetEncoder> ENCODER = new ThreadLocal<CharsetEncoder>() {
+        @Override
+        protected CharsetEncoder initialValue() {
+            return CHARSET.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    };
+
+    /**
+     * Get the bytes that open a binary protocol connection
+     *
+     * @return - A buffer ready to be written
+     */
+    public static ByteBuffer handshake() {
+        ByteBuffer buffer = ByteBuffer.allocate(HANDSHAKE_SIZE);
+        buffer.put(PROTOCOL_MAGIC).put(PROTOCOL_VERSION);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * Encode a message with its length prefix
+     *
+     * @param message - The message to encode
+     * @return - A buffer ready to be written
+     */
+    public static ByteBuffer encode(Message message) {
+        ByteBuffer buffer = ByteBuffer.allocate(maxEncodedSize(message));
+        encode(message, buffer);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * Get an upper bound of the encoded size of a message - strings are counted with the longest UTF-8 form
+     *
+     * @param message - The message to encode
+     * @return - The number of bytes that is always enough for the message
+     */
+    public static int maxEncodedSize(Message message) {
+        Opcode.Field[] fields = message.getOpcode().getFields();
+
+        int size = LENGTH_SIZE + 1;
+        for (int i = 0; i < fields.length; i++) {
+            switch (fields[i]) {
+                case INT:
+                    size += 4;
+                    break;
+                case LONG:
+                    size += 8;
+                    break;
+                case STRING:
+                    size += 2 + maxStringSize(message.getString(i));
+                    break;
+                case STRING_LIST:
+                    size += 4;
+                    for (String element : message.getStringList(i)) {
+                        size += 2 + maxStringSize(element);
+                    }
+                    break;
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Get the exact encoded size of a message
+     *
+     * @param message - The message to encode
+     * @return - The number of bytes of the frame with its length prefix
+     */
+    public static int encodedSize(Message message) {
+        Opcode.Field[] fields = message.getOpcode().getFields();
+
+        int size = LENGTH_SIZE + 1;
+        for (int i = 0; i < fields.length; i++) {
+            switch (fields[i]) {
+                case INT:
+                    size += 4;
+                    break;
+                case LONG:
+                    size += 8;
+                    break;
+                case STRING:
+                    size += 2 + stringSize(message.getString(i));
+                    break;
+                case STRING_LIST:
+                    size += 4;
+                    for (String element : message.getStringList(i)) {
+                        size += 2 + stringSize(element);
+                    }
+                    break;
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Check that a message can be encoded - every string fits its length prefix and the whole message fits a frame
+     * A decoded string may encode to more bytes than it was received with, every malformed byte becomes a 3 byte
+     * replacement character
+     *
+     * @param message - The message
+     * @throws ProtocolException - If the message is too long
+     */
+    public static void checkSize(Message message) throws ProtocolException {
+        Opcode.Field[] fields = message.getOpcode().getFields();
+
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] == Opcode.Field.STRING) {
+                checkString(message.getString(i));
+            } else if (fields[i] == Opcode.Field.STRING_LIST) {
+                for (String element : message.getStringList(i)) {
+                    checkString(element);
+                }
+            }
+        }
+
+        int length = encodedSize(message) - LENGTH_SIZE;
+        if (length > Constants.MAX_FRAME_SIZE) {
+            throw new ProtocolException(message.getOpcode() + " of " + length + " bytes exceeds " + Constants.MAX_FRAME_SIZE + " bytes");
+        }
+    }
+
+    private static void checkString(String str) throws ProtocolException {
+        int size = stringSize(str);
+        if (size > MAX_STRING_SIZE) {
+            throw new ProtocolException("String of " + size + " bytes exceeds " + MAX_STRING_SIZE + " bytes");
+        }
+    }
+
+    /**
+     * Encode a message with its length prefix at the position of the target buffer
+     * Strings are encoded directly into the target, no intermediate arrays are created
+     *
+     * @param message - The message to encode
+     * @param target - The buffer with at least maxEncodedSize bytes remaining
+     */
+    public static void encode(Message message, ByteBuffer target) {
+        Opcode.Field[] fields = message.getOpcode().getFields();
+
+        // The length is known once everything is written
+        int lengthPosition = target.position();
+        target.putInt(0);
+        target.put(message.getOpcode().getCode());
+
+        for (int i = 0; i < fields.length; i++) {
+            switch (fields[i]) {
+                case INT:
+                    target.putInt(message.getInt(i));
+                    break;
+                case LONG:
+                    target.putLong(message.getLong(i));
+                    break;
+                case STRING:
+                    putString(target, message.getString(i));
+                    break;
+                case STRING_LIST:
+                    List<String> list = message.getStringList(i);
+                    target.putInt(list.size());
+                    for (String element : list) {
+                        putString(target, element);
+                    }
+                    break;
+            }
+        }
+
+        target.putInt(lengthPosition, target.position() - lengthPosition - LENGTH_SIZE);
+    }
+
+    /**
+     * Decode the body of a frame - everything after the length prefix
+     *
+     * @param body - The opcode and the fields of the message
+     * @return - The decoded message
+     * @throws ProtocolException - If the opcode is unknown or the fields don't match it
+     */
+    public static Message decode(ByteBuffer body) throws ProtocolException {
+        try {
+            Opcode opcode = Opcode.fromCode(body.get());
+            if (opcode == null || opcode == Opcode.HANDSHAKE) {
+                throw new ProtocolException("Unknown opcode");
+            }
+
+            Opcode.Field[] fields = opcode.getFields();
+            Object[] values = new Object[fields.length];
+
+            for (int i = 0; i < fields.length; i++) {
+                switch (fields[i]) {
+                    case INT:
+                        values[i] = body.getInt();
+                        break;
+                    case LONG:
+                        values[i] = body.getLong();
+                        break;
+                    case STRING:
+                        values[i] = getString(body);
+                        break;
+                    case STRING_LIST:
+                        int count = body.getInt();
+                        if (count < 0 || count > body.remaining() / 2) {
+                            throw new ProtocolException("Invalid list size " + count);
+                        }
+
+                        List<String> list = new ArrayList<>(count);
+                        for (int j = 0; j < count; j++) {
+                            list.add(getString(body));
+                        }
+                        values[i] = list;
+                        break;
+                }
+            }
+
+            if (body.hasRemaining()) {
+                throw new ProtocolException("Unexpected bytes after " + opcode);
+            }
+
+            return new Message(opcode, values);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated message");
+        }
+    }
+
+    private static int maxStringSize(String str) {
+        return str.length() * MAX_BYTES_PER_CHAR;
+    }
+
+    /**
+     * Count the UTF-8 bytes of a string the way the encoder writes them - an unpaired surrogate is replaced by '?'
+     */
+    private static int stringSize(String str) {
+        int size = 0;
+
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+
+            if (c < 0x80) {
+                size += 1;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1))) {
+                size += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                size += 1;
+            } else {
+                size += 3;
+            }
+        }
+
+        return size;
+    }
+
+    private static void putString(ByteBuffer buffer, String str) {
+        int lengthPosition = buffer.position();
+        buffer.putShort((short) 0);
+
+        int length = encodeString(str, buffer);
+        if (length > MAX_STRING_SIZE) {
+            throw new IllegalArgumentException("String exceeds " + MAX_STRING_SIZE + " bytes");
+        }
+
+        buffer.putShort(lengthPosition, (short) length);
+    }
+
+    /**
+     * Encode a string as UTF-8 at the position of the target buffer
+     *
+     * @param str - The string to encode
+     * @param target - The buffer with enough space for the longest UTF-8 form of the string
+     * @return - The number of written bytes
+     */
+    public static int encodeString(String str, ByteBuffer target) {
+        int start = target.position();
+
+        CharsetEncoder encoder = ENCODER.get();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(str), target, true);
+        encoder.flush(target);
+
+        return target.position() - start;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        if (!buffer.hasArray()) {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, CHARSET);
+        }
+
+        String str = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, CHARSET);
+        buffer.position(buffer.position() + length);
+
+        return str;
+    }
+}
@@ -0,0 +1,101 @@
+package com.sap.course.homework.util;
+
+/**
+ * The set of binary protocol opcodes with the types of their fields
+ *
+ * @author borislav.draganov
+ */
+
+public enum Opcode {
+    // Not framed - produced by the decoder from the handshake bytes, the field is the protocol version
+    HANDSHAKE(0x00, Field.INT),
+
+    // Client to server
+    LOGIN(0x01, Field.STRING, Field.STRING),
+    CHAT(0x02, Field.STRING),
+    FILE_LIST(0x03, Field.STRING, Field.STRING, Field.INT),
+    FILE_DOWNLOAD(0x04, Field.STRING, Field.LONG, Field.LONG),
+    DISCONNECT(0x05),
+    FILE_STATUS(0x06, Field.STRING),
+    FILE_ANNOUNCE(0x07, Field.STRING, Field.LONG, Field.STRING),
+    ROOM_JOIN(0x09, Field.STRING),
+    ROOM_LEAVE(0x0A, Field.STRING),
+    ROOM_POST(0x0B, Field.STRING, Field.STRING),
+    DIRECT(0x0C, Field.STRING, Field.STRING),
+    HISTORY(0x0D, Field.STRING, Field.INT, Field.LONG),
+    PONG(0x0E),
+
+    // Both directions - header of a file (name, file size, offset, length), the raw bytes of the range follow it
+    FILE_UPLOAD(0x10, Field.STRING, Field.LONG, Field.LONG, Field.LONG),
+
+    // Both directions - the requested capabilities and the answer with the enabled ones, see Capability
+    CAPABILITIES(0x11, Field.INT),
+
+    // Server to client
+    INVALID_USER(0x20),
+    MESSAGE(0x21, Field.STRING, Field.STRING, Field.LONG),
+    DELIVERY_REPORT(0x22, Field.INT),
+    FILE_LIST_RESULT(0x23, Field.STRING_LIST, Field.STRING),
+    FILE_NOT_FOUND(0x24, Field.STRING),
+    FILE_STATUS_RESULT(0x25, Field.STRING, Field.LONG, Field.LONG),
+    ROOM_MESSAGE(0x26, Field.STRING, Field.STRING, Field.STRING, Field.LONG),
+    ROOM_INFO(0x27, Field.STRING, Field.INT),
+    DIRECT_MESSAGE(0x28, Field.STRING, Field.STRING, Field.LONG),
+    HISTORY_END(0x29, Field.STRING, Field.INT),
+
+    // Server to client - asks a quiet client to answer with PONG, so a dead connection is found
+    PING(0x2A),
+
+    // Server to client - a message over the rate limit was dropped, the field is the code of its opcode
+    RATE_LIMITED(0x2B, Field.INT),
+
+    // Server to client - the server closes the connection, the field is the code of the reason, see DisconnectReason
+    DISCONNECTED(0x2C, Field.INT),
+
+    // Not a message - the body of the frame is the next part of the connection's deflate stream with whole frames
+    COMPRESSED(0x30);
+
+    /**
+     * Types of the message fields
+     */
+    public enum Field {
+        INT,
+        LONG,
+        STRING,
+        STRING_LIST
+    }
+
+    private static final Opcode[] BY_CODE = new Opcode[256];
+
+    static {
+        for (Opcode opcode : Opcode.values()) {
+            BY_CODE[opcode.code & 0xFF] = opcode;
+        }
+    }
+
+    private byte code;
+    private Field[] fields;
+
+    Opcode(int code, Field... fields) {
+        this.code = (byte) code;
+        this.fields = fields;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    public Field[] getFields() {
+        return fields;
+    }
+
+    /**
+     * Find the opcode for a byte read from the wire
+     *
+     * @param code - The byte
+     * @return - The opcode or null if the byte is not a known opcode
+     */
+    public static Opcode fromCode(byte code) {
+        return BY_CODE[code & 0xFF];
+    }
+}
@@ -0,0 +1,57 @@
+package com.sap.course.homework.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A buffer taken from a BufferPool - has a single owner that must release it exactly once
+ *
+ * @author borislav.draganov
+ */
+
+public class PooledBuffer {
+    private BufferPool pool;
+    private ByteBuffer buffer;
+    private int sizeClass;
+    private BufferPool.LeakTracker tracker;
+    private boolean released;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer, int sizeClass) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.sizeClass = sizeClass;
+        this.released = false;
+    }
+
+    /**
+     * Get the pooled memory - must not be used after the release
+     *
+     * @return - The buffer
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    int getSizeClass() {
+        return sizeClass;
+    }
+
+    BufferPool.LeakTracker getTracker() {
+        return tracker;
+    }
+
+    void setTracker(BufferPool.LeakTracker tracker) {
+        this.tracker = tracker;
+    }
+
+    /**
+     * Give the buffer back to the pool
+     */
+    public void release() {
+        if (released) {
+            throw new IllegalStateException("Buffer released twice");
+        }
+
+        released = true;
+        pool.release(this);
+    }
+}
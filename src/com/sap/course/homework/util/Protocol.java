@@ -0,0 +1,54 @@
+package com.sap.course.homework.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The protocols a connection can speak - decided by the first byte the client sends
+ *
+ * @author borislav.draganov
+ */
+
+public enum Protocol {
+    // Newline delimited strings, see TextProtocol
+    TEXT,
+
+    // Length prefixed frames with opcodes, see MessageCodec
+    BINARY;
+
+    /**
+     * Encode a message as it's sent on the wire in this protocol
+     *
+     * @param message - The message to encode
+     * @return - A buffer ready to be written
+     */
+    public ByteBuffer encode(Message message) {
+        if (this == BINARY) {
+            return MessageCodec.encode(message);
+        }
+
+        return ChannelHandler.encodeMsg(TextProtocol.encode(message));
+    }
+
+    /**
+     * Encode a message into a pooled buffer
+     *
+     * @param message - The message to encode
+     * @param pool - The pool to take the buffer from
+     * @return - The flipped buffer, owned by the caller
+     */
+    public PooledBuffer encode(Message message, BufferPool pool) {
+        PooledBuffer pooledBuffer;
+
+        if (this == BINARY) {
+            pooledBuffer = pool.acquire(MessageCodec.maxEncodedSize(message));
+            MessageCodec.encode(message, pooledBuffer.buffer());
+        } else {
+            String line = TextProtocol.encode(message) + "\n";
+            pooledBuffer = pool.acquire(line.length() * 3);
+            MessageCodec.encodeString(line, pooledBuffer.buffer());
+        }
+
+        pooledBuffer.buffer().flip();
+        return pooledBuffer;
+    }
+}
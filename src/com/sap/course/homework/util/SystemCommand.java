@@ -13,6 +13,8 @@ public enum SystemCommand {
     FILE_NOT_FOUND("SYSTEM_COMMAND_FILE_NOT_FOUND"),
     DISCONNECT("SYSTEM_COMMAND_DISCONNECT");
 
+    private static final String PREFIX = "SYSTEM_COMMAND_";
+
     private String command;
 
     SystemCommand(String command) {
@@ -23,6 +25,26 @@ public enum SystemCommand {
         return command;
     }
 
+    /**
+     * Find the command a string starts with
+     *
+     * @param str - The string to be checked
+     * @return - The command or null if the string doesn't start with a system command
+     */
+    public static SystemCommand fromString(String str) {
+        if (!str.startsWith(PREFIX)) {
+            return null;
+        }
+
+        for (SystemCommand command : SystemCommand.values()) {
+            if (str.startsWith(command.getCommand())) {
+                return command;
+            }
+        }
+
+        return null;
+    }
+
     /**
      * Check a string if it's one of the commands
      *
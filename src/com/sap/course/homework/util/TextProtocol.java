@@ -0,0 +1,143 @@
+package com.sap.course.homework.util;
+
+import java.net.ProtocolException;
+
+/**
+ * Mapping between the newline delimited text protocol and protocol messages
+ * Kept for clients that don't open the connection with the binary handshake
+ *
+ * @author borislav.draganov
+ */
+
+public abstract class TextProtocol {
+    private static final char CREDENTIALS_SEPARATOR = ':';
+    private static final String FIELD_SEPARATOR = "-";
+
+    /**
+     * Parse a line received from a text protocol client
+     *
+     * @param line - The line without the delimiter
+     * @return - The message the line stands for
+     * @throws ProtocolException - If the line is a malformed command
+     */
+    public static Message parse(String line) throws ProtocolException {
+        // User credentials
+        int separator = line.indexOf(CREDENTIALS_SEPARATOR);
+        if (separator >= 0) {
+            return new Message(Opcode.LOGIN, line.substring(0, separator), line.substring(separator + 1));
+        }
+
+        // System commands
+        SystemCommand command = SystemCommand.fromString(line);
+        if (command != null) {
+            String[] data = line.split(FIELD_SEPARATOR);
+
+            try {
+                switch (command) {
+                    case DISCONNECT:
+                        return new Message(Opcode.DISCONNECT);
+                    case FILE_UPLOAD:
+                        long size = Long.parseLong(data[2]);
+                        return new Message(Opcode.FILE_UPLOAD, data[1], size, 0L, size);
+                    case FILE_DOWNLOAD:
+                        return new Message(Opcode.FILE_DOWNLOAD, data[1], 0L, -1L);
+                    default:
+                        throw new ProtocolException("Unexpected command " + command);
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                throw new ProtocolException("Malformed command " + line);
+            }
+        }
+
+        // User commands
+        UserCommand userCommand = UserCommand.fromString(line);
+        if (userCommand != null) {
+            String argument = userCommand.getArgument(line);
+
+            switch (userCommand) {
+                // The whole listing, optionally only the names with a prefix
+                case FILE_LIST:
+                    return new Message(Opcode.FILE_LIST, argument, "", 0);
+                case ROOM_JOIN:
+                    return new Message(Opcode.ROOM_JOIN, argument);
+                case ROOM_LEAVE:
+                    return new Message(Opcode.ROOM_LEAVE, argument);
+                // The room name and the text, without a text it's just a chat line
+                case ROOM_POST:
+                    String[] post = argument.split(" ", 2);
+                    if (post.length == 2) {
+                        return new Message(Opcode.ROOM_POST, post[0], post[1]);
+                    }
+                    break;
+                // An optional room, the lobby by default, and an optional number of messages
+                case HISTORY:
+                    String[] history = argument.split(" ", 2);
+                    int count = Constants.HISTORY_REPLAY_MESSAGES;
+                    if (history.length == 2) {
+                        try {
+                            count = Integer.parseInt(history[1].trim());
+                        } catch (NumberFormatException e) {
+                            break;
+                        }
+                    }
+                    return new Message(Opcode.HISTORY, history[0], count, 0L);
+                // The receiver and the text
+                case DIRECT:
+                    String[] direct = argument.split(" ", 2);
+                    if (direct.length == 2) {
+                        return new Message(Opcode.DIRECT, direct[0], direct[1]);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        return new Message(Opcode.CHAT, line);
+    }
+
+    /**
+     * Encode a message as text protocol line/s
+     *
+     * @param message - The message to encode
+     * @return - The text without the final delimiter
+     */
+    public static String encode(Message message) {
+        switch (message.getOpcode()) {
+            case INVALID_USER:
+                return SystemCommand.INVALID_USER.getCommand();
+            case MESSAGE:
+                return message.getString(0) + ": " + message.getString(1);
+            case ROOM_MESSAGE:
+                return "[" + message.getString(0) + "] " + message.getString(1) + ": " + message.getString(2);
+            case DIRECT_MESSAGE:
+                return "(private) " + message.getString(0) + ": " + message.getString(1);
+            case HISTORY_END:
+                return String.format(Constants.HISTORY_REPLAYED, message.getInt(1), message.getString(0));
+            case ROOM_INFO:
+                return String.format(Constants.ROOM_MEMBERS, message.getString(0), message.getInt(1));
+            case DELIVERY_REPORT:
+                return String.format(Constants.MESSAGE_SENT_TO_USERS, message.getInt(0));
+            case FILE_LIST_RESULT:
+                StringBuilder stringBuilder = new StringBuilder();
+                for (String name : message.getStringList(0)) {
+                    if (stringBuilder.length() > 0) {
+                        stringBuilder.append('\n');
+                    }
+                    stringBuilder.append(name);
+                }
+                return stringBuilder.toString();
+            // Legacy clients only receive whole files - the length of the range is the number of bytes that follow
+            case FILE_UPLOAD:
+                return SystemCommand.FILE_UPLOAD.getCommand() + FIELD_SEPARATOR + message.getString(0) + FIELD_SEPARATOR + message.getLong(3);
+            case FILE_NOT_FOUND:
+                return SystemCommand.FILE_NOT_FOUND.getCommand();
+            case RATE_LIMITED:
+                return String.format(Constants.RATE_LIMITED, Opcode.fromCode((byte) message.getInt(0)));
+            case DISCONNECTED:
+                return String.format(Constants.DISCONNECTED, DisconnectReason.fromCode(message.getInt(0)));
+            default:
+                throw new IllegalArgumentException(message.getOpcode() + " has no text form");
+        }
+    }
+}
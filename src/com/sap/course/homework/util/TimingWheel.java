@@ -0,0 +1,201 @@
+package com.sap.course.homework.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel - timers in buckets by the tick they expire on, the buckets in a ring
+ *
+ * Scheduling and cancelling a timer is O(1), a tick only visits the bucket of that tick. A timer further away than
+ * one turn of the wheel stays in its bucket and is skipped until its turn comes. Timers fire on the thread that
+ * advances the wheel - a reactor between two selects, or the thread started by start. The wheel is guarded by its
+ * monitor, the tasks run without it and may schedule again.
+ *
+ * @author borislav.draganov
+ */
+
+public class TimingWheel {
+    private long tickNanos;
+    private Timeout[] buckets;
+    private int mask;
+    private long startNanos;
+
+    // The last tick that was processed
+    private long currentTick;
+    private int size;
+
+    /**
+     * Create a wheel
+     *
+     * @param tickMillis - The resolution of the timers
+     * @param wheelSize - The number of buckets, rounded up to a power of two
+     */
+    public TimingWheel(long tickMillis, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(tickMillis, 1));
+        this.buckets = new Timeout[Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1];
+        this.mask = buckets.length - 1;
+        this.startNanos = System.nanoTime();
+        this.currentTick = 0;
+        this.size = 0;
+    }
+
+    public long getTickMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Advance the wheel on a daemon thread of its own, once per tick
+     *
+     * @param name - The name of the thread
+     */
+    public void start(String name) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(tickNanos);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    advance(System.nanoTime());
+                }
+            }
+        }, name);
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run a task once the delay has passed - no sooner, at most a tick later
+     *
+     * @param task - The task, run by the thread that advances the wheel
+     * @param delayNanos - The delay in nanoseconds
+     * @return - The timer, to cancel it
+     */
+    public synchronized Timeout schedule(Runnable task, long delayNanos) {
+        long deadline = System.nanoTime() + Math.max(delayNanos, 0);
+
+        // Rounded up, the tick that is being processed is too late
+        long tick = Math.max((deadline - startNanos + tickNanos - 1) / tickNanos, currentTick + 1);
+
+        Timeout timeout = new Timeout(this, task, tick);
+        int index = (int) (tick & mask);
+        timeout.next = buckets[index];
+        if (timeout.next != null) {
+            timeout.next.previous = timeout;
+        }
+        buckets[index] = timeout;
+        size++;
+
+        return timeout;
+    }
+
+    /**
+     * Fire every timer that expired up to a time
+     *
+     * @param nowNanos - The current time from System.nanoTime
+     */
+    public void advance(long nowNanos) {
+        List<Timeout> expired = null;
+
+        synchronized (this) {
+            long targetTick = (nowNanos - startNanos) / tickNanos;
+
+            // After a long pause one turn visits every bucket
+            long ticks = Math.min(targetTick - currentTick, buckets.length);
+            for (long i = 1; i <= ticks && size > 0; i++) {
+                int index = (int) ((currentTick + i) & mask);
+
+                Timeout timeout = buckets[index];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+
+                    // The timers of a later turn stay
+                    if (timeout.tick <= targetTick) {
+                        remove(timeout);
+                        if (expired == null) {
+                            expired = new ArrayList<>();
+                        }
+                        expired.add(timeout);
+                    }
+
+                    timeout = next;
+                }
+            }
+
+            currentTick = Math.max(currentTick, targetTick);
+        }
+
+        if (expired == null) {
+            return;
+        }
+
+        for (Timeout timeout : expired) {
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private synchronized void cancel(Timeout timeout) {
+        if (timeout.wheel != null) {
+            remove(timeout);
+        }
+    }
+
+    private void remove(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            buckets[(int) (timeout.tick & mask)] = timeout.next;
+        }
+
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+
+        timeout.wheel = null;
+        timeout.previous = null;
+        timeout.next = null;
+        size--;
+    }
+
+    /**
+     * A scheduled task in the list of its bucket
+     */
+    public static class Timeout {
+        // Null once the timer fired or was cancelled
+        private TimingWheel wheel;
+        private Runnable task;
+        private long tick;
+
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(TimingWheel wheel, Runnable task, long tick) {
+            this.wheel = wheel;
+            this.task = task;
+            this.tick = tick;
+        }
+
+        /**
+         * Remove the timer from its wheel - nothing happens if it already fired
+         */
+        public void cancel() {
+            TimingWheel owner = wheel;
+            if (owner != null) {
+                owner.cancel(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.sap.course.homework.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket with a burst of one period - lock-free, one compare-and-set per acquire
+ *
+ * The bucket doesn't count its tokens, it keeps the time when it will be full again. Taking tokens moves that time
+ * ahead by their share of the period and is allowed while it stays within a period from now - a full bucket takes
+ * a whole period's tokens at once, an empty one a token per share. So the state is a single long and the threads of
+ * several reactors can share a bucket without a lock.
+ *
+ * @author borislav.draganov
+ */
+
+public class TokenBucket {
+    private long period;
+    private long interval;
+
+    // The time the bucket is full again, in System.nanoTime
+    private AtomicLong fullAt;
+
+    /**
+     * Create a full bucket
+     *
+     * @param tokens - The tokens per period, also the burst
+     * @param periodNanos - The period in nanoseconds
+     */
+    public TokenBucket(long tokens, long periodNanos) {
+        this.period = periodNanos;
+        this.interval = Math.max(periodNanos / Math.max(tokens, 1), 1);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Take tokens if the bucket has them
+     *
+     * @param tokens - The number of tokens
+     * @param now - The current time from System.nanoTime
+     * @return - 0 if the tokens were taken, otherwise the nanoseconds until the bucket has them
+     */
+    public long tryAcquire(long tokens, long now) {
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current - now, 0) + now + tokens * interval;
+
+            long over = next - now - period;
+            if (over > 0) {
+                return over;
+            }
+
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Take tokens whether the bucket has them or not - the debt is paid by the next acquires
+     *
+     * @param tokens - The number of tokens
+     * @param now - The current time from System.nanoTime
+     */
+    public void acquire(long tokens, long now) {
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current - now, 0) + now + tokens * interval;
+
+            if (fullAt.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Give back tokens that were taken but not used
+     *
+     * @param tokens - The number of tokens
+     */
+    public void release(long tokens) {
+        fullAt.addAndGet(-tokens * interval);
+    }
+
+    /**
+     * Get the time until the debt of the bucket is paid
+     *
+     * @param now - The current time from System.nanoTime
+     * @return - The nanoseconds until the bucket is not overdrawn, 0 if it isn't now
+     */
+    public long getDebt(long now) {
+        return Math.max(fullAt.get() - now - period, 0);
+    }
+
+    /**
+     * Check if the bucket has all of its tokens - a full bucket is the same as a new one
+     *
+     * @param now - The current time from System.nanoTime
+     * @return - true if the bucket is full, false otherwise
+     */
+    public boolean isFull(long now) {
+        return fullAt.get() - now <= 0;
+    }
+}
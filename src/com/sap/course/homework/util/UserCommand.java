@@ -8,7 +8,12 @@ package com.sap.course.homework.util;
 
 public enum UserCommand {
     FILE_DOWNLOAD("/download"),
-    FILE_LIST("/fileList");
+    FILE_LIST("/fileList"),
+    ROOM_JOIN("/join"),
+    ROOM_LEAVE("/leave"),
+    ROOM_POST("/room"),
+    DIRECT("/msg"),
+    HISTORY("/history");
 
     private String command;
 
@@ -20,6 +25,32 @@ public enum UserCommand {
         return command;
     }
 
+    /**
+     * Find the command a string starts with
+     *
+     * @param str - The string to be checked
+     * @return - The command or null if the string doesn't start with a user command
+     */
+    public static UserCommand fromString(String str) {
+        for (UserCommand command : UserCommand.values()) {
+            if (str.startsWith(command.getCommand())) {
+                return command;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the text after the command
+     *
+     * @param str - A string that starts with the command
+     * @return - The trimmed argument, empty if there is none
+     */
+    public String getArgument(String str) {
+        return str.substring(command.length()).trim();
+    }
+
     /**
      * Check a string if it's one of the commands
      *
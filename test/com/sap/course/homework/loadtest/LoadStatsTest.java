@@ -0,0 +1,65 @@
+package com.sap.course.homework.loadtest;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the latency check of the load test - the chat latency while downloads are running
+ *
+ * @author borislav.draganov
+ */
+
+public class LoadStatsTest {
+    private static final long LIMIT = TimeUnit.MILLISECONDS.toNanos(50);
+
+    @Test
+    public void checksAllMessagesWithoutTransfers() {
+        LoadStats stats = new LoadStats();
+        stats.received(100, TimeUnit.MILLISECONDS.toNanos(1));
+
+        assertNull(stats.checkLatency(LIMIT, false));
+
+        // More than 1% of the messages were late
+        stats.received(100, TimeUnit.SECONDS.toNanos(1));
+        assertNotNull(stats.checkLatency(LIMIT, false));
+    }
+
+    @Test
+    public void checksTheMessagesReceivedDuringDownloads() {
+        LoadStats stats = new LoadStats();
+
+        // A late message before any download doesn't count
+        stats.received(100, TimeUnit.SECONDS.toNanos(1));
+
+        stats.downloadStarted();
+        for (int i = 0; i < 1000; i++) {
+            stats.received(100, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        stats.downloadEnded();
+
+        assertNull(stats.checkLatency(LIMIT, true));
+
+        stats.downloadStarted();
+        for (int i = 0; i < 100; i++) {
+            stats.received(100, TimeUnit.SECONDS.toNanos(1));
+        }
+        stats.downloadEnded();
+
+        String failure = stats.checkLatency(LIMIT, true);
+        assertNotNull(failure);
+        assertTrue(failure, failure.contains("during downloads"));
+    }
+
+    @Test
+    public void failsWithoutMessagesDuringDownloads() {
+        LoadStats stats = new LoadStats();
+        stats.received(100, TimeUnit.MILLISECONDS.toNanos(1));
+
+        assertNotNull(stats.checkLatency(LIMIT, true));
+    }
+}
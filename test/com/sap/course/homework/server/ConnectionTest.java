@@ -0,0 +1,140 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.Constants;
+import com.sap.course.homework.util.Frame;
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.Opcode;
+import com.sap.course.homework.util.Protocol;
+import com.sap.course.homework.util.TimingWheel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the bounded outbound queue of a connection to a client that never reads
+ *
+ * @author borislav.draganov
+ */
+
+public class ConnectionTest {
+    private SocketChannel client;
+    private SocketChannel server;
+    private TestOwner owner;
+    private Connection connection;
+
+    @Before
+    public void setUp() throws IOException {
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        client = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        server = serverSocketChannel.accept();
+        serverSocketChannel.close();
+
+        owner = new TestOwner();
+
+        // Without a selection key nothing is written - the client never reads
+        connection = new Connection(owner, server, null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        connection.close();
+        client.close();
+    }
+
+    @Test
+    public void dropsChatFramesPastTheBound() throws IOException {
+        long totalBytes = OutboundBudget.getDefault().getTotalBytes();
+        Frame frame = Frame.encode(new Message(Opcode.MESSAGE, "alice", "hello", 0L), Protocol.TEXT);
+
+        int queued = 0;
+        for (int i = 0; i < Constants.OUTBOUND_MAX_FRAMES + 100; i++) {
+            if (connection.enqueueChat(frame)) {
+                queued++;
+            }
+        }
+
+        // Drop oldest - every new frame is queued, the oldest ones make room for it
+        assertEquals(Constants.OUTBOUND_MAX_FRAMES + 100, queued);
+        assertEquals(100, owner.metrics.getDroppedFrames());
+        assertEquals(totalBytes + (long) Constants.OUTBOUND_MAX_FRAMES * frame.size(), OutboundBudget.getDefault().getTotalBytes());
+        assertEquals(0, owner.disconnects);
+
+        connection.close();
+        assertEquals(totalBytes, OutboundBudget.getDefault().getTotalBytes());
+        frame.release();
+    }
+
+    @Test
+    public void disconnectsAClientThatDoesNotReadItsAnswers() {
+        Frame frame = Frame.encode(new Message(Opcode.DELIVERY_REPORT, 1), Protocol.TEXT);
+        int hardBound = Constants.OUTBOUND_MAX_FRAMES * Constants.OUTBOUND_CONTROL_FACTOR;
+
+        for (int i = 0; i < hardBound; i++) {
+            assertTrue(connection.enqueue(frame));
+        }
+        assertEquals(0, owner.disconnects);
+
+        // One past the hard bound
+        assertTrue(connection.enqueue(frame));
+        assertEquals(1, owner.disconnects);
+        assertEquals(1, owner.metrics.getSlowConsumers());
+
+        // Nothing more is queued until the owner closes the connection
+        assertFalse(connection.enqueue(frame));
+        assertFalse(connection.enqueueChat(frame));
+        frame.release();
+    }
+
+    /**
+     * Owner of the connection in the test's thread - the disconnects are only counted
+     */
+    private static class TestOwner implements ConnectionOwner {
+        private ServerMetrics metrics = new ServerMetrics(new SessionRegistry());
+        private int disconnects;
+
+        @Override
+        public ServerMetrics getMetrics() {
+            return metrics;
+        }
+
+        @Override
+        public boolean inOwnerThread() {
+            return true;
+        }
+
+        @Override
+        public void requestFlush(Connection connection) {
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public void disconnect(Connection connection) {
+            disconnects++;
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public TimingWheel getTimers() {
+            return null;
+        }
+    }
+}
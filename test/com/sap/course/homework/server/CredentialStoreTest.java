@@ -0,0 +1,114 @@
+package com.sap.course.homework.server;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the password hashes and their append-only log
+ *
+ * @author borislav.draganov
+ */
+
+public class CredentialStoreTest {
+    private static final int ITERATIONS = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+
+    @Before
+    public void setUp() {
+        path = folder.getRoot().toPath().resolve("users.txt");
+    }
+
+    @Test
+    public void registersUnknownUsers() throws IOException {
+        CredentialStore store = new CredentialStore(path.toString(), ITERATIONS);
+
+        assertFalse(store.isRegistered("alice"));
+        assertTrue(store.authenticate("alice", "secret"));
+        assertTrue(store.isRegistered("alice"));
+        assertTrue(store.authenticate("alice", "secret"));
+        assertFalse(store.authenticate("alice", "wrong"));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void keepsOnlyHashes() throws IOException {
+        new CredentialStore(path.toString(), ITERATIONS).authenticate("alice", "secret");
+
+        String log = read();
+        assertTrue(log.startsWith("alice:$pbkdf2-sha256$" + ITERATIONS + "$"));
+        assertFalse(log.contains("secret"));
+
+        // Another server reads the same log
+        CredentialStore reopened = new CredentialStore(path.toString(), ITERATIONS);
+        assertTrue(reopened.authenticate("alice", "secret"));
+        assertFalse(reopened.authenticate("alice", "wrong"));
+    }
+
+    @Test
+    public void hashesPlainTextPasswords() throws IOException {
+        write("alice:secret\nbob:other\n");
+
+        CredentialStore store = new CredentialStore(path.toString(), ITERATIONS);
+
+        assertTrue(store.authenticate("alice", "secret"));
+        assertFalse(store.authenticate("bob", "secret"));
+        assertFalse(read().contains("secret"));
+    }
+
+    @Test
+    public void dropsATornLastLine() throws IOException {
+        new CredentialStore(path.toString(), ITERATIONS).authenticate("alice", "secret");
+        Files.write(path, "bob:$pbkdf2-sha256$1000$".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        CredentialStore store = new CredentialStore(path.toString(), ITERATIONS);
+
+        assertTrue(store.isRegistered("alice"));
+        assertFalse(store.isRegistered("bob"));
+        assertTrue(read().endsWith("\n"));
+    }
+
+    @Test
+    public void rehashesWithMoreIterations() throws IOException {
+        new CredentialStore(path.toString(), ITERATIONS).authenticate("alice", "secret");
+
+        CredentialStore stronger = new CredentialStore(path.toString(), 2 * ITERATIONS);
+        assertTrue(stronger.authenticate("alice", "secret"));
+
+        assertTrue(new CredentialStore(path.toString(), 2 * ITERATIONS).authenticate("alice", "secret"));
+        assertTrue(read().startsWith("alice:$pbkdf2-sha256$" + 2 * ITERATIONS + "$"));
+    }
+
+    @Test
+    public void rejectsInvalidCredentials() throws IOException {
+        CredentialStore store = new CredentialStore(path.toString(), ITERATIONS);
+
+        assertFalse(store.authenticate("", "secret"));
+        assertFalse(store.authenticate("a:b", "secret"));
+        assertFalse(store.authenticate("alice", ""));
+        assertEquals(0, store.size());
+    }
+
+    private String read() throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+
+    private void write(String lines) throws IOException {
+        Files.write(path, lines.getBytes(StandardCharsets.UTF_8));
+    }
+}
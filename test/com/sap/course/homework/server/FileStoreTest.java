@@ -0,0 +1,138 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.ContentHash;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the uploads of the file store - interrupted, continued and stored once per content
+ *
+ * @author borislav.draganov
+ */
+
+public class FileStoreTest {
+    private static final byte[] CONTENT = "0123456789".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new FileStore(folder.getRoot().getPath());
+    }
+
+    @Test
+    public void resumesAnInterruptedUpload() throws IOException {
+        Upload upload = store.openUpload("a.txt", CONTENT.length, 0, CONTENT.length);
+        upload.write(ByteBuffer.wrap(CONTENT, 0, 4));
+        store.abortUpload(upload);
+
+        assertNull(store.resolve("a.txt"));
+        assertArrayEquals(new long[] { 10, 4 }, store.status("a.txt"));
+
+        // Another store of the same directory, e.g. after a restart
+        store = new FileStore(folder.getRoot().getPath());
+        upload = store.openUpload("a.txt", CONTENT.length, 4, 6);
+        upload.write(ByteBuffer.wrap(CONTENT, 4, 6));
+        store.finishUpload(upload);
+
+        File file = store.resolve("a.txt");
+        assertArrayEquals(CONTENT, Files.readAllBytes(file.toPath()));
+        assertArrayEquals(new long[] { 10, 10 }, store.status("a.txt"));
+
+        // The hash of the continued upload covers the part received before
+        String hash = ContentHash.of(file);
+        assertArrayEquals(new long[] { 10, 10 }, store.announce("b.txt", CONTENT.length, hash));
+        assertArrayEquals(CONTENT, Files.readAllBytes(store.resolve("b.txt").toPath()));
+    }
+
+    @Test
+    public void continuesWithinTheReceivedPart() throws IOException {
+        Upload upload = store.openUpload("a.txt", CONTENT.length, 0, CONTENT.length);
+        upload.write(ByteBuffer.wrap(CONTENT, 0, 6));
+        store.abortUpload(upload);
+
+        // The client resends a part the server already has
+        upload = store.openUpload("a.txt", CONTENT.length, 2, 8);
+        upload.write(ByteBuffer.wrap(CONTENT, 2, 8));
+        store.finishUpload(upload);
+
+        assertArrayEquals(CONTENT, Files.readAllBytes(store.resolve("a.txt").toPath()));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsAGapAfterTheReceivedPart() throws IOException {
+        Upload upload = store.openUpload("a.txt", CONTENT.length, 0, CONTENT.length);
+        upload.write(ByteBuffer.wrap(CONTENT, 0, 4));
+        store.abortUpload(upload);
+
+        store.openUpload("a.txt", CONTENT.length, 6, 4);
+    }
+
+    @Test
+    public void startsOverForAnotherSize() throws IOException {
+        Upload upload = store.openUpload("a.txt", CONTENT.length, 0, CONTENT.length);
+        upload.write(ByteBuffer.wrap(CONTENT, 0, 4));
+        store.abortUpload(upload);
+
+        upload = store.openUpload("a.txt", 20, 0, 20);
+        assertArrayEquals(new long[] { 20, 0 }, store.status("a.txt"));
+        store.abortUpload(upload);
+    }
+
+    @Test
+    public void opensOneUploadOfANameAtATime() throws IOException {
+        Upload upload = store.openUpload("a.txt", CONTENT.length, 0, CONTENT.length);
+
+        try {
+            store.openUpload("a.txt", CONTENT.length, 0, CONTENT.length);
+            fail("Two uploads share the partial file");
+        } catch (ProtocolException e) {
+            // Expected
+        }
+
+        // Another name is not affected
+        store.abortUpload(store.openUpload("b.txt", CONTENT.length, 0, CONTENT.length));
+
+        store.abortUpload(upload);
+        store.abortUpload(store.openUpload("a.txt", CONTENT.length, 0, CONTENT.length));
+    }
+
+    @Test
+    public void storesTheSameContentOnce() throws IOException {
+        upload("a.txt");
+        upload("b.txt");
+
+        File blobs = new File(folder.getRoot(), ".blobs");
+        assertEquals(1, blobs.listFiles().length);
+        assertTrue(new File(blobs, ContentHash.of(store.resolve("a.txt"))).isFile());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsHiddenNames() throws IOException {
+        store.openUpload(".index", CONTENT.length, 0, CONTENT.length);
+    }
+
+    private void upload(String name) throws IOException {
+        Upload upload = store.openUpload(name, CONTENT.length, 0, CONTENT.length);
+        upload.write(ByteBuffer.wrap(CONTENT));
+        store.finishUpload(upload);
+    }
+}
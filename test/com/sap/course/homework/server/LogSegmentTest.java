@@ -0,0 +1,113 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.MessageCodec;
+import com.sap.course.homework.util.Opcode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the recovery of a segment file - the data ends at the last complete frame
+ *
+ * @author borislav.draganov
+ */
+
+public class LogSegmentTest {
+    private static final int CAPACITY = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoversTheAppendedFrames() throws IOException {
+        File dir = folder.getRoot();
+        int size = append(dir, 3);
+
+        LogSegment segment = LogSegment.open(dir, 0, true);
+        assertEquals(3, segment.getCount());
+        assertEquals(size, segment.getSize());
+
+        // Appends continue after the recovered frames
+        assertTrue(segment.append(frame(3), 0));
+        assertEquals(4, segment.getEndOffset());
+        assertEquals(size, segment.position(3));
+    }
+
+    @Test
+    public void ignoresAFrameWithoutItsLength() throws IOException {
+        File dir = folder.getRoot();
+        int size = append(dir, 3);
+
+        // The body of a frame was written but not its length prefix
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, LogSegment.fileName(0, LogSegment.LOG_SUFFIX)), "rw")) {
+            file.seek(size + MessageCodec.LENGTH_SIZE);
+            file.write(new byte[] { Opcode.ROOM_MESSAGE.getCode(), 1, 2, 3 });
+        }
+
+        LogSegment segment = LogSegment.open(dir, 0, false);
+        assertEquals(3, segment.getCount());
+        assertEquals(size, segment.getSize());
+    }
+
+    @Test
+    public void stopsAtAFrameCutByTheEndOfTheFile() throws IOException {
+        File dir = folder.getRoot();
+        int size = append(dir, 3);
+        int lastFrame = frame(2).remaining();
+
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, LogSegment.fileName(0, LogSegment.LOG_SUFFIX)), "rw")) {
+            file.setLength(size - 1);
+        }
+
+        LogSegment segment = LogSegment.open(dir, 0, false);
+        assertEquals(2, segment.getCount());
+        assertEquals(size - lastFrame, segment.getSize());
+    }
+
+    @Test
+    public void rejectsFramesPastTheCapacity() throws IOException {
+        LogSegment segment = LogSegment.create(folder.getRoot(), 0, 64);
+
+        assertTrue(segment.append(frame(0), 0));
+        assertFalse(segment.append(frame(1), 0));
+        assertEquals(1, segment.getCount());
+    }
+
+    @Test
+    public void deletesTheFilesWithTheLastReference() throws IOException {
+        LogSegment segment = LogSegment.create(folder.getRoot(), 0, CAPACITY);
+        segment.seal();
+
+        assertTrue(segment.acquire());
+        segment.release();
+        assertTrue(segment.getFile().exists());
+
+        segment.release();
+        assertFalse(segment.getFile().exists());
+        assertFalse(segment.acquire());
+    }
+
+    private static int append(File dir, int count) throws IOException {
+        LogSegment segment = LogSegment.create(dir, 0, CAPACITY);
+        for (int i = 0; i < count; i++) {
+            assertTrue(segment.append(frame(i), i));
+        }
+        segment.seal();
+
+        return segment.getSize();
+    }
+
+    private static ByteBuffer frame(int i) {
+        return MessageCodec.encode(new Message(Opcode.ROOM_MESSAGE, "room", "user", "message " + i, (long) i));
+    }
+}
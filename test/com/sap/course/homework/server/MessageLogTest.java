@@ -0,0 +1,128 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.MessageCodec;
+import com.sap.course.homework.util.Opcode;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the segments of a room's log, its retention and the replays reading it meanwhile
+ *
+ * @author borislav.draganov
+ */
+
+public class MessageLogTest {
+    // A few frames per segment
+    private static final int SEGMENT_SIZE = 256;
+    private static final int MESSAGES = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private MessageLog log;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.getRoot();
+        log = new MessageLog(dir, SEGMENT_SIZE);
+
+        for (int i = 0; i < MESSAGES; i++) {
+            assertEquals(i, log.append(frame(i), i));
+        }
+        log.flush();
+    }
+
+    @Test
+    public void reopensTheSegments() throws IOException {
+        MessageLog reopened = new MessageLog(dir, SEGMENT_SIZE);
+
+        assertEquals(0, reopened.getStartOffset());
+        assertEquals(MESSAGES, reopened.getEndOffset());
+        assertEquals(log.getSize(), reopened.getSize());
+
+        // Appended to the last segment
+        assertEquals(MESSAGES, reopened.append(frame(MESSAGES), MESSAGES));
+    }
+
+    @Test
+    public void replaysARange() throws IOException {
+        HistoryReplay replay = new HistoryReplay(log, "room", 5, MESSAGES);
+
+        assertEquals(MESSAGES - 5, countMessages(replay, 5, MESSAGES));
+        assertTrue(replay.isComplete());
+        assertEquals(MESSAGES - 5, replay.getSent());
+    }
+
+    @Test
+    public void keepsTheSegmentOfAReplayPastTheRetention() throws IOException {
+        HistoryReplay replay = new HistoryReplay(log, "room", 0, MESSAGES);
+        ByteBuffer first = replay.nextFrames(1);
+        LogSegment segment = log.segmentFor(0);
+
+        assertTrue(log.retain(Long.MAX_VALUE, 0) > 0);
+        assertTrue(log.getStartOffset() > 0);
+        assertNull(log.segmentFor(0));
+        assertTrue(segment.getFile().exists());
+
+        // The rest of the segment is still sent, then the replay skips to the kept messages
+        assertEquals(0, decode(first).getLong(3));
+        assertEquals(segment.getCount() - 1, countMessages(replay, 1, segment.getEndOffset()));
+        assertEquals(MESSAGES - log.getStartOffset(), countMessages(replay, log.getStartOffset(), MESSAGES));
+        assertTrue(replay.isComplete());
+
+        replay.close();
+        assertFalse(segment.getFile().exists());
+    }
+
+    @Test
+    public void skipsTheMessagesDroppedBeforeTheReplayStarted() throws IOException {
+        HistoryReplay replay = new HistoryReplay(log, "room", 0, MESSAGES);
+
+        log.retain(Long.MAX_VALUE, 0);
+
+        assertEquals(MESSAGES - log.getStartOffset(), countMessages(replay, log.getStartOffset(), MESSAGES));
+        replay.close();
+    }
+
+    /**
+     * Read consecutive messages of a replay frame by frame
+     *
+     * @param replay - The replay
+     * @param startOffset - The offset of the first message, the frames have it as their timestamp
+     * @param endOffset - The offset after the last message
+     * @return - The number of frames read
+     */
+    private static int countMessages(HistoryReplay replay, long startOffset, long endOffset) throws IOException {
+        int count = 0;
+
+        for (long offset = startOffset; offset < endOffset; offset++) {
+            ByteBuffer frames = replay.nextFrames(1);
+            assertEquals(offset, decode(frames).getLong(3));
+            count++;
+        }
+
+        return count;
+    }
+
+    private static Message decode(ByteBuffer frame) throws IOException {
+        frame.position(MessageCodec.LENGTH_SIZE);
+        return MessageCodec.decode(frame.slice());
+    }
+
+    private static ByteBuffer frame(int i) {
+        return MessageCodec.encode(new Message(Opcode.ROOM_MESSAGE, "room", "user", "message " + i, (long) i));
+    }
+}
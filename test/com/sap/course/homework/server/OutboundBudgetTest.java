@@ -0,0 +1,64 @@
+package com.sap.course.homework.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the bounds of the outbound queues
+ *
+ * @author borislav.draganov
+ */
+
+public class OutboundBudgetTest {
+
+    @Test
+    public void boundsTheFramesAndBytesOfAQueue() {
+        OutboundBudget budget = new OutboundBudget(10, 1000, 4, 1000000);
+
+        assertTrue(budget.fits(10, 1000));
+        assertFalse(budget.fits(11, 100));
+        assertFalse(budget.fits(2, 1001));
+    }
+
+    @Test
+    public void alwaysFitsTheFirstFrame() {
+        OutboundBudget budget = new OutboundBudget(10, 1000, 4, 1000000);
+
+        assertTrue(budget.fits(1, 64 * 1024));
+    }
+
+    @Test
+    public void overfillsAtTheControlFactor() {
+        OutboundBudget budget = new OutboundBudget(10, 1000, 4, 1000000);
+
+        assertFalse(budget.isOverfilled(40, 4000));
+        assertTrue(budget.isOverfilled(41, 100));
+        assertTrue(budget.isOverfilled(2, 4001));
+    }
+
+    @Test
+    public void doesNotOverflowWithLargeBounds() {
+        OutboundBudget budget = new OutboundBudget(Integer.MAX_VALUE, Long.MAX_VALUE / 8, 4, Long.MAX_VALUE);
+
+        assertFalse(budget.isOverfilled(Integer.MAX_VALUE, Long.MAX_VALUE / 8));
+    }
+
+    @Test
+    public void sharesTheTotalBytes() {
+        OutboundBudget budget = new OutboundBudget(10, 1000, 4, 1000);
+
+        assertTrue(budget.tryReserve(600));
+        assertFalse(budget.tryReserve(600));
+
+        // The frames that are always queued may overdraw it
+        budget.reserve(600);
+        assertEquals(1200, budget.getTotalBytes());
+        assertFalse(budget.tryReserve(1));
+
+        budget.release(1200);
+        assertTrue(budget.tryReserve(1000));
+    }
+}
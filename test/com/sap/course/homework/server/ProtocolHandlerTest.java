@@ -0,0 +1,347 @@
+package com.sap.course.homework.server;
+
+import com.sap.course.homework.util.Constants;
+import com.sap.course.homework.util.ContentHash;
+import com.sap.course.homework.util.Message;
+import com.sap.course.homework.util.MessageCodec;
+import com.sap.course.homework.util.Opcode;
+import com.sap.course.homework.util.TimingWheel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the file requests of the protocol handler - the disk work runs on the file threads, the answers on the
+ * connection's owner, which is the test's thread
+ *
+ * @author borislav.draganov
+ */
+
+public class ProtocolHandlerTest {
+    private static final byte[] CONTENT = "0123456789".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File fileDir;
+    private SocketChannel client;
+    private SocketChannel server;
+    private TestOwner owner;
+    private ProtocolHandler handler;
+    private Connection connection;
+
+    @Before
+    public void setUp() throws IOException {
+        fileDir = folder.newFolder("files");
+
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        client = SocketChannel.open(serverSocketChannel.getLocalAddress());
+        server = serverSocketChannel.accept();
+        serverSocketChannel.close();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) {
+            connection.close();
+        }
+        client.close();
+    }
+
+    @Test
+    public void answersAnnouncesOnTheOwnerAfterTheFileThreads() throws Exception {
+        FileStore store = new FileStore(fileDir.getPath());
+        Upload upload = store.openUpload("a.txt", CONTENT.length, 0, CONTENT.length);
+        upload.write(ByteBuffer.wrap(CONTENT));
+        store.finishUpload(upload);
+        String hash = ContentHash.of(store.resolve("a.txt"));
+
+        open();
+
+        // Both in one read - the status request waits for the answer to the announce
+        send(new Message(Opcode.FILE_ANNOUNCE, "b.txt", (long) CONTENT.length, hash),
+                new Message(Opcode.FILE_STATUS, "b.txt"));
+        serve();
+        assertTrue(connection.isReadsSuspended());
+
+        owner.runNext();
+        assertFileStatus("b.txt", CONTENT.length, CONTENT.length, receive());
+        assertTrue(connection.isReadsSuspended());
+
+        owner.runNext();
+        assertFileStatus("b.txt", CONTENT.length, CONTENT.length, receive());
+        assertFalse(connection.isReadsSuspended());
+    }
+
+    @Test
+    public void closesTheConnectionWhenAnAnnounceFails() throws Exception {
+        open();
+
+        send(new Message(Opcode.FILE_ANNOUNCE, ".hidden", (long) CONTENT.length, "00"));
+        serve();
+
+        owner.runNext();
+        assertTrue(connection.isClosed());
+    }
+
+    @Test
+    public void opensDownloadsOnTheFileThreads() throws Exception {
+        FileStore store = new FileStore(fileDir.getPath());
+        Upload upload = store.openUpload("a.txt", CONTENT.length, 0, CONTENT.length);
+        upload.write(ByteBuffer.wrap(CONTENT));
+        store.finishUpload(upload);
+
+        open();
+
+        send(new Message(Opcode.FILE_DOWNLOAD, "a.txt", 2L, 4L));
+        serve();
+        assertTrue(connection.isReadsSuspended());
+        assertFalse(connection.isDownloading());
+
+        owner.runNext();
+        Message header = receive();
+        assertEquals(Opcode.FILE_UPLOAD, header.getOpcode());
+        assertEquals("a.txt", header.getString(0));
+        assertEquals(CONTENT.length, header.getLong(1));
+        assertEquals(2L, header.getLong(2));
+        assertEquals(4L, header.getLong(3));
+
+        ByteBuffer range = ByteBuffer.allocate(4);
+        readFully(range);
+        assertEquals("2345", new String(range.array(), StandardCharsets.UTF_8));
+        assertTrue(connection.isClosed());
+    }
+
+    @Test
+    public void answersDownloadsOfMissingFiles() throws Exception {
+        open();
+
+        send(new Message(Opcode.FILE_DOWNLOAD, "missing.txt", 0L, -1L));
+        serve();
+
+        owner.runNext();
+        Message answer = receive();
+        assertEquals(Opcode.FILE_NOT_FOUND, answer.getOpcode());
+        assertEquals("missing.txt", answer.getString(0));
+        assertTrue(connection.isClosed());
+    }
+
+    @Test
+    public void keepsAResumeThatIsOpeningPastTheLoginTimeout() throws Exception {
+        FileStore store = new FileStore(fileDir.getPath());
+        Upload upload = store.openUpload("a.txt", CONTENT.length, 0, CONTENT.length);
+        upload.write(ByteBuffer.wrap(CONTENT, 0, 4));
+        store.abortUpload(upload);
+
+        open();
+        IdleTimer timer = new IdleTimer(handler, connection);
+
+        send(new Message(Opcode.FILE_UPLOAD, "a.txt", (long) CONTENT.length, 4L, 6L));
+        serve();
+        assertTrue(handler.isWaitingForFiles(connection));
+
+        // The received part is hashed for longer than a client may stay without a login
+        long opened = System.nanoTime() + TimeUnit.SECONDS.toNanos(Constants.LOGIN_TIMEOUT_SECONDS +
+                Constants.TRANSFER_TIMEOUT_SECONDS + Constants.IDLE_TIMEOUT_SECONDS);
+        assertTrue(timer.check(opened) > 0);
+        assertFalse(connection.isClosed());
+
+        // The transfer timeout starts when the upload is open
+        owner.runNext();
+        assertFalse(handler.isWaitingForFiles(connection));
+        assertTrue(handler.isUploading(connection));
+        assertTrue(timer.check(System.nanoTime() + TimeUnit.SECONDS.toNanos(1)) > 0);
+        assertFalse(connection.isClosed());
+
+        client.write(ByteBuffer.wrap(CONTENT, 4, 6));
+        while (handler.isUploading(connection)) {
+            serve();
+        }
+
+        owner.runNext();
+        assertTrue(connection.isClosed());
+        assertArrayEquals(CONTENT, Files.readAllBytes(store.resolve("a.txt").toPath()));
+    }
+
+    @Test
+    public void reapsAStalledUploadAfterTheTransferTimeout() throws Exception {
+        open();
+        IdleTimer timer = new IdleTimer(handler, connection);
+
+        send(new Message(Opcode.FILE_UPLOAD, "a.txt", (long) CONTENT.length, 0L, (long) CONTENT.length));
+        serve();
+        owner.runNext();
+
+        timer.check(System.nanoTime() + TimeUnit.SECONDS.toNanos(Constants.TRANSFER_TIMEOUT_SECONDS + 1));
+        assertTrue(connection.isClosed());
+        assertEquals(1, handler.getMetrics().getReapedTransfers());
+    }
+
+    /**
+     * Create the handler and open the connection of the client
+     *
+     * @throws IOException
+     */
+    private void open() throws IOException {
+        handler = new ProtocolHandler(fileDir.getPath(), folder.newFolder("history").getPath(),
+                new File(folder.getRoot(), "users.txt").getPath());
+        owner = new TestOwner(handler.getMetrics());
+        connection = new Connection(owner, server, null);
+        handler.connectionOpened(connection, client.getLocalAddress());
+
+        // The server confirms the binary protocol
+        client.write(MessageCodec.handshake());
+        serve();
+        flush();
+        readFully(ByteBuffer.allocate(MessageCodec.HANDSHAKE_SIZE));
+    }
+
+    /**
+     * Send messages in a single write, so the server reads them together
+     *
+     * @param messages - The messages
+     * @throws IOException
+     */
+    private void send(Message... messages) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            buffers[i] = MessageCodec.encode(messages[i]);
+        }
+
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            client.write(buffers);
+        }
+    }
+
+    /**
+     * Read once on the server and handle what arrived, like the owner does
+     *
+     * @throws IOException
+     */
+    private void serve() throws IOException {
+        handler.handleRead(connection, handler.read(connection));
+    }
+
+    /**
+     * Write what the server queued and read a message of it on the client
+     *
+     * @return - The message
+     * @throws IOException
+     */
+    private Message receive() throws IOException {
+        flush();
+
+        ByteBuffer length = ByteBuffer.allocate(MessageCodec.LENGTH_SIZE);
+        readFully(length);
+
+        ByteBuffer body = ByteBuffer.allocate(length.getInt(0));
+        readFully(body);
+        body.flip();
+
+        return MessageCodec.decode(body);
+    }
+
+    private void flush() throws IOException {
+        while (!connection.flush()) {
+            // The whole queue
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (client.read(buffer) < 0) {
+                throw new IOException("Closed by the server");
+            }
+        }
+    }
+
+    private static void assertFileStatus(String name, long size, long received, Message message) {
+        assertEquals(Opcode.FILE_STATUS_RESULT, message.getOpcode());
+        assertEquals(name, message.getString(0));
+        assertEquals(size, message.getLong(1));
+        assertEquals(received, message.getLong(2));
+    }
+
+    /**
+     * Owner of the connection in the test's thread - the tasks of other threads wait until the test runs them
+     */
+    private static class TestOwner implements ConnectionOwner {
+        private ServerMetrics metrics;
+        private TimingWheel timers;
+        private BlockingQueue<Runnable> tasks;
+
+        private TestOwner(ServerMetrics metrics) {
+            this.metrics = metrics;
+
+            // Never advanced - the tests run the idle checks themselves
+            this.timers = new TimingWheel(100, 16);
+            this.tasks = new LinkedBlockingQueue<>();
+        }
+
+        /**
+         * Run the next task of another thread
+         *
+         * @throws InterruptedException
+         */
+        private void runNext() throws InterruptedException {
+            Runnable task = tasks.poll(10, TimeUnit.SECONDS);
+            assertNotNull(task);
+            task.run();
+        }
+
+        @Override
+        public ServerMetrics getMetrics() {
+            return metrics;
+        }
+
+        @Override
+        public boolean inOwnerThread() {
+            return true;
+        }
+
+        @Override
+        public void requestFlush(Connection connection) {
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        @Override
+        public void disconnect(Connection connection) {
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public TimingWheel getTimers() {
+            return timers;
+        }
+    }
+}
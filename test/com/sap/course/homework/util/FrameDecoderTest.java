@@ -0,0 +1,128 @@
+package com.sap.course.homework.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests of the per-connection frame decoder
+ *
+ * @author borislav.draganov
+ */
+
+public class FrameDecoderTest {
+    private BufferPool pool;
+    private FrameDecoder decoder;
+
+    @Before
+    public void setUp() {
+        pool = new BufferPool(1024 * 1024, false);
+        decoder = new FrameDecoder(pool);
+    }
+
+    @After
+    public void tearDown() {
+        decoder.release();
+    }
+
+    @Test
+    public void decodesBinaryFramesSplitAcrossReads() throws IOException {
+        ByteBuffer frame = MessageCodec.encode(new Message(Opcode.CHAT, "hello"));
+        byte[] bytes = concat(toArray(MessageCodec.handshake()), toArray(frame));
+
+        // The handshake and half of the frame
+        feed(Arrays.copyOfRange(bytes, 0, 5));
+        assertEquals(Opcode.HANDSHAKE, decoder.nextMessage().getOpcode());
+        assertEquals(Protocol.BINARY, decoder.getProtocol());
+        assertNull(decoder.nextMessage());
+
+        feed(Arrays.copyOfRange(bytes, 5, bytes.length));
+        Message message = decoder.nextMessage();
+        assertEquals(Opcode.CHAT, message.getOpcode());
+        assertEquals("hello", message.getString(0));
+        assertNull(decoder.nextMessage());
+        assertEquals(0, decoder.remaining());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsBinaryFramesOverTheMaximumSize() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(MessageCodec.HANDSHAKE_SIZE + MessageCodec.LENGTH_SIZE);
+        header.put(MessageCodec.handshake()).putInt(Constants.MAX_FRAME_SIZE + 1);
+
+        feed(header.array());
+        decoder.nextMessage();
+        decoder.nextMessage();
+    }
+
+    @Test
+    public void decodesTextLinesSplitAcrossReads() throws IOException {
+        byte[] bytes = "hello\n/join java\nlast".getBytes(Constants.UTF_ENCODING);
+
+        feed(Arrays.copyOfRange(bytes, 0, 3));
+        assertNull(decoder.nextMessage());
+        assertEquals(Protocol.TEXT, decoder.getProtocol());
+
+        // The rest of the first line and a whole second one in the same read
+        feed(Arrays.copyOfRange(bytes, 3, bytes.length));
+        assertEquals("hello", decoder.nextMessage().getString(0));
+        assertEquals(Opcode.ROOM_JOIN, decoder.nextMessage().getOpcode());
+        assertNull(decoder.nextMessage());
+
+        // The partial line is kept for the next read
+        assertEquals(4, decoder.remaining());
+        feed(new byte[] { '\n' });
+        assertEquals("last", decoder.nextMessage().getString(0));
+        assertEquals(0, decoder.remaining());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTextLinesOverTheMaximumSize() throws IOException {
+        byte[] line = new byte[Constants.MAX_FRAME_SIZE + 1];
+        Arrays.fill(line, (byte) 'x');
+
+        feed(line);
+        decoder.nextMessage();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsTextLinesThatDecodeToMoreThanAFrame() throws IOException {
+        // Every invalid byte becomes a replacement character of 3 bytes
+        byte[] line = new byte[30000];
+        Arrays.fill(line, (byte) 0xFF);
+        line[0] = 'x';
+        line[line.length - 1] = '\n';
+
+        feed(line);
+        decoder.nextMessage();
+    }
+
+    private void feed(byte[] bytes) throws IOException {
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(bytes));
+        while (decoder.read(channel) >= 0) {
+            // Until the end of the bytes
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+}
@@ -0,0 +1,74 @@
+package com.sap.course.homework.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the lock-free latency histogram
+ *
+ * @author borislav.draganov
+ */
+
+public class LatencyHistogramTest {
+    // A value is off by at most 1/16 of itself
+    private static final double ERROR = 1.0 / 16;
+
+    @Test
+    public void isEmptyAtFirst() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void keepsSmallValuesExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 16; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(16, histogram.getCount());
+        assertEquals(7, histogram.getPercentile(50));
+        assertEquals(15, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void boundsTheErrorOfPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertClose(500000, histogram.getPercentile(50));
+        assertClose(990000, histogram.getPercentile(99));
+        assertEquals(1000000, histogram.getMax());
+        assertTrue(histogram.getPercentile(100) <= histogram.getMax());
+    }
+
+    @Test
+    public void recordsNegativeValuesAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void recordsTheLongestDurations() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(50));
+    }
+
+    private static void assertClose(long expected, long actual) {
+        assertTrue(actual + " is not close to " + expected, Math.abs(actual - expected) <= expected * ERROR);
+    }
+}
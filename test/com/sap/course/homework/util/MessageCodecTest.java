@@ -0,0 +1,126 @@
+package com.sap.course.homework.util;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the binary protocol encoder and decoder
+ *
+ * @author borislav.draganov
+ */
+
+public class MessageCodecTest {
+
+    @Test
+    public void decodesWhatItEncodes() throws ProtocolException {
+        Message message = decode(MessageCodec.encode(new Message(Opcode.ROOM_MESSAGE, "room", "user", "Здравей, 世界 😀", 42L)));
+
+        assertEquals(Opcode.ROOM_MESSAGE, message.getOpcode());
+        assertEquals("room", message.getString(0));
+        assertEquals("user", message.getString(1));
+        assertEquals("Здравей, 世界 😀", message.getString(2));
+        assertEquals(42L, message.getLong(3));
+    }
+
+    @Test
+    public void decodesLists() throws ProtocolException {
+        Message message = decode(MessageCodec.encode(new Message(Opcode.FILE_LIST_RESULT, Arrays.asList("a.txt", "b.txt"), "b.txt")));
+
+        assertEquals(Arrays.asList("a.txt", "b.txt"), message.getStringList(0));
+        assertEquals("b.txt", message.getString(1));
+    }
+
+    @Test
+    public void encodedSizeCountsUtf8Bytes() {
+        String[] texts = { "", "ascii", "äöü", "世界", "😀", "lone \uD800 surrogate", "\uDC00" };
+
+        for (String text : texts) {
+            Message message = new Message(Opcode.CHAT, text);
+            assertEquals(text, MessageCodec.encode(message).remaining(), MessageCodec.encodedSize(message));
+        }
+    }
+
+    @Test
+    public void lengthPrefixCountsTheBody() {
+        ByteBuffer buffer = MessageCodec.encode(new Message(Opcode.LOGIN, "user", "secret"));
+
+        assertEquals(buffer.remaining() - MessageCodec.LENGTH_SIZE, buffer.getInt(0));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsUnknownOpcodes() throws ProtocolException {
+        MessageCodec.decode(ByteBuffer.wrap(new byte[] { (byte) 0x7F }));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsTheHandshakeOpcode() throws ProtocolException {
+        MessageCodec.decode(ByteBuffer.wrap(new byte[] { Opcode.HANDSHAKE.getCode(), 0, 0, 0, 3 }));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsTruncatedStrings() throws ProtocolException {
+        MessageCodec.decode(ByteBuffer.wrap(new byte[] { Opcode.CHAT.getCode(), 0, 10, 'a', 'b' }));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsTrailingBytes() throws ProtocolException {
+        MessageCodec.decode(ByteBuffer.wrap(new byte[] { Opcode.PONG.getCode(), 1 }));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsInvalidListSizes() throws ProtocolException {
+        MessageCodec.decode(ByteBuffer.wrap(new byte[] { Opcode.FILE_LIST_RESULT.getCode(), 0x7F, 0, 0, 0 }));
+    }
+
+    @Test
+    public void malformedBytesMayNotFitAString() throws ProtocolException {
+        // 30000 invalid bytes are 30000 replacement characters of 3 bytes each
+        ByteBuffer body = ByteBuffer.allocate(3 + 30000);
+        body.put(Opcode.CHAT.getCode()).putShort((short) 30000);
+        while (body.hasRemaining()) {
+            body.put((byte) 0xFF);
+        }
+        body.flip();
+
+        Message message = MessageCodec.decode(body);
+        assertEquals(30000, message.getString(0).length());
+
+        try {
+            MessageCodec.checkSize(message);
+            fail("The string doesn't fit its length prefix");
+        } catch (ProtocolException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void checksTheSizeOfTheWholeFrame() throws ProtocolException {
+        char[] text = new char[Constants.MAX_FRAME_SIZE - 64];
+        Arrays.fill(text, 'a');
+
+        // The text alone fits a frame
+        MessageCodec.checkSize(new Message(Opcode.CHAT, new String(text)));
+
+        // With a long name of the sender it doesn't
+        char[] name = new char[100];
+        Arrays.fill(name, 'u');
+
+        try {
+            MessageCodec.checkSize(new Message(Opcode.MESSAGE, new String(name), new String(text), 0L));
+            fail("The message doesn't fit a frame");
+        } catch (ProtocolException e) {
+            // Expected
+        }
+    }
+
+    private static Message decode(ByteBuffer frame) throws ProtocolException {
+        frame.position(MessageCodec.LENGTH_SIZE);
+        return MessageCodec.decode(frame.slice());
+    }
+}
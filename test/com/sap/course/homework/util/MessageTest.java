@@ -0,0 +1,34 @@
+package com.sap.course.homework.util;
+
+import com.sap.course.homework.domain.User;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Tests of the messages as they are logged
+ *
+ * @author borislav.draganov
+ */
+
+public class MessageTest {
+
+    @Test
+    public void logsLoginsWithoutThePassword() {
+        String logged = new Message(Opcode.LOGIN, "alice", "secret").toString();
+
+        assertEquals("LOGIN[alice, ****]", logged);
+        assertFalse(new User("alice", "secret").toString().contains("secret"));
+    }
+
+    @Test
+    public void logsTheFieldsOfOtherMessages() {
+        assertEquals("CHAT[hello]", new Message(Opcode.CHAT, "hello").toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checksTheNumberOfFields() {
+        new Message(Opcode.CHAT, "hello", "there");
+    }
+}
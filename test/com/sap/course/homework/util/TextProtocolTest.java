@@ -0,0 +1,99 @@
+package com.sap.course.homework.util;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of the mapping between text protocol lines and messages
+ *
+ * @author borislav.draganov
+ */
+
+public class TextProtocolTest {
+
+    @Test
+    public void parsesCredentials() throws ProtocolException {
+        Message message = TextProtocol.parse("user:pass:word");
+
+        assertEquals(Opcode.LOGIN, message.getOpcode());
+        assertEquals("user", message.getString(0));
+        assertEquals("pass:word", message.getString(1));
+    }
+
+    @Test
+    public void parsesChatLines() throws ProtocolException {
+        Message message = TextProtocol.parse("hello there");
+
+        assertEquals(Opcode.CHAT, message.getOpcode());
+        assertEquals("hello there", message.getString(0));
+    }
+
+    @Test
+    public void parsesRoomCommands() throws ProtocolException {
+        assertEquals(Opcode.ROOM_JOIN, TextProtocol.parse("/join java").getOpcode());
+        assertEquals("java", TextProtocol.parse("/leave java").getString(0));
+
+        Message post = TextProtocol.parse("/room java hello there");
+        assertEquals(Opcode.ROOM_POST, post.getOpcode());
+        assertEquals("java", post.getString(0));
+        assertEquals("hello there", post.getString(1));
+
+        // Without a text it's an ordinary chat line
+        assertEquals(Opcode.CHAT, TextProtocol.parse("/room java").getOpcode());
+    }
+
+    @Test
+    public void parsesDirectMessages() throws ProtocolException {
+        Message message = TextProtocol.parse("/msg bob hi bob");
+
+        assertEquals(Opcode.DIRECT, message.getOpcode());
+        assertEquals("bob", message.getString(0));
+        assertEquals("hi bob", message.getString(1));
+    }
+
+    @Test
+    public void parsesHistoryRequests() throws ProtocolException {
+        Message message = TextProtocol.parse("/history java 10");
+        assertEquals(Opcode.HISTORY, message.getOpcode());
+        assertEquals("java", message.getString(0));
+        assertEquals(10, message.getInt(1));
+
+        assertEquals(Constants.HISTORY_REPLAY_MESSAGES, TextProtocol.parse("/history java").getInt(1));
+        assertEquals(Opcode.CHAT, TextProtocol.parse("/history java many").getOpcode());
+    }
+
+    @Test
+    public void parsesSystemCommands() throws ProtocolException {
+        assertEquals(Opcode.DISCONNECT, TextProtocol.parse(SystemCommand.DISCONNECT.getCommand()).getOpcode());
+
+        Message upload = TextProtocol.parse(SystemCommand.FILE_UPLOAD.getCommand() + "-a.txt-100");
+        assertEquals(Opcode.FILE_UPLOAD, upload.getOpcode());
+        assertEquals("a.txt", upload.getString(0));
+        assertEquals(100L, upload.getLong(1));
+        assertEquals(0L, upload.getLong(2));
+        assertEquals(100L, upload.getLong(3));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsMalformedSystemCommands() throws ProtocolException {
+        TextProtocol.parse(SystemCommand.FILE_UPLOAD.getCommand() + "-a.txt-many");
+    }
+
+    @Test
+    public void encodesMessages() {
+        assertEquals("alice: hi", TextProtocol.encode(new Message(Opcode.MESSAGE, "alice", "hi", 0L)));
+        assertEquals("[java] alice: hi", TextProtocol.encode(new Message(Opcode.ROOM_MESSAGE, "java", "alice", "hi", 0L)));
+        assertEquals("(private) alice: hi", TextProtocol.encode(new Message(Opcode.DIRECT_MESSAGE, "alice", "hi", 0L)));
+        assertEquals(String.format(Constants.MESSAGE_SENT_TO_USERS, 3), TextProtocol.encode(new Message(Opcode.DELIVERY_REPORT, 3)));
+        assertEquals("a.txt\nb.txt", TextProtocol.encode(new Message(Opcode.FILE_LIST_RESULT, Arrays.asList("a.txt", "b.txt"), "")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMessagesWithoutTextForm() {
+        TextProtocol.encode(new Message(Opcode.PING));
+    }
+}
@@ -0,0 +1,152 @@
+package com.sap.course.homework.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the timing wheel - the wheel is advanced by hand with times past the deadlines
+ *
+ * @author borislav.draganov
+ */
+
+public class TimingWheelTest {
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private TimingWheel wheel;
+    private List<String> fired;
+
+    @Before
+    public void setUp() {
+        // 8 buckets of 10ms - a turn of 80ms
+        wheel = new TimingWheel(10, 8);
+        fired = new ArrayList<>();
+    }
+
+    @Test
+    public void firesATimerOnceAfterItsDelay() {
+        long start = System.nanoTime();
+        wheel.schedule(task("a"), 5 * TICK);
+        assertFalse(wheel.isEmpty());
+
+        wheel.advance(start);
+        assertTrue(fired.isEmpty());
+
+        wheel.advance(start + 7 * TICK);
+        assertEquals(1, fired.size());
+        assertTrue(wheel.isEmpty());
+
+        wheel.advance(start + 20 * TICK);
+        assertEquals(1, fired.size());
+    }
+
+    @Test
+    public void firesTimersInTheOrderOfTheirTicks() {
+        long start = System.nanoTime();
+        wheel.schedule(task("late"), 6 * TICK);
+        wheel.schedule(task("early"), 2 * TICK);
+
+        wheel.advance(start + 4 * TICK);
+        assertEquals(1, fired.size());
+
+        wheel.advance(start + 8 * TICK);
+        assertEquals("early", fired.get(0));
+        assertEquals("late", fired.get(1));
+    }
+
+    @Test
+    public void keepsTimersOfALaterTurn() {
+        long start = System.nanoTime();
+
+        // Three turns away, in a bucket visited on every turn
+        wheel.schedule(task("a"), 25 * TICK);
+
+        wheel.advance(start + 10 * TICK);
+        wheel.advance(start + 20 * TICK);
+        assertTrue(fired.isEmpty());
+
+        wheel.advance(start + 27 * TICK);
+        assertEquals(1, fired.size());
+    }
+
+    @Test
+    public void firesEveryTimerAfterALongPause() {
+        long start = System.nanoTime();
+        for (int i = 1; i <= 20; i++) {
+            wheel.schedule(task("t" + i), i * TICK);
+        }
+
+        wheel.advance(start + 100 * TICK);
+        assertEquals(20, fired.size());
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void doesNotFireCancelledTimers() {
+        long start = System.nanoTime();
+        TimingWheel.Timeout cancelled = wheel.schedule(task("cancelled"), 2 * TICK);
+        wheel.schedule(task("kept"), 2 * TICK);
+
+        cancelled.cancel();
+        wheel.advance(start + 5 * TICK);
+        assertEquals(1, fired.size());
+        assertEquals("kept", fired.get(0));
+
+        // Cancelling a fired timer changes nothing
+        cancelled.cancel();
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void firesTheOtherTimersWhenATaskThrows() {
+        long start = System.nanoTime();
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("expected by the test");
+            }
+        }, TICK);
+        wheel.schedule(task("a"), TICK);
+
+        wheel.advance(start + 3 * TICK);
+        assertEquals(1, fired.size());
+    }
+
+    @Test
+    public void runsTimersScheduledByAFiringTask() {
+        long start = System.nanoTime();
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.add("first");
+                wheel.schedule(task("second"), TICK);
+            }
+        }, TICK);
+
+        wheel.advance(start + 3 * TICK);
+        assertEquals(1, fired.size());
+
+        // Not in the tick being processed, in the next one at the earliest
+        wheel.advance(start + 3 * TICK);
+        assertEquals(1, fired.size());
+
+        wheel.advance(start + 5 * TICK);
+        assertEquals("second", fired.get(1));
+    }
+
+    private Runnable task(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                fired.add(name);
+            }
+        };
+    }
+}
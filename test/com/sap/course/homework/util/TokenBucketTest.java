@@ -0,0 +1,106 @@
+package com.sap.course.homework.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the token bucket - burst, refill, debt and released tokens, with the time passed in
+ *
+ * @author borislav.draganov
+ */
+
+public class TokenBucketTest {
+    private static final long PERIOD = TimeUnit.SECONDS.toNanos(1);
+
+    // 10 tokens per second - a token every 100ms
+    private static final long INTERVAL = PERIOD / 10;
+
+    private TokenBucket bucket;
+    private long now;
+
+    @Before
+    public void setUp() {
+        bucket = new TokenBucket(10, PERIOD);
+        now = System.nanoTime();
+    }
+
+    @Test
+    public void startsFullWithABurstOfAPeriod() {
+        assertTrue(bucket.isFull(now));
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, bucket.tryAcquire(1, now));
+        }
+
+        // The next token comes in an interval
+        assertEquals(INTERVAL, bucket.tryAcquire(1, now));
+        assertFalse(bucket.isFull(now));
+    }
+
+    @Test
+    public void refillsATokenPerInterval() {
+        assertEquals(0, bucket.tryAcquire(10, now));
+
+        now += 3 * INTERVAL;
+        assertEquals(0, bucket.tryAcquire(3, now));
+        assertEquals(INTERVAL, bucket.tryAcquire(1, now));
+
+        // Full again after a period without acquires
+        now += PERIOD;
+        assertTrue(bucket.isFull(now));
+        assertEquals(0, bucket.tryAcquire(10, now));
+    }
+
+    @Test
+    public void doesNotStoreMoreThanABurst() {
+        now += 10 * PERIOD;
+
+        assertEquals(0, bucket.tryAcquire(10, now));
+        assertEquals(INTERVAL, bucket.tryAcquire(1, now));
+    }
+
+    @Test
+    public void waitsForTheWholeRequest() {
+        assertEquals(0, bucket.tryAcquire(8, now));
+
+        // 2 tokens are left, the other 3 take 3 intervals
+        assertEquals(3 * INTERVAL, bucket.tryAcquire(5, now));
+        assertEquals(0, bucket.tryAcquire(5, now + 3 * INTERVAL));
+    }
+
+    @Test
+    public void paysTheDebtOfForcedAcquires() {
+        bucket.acquire(15, now);
+        assertEquals(5 * INTERVAL, bucket.getDebt(now));
+        assertEquals(6 * INTERVAL, bucket.tryAcquire(1, now));
+
+        // Paid off, the next token takes another interval
+        now += 5 * INTERVAL;
+        assertEquals(0, bucket.getDebt(now));
+        assertEquals(INTERVAL, bucket.tryAcquire(1, now));
+
+        now += INTERVAL;
+        assertEquals(0, bucket.tryAcquire(1, now));
+    }
+
+    @Test
+    public void givesBackReleasedTokens() {
+        assertEquals(0, bucket.tryAcquire(10, now));
+
+        bucket.release(2);
+        assertEquals(0, bucket.tryAcquire(2, now));
+        assertEquals(INTERVAL, bucket.tryAcquire(1, now));
+    }
+
+    @Test
+    public void neverGrantsMoreThanABurstAtOnce() {
+        assertEquals(INTERVAL, bucket.tryAcquire(11, now));
+        assertTrue(bucket.isFull(now));
+    }
+}